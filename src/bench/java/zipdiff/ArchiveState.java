@@ -0,0 +1,91 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A pair of synthetic archives shared by the benchmarks. Larger archives
+ * are selected on the command line, e.g. -p entryCount=1000000
+ */
+@State(Scope.Benchmark)
+public class ArchiveState {
+	/**
+	 * Field entryCount.
+	 */
+	@Param({"1000", "100000"})
+	public int entryCount;
+
+	/**
+	 * Field nestingDepth.
+	 */
+	@Param({"0", "2"})
+	public int nestingDepth;
+
+	/**
+	 * Field method, STORED, DEFLATED or MIXED.
+	 */
+	@Param({"DEFLATED"})
+	public String method;
+
+	/**
+	 * Field changeRatio.
+	 */
+	@Param({"0.01"})
+	public double changeRatio;
+
+	/**
+	 * Field source.
+	 */
+	public File source;
+
+	/**
+	 * Field target.
+	 */
+	public File target;
+
+	/**
+	 * generates the archives
+	 * @throws IOException
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		source = File.createTempFile("zipdiff-bench-source", ".jar");
+		target = File.createTempFile("zipdiff-bench-target", ".jar");
+		final SyntheticArchiveGenerator generator = new SyntheticArchiveGenerator();
+		generator.setEntryCount(entryCount);
+		generator.setNestingDepth(nestingDepth);
+		generator.setMethod(SyntheticArchiveGenerator.parseMethod(method));
+		generator.setChangeRatio(changeRatio);
+		generator.generate(source, target);
+	}
+
+	/**
+	 * deletes the archives
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		source.delete();
+		target.delete();
+	}
+
+	/**
+	 * Method createCalculator.
+	 * @return DifferenceCalculator comparing the archives
+	 * @throws IOException
+	 */
+	public DifferenceCalculator createCalculator() throws IOException {
+		return new DifferenceCalculator(source, target);
+	}
+}
@@ -0,0 +1,87 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import zipdiff.output.AbstractBuilder;
+import zipdiff.output.BuilderFactory;
+
+/**
+ * Measures the output of the differences by each builder. The output is
+ * discarded, so that only the formatting is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuilderBenchmark {
+
+	/**
+	 * The differences of the archives and the output format.
+	 */
+	@State(Scope.Benchmark)
+	public static class Output {
+		/**
+		 * Field format, the extension of the output file.
+		 */
+		@Param({"txt", "xml", "html", "zip"})
+		public String format;
+
+		/**
+		 * Field differences.
+		 */
+		public Differences differences;
+
+		/**
+		 * compares the archives
+		 * @param state ArchiveState
+		 * @throws IOException
+		 */
+		@Setup(Level.Trial)
+		public void setUp(ArchiveState state) throws IOException {
+			differences = state.createCalculator().getDifferences();
+		}
+	}
+
+	/**
+	 * writes the differences
+	 * @param output Output
+	 * @param blackhole consumes the output
+	 */
+	@Benchmark
+	public void build(Output output, final Blackhole blackhole) {
+		final AbstractBuilder builder = (AbstractBuilder) BuilderFactory.create("output." + output.format);
+		builder.build(new OutputStream() {
+			@Override
+			public void write(int b) {
+				blackhole.consume(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				blackhole.consume(len);
+			}
+		}, output.differences);
+	}
+}
@@ -0,0 +1,113 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the comparison of two indexes, and the whole comparison of two archives.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiffBenchmark {
+
+	/**
+	 * Indexes of both archives, built once per trial.
+	 */
+	@State(Scope.Benchmark)
+	public static class Indexes {
+		/**
+		 * Field calculator.
+		 */
+		public DifferenceCalculator calculator;
+
+		/**
+		 * Field sourceMap.
+		 */
+		public Map<String, ZipEntry> sourceMap;
+
+		/**
+		 * Field targetMap.
+		 */
+		public Map<String, ZipEntry> targetMap;
+
+		/**
+		 * Field sourceTable.
+		 */
+		public EntryTable sourceTable;
+
+		/**
+		 * Field targetTable.
+		 */
+		public EntryTable targetTable;
+
+		/**
+		 * builds the indexes
+		 * @param state ArchiveState
+		 * @throws IOException
+		 */
+		@Setup(Level.Trial)
+		public void setUp(ArchiveState state) throws IOException {
+			calculator = state.createCalculator();
+			sourceMap = calculator.buildZipEntryMap(new ZipFile(state.source));
+			targetMap = calculator.buildZipEntryMap(new ZipFile(state.target));
+			sourceTable = calculator.buildEntryTable(state.source, 0);
+			targetTable = calculator.buildEntryTable(state.target, 0);
+		}
+	}
+
+	/**
+	 * compares two maps of ZipEntries
+	 * @param indexes Indexes
+	 * @return Differences
+	 * @throws IOException
+	 */
+	@Benchmark
+	public Differences calculateDifferencesMaps(Indexes indexes) throws IOException {
+		return indexes.calculator.calculateDifferences(indexes.sourceMap, indexes.targetMap);
+	}
+
+	/**
+	 * compares two EntryTables
+	 * @param indexes Indexes
+	 * @return Differences
+	 * @throws IOException
+	 */
+	@Benchmark
+	public Differences calculateDifferencesTables(Indexes indexes) throws IOException {
+		return indexes.calculator.calculateDifferences(indexes.sourceTable, indexes.targetTable);
+	}
+
+	/**
+	 * indexes and compares both archives
+	 * @param state ArchiveState
+	 * @return Differences
+	 * @throws IOException
+	 */
+	@Benchmark
+	public Differences getDifferences(ArchiveState state) throws IOException {
+		return state.createCalculator().getDifferences();
+	}
+}
@@ -0,0 +1,88 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the exclusion check for all names of an archive.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExcludeBenchmark {
+
+	/**
+	 * Names of the entries of the source archive and a calculator with exclusions.
+	 */
+	@State(Scope.Benchmark)
+	public static class Names {
+		/**
+		 * Field regex, the regular expression to exclude, empty for none.
+		 */
+		@Param({"", ".*\\.properties", "package1[0-9]/.*"})
+		public String regex;
+
+		/**
+		 * Field calculator.
+		 */
+		public DifferenceCalculator calculator;
+
+		/**
+		 * Field names.
+		 */
+		public String[] names;
+
+		/**
+		 * reads the names
+		 * @param state ArchiveState
+		 * @throws IOException
+		 */
+		@Setup(Level.Trial)
+		public void setUp(ArchiveState state) throws IOException {
+			calculator = state.createCalculator();
+			names = calculator.buildZipEntryMap(new ZipFile(state.source)).keySet().toArray(new String[0]);
+			calculator.setExcludeSCMFiles(true);
+			if (regex.length() > 0) {
+				calculator.setExcludeRegex(Collections.singleton(regex));
+			}
+		}
+	}
+
+	/**
+	 * checks every name
+	 * @param names Names
+	 * @return number of excluded names
+	 */
+	@Benchmark
+	public int excludeThisFile(Names names) {
+		int excluded = 0;
+		for (String name : names.names) {
+			if (names.calculator.excludeThisFile("", name)) {
+				excluded++;
+			}
+		}
+		return excluded;
+	}
+}
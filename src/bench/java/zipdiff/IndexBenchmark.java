@@ -0,0 +1,53 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the indexing of an archive, including its nested archives.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+
+	/**
+	 * indexes the source archive into a map of ZipEntries
+	 * @param state ArchiveState
+	 * @return Map&lt;String,ZipEntry&gt;
+	 * @throws IOException
+	 */
+	@Benchmark
+	public Map<String, ZipEntry> buildZipEntryMap(ArchiveState state) throws IOException {
+		return state.createCalculator().buildZipEntryMap(new ZipFile(state.source));
+	}
+
+	/**
+	 * indexes the source archive into an EntryTable
+	 * @param state ArchiveState
+	 * @return EntryTable
+	 * @throws IOException
+	 */
+	@Benchmark
+	public EntryTable buildEntryTable(ArchiveState state) throws IOException {
+		return state.createCalculator().buildEntryTable(state.source, 0);
+	}
+}
@@ -0,0 +1,270 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates a pair of synthetic archives, a source and a target which differs from
+ * the source by a given ratio of its files. The archives are the same for the same
+ * settings, so that benchmark results of different versions can be compared.
+ */
+public class SyntheticArchiveGenerator {
+	/**
+	 * Field MIXED, alternates between stored and deflated entries.
+	 * (value is -1)
+	 */
+	public static final int MIXED = -1;
+
+	/**
+	 * Field WORDS, the content of the files is made of these words, so that it is compressible.
+	 */
+	private static final String[] WORDS = {
+		"zip", "diff", "entry", "archive", "class", "import", "public", "void", "return", "static"
+	};
+
+	/**
+	 * Field entryCount.
+	 */
+	private int entryCount = 1000;
+
+	/**
+	 * Field nestingDepth.
+	 */
+	private int nestingDepth = 0;
+
+	/**
+	 * Field nestedArchives.
+	 */
+	private int nestedArchives = 4;
+
+	/**
+	 * Field method.
+	 */
+	private int method = ZipEntry.DEFLATED;
+
+	/**
+	 * Field changeRatio.
+	 */
+	private double changeRatio = 0.01;
+
+	/**
+	 * Field entrySize.
+	 */
+	private int entrySize = 512;
+
+	/**
+	 * Field seed.
+	 */
+	private long seed = 42;
+
+	/**
+	 * Method setEntryCount.
+	 * @param entryCount total number of files, including those in nested archives
+	 */
+	public void setEntryCount(int entryCount) {
+		this.entryCount = entryCount;
+	}
+
+	/**
+	 * Method setNestingDepth.
+	 * @param nestingDepth levels of nested archives, 0 for none
+	 */
+	public void setNestingDepth(int nestingDepth) {
+		this.nestingDepth = nestingDepth;
+	}
+
+	/**
+	 * Method setNestedArchives.
+	 * @param nestedArchives number of nested archives in each archive above the deepest level
+	 */
+	public void setNestedArchives(int nestedArchives) {
+		this.nestedArchives = nestedArchives;
+	}
+
+	/**
+	 * Method setMethod.
+	 * @param method ZipEntry.STORED, ZipEntry.DEFLATED or MIXED
+	 */
+	public void setMethod(int method) {
+		this.method = method;
+	}
+
+	/**
+	 * Method setChangeRatio.
+	 * @param changeRatio ratio of the files which are changed, removed or renamed in the target
+	 */
+	public void setChangeRatio(double changeRatio) {
+		this.changeRatio = changeRatio;
+	}
+
+	/**
+	 * Method setEntrySize.
+	 * @param entrySize size of each file in bytes
+	 */
+	public void setEntrySize(int entrySize) {
+		this.entrySize = entrySize;
+	}
+
+	/**
+	 * Method setSeed.
+	 * @param seed seed of the random numbers
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * parses the name of a compression method
+	 * @param name STORED, DEFLATED or MIXED
+	 * @return method
+	 */
+	public static int parseMethod(String name) {
+		if ("STORED".equals(name)) {
+			return ZipEntry.STORED;
+		} else if ("DEFLATED".equals(name)) {
+			return ZipEntry.DEFLATED;
+		} else if ("MIXED".equals(name)) {
+			return MIXED;
+		}
+		throw new IllegalArgumentException("unknown compression method " + name);
+	}
+
+	/**
+	 * writes the source and the target archive
+	 * @param source source file
+	 * @param target target file
+	 * @throws IOException in case of an input/output error
+	 */
+	public void generate(File source, File target) throws IOException {
+		final ZipOutputStream src = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(source)));
+		try {
+			final ZipOutputStream trg = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+			try {
+				write(src, trg, nestingDepth, entryCount, new Random(seed), new int[1]);
+			} finally {
+				trg.close();
+			}
+		} finally {
+			src.close();
+		}
+	}
+
+	/**
+	 * writes the files of an archive and its nested archives into both versions
+	 * @param src source version of the archive
+	 * @param trg target version of the archive
+	 * @param depth remaining levels of nested archives
+	 * @param count number of files in this archive and its nested archives
+	 * @param random Random
+	 * @param sequence counter for the names of the entries
+	 * @throws IOException in case of an input/output error
+	 */
+	private void write(ZipOutputStream src, ZipOutputStream trg, int depth, int count, Random random, int[] sequence) throws IOException {
+		int own = count;
+		if ((depth > 0) && (nestedArchives > 0)) {
+			own = count / (nestedArchives + 1);
+			final int remaining = count - own;
+			for (int i = 0; i < nestedArchives; i++) {
+				final int n = remaining / nestedArchives + ((i < remaining % nestedArchives) ? 1 : 0);
+				final ByteArrayOutputStream srcBytes = new ByteArrayOutputStream();
+				final ByteArrayOutputStream trgBytes = new ByteArrayOutputStream();
+				final ZipOutputStream nestedSrc = new ZipOutputStream(srcBytes);
+				final ZipOutputStream nestedTrg = new ZipOutputStream(trgBytes);
+				write(nestedSrc, nestedTrg, depth - 1, n, random, sequence);
+				nestedSrc.close();
+				nestedTrg.close();
+				final String name = "lib/nested" + (sequence[0]++) + ".jar";
+				final int nestedMethod = nextMethod(random);
+				put(src, name, srcBytes.toByteArray(), nestedMethod);
+				put(trg, name, trgBytes.toByteArray(), nestedMethod);
+			}
+		}
+
+		final byte[] content = new byte[entrySize];
+		for (int i = 0; i < own; i++) {
+			final int id = sequence[0]++;
+			final String name = "package" + (id % 100) + "/File" + id + ".class";
+			fill(content, random);
+			final int entryMethod = nextMethod(random);
+			put(src, name, content, entryMethod);
+
+			final double change = random.nextDouble();
+			if (change >= changeRatio) {
+				put(trg, name, content, entryMethod);
+			} else if (change < changeRatio * 0.8) {
+				content[random.nextInt(content.length)] ^= 1;
+				put(trg, name, content, entryMethod);
+			} else if (change < changeRatio * 0.9) {
+				// removed from the target
+				continue;
+			} else {
+				put(trg, "renamed/" + name, content, entryMethod);
+			}
+		}
+	}
+
+	/**
+	 * Method nextMethod.
+	 * @param random Random
+	 * @return compression method of the next entry
+	 */
+	private int nextMethod(Random random) {
+		if (method == MIXED) {
+			return random.nextBoolean() ? ZipEntry.STORED : ZipEntry.DEFLATED;
+		}
+		return method;
+	}
+
+	/**
+	 * fills a buffer with random words
+	 * @param content buffer
+	 * @param random Random
+	 */
+	private static void fill(byte[] content, Random random) {
+		int pos = 0;
+		while (pos < content.length) {
+			final String word = WORDS[random.nextInt(WORDS.length)];
+			for (int i = 0; (i < word.length()) && (pos < content.length); i++) {
+				content[pos++] = (byte) word.charAt(i);
+			}
+			if (pos < content.length) {
+				content[pos++] = ' ';
+			}
+		}
+	}
+
+	/**
+	 * writes an entry
+	 * @param zos ZipOutputStream
+	 * @param name name of the entry
+	 * @param content content of the entry
+	 * @param entryMethod compression method
+	 * @throws IOException in case of an input/output error
+	 */
+	private static void put(ZipOutputStream zos, String name, byte[] content, int entryMethod) throws IOException {
+		final ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(entryMethod);
+		if (entryMethod == ZipEntry.STORED) {
+			final CRC32 crc = new CRC32();
+			crc.update(content);
+			entry.setSize(content.length);
+			entry.setCompressedSize(content.length);
+			entry.setCrc(crc.getValue());
+		}
+		zos.putNextEntry(entry);
+		zos.write(content);
+		zos.closeEntry();
+	}
+}
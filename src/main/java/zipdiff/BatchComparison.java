@@ -0,0 +1,402 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import zipdiff.output.AbstractBuilder;
+import zipdiff.output.Builder;
+import zipdiff.output.BuilderFactory;
+
+/**
+ * Compares one source file with many target files in a single run. The source
+ * file is indexed once, the index is shared by the comparisons, which run on a
+ * bounded number of threads. The result of each comparison is collected, so that
+ * a failed comparison does not stop the others. The reports of several targets
+ * cannot be written to stdout ("-") on more than one thread, because they would be
+ * mixed up.
+ */
+public class BatchComparison {
+	/**
+	 * Field source.
+	 */
+	private final File source;
+
+	/**
+	 * Field targets.
+	 */
+	private final List<File> targets = new ArrayList<File>();
+
+	/**
+	 * Field outputs, the output file of each target, null for none.
+	 */
+	private final List<String> outputs = new ArrayList<String>();
+
+	/**
+	 * Field threads.
+	 */
+	private int threads = 1;
+
+	/**
+	 * Field numberOfOutputLevelsToTrim.
+	 */
+	private int numberOfOutputLevelsToTrim = 0;
+
+	/**
+	 * Field nestedPatches.
+	 */
+	private boolean nestedPatches = false;
+
+	/**
+	 * Field statistics, null unless the progress is counted.
+	 */
+	private DiffStatistics statistics;
+
+	/**
+	 * Field directory, relative names in list files are resolved against it, null for the working directory.
+	 */
+	private File directory;
+
+	/**
+	 * Constructor for BatchComparison.
+	 * @param source the source file, which is compared with every target
+	 */
+	public BatchComparison(File source) {
+		this.source = source;
+	}
+
+	/**
+	 * Method setThreads.
+	 * @param threads number of comparisons which run at the same time
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Method setNumberOfOutputLevelsToTrim.
+	 * @param numberOfOutputLevelsToTrim number of directory levels to trim in the output files
+	 */
+	public void setNumberOfOutputLevelsToTrim(int numberOfOutputLevelsToTrim) {
+		this.numberOfOutputLevelsToTrim = numberOfOutputLevelsToTrim;
+	}
+
+	/**
+	 * Method setNestedPatches.
+	 * @param nestedPatches true to rebuild archives containing changed nested archives as patches in zip output files
+	 */
+	public void setNestedPatches(boolean nestedPatches) {
+		this.nestedPatches = nestedPatches;
+	}
+
+	/**
+	 * Method setStatistics.
+	 * @param statistics DiffStatistics shared by all comparisons and output files, or null
+	 */
+	public void setStatistics(DiffStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Method setDirectory.
+	 * @param directory relative names in list files are resolved against this directory, null for the working directory
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * adds a target file
+	 * @param target file to compare with the source
+	 * @param output name of the output file, or null for none
+	 */
+	public void add(File target, String output) {
+		targets.add(target);
+		outputs.add(output);
+	}
+
+	/**
+	 * adds the targets of a list file. Each line names a target file, optionally
+	 * followed by a tab and the name of its output file. Empty lines and lines
+	 * starting with # are ignored.
+	 * @param list the list file, encoded in UTF-8
+	 * @throws IOException in case of an input/output error
+	 */
+	public void addList(File list) throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(list), "UTF-8"));
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				if ((line.trim().length() > 0) && !line.startsWith("#")) {
+					final int tab = line.indexOf('\t');
+					if (tab < 0) {
+						add(resolve(line.trim()), null);
+					} else {
+						final String output = line.substring(tab + 1).trim();
+						add(resolve(line.substring(0, tab).trim()), output.equals("-") ? output : resolve(output).getPath());
+					}
+				}
+				line = reader.readLine();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Method resolve.
+	 * @param name file name from a list file
+	 * @return File
+	 */
+	private File resolve(String name) {
+		final File file = new File(name);
+		if ((directory == null) || file.isAbsolute()) {
+			return file;
+		}
+		return new File(directory, name);
+	}
+
+	/**
+	 * adds the archives in a directory as targets, in the order of their names
+	 * @param directory directory containing the targets
+	 * @param output name of the output file, the name of each target is inserted
+	 *        before its extension, or null for none
+	 * @throws IOException if the directory cannot be read
+	 */
+	public void addDirectory(File directory, String output) throws IOException {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("cannot read directory " + directory);
+		}
+		Arrays.sort(files);
+		final File canonicalSource = source.getCanonicalFile();
+		for (File file : files) {
+			if (file.isFile() && DifferenceCalculator.isZipFile(file.getName())
+					&& !file.getCanonicalFile().equals(canonicalSource)) {
+				add(file, (output == null) ? null : getOutputName(output, file));
+			}
+		}
+	}
+
+	/**
+	 * derives the name of the output file of a target, e.g. diff-app-1.2.xml
+	 * for the output diff.xml and the target app-1.2.jar
+	 * @param output name of the output file
+	 * @param target the target file
+	 * @return String
+	 */
+	protected static String getOutputName(String output, File target) {
+		String name = target.getName();
+		final int extension = name.lastIndexOf('.');
+		if (extension > 0) {
+			name = name.substring(0, extension);
+		}
+		final int separator = Math.max(output.lastIndexOf('/'), output.lastIndexOf(File.separatorChar));
+		final int dot = output.lastIndexOf('.');
+		if (dot > separator + 1) {
+			return output.substring(0, dot) + "-" + name + output.substring(dot);
+		}
+		return output + "-" + name;
+	}
+
+	/**
+	 * creates the calculator of one comparison, subclasses set its options here.
+	 * All calculators of a batch must use the same options for the source file.
+	 * @param sourcefile the source file
+	 * @param targetfile the target file
+	 * @return DifferenceCalculator
+	 * @throws IOException in case of an input/output error
+	 */
+	protected DifferenceCalculator createCalculator(File sourcefile, File targetfile) throws IOException {
+		return new DifferenceCalculator(sourcefile, targetfile);
+	}
+
+	/**
+	 * indexes the source file and compares it with all targets
+	 * @return the results in the order the targets were added
+	 * @throws IOException if the source file cannot be read, or if several targets
+	 *         write to stdout and the comparisons run on more than one thread
+	 */
+	public List<Result> run() throws IOException {
+		if ((Math.min(threads, targets.size()) > 1) && (Collections.frequency(outputs, "-") > 1)) {
+			throw new IOException("The reports of several targets cannot be written to stdout"
+					+ " on more than one thread, use output files or one thread");
+		}
+		final DifferenceCalculator indexer = createCalculator(source, source);
+		indexer.setStatistics(statistics);
+		final EntryTable sourceIndex = indexer.buildSourceIndex();
+
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, targets.size())));
+		try {
+			final List<Future<Result>> pending = new ArrayList<Future<Result>>(targets.size());
+			for (int i = 0; i < targets.size(); i++) {
+				final File target = targets.get(i);
+				final String output = outputs.get(i);
+				pending.add(executor.submit(new Callable<Result>() {
+					public Result call() {
+						return compare(sourceIndex, target, output);
+					}
+				}));
+			}
+			final List<Result> results = new ArrayList<Result>(targets.size());
+			for (Future<Result> future : pending) {
+				results.add(DifferenceCalculator.await(future));
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * creates the builder of an output file
+	 * @param output name of the output file
+	 * @return Builder
+	 */
+	protected Builder createBuilder(String output) {
+		final Builder builder = BuilderFactory.create(output, nestedPatches);
+		if (builder instanceof AbstractBuilder) {
+			((AbstractBuilder) builder).setStatistics(statistics);
+		}
+		return builder;
+	}
+
+	/**
+	 * compares the source with one target
+	 * @param sourceIndex index of the source file
+	 * @param target the target file
+	 * @param output name of the output file, or null for none
+	 * @return Result
+	 */
+	protected Result compare(EntryTable sourceIndex, File target, String output) {
+		try {
+			final DifferenceCalculator calc = createCalculator(source, target);
+			calc.setSourceIndex(sourceIndex);
+			calc.setStatistics(statistics);
+			DifferenceListener listener = null;
+			if (output != null) {
+				listener = BuilderFactory.createListener(createBuilder(output), output, numberOfOutputLevelsToTrim);
+			}
+			final DifferenceCounter counter = new DifferenceCounter(listener);
+			calc.getDifferences(counter);
+			return new Result(target, output, counter, null);
+		} catch (IOException e) {
+			return new Result(target, output, null, e);
+		} catch (RuntimeException e) {
+			return new Result(target, output, null, e);
+		}
+	}
+
+	/**
+	 * The result of the comparison of the source with one target.
+	 */
+	public static class Result {
+		/**
+		 * Field target.
+		 */
+		private final File target;
+
+		/**
+		 * Field output.
+		 */
+		private final String output;
+
+		/**
+		 * Field counter, null if the comparison failed.
+		 */
+		private final DifferenceCounter counter;
+
+		/**
+		 * Field error, null if the comparison succeeded.
+		 */
+		private final Exception error;
+
+		/**
+		 * Constructor for Result.
+		 * @param target File
+		 * @param output String
+		 * @param counter DifferenceCounter
+		 * @param error Exception
+		 */
+		Result(File target, String output, DifferenceCounter counter, Exception error) {
+			this.target = target;
+			this.output = output;
+			this.counter = counter;
+			this.error = error;
+		}
+
+		/**
+		 * Method getTarget.
+		 * @return File
+		 */
+		public File getTarget() {
+			return target;
+		}
+
+		/**
+		 * Method getOutput.
+		 * @return name of the output file, or null
+		 */
+		public String getOutput() {
+			return output;
+		}
+
+		/**
+		 * Method getCounter.
+		 * @return the counted differences, or null if the comparison failed
+		 */
+		public DifferenceCounter getCounter() {
+			return counter;
+		}
+
+		/**
+		 * Method getError.
+		 * @return the exception which stopped the comparison, or null
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		/**
+		 * Method isFailed.
+		 * @return true if the comparison failed
+		 */
+		public boolean isFailed() {
+			return error != null;
+		}
+
+		/**
+		 * Method hasDifferences.
+		 * @return true if differences were found
+		 */
+		public boolean hasDifferences() {
+			return (counter != null) && counter.hasDifferences();
+		}
+
+		/**
+		 * Method toString.
+		 * @return String
+		 */
+		public String toString() {
+			if (error != null) {
+				return target + ": failed: " + error;
+			}
+			return target + (counter.hasDifferences() ? ": different" : ": no differences");
+		}
+	}
+}
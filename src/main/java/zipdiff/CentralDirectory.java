@@ -0,0 +1,651 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import zipdiff.util.ChannelInputStream;
+import zipdiff.util.ZipUtil;
+
+/**
+ * Reads the central directory of a zip file through a memory mapping, one record
+ * at a time, without creating a ZipEntry per record. Zip64 archives are supported.
+ */
+public class CentralDirectory implements Closeable {
+	/**
+	 * Field CENTRAL_HEADER_SIGNATURE.
+	 */
+	public static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+	/**
+	 * Field END_SIGNATURE.
+	 */
+	public static final int END_SIGNATURE = 0x06054b50;
+
+	/**
+	 * Field ZIP64_END_SIGNATURE.
+	 */
+	public static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+	/**
+	 * Field ZIP64_LOCATOR_SIGNATURE.
+	 */
+	public static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+	/**
+	 * Field UTF8.
+	 */
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Field END_LENGTH.
+	 * (value is 22)
+	 */
+	private static final int END_LENGTH = 22;
+
+	/**
+	 * Field ZIP64_END_LENGTH.
+	 * (value is 56)
+	 */
+	private static final int ZIP64_END_LENGTH = 56;
+
+	/**
+	 * Field ZIP64_LOCATOR_LENGTH.
+	 * (value is 20)
+	 */
+	private static final int ZIP64_LOCATOR_LENGTH = 20;
+
+	/**
+	 * Field CENTRAL_HEADER_LENGTH.
+	 * (value is 46)
+	 */
+	private static final int CENTRAL_HEADER_LENGTH = 46;
+
+	/**
+	 * Field LOCAL_HEADER_LENGTH.
+	 * (value is 30)
+	 */
+	private static final int LOCAL_HEADER_LENGTH = 30;
+
+	/**
+	 * Field ZIP64_EXTRA_ID.
+	 */
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+
+	/**
+	 * Field MAGIC32.
+	 */
+	private static final long MAGIC32 = 0xFFFFFFFFL;
+
+	/**
+	 * Field file, null if the file is owned by the central directory of an outer archive.
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * Field start, the position of the archive in the file, 0 unless it is a nested archive.
+	 */
+	private final long start;
+
+	/**
+	 * Field length, the length of the archive in the file.
+	 */
+	private final long length;
+
+	/**
+	 * Field channel.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Field buffer, the central directory region.
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Field entryCount.
+	 */
+	private final long entryCount;
+
+	/**
+	 * Field offset of the central directory in the file.
+	 */
+	private final long offset;
+
+	/**
+	 * Field base, the position of the first byte of the archive in the file.
+	 */
+	private final long base;
+
+	/**
+	 * Field record, the position of the current record in the buffer.
+	 */
+	private int record = -1;
+
+	/**
+	 * Field next, the position of the next record in the buffer.
+	 */
+	private int next = 0;
+
+	/**
+	 * Field flags.
+	 */
+	private int flags;
+
+	/**
+	 * Field method.
+	 */
+	private int method;
+
+	/**
+	 * Field dosTime.
+	 */
+	private int dosTime;
+
+	/**
+	 * Field crc.
+	 */
+	private int crc;
+
+	/**
+	 * Field compressedSize.
+	 */
+	private long compressedSize;
+
+	/**
+	 * Field size.
+	 */
+	private long size;
+
+	/**
+	 * Field localHeaderOffset.
+	 */
+	private long localHeaderOffset;
+
+	/**
+	 * Field nameLength.
+	 */
+	private int nameLength;
+
+	/**
+	 * Field extraLength.
+	 */
+	private int extraLength;
+
+	/**
+	 * Constructor for CentralDirectory.
+	 * @param zipfile File
+	 * @throws IOException if the file cannot be read or is not a zip file
+	 */
+	public CentralDirectory(File zipfile) throws IOException {
+		this(new RandomAccessFile(zipfile, "r"), zipfile.toString());
+	}
+
+	/**
+	 * Constructor for CentralDirectory.
+	 * @param file RandomAccessFile, it is closed by {@link #close()}
+	 * @param name name of the file for error messages
+	 * @throws IOException if the file cannot be read or is not a zip file
+	 */
+	private CentralDirectory(RandomAccessFile file, String name) throws IOException {
+		this(file, file.getChannel(), 0, file.length(), name);
+	}
+
+	/**
+	 * Constructor for CentralDirectory.
+	 * @param file RandomAccessFile which is closed by {@link #close()}, or null
+	 * @param channel channel of the file
+	 * @param start position of the archive in the file
+	 * @param length length of the archive
+	 * @param zipfile name of the archive for error messages
+	 * @throws IOException if the file cannot be read or is not a zip file
+	 */
+	private CentralDirectory(RandomAccessFile file, FileChannel channel, long start, long length, String zipfile) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		this.start = start;
+		this.length = length;
+		try {
+			// the end record is followed by a comment of at most 65535 bytes
+			final int tailLength = (int) Math.min(length, END_LENGTH + 0xFFFF);
+			final ByteBuffer tail = map(length - tailLength, tailLength);
+			int end = tailLength - END_LENGTH;
+			while ((end >= 0) && (tail.getInt(end) != END_SIGNATURE)) {
+				end--;
+			}
+			if (end < 0) {
+				throw new ZipException("zip END header not found in " + zipfile);
+			}
+			final long endPosition = length - tailLength + end;
+
+			long count = tail.getShort(end + 10) & 0xFFFF;
+			long cdLength = tail.getInt(end + 12) & MAGIC32;
+			long cdOffset = tail.getInt(end + 16) & MAGIC32;
+			long archiveStart = endPosition - cdLength - cdOffset;
+
+			if ((count == 0xFFFF) || (cdLength == MAGIC32) || (cdOffset == MAGIC32)) {
+				final long locatorPosition = endPosition - ZIP64_LOCATOR_LENGTH;
+				if (locatorPosition >= 0) {
+					final ByteBuffer locator = map(locatorPosition, ZIP64_LOCATOR_LENGTH);
+					if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+						final long zip64EndPosition = locator.getLong(8);
+						final ByteBuffer zip64End = map(zip64EndPosition, ZIP64_END_LENGTH);
+						if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+							throw new ZipException("invalid zip64 END header in " + zipfile);
+						}
+						count = zip64End.getLong(32);
+						cdLength = zip64End.getLong(40);
+						cdOffset = zip64End.getLong(48);
+						archiveStart = 0;
+					}
+				}
+			}
+
+			if ((archiveStart < 0) || (cdOffset + archiveStart + cdLength > endPosition)) {
+				throw new ZipException("invalid central directory location in " + zipfile);
+			}
+			if (cdLength > Integer.MAX_VALUE) {
+				throw new ZipException("central directory too large in " + zipfile);
+			}
+			entryCount = count;
+			base = start + archiveStart;
+			offset = start + archiveStart + cdOffset;
+			buffer = map(archiveStart + cdOffset, (int) cdLength);
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * maps a region of the archive
+	 * @param position offset of the region in the archive
+	 * @param regionLength length of the region
+	 * @return little endian buffer
+	 * @throws IOException
+	 */
+	private ByteBuffer map(long position, int regionLength) throws IOException {
+		if ((position < 0) || (position + regionLength > length) || (start + position + regionLength > channel.size())) {
+			throw new ZipException("invalid offset " + position);
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, start + position, regionLength).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Method getEntryCount.
+	 * @return number of records declared by the END header
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Method getOffset.
+	 * @return position of the central directory in the file
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Method getLength.
+	 * @return length of the central directory in bytes
+	 */
+	public int getLength() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * computes the SHA-1 digest of the central directory, which changes whenever
+	 * an entry is added, removed, renamed or rewritten
+	 * @return digest of the central directory
+	 */
+	public byte[] digest() {
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			final ByteBuffer records = buffer.duplicate();
+			records.clear();
+			md.update(records);
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * moves to the next record
+	 * @return false if there are no more records
+	 * @throws ZipException if the record is corrupt
+	 */
+	public boolean next() throws ZipException {
+		if (next + CENTRAL_HEADER_LENGTH > buffer.capacity()) {
+			record = -1;
+			return false;
+		}
+		if (buffer.getInt(next) != CENTRAL_HEADER_SIGNATURE) {
+			throw new ZipException("invalid central directory header at " + (offset + next));
+		}
+		record = next;
+		flags = buffer.getShort(record + 8) & 0xFFFF;
+		method = buffer.getShort(record + 10) & 0xFFFF;
+		dosTime = buffer.getInt(record + 12);
+		crc = buffer.getInt(record + 16);
+		compressedSize = buffer.getInt(record + 20) & MAGIC32;
+		size = buffer.getInt(record + 24) & MAGIC32;
+		nameLength = buffer.getShort(record + 28) & 0xFFFF;
+		extraLength = buffer.getShort(record + 30) & 0xFFFF;
+		final int commentLength = buffer.getShort(record + 32) & 0xFFFF;
+		localHeaderOffset = buffer.getInt(record + 42) & MAGIC32;
+		next = record + CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+		if (next > buffer.capacity()) {
+			throw new ZipException("truncated central directory header at " + (offset + record));
+		}
+		if ((size == MAGIC32) || (compressedSize == MAGIC32) || (localHeaderOffset == MAGIC32)) {
+			readZip64Extra(record + CENTRAL_HEADER_LENGTH + nameLength, extraLength);
+		}
+		return true;
+	}
+
+	/**
+	 * reads the values which did not fit into the 32 bit fields of the current record
+	 * @param position position of the extra field
+	 * @param length length of the extra field
+	 */
+	private void readZip64Extra(int position, int length) {
+		final int end = position + length;
+		int pos = position;
+		while (pos + 4 <= end) {
+			final int id = buffer.getShort(pos) & 0xFFFF;
+			final int dataLength = buffer.getShort(pos + 2) & 0xFFFF;
+			if (id == ZIP64_EXTRA_ID) {
+				int field = pos + 4;
+				final int dataEnd = Math.min(field + dataLength, end);
+				if ((size == MAGIC32) && (field + 8 <= dataEnd)) {
+					size = buffer.getLong(field);
+					field += 8;
+				}
+				if ((compressedSize == MAGIC32) && (field + 8 <= dataEnd)) {
+					compressedSize = buffer.getLong(field);
+					field += 8;
+				}
+				if ((localHeaderOffset == MAGIC32) && (field + 8 <= dataEnd)) {
+					localHeaderOffset = buffer.getLong(field);
+				}
+				return;
+			}
+			pos += 4 + dataLength;
+		}
+	}
+
+	/**
+	 * Method getNameLength.
+	 * @return length of the name of the current record in bytes
+	 */
+	public int getNameLength() {
+		return nameLength;
+	}
+
+	/**
+	 * copies the name of the current record
+	 * @param dst destination array
+	 * @param off position in the destination array
+	 */
+	public void getName(byte[] dst, int off) {
+		for (int i = 0; i < nameLength; i++) {
+			dst[off + i] = buffer.get(record + CENTRAL_HEADER_LENGTH + i);
+		}
+	}
+
+	/**
+	 * Method getName.
+	 * @return the name of the current record
+	 */
+	public String getName() {
+		final byte[] name = new byte[nameLength];
+		getName(name, 0);
+		return new String(name, UTF8);
+	}
+
+	/**
+	 * Method isDirectory.
+	 * @return true if the name of the current record ends with a slash
+	 */
+	public boolean isDirectory() {
+		return (nameLength > 0) && (buffer.get(record + CENTRAL_HEADER_LENGTH + nameLength - 1) == '/');
+	}
+
+	/**
+	 * Method getFlags.
+	 * @return general purpose bit flags of the current record
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Method getMethod.
+	 * @return compression method of the current record
+	 */
+	public int getMethod() {
+		return method;
+	}
+
+	/**
+	 * Method getDosTime.
+	 * @return modification time of the current record in MS-DOS format, taken from the
+	 *         Info-ZIP extended timestamp if there is one, see {@link EntryTable#getDosTime(ZipEntry)}
+	 */
+	public int getDosTime() {
+		return EntryTable.getDosTime(dosTime, ZipUtil.getExtendedTime(buffer, record + CENTRAL_HEADER_LENGTH + nameLength, extraLength));
+	}
+
+	/**
+	 * Method getCrc.
+	 * @return CRC-32 of the current record
+	 */
+	public int getCrc() {
+		return crc;
+	}
+
+	/**
+	 * Method getCompressedSize.
+	 * @return compressed size of the current record
+	 */
+	public long getCompressedSize() {
+		return compressedSize;
+	}
+
+	/**
+	 * Method getSize.
+	 * @return uncompressed size of the current record
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Method getLocalHeaderOffset.
+	 * @return position of the local header of the current record in the file
+	 */
+	public long getLocalHeaderOffset() {
+		return base + localHeaderOffset;
+	}
+
+	/**
+	 * opens the uncompressed content of the current record
+	 * @return InputStream
+	 * @throws IOException
+	 */
+	public InputStream getInputStream() throws IOException {
+		return getInputStream(channel, getLocalHeaderOffset(), compressedSize, method, flags);
+	}
+
+	/**
+	 * copies the compressed data of the current record to a channel without inflating it.
+	 * The data is transferred by the file channel, which avoids copying it through
+	 * the Java heap if the target is a file.
+	 * @param target channel to write to
+	 * @throws IOException
+	 */
+	public void transferCompressedData(WritableByteChannel target) throws IOException {
+		long position = getDataOffset(channel, getLocalHeaderOffset());
+		final long end = position + compressedSize;
+		if (end > channel.size()) {
+			throw new EOFException("truncated entry " + getName());
+		}
+		while (position < end) {
+			final long n = channel.transferTo(position, end - position, target);
+			if (n <= 0) {
+				throw new EOFException("cannot transfer entry " + getName());
+			}
+			position += n;
+		}
+	}
+
+	/**
+	 * opens the uncompressed content of an entry
+	 * @param channel file channel of the archive
+	 * @param localHeaderOffset position of the local header in the file
+	 * @param compressedSize compressed size of the entry
+	 * @param method compression method of the entry
+	 * @param flags general purpose bit flags of the entry
+	 * @return InputStream
+	 * @throws IOException
+	 */
+	static InputStream getInputStream(FileChannel channel, long localHeaderOffset, long compressedSize, int method, int flags) throws IOException {
+		if ((flags & 1) != 0) {
+			throw new ZipException("encrypted entries are not supported");
+		}
+		final long data = getDataOffset(channel, localHeaderOffset);
+		final InputStream raw = new ChannelInputStream(channel, data, compressedSize);
+		if (method == ZipEntry.STORED) {
+			return raw;
+		}
+		if (method != ZipEntry.DEFLATED) {
+			throw new ZipException("unsupported compression method " + method);
+		}
+		return new RawInflaterInputStream(raw);
+	}
+
+	/**
+	 * reads a local header to find the start of the entry data
+	 * @param channel file channel of the archive
+	 * @param localHeaderOffset position of the local header in the file
+	 * @return position of the entry data in the file
+	 * @throws IOException
+	 */
+	static long getDataOffset(FileChannel channel, long localHeaderOffset) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining()) {
+			if (channel.read(header, localHeaderOffset + header.position()) < 0) {
+				throw new EOFException("truncated local header at " + localHeaderOffset);
+			}
+		}
+		if (header.getInt(0) != ZipUtil.LOCAL_HEADER_SIGNATURE) {
+			throw new ZipException("invalid local header at " + localHeaderOffset);
+		}
+		final int nameLength = header.getShort(26) & 0xFFFF;
+		final int extraLength = header.getShort(28) & 0xFFFF;
+		return localHeaderOffset + LOCAL_HEADER_LENGTH + nameLength + extraLength;
+	}
+
+	/**
+	 * reads the central directory of the archive stored in the current record in place,
+	 * without copying or inflating it. The nested archive shares the file of this
+	 * central directory, so it has to be read before this one is closed.
+	 * @return CentralDirectory of the nested archive
+	 * @throws IOException if the record is not stored or does not contain a zip archive
+	 */
+	public CentralDirectory openStoredArchive() throws IOException {
+		if (method != ZipEntry.STORED) {
+			throw new ZipException("compressed entry " + getName() + " cannot be read in place");
+		}
+		final long data = getDataOffset(channel, getLocalHeaderOffset());
+		if (data + compressedSize > channel.size()) {
+			throw new EOFException("truncated entry " + getName());
+		}
+		return new CentralDirectory(null, channel, data, compressedSize, getName());
+	}
+
+	/**
+	 * closes the underlying file, unless it belongs to the central directory of an outer archive
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+		}
+	}
+
+	/**
+	 * inflates raw deflate data and releases the inflater on close
+	 */
+	private static class RawInflaterInputStream extends InflaterInputStream {
+		/**
+		 * Field eof.
+		 */
+		private boolean eof = false;
+
+		/**
+		 * Constructor for RawInflaterInputStream.
+		 * @param in compressed data
+		 */
+		RawInflaterInputStream(InputStream in) {
+			super(in, new Inflater(true), 8192);
+		}
+
+		/**
+		 * Method fill.
+		 * @throws IOException
+		 */
+		@Override
+		protected void fill() throws IOException {
+			if (eof) {
+				throw new EOFException("Unexpected end of ZLIB input stream");
+			}
+			len = in.read(buf, 0, buf.length);
+			if (len == -1) {
+				// the inflater in nowrap mode may need one byte beyond the compressed data
+				buf[0] = 0;
+				len = 1;
+				eof = true;
+			}
+			inf.setInput(buf, 0, len);
+		}
+
+		/**
+		 * Method close.
+		 * @throws IOException
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				inf.end();
+			}
+		}
+	}
+}
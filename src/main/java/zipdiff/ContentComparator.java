@@ -0,0 +1,345 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import zipdiff.util.ZipUtil;
+
+/**
+ * Compares the decompressed content of top level entries of two zip files.
+ * The files are opened on first use. If an executor is given, comparisons
+ * can be submitted in advance and run on its threads.
+ */
+public class ContentComparator implements Closeable {
+	/**
+	 * Field sourceFile.
+	 */
+	private final File sourceFile;
+
+	/**
+	 * Field targetFile.
+	 */
+	private final File targetFile;
+
+	/**
+	 * Field executor.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Field pending, submitted comparisons by key.
+	 */
+	private final Map<String, Future<Boolean>> pending = new HashMap<String, Future<Boolean>>();
+
+	/**
+	 * Field statistics, null unless the inflated data is counted.
+	 */
+	private DiffStatistics statistics;
+
+	/**
+	 * Field source, null until the source file is opened.
+	 */
+	private Archive source;
+
+	/**
+	 * Field target, null until the target file is opened.
+	 */
+	private Archive target;
+
+	/**
+	 * Constructor for ContentComparator.
+	 * @param sourceFile source zip file
+	 * @param targetFile target zip file
+	 * @param executor ExecutorService to run the comparisons on, or null to compare on the calling thread
+	 */
+	public ContentComparator(File sourceFile, File targetFile, ExecutorService executor) {
+		this.sourceFile = sourceFile;
+		this.targetFile = targetFile;
+		this.executor = executor;
+	}
+
+	/**
+	 * Method setStatistics.
+	 * @param statistics DiffStatistics to count the inflated data in, or null
+	 */
+	public void setStatistics(DiffStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * starts the comparison of two entries on the executor, its result is returned
+	 * by {@link #contentsMatch(String, String, String)} with the same key.
+	 * Nothing happens if there is no executor.
+	 * @param key key of the entries
+	 * @param sourcename name of the entry in the source file
+	 * @param targetname name of the entry in the target file
+	 */
+	public void submit(String key, final String sourcename, final String targetname) {
+		if (executor == null) {
+			return;
+		}
+		pending.put(key, executor.submit(new Callable<Boolean>() {
+			public Boolean call() throws IOException {
+				return Boolean.valueOf(compare(sourcename, targetname));
+			}
+		}));
+	}
+
+	/**
+	 * starts the comparison of two indexed entries on the executor, its result is returned by
+	 * {@link #contentsMatch(String, EntryTable, int, EntryTable, int)} with the same key.
+	 * Nothing happens if there is no executor.
+	 * @param key key of the entries
+	 * @param sourcetable index of the source file
+	 * @param sourcerow row of the entry in the source index
+	 * @param targettable index of the target file
+	 * @param targetrow row of the entry in the target index
+	 */
+	public void submit(String key, final EntryTable sourcetable, final int sourcerow, final EntryTable targettable,
+			final int targetrow) {
+		if (executor == null) {
+			return;
+		}
+		pending.put(key, executor.submit(new Callable<Boolean>() {
+			public Boolean call() throws IOException {
+				return Boolean.valueOf(compare(sourcetable, sourcerow, targettable, targetrow));
+			}
+		}));
+	}
+
+	/**
+	 * checks whether two entries have the same decompressed content. If a name occurs
+	 * more than once, the last entry with that name is compared, like it is indexed.
+	 * @param key key of the entries
+	 * @param sourcename name of the entry in the source file
+	 * @param targetname name of the entry in the target file
+	 * @return true if the content is the same
+	 * @throws IOException in case of an input/output error
+	 */
+	public boolean contentsMatch(String key, String sourcename, String targetname) throws IOException {
+		final Future<Boolean> future = pending.remove(key);
+		if (future != null) {
+			return DifferenceCalculator.await(future).booleanValue();
+		}
+		return compare(sourcename, targetname);
+	}
+
+	/**
+	 * checks whether two indexed entries have the same decompressed content. The entries
+	 * are read at the local header offsets of their rows, so that the indexed entries are
+	 * compared even if their names occur more than once.
+	 * @param key key of the entries
+	 * @param sourcetable index of the source file
+	 * @param sourcerow row of the entry in the source index
+	 * @param targettable index of the target file
+	 * @param targetrow row of the entry in the target index
+	 * @return true if the content is the same
+	 * @throws IOException in case of an input/output error
+	 */
+	public boolean contentsMatch(String key, EntryTable sourcetable, int sourcerow, EntryTable targettable, int targetrow)
+			throws IOException {
+		final Future<Boolean> future = pending.remove(key);
+		if (future != null) {
+			return DifferenceCalculator.await(future).booleanValue();
+		}
+		return compare(sourcetable, sourcerow, targettable, targetrow);
+	}
+
+	/**
+	 * compares two entries by name on the current thread
+	 * @param sourcename name of the entry in the source file
+	 * @param targetname name of the entry in the target file
+	 * @return true if the content is the same
+	 * @throws IOException in case of an input/output error
+	 */
+	private boolean compare(String sourcename, String targetname) throws IOException {
+		final Archive sourcezip = getSource();
+		final Archive targetzip = getTarget();
+		final int sourcerow = sourcezip.find(sourcename);
+		final int targetrow = targetzip.find(targetname);
+		if ((sourcerow < 0) || (targetrow < 0)) {
+			return false;
+		}
+		return compare(sourcezip.getEntries(), sourcerow, targetzip.getEntries(), targetrow);
+	}
+
+	/**
+	 * compares two indexed entries on the current thread
+	 * @param sourcetable index of the source file
+	 * @param sourcerow row of the entry in the source index
+	 * @param targettable index of the target file
+	 * @param targetrow row of the entry in the target index
+	 * @return true if the content is the same
+	 * @throws IOException in case of an input/output error
+	 */
+	private boolean compare(EntryTable sourcetable, int sourcerow, EntryTable targettable, int targetrow) throws IOException {
+		if ((sourcetable.getLocalHeaderOffset(sourcerow) < 0) || (targettable.getLocalHeaderOffset(targetrow) < 0)) {
+			// the position is unknown, e.g. in an index of an older version
+			return compare(sourcetable.getEntryName(sourcerow), targettable.getEntryName(targetrow));
+		}
+		if (statistics != null) {
+			// the comparison stops at the first difference, so this is an upper bound
+			statistics.inflated(sourcetable.getMethod(sourcerow), sourcetable.getSize(sourcerow));
+			statistics.inflated(targettable.getMethod(targetrow), targettable.getSize(targetrow));
+		}
+		final InputStream is1 = getSource().getInputStream(sourcetable, sourcerow);
+		try {
+			final InputStream is2 = getTarget().getInputStream(targettable, targetrow);
+			try {
+				return ZipUtil.contentEquals(is1, is2);
+			} finally {
+				is2.close();
+			}
+		} finally {
+			is1.close();
+		}
+	}
+
+	/**
+	 * Method getSource.
+	 * @return Archive
+	 * @throws IOException
+	 */
+	private synchronized Archive getSource() throws IOException {
+		if (source == null) {
+			source = new Archive(sourceFile);
+		}
+		return source;
+	}
+
+	/**
+	 * Method getTarget.
+	 * @return Archive
+	 * @throws IOException
+	 */
+	private synchronized Archive getTarget() throws IOException {
+		if (target == null) {
+			target = new Archive(targetFile);
+		}
+		return target;
+	}
+
+	/**
+	 * cancels the pending comparisons and closes the zip files
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		for (Future<Boolean> future : pending.values()) {
+			future.cancel(false);
+		}
+		pending.clear();
+		try {
+			if (source != null) {
+				source.close();
+				source = null;
+			}
+		} finally {
+			if (target != null) {
+				target.close();
+				target = null;
+			}
+		}
+	}
+
+	/**
+	 * An open zip file whose entries are read at their local header offsets.
+	 */
+	private static class Archive implements Closeable {
+		/**
+		 * Field zipfile.
+		 */
+		private final File zipfile;
+
+		/**
+		 * Field file.
+		 */
+		private final RandomAccessFile file;
+
+		/**
+		 * Field entries, the top level entries, null until an entry is looked up by name.
+		 */
+		private EntryTable entries;
+
+		/**
+		 * Field rows, the row of the last entry with each name.
+		 */
+		private Map<String, Integer> rows;
+
+		/**
+		 * Constructor for Archive.
+		 * @param zipfile File
+		 * @throws IOException
+		 */
+		Archive(File zipfile) throws IOException {
+			this.zipfile = zipfile;
+			this.file = new RandomAccessFile(zipfile, "r");
+		}
+
+		/**
+		 * opens the decompressed content of an entry
+		 * @param table index of this file
+		 * @param row row of the entry
+		 * @return InputStream
+		 * @throws IOException
+		 */
+		InputStream getInputStream(EntryTable table, int row) throws IOException {
+			return CentralDirectory.getInputStream(file.getChannel(), table.getLocalHeaderOffset(row),
+					table.getCompressedSize(row), table.getMethod(row), table.getFlags(row));
+		}
+
+		/**
+		 * finds the last entry with a name
+		 * @param name name of the entry
+		 * @return row in {@link #getEntries()}, or -1 if there is no such entry
+		 * @throws IOException
+		 */
+		synchronized int find(String name) throws IOException {
+			if (rows == null) {
+				final CentralDirectory cd = new CentralDirectory(zipfile);
+				try {
+					entries = new EntryTable((int) Math.min(cd.getEntryCount(), 1 << 20));
+					rows = new HashMap<String, Integer>();
+					while (cd.next()) {
+						final byte[] bytes = cd.getName().getBytes(CentralDirectory.UTF8);
+						final int row = entries.add(bytes, 0, bytes.length, 0, 0, cd.getSize(), cd.getCompressedSize(),
+								cd.getCrc(), cd.getDosTime(), cd.getMethod(), cd.getFlags(), cd.getLocalHeaderOffset());
+						rows.put(cd.getName(), Integer.valueOf(row));
+					}
+				} finally {
+					cd.close();
+				}
+			}
+			final Integer row = rows.get(name);
+			return (row == null) ? -1 : row.intValue();
+		}
+
+		/**
+		 * Method getEntries.
+		 * @return the top level entries, see {@link #find(String)}
+		 */
+		synchronized EntryTable getEntries() {
+			return entries;
+		}
+
+		/**
+		 * closes the file
+		 * @throws IOException
+		 */
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+}
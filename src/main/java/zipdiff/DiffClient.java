@@ -0,0 +1,182 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Sends the command line to a running {@link DiffDaemon} and writes its output.
+ * If no daemon is running, the comparison is run by {@link Main} in this JVM,
+ * so the client can be used in place of Main. Comparisons which read the source
+ * or target file from standard input are run in this JVM as well. The client
+ * sends the secret of the secret file of the daemon, see {@link DiffDaemon}.
+ */
+public class DiffClient {
+	/**
+	 * Field PORT_PROPERTY, the system property for the port of the daemon.
+	 * (value is ""zipdiff.port"")
+	 */
+	public static final String PORT_PROPERTY = "zipdiff.port";
+
+	/**
+	 * Field CONNECT_TIMEOUT, milliseconds to wait for the daemon.
+	 * (value is 1000)
+	 */
+	private static final int CONNECT_TIMEOUT = 1000;
+
+	/**
+	 * Field port.
+	 */
+	private final int port;
+
+	/**
+	 * Field secretFile.
+	 */
+	private final File secretFile;
+
+	/**
+	 * Constructor for DiffClient, which uses the default secret file.
+	 * @param port port of the daemon on the loopback interface
+	 */
+	public DiffClient(int port) {
+		this(port, DiffDaemon.SECRET_FILE);
+	}
+
+	/**
+	 * Constructor for DiffClient.
+	 * @param port port of the daemon on the loopback interface
+	 * @param secretFile secret file of the daemon
+	 */
+	public DiffClient(int port, File secretFile) {
+		this.port = port;
+		this.secretFile = secretFile;
+	}
+
+	/**
+	 * connects to the daemon
+	 * @return Socket, or null if no daemon is running
+	 */
+	private Socket connect() {
+		final Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+			return socket;
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException e1) {
+				// ignore
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * runs a comparison on the daemon, or in this JVM if no daemon is running
+	 * @param directory working directory, relative file names are resolved against it
+	 * @param args command line arguments of {@link Main}
+	 * @param out standard output
+	 * @param err error output
+	 * @return exit code
+	 * @throws IOException if the connection to the daemon fails during the request
+	 */
+	public int run(File directory, String[] args, PrintStream out, PrintStream err) throws IOException {
+		// the standard input is not forwarded to the daemon
+		final byte[] secret = readsStandardInput(args) ? null : readSecret();
+		final Socket socket = (secret == null) ? null : connect();
+		if (socket == null) {
+			return new Main(directory, out, err).run(args);
+		}
+		try {
+			final DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			request.writeInt(DiffDaemon.MAGIC);
+			request.writeShort(secret.length);
+			request.write(secret);
+			request.writeUTF(directory.getAbsolutePath());
+			request.writeInt(args.length);
+			for (String arg : args) {
+				request.writeUTF(arg);
+			}
+			request.flush();
+
+			final DataInputStream response = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			final byte[] buffer = new byte[64 * 1024];
+			while (true) {
+				final int channel = response.readUnsignedByte();
+				if (channel == DiffDaemon.EXIT) {
+					return response.readInt();
+				}
+				final OutputStream stream = (channel == DiffDaemon.ERR) ? err : out;
+				int length = response.readInt();
+				while (length > 0) {
+					final int n = Math.min(length, buffer.length);
+					response.readFully(buffer, 0, n);
+					stream.write(buffer, 0, n);
+					length -= n;
+				}
+				if (channel == DiffDaemon.ERR) {
+					err.flush();
+				}
+			}
+		} finally {
+			out.flush();
+			socket.close();
+		}
+	}
+
+	/**
+	 * Method readSecret.
+	 * @return the secret of the daemon, or null if there is no valid secret file, e.g. because no daemon has been started
+	 */
+	private byte[] readSecret() {
+		if (!secretFile.isFile()) {
+			return null;
+		}
+		try {
+			return DiffDaemon.readSecret(secretFile);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Method readsStandardInput.
+	 * @param args command line arguments of {@link Main}
+	 * @return true if the source or target file is read from standard input
+	 */
+	private static boolean readsStandardInput(String[] args) {
+		for (int i = 0; i < args.length - 1; i++) {
+			final String option = args[i].replaceFirst("^--?", "");
+			if ((option.equals("source") || option.equals("target")) && args[i + 1].equals("-")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The main method.
+	 * @param args the same arguments as {@link Main#main(String[])}
+	 * @throws IOException if the connection to the daemon fails during the request
+	 */
+	public static void main(String[] args) throws IOException {
+		final DiffClient client = new DiffClient(Integer.getInteger(PORT_PROPERTY, DiffDaemon.DEFAULT_PORT).intValue());
+		final int exitCode = client.run(new File("."), args, System.out, System.err);
+		if (exitCode != 0) {
+			System.exit(exitCode);
+		}
+	}
+}
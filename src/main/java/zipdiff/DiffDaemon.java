@@ -0,0 +1,492 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs comparisons for {@link DiffClient} in a long running JVM, so that they do not
+ * pay for the startup of a JVM, and keeps the indexes of recently compared archives in
+ * a {@link MemoryIndexCache}. The daemon listens on a port of the loopback interface
+ * only, and it reads and writes files with the rights of the user who started it. Other
+ * users on the same machine can connect to that port, so a request has to carry the
+ * secret of the secret file, which only the user who started the daemon can read.
+ * <p>
+ * A request consists of the magic number, the secret, the working directory of the client
+ * and the command line arguments of {@link Main}, written with a DataOutputStream. The messages
+ * and the output file "-" are sent back in frames while the comparison runs: the channel
+ * as byte, the length as int and the bytes. The last frame carries the exit code.
+ */
+public class DiffDaemon implements Closeable {
+	/**
+	 * Field DEFAULT_PORT.
+	 * (value is 7491)
+	 */
+	public static final int DEFAULT_PORT = 7491;
+
+	/**
+	 * Field MAGIC, starts a request.
+	 * (value is "ZDD1")
+	 */
+	static final int MAGIC = 0x5A444431;
+
+	/**
+	 * Field OUT, a frame of the standard output.
+	 * (value is 1)
+	 */
+	static final int OUT = 1;
+
+	/**
+	 * Field ERR, a frame of the error output.
+	 * (value is 2)
+	 */
+	static final int ERR = 2;
+
+	/**
+	 * Field EXIT, the frame of the exit code, which ends the response.
+	 * (value is 3)
+	 */
+	static final int EXIT = 3;
+
+	/**
+	 * Field SECRET_FILE, the default secret file, which is created by the daemon if necessary.
+	 */
+	public static final File SECRET_FILE = new File(System.getProperty("user.home"), ".zipdiff" + File.separator + "daemon.secret");
+
+	/**
+	 * Field SECRET_LENGTH, the length of the secrets created by the daemon.
+	 * (value is 32)
+	 */
+	private static final int SECRET_LENGTH = 32;
+
+	/**
+	 * Field MAX_SECRET_LENGTH, longer secrets are rejected without reading them.
+	 * (value is 1024)
+	 */
+	private static final int MAX_SECRET_LENGTH = 1024;
+
+	/**
+	 * Field MAX_ARGUMENTS, requests with more command line arguments are rejected.
+	 * (value is 4096)
+	 */
+	private static final int MAX_ARGUMENTS = 4096;
+
+	/**
+	 * Field BUFFER_SIZE.
+	 * (value is 65536)
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Field MAX_QUEUED_REQUESTS, further requests are rejected while all threads are busy.
+	 * (value is 64)
+	 */
+	private static final int MAX_QUEUED_REQUESTS = 64;
+
+	/**
+	 * Field READ_TIMEOUT, in milliseconds, for reading a request.
+	 * (value is 30000)
+	 */
+	private static final int READ_TIMEOUT = 30000;
+
+	/**
+	 * Field serverSocket.
+	 */
+	private final ServerSocket serverSocket;
+
+	/**
+	 * Field indexCache.
+	 */
+	private final IndexCache indexCache;
+
+	/**
+	 * Field secret, which the requests have to carry.
+	 */
+	private final byte[] secret;
+
+	/**
+	 * Field executor, runs the requests.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Constructor for DiffDaemon, which uses the default secret file.
+	 * @param port port on the loopback interface, 0 for any free port
+	 * @param indexCache cache for the indexes of the compared archives, or null
+	 * @throws IOException if the port cannot be opened or the secret file cannot be read or created
+	 */
+	public DiffDaemon(int port, IndexCache indexCache) throws IOException {
+		this(port, indexCache, SECRET_FILE);
+	}
+
+	/**
+	 * Constructor for DiffDaemon.
+	 * @param port port on the loopback interface, 0 for any free port
+	 * @param indexCache cache for the indexes of the compared archives, or null
+	 * @param secretFile file with the secret of the requests, it is created if necessary
+	 * @throws IOException if the port cannot be opened or the secret file cannot be read or created
+	 */
+	public DiffDaemon(int port, IndexCache indexCache, File secretFile) throws IOException {
+		this(port, indexCache, secretFile, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor for DiffDaemon.
+	 * @param port port on the loopback interface, 0 for any free port
+	 * @param indexCache cache for the indexes of the compared archives, or null
+	 * @param secretFile file with the secret of the requests, it is created if necessary
+	 * @param threads number of requests which run at the same time
+	 * @throws IOException if the port cannot be opened or the secret file cannot be read or created
+	 */
+	public DiffDaemon(int port, IndexCache indexCache, File secretFile, int threads) throws IOException {
+		this.secret = createSecret(secretFile);
+		this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.indexCache = indexCache;
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "zipdiff-request");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		this.executor = pool;
+	}
+
+	/**
+	 * reads the secret file, or creates it with a random secret which only the owner can read.
+	 * The secret is written to a temporary file which is then linked or moved into place,
+	 * so clients never read a partly written secret.
+	 * @param file secret file
+	 * @return the secret
+	 * @throws IOException if the file cannot be read or created, or other users can access it
+	 */
+	private static byte[] createSecret(File file) throws IOException {
+		if (file.exists()) {
+			return readSecret(file);
+		}
+		final Path path = file.toPath();
+		final boolean posix = isPosix(path);
+		final File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory()) {
+			if (posix) {
+				Files.createDirectories(directory.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			} else {
+				Files.createDirectories(directory.toPath());
+			}
+		}
+		final Path temp;
+		if (posix) {
+			temp = Files.createTempFile(directory.toPath(), file.getName(), ".tmp",
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			temp = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+		}
+		try {
+			final byte[] secret = new byte[SECRET_LENGTH];
+			new SecureRandom().nextBytes(secret);
+			Files.write(temp, secret);
+			try {
+				// unlike a move, a link fails if another daemon created the file in the meantime
+				Files.createLink(path, temp);
+			} catch (UnsupportedOperationException e) {
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+			}
+			return secret;
+		} catch (FileAlreadyExistsException e) {
+			return readSecret(file);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * reads the secret file
+	 * @param file secret file
+	 * @return the secret
+	 * @throws IOException if the file cannot be read, or other users can access it
+	 */
+	static byte[] readSecret(File file) throws IOException {
+		final Path path = file.toPath();
+		if (isPosix(path)) {
+			final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+			permissions.remove(PosixFilePermission.OWNER_READ);
+			permissions.remove(PosixFilePermission.OWNER_WRITE);
+			if (!permissions.isEmpty()) {
+				throw new IOException(file + " must only be accessible by its owner");
+			}
+		}
+		final byte[] secret = Files.readAllBytes(path);
+		if ((secret.length == 0) || (secret.length > MAX_SECRET_LENGTH)) {
+			throw new IOException(file + " does not contain a valid secret");
+		}
+		return secret;
+	}
+
+	/**
+	 * Method isPosix.
+	 * @param path Path
+	 * @return true if the file system of the path supports POSIX file permissions
+	 */
+	private static boolean isPosix(Path path) {
+		return path.getFileSystem().supportedFileAttributeViews().contains("posix");
+	}
+
+	/**
+	 * Method getPort.
+	 * @return the port the daemon listens on
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * accepts requests until the daemon is closed
+	 * @throws IOException if the server socket fails
+	 */
+	public void run() throws IOException {
+		try {
+			while (true) {
+				final Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException e) {
+					if (serverSocket.isClosed()) {
+						return;
+					}
+					throw e;
+				}
+				try {
+					executor.execute(new Runnable() {
+						public void run() {
+							handle(socket);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					refuse(socket);
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * stops accepting requests, running requests are completed
+	 * @throws IOException in case of an input/output error
+	 */
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+	/**
+	 * runs a request and sends its output back
+	 * @param socket the connection of the client
+	 */
+	private void handle(Socket socket) {
+		try {
+			try {
+				socket.setSoTimeout(READ_TIMEOUT);
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				final DataOutputStream response = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+				if (in.readInt() != MAGIC) {
+					return;
+				}
+				final int secretLength = in.readUnsignedShort();
+				if (secretLength > MAX_SECRET_LENGTH) {
+					reject(response, "invalid secret");
+					return;
+				}
+				final byte[] received = new byte[secretLength];
+				in.readFully(received);
+				if (!MessageDigest.isEqual(secret, received)) {
+					reject(response, "invalid secret");
+					return;
+				}
+				final File directory = new File(in.readUTF());
+				final int argc = in.readInt();
+				if ((argc < 0) || (argc > MAX_ARGUMENTS)) {
+					reject(response, "invalid number of arguments: " + argc);
+					return;
+				}
+				final String[] args = new String[argc];
+				for (int i = 0; i < args.length; i++) {
+					args[i] = in.readUTF();
+				}
+
+				final PrintStream out = new PrintStream(new BufferedOutputStream(new FrameOutputStream(response, OUT), BUFFER_SIZE), false, "UTF-8");
+				final PrintStream err = new PrintStream(new FrameOutputStream(response, ERR), true, "UTF-8");
+				final Main main = new Main(directory, out, err);
+				main.setIndexCache(indexCache);
+				// the standard input of the client is not forwarded, DiffClient runs such comparisons itself
+				main.setInput(new ByteArrayInputStream(new byte[0]));
+				final int exitCode = main.run(args);
+				out.flush();
+				err.flush();
+				synchronized (response) {
+					response.writeByte(EXIT);
+					response.writeInt(exitCode);
+					response.flush();
+				}
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Request failed: " + e);
+		}
+	}
+
+	/**
+	 * answers a request while all threads are busy and the queue is full
+	 * @param socket the connection of the client
+	 */
+	private static void refuse(Socket socket) {
+		try {
+			try {
+				reject(new DataOutputStream(socket.getOutputStream()), "too many requests");
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Request failed: " + e);
+		}
+	}
+
+	/**
+	 * answers a request which is not run with an error message and exit code 2
+	 * @param response DataOutputStream
+	 * @param message error message
+	 * @throws IOException in case of an input/output error
+	 */
+	private static void reject(DataOutputStream response, String message) throws IOException {
+		final byte[] bytes = ("Rejected request: " + message + System.getProperty("line.separator")).getBytes("UTF-8");
+		response.writeByte(ERR);
+		response.writeInt(bytes.length);
+		response.write(bytes);
+		response.writeByte(EXIT);
+		response.writeInt(2);
+		response.flush();
+	}
+
+	/**
+	 * Starts the daemon.
+	 * @param args -port &lt;port&gt;, -cachesize &lt;megabytes&gt; and -threads &lt;number&gt;, all are optional
+	 * @throws IOException if the port cannot be opened
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = Integer.getInteger(DiffClient.PORT_PROPERTY, DEFAULT_PORT).intValue();
+		long cacheSize = 256;
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-port")) {
+				port = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-cachesize")) {
+				cacheSize = Long.parseLong(args[i + 1]);
+			} else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[i + 1]);
+			} else {
+				System.err.println("usage: zipdiff.DiffDaemon [-port <port>] [-cachesize <megabytes>] [-threads <number>]");
+				System.exit(2);
+			}
+		}
+		final DiffDaemon daemon = new DiffDaemon(port, new MemoryIndexCache(cacheSize * 1024 * 1024), SECRET_FILE, threads);
+		System.out.println("zipdiff daemon listening on port " + daemon.getPort());
+		daemon.run();
+	}
+
+	/**
+	 * Writes the bytes as frames of one channel of a response, which is shared by the channels.
+	 */
+	private static class FrameOutputStream extends OutputStream {
+		/**
+		 * Field response.
+		 */
+		private final DataOutputStream response;
+
+		/**
+		 * Field channel.
+		 */
+		private final int channel;
+
+		/**
+		 * Constructor for FrameOutputStream.
+		 * @param response DataOutputStream
+		 * @param channel OUT or ERR
+		 */
+		FrameOutputStream(DataOutputStream response, int channel) {
+			this.response = response;
+			this.channel = channel;
+		}
+
+		/**
+		 * Method write.
+		 * @param b int
+		 * @throws IOException in case of an input/output error
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		/**
+		 * Method write.
+		 * @param b byte[]
+		 * @param off int
+		 * @param len int
+		 * @throws IOException in case of an input/output error
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			synchronized (response) {
+				response.writeByte(channel);
+				response.writeInt(len);
+				response.write(b, off, len);
+			}
+		}
+
+		/**
+		 * Method flush.
+		 * @throws IOException in case of an input/output error
+		 */
+		@Override
+		public void flush() throws IOException {
+			synchronized (response) {
+				response.flush();
+			}
+		}
+	}
+}
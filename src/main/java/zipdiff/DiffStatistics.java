@@ -0,0 +1,327 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts the work of the comparisons it is set on, see
+ * {@link DifferenceCalculator#setStatistics(DiffStatistics)}. The counters are
+ * atomic, so that threads indexing nested archives at the same time can update
+ * them. The phase is kept per thread, so that several comparisons can share the
+ * statistics, e.g. in a batch: their times add up and the phase is the latest one
+ * in which a comparison is running.
+ */
+public class DiffStatistics implements DiffStatisticsMBean {
+
+	/**
+	 * Field OBJECT_NAME, the name the statistics are registered with, followed by
+	 * ",id=" and a number which is unique in the JVM.
+	 * (value is ""zipdiff:type=DiffStatistics"")
+	 */
+	public static final String OBJECT_NAME = "zipdiff:type=DiffStatistics";
+
+	/**
+	 * Field SEQUENCE, the last id of registered statistics, so that several comparisons
+	 * in one JVM, e.g. in the daemon, can register their statistics at the same time.
+	 */
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	/**
+	 * Field IDLE.
+	 * (value is 0)
+	 */
+	public static final int IDLE = 0;
+
+	/**
+	 * Field INDEXING.
+	 * (value is 1)
+	 */
+	public static final int INDEXING = 1;
+
+	/**
+	 * Field COMPARING.
+	 * (value is 2)
+	 */
+	public static final int COMPARING = 2;
+
+	/**
+	 * Field WRITING.
+	 * (value is 3)
+	 */
+	public static final int WRITING = 3;
+
+	/**
+	 * Field PHASES, the names of the phases.
+	 */
+	private static final String[] PHASES = {"idle", "indexing", "comparing", "writing"};
+
+	/**
+	 * Field entriesIndexed.
+	 */
+	private final AtomicLong entriesIndexed = new AtomicLong();
+
+	/**
+	 * Field nestedArchivesOpened.
+	 */
+	private final AtomicLong nestedArchivesOpened = new AtomicLong();
+
+	/**
+	 * Field bytesInflated.
+	 */
+	private final AtomicLong bytesInflated = new AtomicLong();
+
+	/**
+	 * Field differencesWritten.
+	 */
+	private final AtomicLong differencesWritten = new AtomicLong();
+
+	/**
+	 * Field current, the phase of the calling thread and the value of System.nanoTime()
+	 * when it was entered.
+	 */
+	private final ThreadLocal<long[]> current = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[] {IDLE, 0};
+		}
+	};
+
+	/**
+	 * Field running, number of threads in each phase.
+	 */
+	private final int[] running = new int[PHASES.length];
+
+	/**
+	 * Field runningStarts, sum of the values of System.nanoTime() when the threads in
+	 * each phase entered it.
+	 */
+	private final long[] runningStarts = new long[PHASES.length];
+
+	/**
+	 * Field phaseTimes, nanoseconds spent in the phases by threads which have left them.
+	 */
+	private final long[] phaseTimes = new long[PHASES.length];
+
+	/**
+	 * Field objectName, null unless the statistics are registered.
+	 */
+	private ObjectName objectName;
+
+	/**
+	 * registers the statistics with the platform MBean server under a new name, see {@link #OBJECT_NAME}
+	 * @throws JMException if the statistics cannot be registered
+	 */
+	public synchronized void register() throws JMException {
+		if (objectName == null) {
+			final ObjectName name = new ObjectName(OBJECT_NAME + ",id=" + SEQUENCE.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+		}
+	}
+
+	/**
+	 * Method getObjectName.
+	 * @return the name the statistics are registered with, or null if they are not registered
+	 */
+	public synchronized ObjectName getObjectName() {
+		return objectName;
+	}
+
+	/**
+	 * removes the statistics from the platform MBean server
+	 * @throws JMException if the statistics cannot be unregistered
+	 */
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+
+	/**
+	 * enters a phase in the calling thread, the time since the thread entered its previous
+	 * phase is added to that phase
+	 * @param newPhase IDLE, INDEXING, COMPARING or WRITING
+	 */
+	public synchronized void startPhase(int newPhase) {
+		final long now = System.nanoTime();
+		final long[] state = current.get();
+		final int phase = (int) state[0];
+		if (phase != IDLE) {
+			phaseTimes[phase] += now - state[1];
+			running[phase]--;
+			runningStarts[phase] -= state[1];
+		}
+		if (newPhase != IDLE) {
+			running[newPhase]++;
+			runningStarts[newPhase] += now;
+		}
+		state[0] = newPhase;
+		state[1] = now;
+	}
+
+	/**
+	 * counts an indexed entry
+	 */
+	public void entryIndexed() {
+		entriesIndexed.incrementAndGet();
+	}
+
+	/**
+	 * counts an expanded nested archive
+	 */
+	public void nestedArchiveOpened() {
+		nestedArchivesOpened.incrementAndGet();
+	}
+
+	/**
+	 * counts inflated data
+	 * @param method compression method of the data, only deflated data is counted
+	 * @param size uncompressed size of the data, -1 if unknown
+	 */
+	public void inflated(int method, long size) {
+		if ((method == ZipEntry.DEFLATED) && (size > 0)) {
+			bytesInflated.addAndGet(size);
+		}
+	}
+
+	/**
+	 * counts written differences
+	 * @param count number of differences
+	 */
+	public void differencesWritten(long count) {
+		differencesWritten.addAndGet(count);
+	}
+
+	/**
+	 * Method getEntriesIndexed.
+	 * @return long
+	 */
+	public long getEntriesIndexed() {
+		return entriesIndexed.get();
+	}
+
+	/**
+	 * Method getNestedArchivesOpened.
+	 * @return long
+	 */
+	public long getNestedArchivesOpened() {
+		return nestedArchivesOpened.get();
+	}
+
+	/**
+	 * Method getBytesInflated.
+	 * @return long
+	 */
+	public long getBytesInflated() {
+		return bytesInflated.get();
+	}
+
+	/**
+	 * Method getDifferencesWritten.
+	 * @return long
+	 */
+	public long getDifferencesWritten() {
+		return differencesWritten.get();
+	}
+
+	/**
+	 * Method getPhase.
+	 * @return the latest phase in which a thread is, idle if there is none
+	 */
+	public synchronized String getPhase() {
+		for (int p = PHASES.length - 1; p > IDLE; p--) {
+			if (running[p] > 0) {
+				return PHASES[p];
+			}
+		}
+		return PHASES[IDLE];
+	}
+
+	/**
+	 * Method getEntriesPerSecond.
+	 * @return double
+	 */
+	public double getEntriesPerSecond() {
+		final long time = getPhaseTime(INDEXING);
+		if (time <= 0) {
+			return 0;
+		}
+		return getEntriesIndexed() * 1000000000.0 / time;
+	}
+
+	/**
+	 * Method getIndexingTime.
+	 * @return long
+	 */
+	public long getIndexingTime() {
+		return getPhaseTime(INDEXING) / 1000000;
+	}
+
+	/**
+	 * Method getComparingTime.
+	 * @return long
+	 */
+	public long getComparingTime() {
+		return getPhaseTime(COMPARING) / 1000000;
+	}
+
+	/**
+	 * Method getWritingTime.
+	 * @return long
+	 */
+	public long getWritingTime() {
+		return getPhaseTime(WRITING) / 1000000;
+	}
+
+	/**
+	 * time spent in a phase by all threads, including the threads which are in it up to now
+	 * @param p phase
+	 * @return nanoseconds
+	 */
+	private synchronized long getPhaseTime(int p) {
+		return phaseTimes[p] + running[p] * System.nanoTime() - runningStarts[p];
+	}
+
+	/**
+	 * Method reset.
+	 */
+	public synchronized void reset() {
+		entriesIndexed.set(0);
+		nestedArchivesOpened.set(0);
+		bytesInflated.set(0);
+		differencesWritten.set(0);
+		// the threads which are in a phase count from now on
+		final long now = System.nanoTime();
+		for (int i = 0; i < phaseTimes.length; i++) {
+			phaseTimes[i] = runningStarts[i] - running[i] * now;
+		}
+	}
+
+	/**
+	 * Method toString.
+	 * @return a summary of the counters and times
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("Entries indexed:        ").append(getEntriesIndexed())
+			.append(String.format(" (%.0f per second)", Double.valueOf(getEntriesPerSecond()))).append('\n');
+		sb.append("Nested archives opened: ").append(getNestedArchivesOpened()).append('\n');
+		sb.append("Bytes inflated:         ").append(getBytesInflated()).append('\n');
+		sb.append("Differences written:    ").append(getDifferencesWritten()).append('\n');
+		sb.append("Indexing time:          ").append(getIndexingTime()).append(" ms\n");
+		sb.append("Comparing time:         ").append(getComparingTime()).append(" ms\n");
+		sb.append("Writing time:           ").append(getWritingTime()).append(" ms");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,72 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+/**
+ * The management interface of {@link DiffStatistics}, which shows the progress
+ * of running comparisons in JMX clients like jconsole.
+ */
+public interface DiffStatisticsMBean {
+
+	/**
+	 * Method getEntriesIndexed.
+	 * @return number of entries added to the indexes, including the entries of nested archives
+	 */
+	long getEntriesIndexed();
+
+	/**
+	 * Method getNestedArchivesOpened.
+	 * @return number of nested archives which have been expanded
+	 */
+	long getNestedArchivesOpened();
+
+	/**
+	 * Method getBytesInflated.
+	 * @return uncompressed size of the deflated data which has been read
+	 */
+	long getBytesInflated();
+
+	/**
+	 * Method getDifferencesWritten.
+	 * @return number of differences written by the builders
+	 */
+	long getDifferencesWritten();
+
+	/**
+	 * Method getPhase.
+	 * @return the current phase: idle, indexing, comparing or writing
+	 */
+	String getPhase();
+
+	/**
+	 * Method getEntriesPerSecond.
+	 * @return number of entries indexed per second of indexing
+	 */
+	double getEntriesPerSecond();
+
+	/**
+	 * Method getIndexingTime.
+	 * @return time spent indexing in milliseconds
+	 */
+	long getIndexingTime();
+
+	/**
+	 * Method getComparingTime.
+	 * @return time spent comparing the indexes in milliseconds
+	 */
+	long getComparingTime();
+
+	/**
+	 * Method getWritingTime.
+	 * @return time spent writing output files in milliseconds
+	 */
+	long getWritingTime();
+
+	/**
+	 * sets all counters and times to zero
+	 */
+	void reset();
+}
@@ -5,24 +5,43 @@
  */
 package zipdiff;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
+import zipdiff.util.ExclusionMatcher;
 import zipdiff.util.StringUtil;
+import zipdiff.util.ZipUtil;
 
 /**
  * Checks and compiles differences between two zip files.
@@ -39,14 +58,49 @@ public class DifferenceCalculator {
 	private final Logger logger = Logger.getLogger(getClass().getName());
 
 	/**
-	 * Field source.
+	 * Field FAST_PATH_SAME_FILE, the source and target are the same file.
+	 * (value is ""same file"")
 	 */
-	private final ZipFile source;
+	public static final String FAST_PATH_SAME_FILE = "same file";
 
 	/**
-	 * Field target.
+	 * Field FAST_PATH_IDENTICAL_FILES, the source and target contain the same bytes.
+	 * (value is ""identical files"")
 	 */
-	private final ZipFile target;
+	public static final String FAST_PATH_IDENTICAL_FILES = "identical files";
+
+	/**
+	 * Field FAST_PATH_CENTRAL_DIRECTORY, the central directories of the source and target are identical.
+	 * (value is ""identical central directories"")
+	 */
+	public static final String FAST_PATH_CENTRAL_DIRECTORY = "identical central directories";
+
+	/**
+	 * Field SPILL_THRESHOLD, compressed nested archives of at least this size are inflated
+	 * into a temporary file to read their central directory.
+	 * (value is 65536)
+	 */
+	private static final long SPILL_THRESHOLD = 64 * 1024;
+
+	/**
+	 * Field sourceFile.
+	 */
+	private final File sourceFile;
+
+	/**
+	 * Field targetFile.
+	 */
+	private final File targetFile;
+
+	/**
+	 * Field source, null until the source file is opened.
+	 */
+	private ZipFile source;
+
+	/**
+	 * Field target, null until the target file is opened.
+	 */
+	private ZipFile target;
 
 	/**
 	 * Field numberOfSourceLevelsToTrim.
@@ -74,15 +128,75 @@ public class DifferenceCalculator {
 	private boolean compareCRCValues = true;
 
 	/**
-	 * Field excludePattern.
+	 * Field compareContents.
+	 */
+	private boolean compareContents = false;
+
+	/**
+	 * Field detectMoves.
+	 */
+	private boolean detectMoves = false;
+
+	/**
+	 * Field excludeRegexes.
 	 */
-	private Pattern excludePattern;
+	private final Set<String> excludeRegexes = new TreeSet<String>();
+
+	/**
+	 * Field exclusionMatcher, compiled from excludeSCMFiles and excludeRegexes.
+	 */
+	private ExclusionMatcher exclusionMatcher = new ExclusionMatcher(false, null);
 
 	/**
 	 * Field bVerbose.
 	 */
 	private boolean bVerbose = false;
 
+	/**
+	 * Field executor.
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * Field forkJoinPool.
+	 */
+	private ForkJoinPool forkJoinPool;
+
+	/**
+	 * Field useEntryTable.
+	 */
+	private boolean useEntryTable = false;
+
+	/**
+	 * Field indexCache.
+	 */
+	private IndexCache indexCache;
+
+	/**
+	 * Field sourceIndex, an index of the source file which is used instead of reading it.
+	 */
+	private EntryTable sourceIndex;
+
+	/**
+	 * Field sourceStream, the source archive if it is read from a stream, e.g. a pipe.
+	 */
+	private InputStream sourceStream;
+
+	/**
+	 * Field targetStream, the target archive if it is read from a stream, e.g. a pipe.
+	 */
+	private InputStream targetStream;
+
+	/**
+	 * Field fastPath, the check which found the files identical, null if the entries have been compared.
+	 */
+	private String fastPath;
+
+	/**
+	 * Field statistics, null unless the progress is counted.
+	 */
+	private DiffStatistics statistics;
+
 	/**
 	 * Constructor taking 2 filenames to compare
 	 * @param source String
@@ -94,13 +208,15 @@ public class DifferenceCalculator {
 	}
 
 	/**
-	 * Constructor taking 2 Files to compare
+	 * Constructor taking 2 Files to compare. The files are opened
+	 * when the differences are calculated.
 	 * @param sourcefile File
 	 * @param targetfile File
 	 * @throws IOException
 	 */
 	public DifferenceCalculator(File sourcefile, File targetfile) throws IOException {
-		this(new ZipFile(sourcefile), new ZipFile(targetfile));
+		sourceFile = sourcefile;
+		targetFile = targetfile;
 	}
 
 	/**
@@ -109,6 +225,8 @@ public class DifferenceCalculator {
 	 * @param targetzip ZipFile
 	 */
 	public DifferenceCalculator(ZipFile sourcezip, ZipFile targetzip) {
+		sourceFile = new File(sourcezip.getName());
+		targetFile = new File(targetzip.getName());
 		source = sourcezip;
 		target = targetzip;
 	}
@@ -145,48 +263,49 @@ public class DifferenceCalculator {
 	 * @see java.util.regex.Pattern
 	 */
 	public void setExcludeRegex(Set<String> patterns) {
-		if (patterns == null) {
-			excludePattern = null;
-		} else if (patterns.isEmpty()) {
-			excludePattern = null;
-		} else {
-			String regex = "";
-
-			for (String pattern: patterns) {
-				regex += (regex.isEmpty()) ? String.format("(%s)", pattern) : String.format("|(%s)", pattern);
-			}
-			excludePattern = Pattern.compile(regex);
-			logger.log(Level.FINE, "Regular expression is : " + regex);
+		excludeRegexes.clear();
+		if (patterns != null) {
+			excludeRegexes.addAll(patterns);
+			logger.log(Level.FINE, "Regular expressions are : " + excludeRegexes);
 		}
+		compileExclusions();
+	}
+
+	/**
+	 * Method compileExclusions.
+	 */
+	private void compileExclusions() {
+		exclusionMatcher = new ExclusionMatcher(excludeSCMFiles, excludeRegexes);
 	}
 
 	/**
-	 * Returns true if excludePattern matches the given entryName
+	 * Returns true if the given entry is in an excluded SCM directory or one of
+	 * the regular expressions matches the given entryName
 	 * @param filepath ditto
 	 * @param entryName The name of ZipEntry to be checked if it should be excluded.
 	 * @return true if the ZipEntry should be excluded.
 	 */
 	protected boolean excludeThisFile(String filepath, String entryName) {
-		if (entryName == null) {
-			return false;
-		}
-
-		if (isSCMFile(filepath, entryName) && isExcludingSCMFiles()) {
-			return true;
-		}
-
-		if (excludePattern == null) {
-			return false;
-		}
-
-		final Matcher matcher = excludePattern.matcher(entryName);
-		final boolean match = matcher.matches();
+		final boolean match = exclusionMatcher.matches(filepath, entryName);
 		if (match) {
 			logger.log(Level.FINEST, "Found a match against : " + entryName + " so excluding");
 		}
 		return match;
 	}
 
+	/**
+	 * Returns true if the key of an entry is excluded although its name in its own
+	 * archive is not, e.g. because a regular expression matches the name of the
+	 * nested archive or the trimmed directories. It is called once per entry when
+	 * the entry is indexed, the comparison does not check the keys again.
+	 * @param key the key of the entry
+	 * @param entryName the name of the entry in its own archive
+	 * @return true if the entry should be excluded
+	 */
+	protected boolean excludeThisKey(String key, String entryName) {
+		return !key.equals(entryName) && excludeThisFile("", key);
+	}
+
 	/**
 	 * Method isSCMFile.
 	 * @param filepath String
@@ -194,15 +313,8 @@ public class DifferenceCalculator {
 	 * @return boolean
 	 */
 	protected boolean isSCMFile(String filepath, String entryName) {
-        return entryName != null
-                && (filepath.contains("CVS/") || entryName.contains("CVS/")
-                || filepath.contains("RCS/") || entryName.contains("RCS/")
-                || filepath.contains("SCCS/") || entryName.contains("SCCS/")
-                || filepath.contains(".svn/") || entryName.contains(".svn/")
-                || filepath.contains(".bzr/") || entryName.contains(".bzr/")
-                || filepath.contains(".hg/") || entryName.contains(".hg/")
-                || filepath.contains(".git/") || entryName.contains(".git/"));
-    }
+		return (entryName != null) && (ExclusionMatcher.isSCMPath(filepath) || ExclusionMatcher.isSCMPath(entryName));
+	}
 
 	/**
 	 * Ensure that the comparison checks against the CRCs of the entries.
@@ -220,6 +332,42 @@ public class DifferenceCalculator {
 		return compareCRCValues;
 	}
 
+	/**
+	 * Selects the content equivalence mode: The compressed size is ignored and
+	 * entries with the same size and CRC are treated as equal. If the compressed
+	 * data of top level entries differs, their decompressed content is compared.
+	 * @param b true to compare the content of entries whose compressed data differs
+	 */
+	public void setCompareContents(boolean b) {
+		compareContents = b;
+	}
+
+	/**
+	 * Returns value of the content equivalence flag
+	 * @return true if this instance compares the content of entries whose compressed data differs
+	 */
+	public boolean isComparingContents() {
+		return compareContents;
+	}
+
+	/**
+	 * Reports removed and added entries with the same size and CRC as moves,
+	 * see {@link MoveDetector}. The contents of top level entries are compared
+	 * if contents are compared.
+	 * @param b true to detect moves
+	 */
+	public void setDetectMoves(boolean b) {
+		detectMoves = b;
+	}
+
+	/**
+	 * Method isDetectingMoves.
+	 * @return true if this instance reports moves
+	 */
+	public boolean isDetectingMoves() {
+		return detectMoves;
+	}
+
     /**
      * Method setCompareTimestamps.
      * @param b boolean
@@ -250,6 +398,7 @@ public class DifferenceCalculator {
      */
     public void setExcludeSCMFiles(boolean b) {
         excludeSCMFiles = b;
+        compileExclusions();
     }
 
 	/**
@@ -284,6 +433,195 @@ public class DifferenceCalculator {
 		return numberOfTargetLevelsToTrim;
 	}
 
+	/**
+	 * Sets the executor used to index the source and the target file concurrently.
+	 * The executor is not shut down by this class.
+	 * @param executor ExecutorService, or null to index both files on the calling thread
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Gets the executor used to index the source and the target file concurrently.
+	 * @return ExecutorService, or null if both files are indexed on the calling thread
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the pool used to expand nested archives in parallel. Every nested archive
+	 * is indexed by its own task, the results are the same as those of the sequential expansion.
+	 * The pool is not shut down by this class.
+	 * @param forkJoinPool ForkJoinPool, or null to expand nested archives one at a time
+	 */
+	public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+		this.forkJoinPool = forkJoinPool;
+	}
+
+	/**
+	 * Gets the pool used to expand nested archives in parallel.
+	 * @return ForkJoinPool, or null if nested archives are expanded one at a time
+	 */
+	public ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+
+	/**
+	 * Selects whether the entries are indexed in an EntryTable, which is read from
+	 * the memory mapped central directory, instead of a map of ZipEntries.
+	 * @param b true to use an EntryTable
+	 */
+	public void setUseEntryTable(boolean b) {
+		useEntryTable = b;
+	}
+
+	/**
+	 * Method isUsingEntryTable.
+	 * @return true if the entries are indexed in an EntryTable
+	 */
+	public boolean isUsingEntryTable() {
+		return useEntryTable || (indexCache != null) || (sourceIndex != null)
+			|| (sourceStream != null) || (targetStream != null)
+			|| sourceFile.isDirectory() || targetFile.isDirectory();
+	}
+
+	/**
+	 * Reads the source archive from a stream instead of the source file, whose name is
+	 * only used in the output. The entries are indexed in a single forward pass without
+	 * a temporary copy, so the stream may be a pipe. As there is no central directory
+	 * and the data cannot be read again, entries are compared by size and CRC only and
+	 * the index is not cached. The stream is read by the next comparison and is not closed.
+	 * @param in InputStream of the source archive, or null to read the source file
+	 */
+	public void setSourceStream(InputStream in) {
+		sourceStream = in;
+	}
+
+	/**
+	 * Reads the target archive from a stream, see {@link #setSourceStream(InputStream)}
+	 * @param in InputStream of the target archive, or null to read the target file
+	 */
+	public void setTargetStream(InputStream in) {
+		targetStream = in;
+	}
+
+	/**
+	 * Method isStreaming.
+	 * @return true if the source or target archive is read from a stream
+	 */
+	public boolean isStreaming() {
+		return (sourceStream != null) || (targetStream != null);
+	}
+
+	/**
+	 * Sets the cache for the indexes of the source and target files. The entries
+	 * are indexed in EntryTables if a cache is set.
+	 * @param indexCache IndexCache, or null to index the files on every comparison
+	 */
+	public void setIndexCache(IndexCache indexCache) {
+		this.indexCache = indexCache;
+	}
+
+	/**
+	 * Method getIndexCache.
+	 * @return IndexCache, or null if the files are indexed on every comparison
+	 */
+	public IndexCache getIndexCache() {
+		return indexCache;
+	}
+
+	/**
+	 * Sets an index of the source file, e.g. one built by {@link #buildSourceIndex()}
+	 * of another calculator with the same options, so that a baseline which is compared
+	 * with many targets is read only once. The index is not changed by the comparison
+	 * and may be shared by calculators running on different threads.
+	 * @param table index of the source file, or null to read the source file
+	 */
+	public void setSourceIndex(EntryTable table) {
+		sourceIndex = table;
+	}
+
+	/**
+	 * Method getSourceIndex.
+	 * @return the index of the source file, or null if the source file is read
+	 */
+	public EntryTable getSourceIndex() {
+		return sourceIndex;
+	}
+
+	/**
+	 * reads the source file into an index, which can be passed to
+	 * {@link #setSourceIndex(EntryTable)}
+	 * @return index of the source file
+	 * @throws IOException
+	 */
+	public EntryTable buildSourceIndex() throws IOException {
+		startPhase(DiffStatistics.INDEXING);
+		try {
+			return buildEntryTable(sourceFile, numberOfSourceLevelsToTrim);
+		} finally {
+			startPhase(DiffStatistics.IDLE);
+		}
+	}
+
+	/**
+	 * counts the progress of the comparisons in statistics, which may be shared
+	 * by several calculators
+	 * @param statistics DiffStatistics, or null to count nothing
+	 */
+	public void setStatistics(DiffStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Method getStatistics.
+	 * @return DiffStatistics, or null
+	 */
+	public DiffStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Method startPhase.
+	 * @param phase see {@link DiffStatistics#startPhase(int)}
+	 */
+	private void startPhase(int phase) {
+		if (statistics != null) {
+			statistics.startPhase(phase);
+		}
+	}
+
+	/**
+	 * counts an indexed entry
+	 */
+	private void countEntry() {
+		if (statistics != null) {
+			statistics.entryIndexed();
+		}
+	}
+
+	/**
+	 * counts an expanded nested archive and its data, which has been inflated to expand it
+	 * @param method compression method of the nested archive
+	 * @param size size of the nested archive
+	 */
+	private void countNestedArchive(int method, long size) {
+		if (statistics != null) {
+			statistics.nestedArchiveOpened();
+			statistics.inflated(method, size);
+		}
+	}
+
+	/**
+	 * Method isExcluding.
+	 * @return true if SCM files or regular expressions are excluded
+	 */
+	protected boolean isExcluding() {
+		return !exclusionMatcher.isEmpty();
+	}
+
 	/**
 	 * Opens the ZipFile and builds up a map of all the entries. The key is the name of
 	 * the entry and the value is the ZipEntry itself.
@@ -304,6 +642,9 @@ public class DifferenceCalculator {
 	 * @throws IOException
 	 */
 	protected Map<String, ZipEntry> buildZipEntryMap(ZipFile zf, int nl) throws IOException {
+		if (forkJoinPool != null) {
+			return buildZipEntryMapInParallel(zf, nl);
+		}
 		final Map<String, ZipEntry> zipEntryMap = new HashMap<String, ZipEntry>();
 		try {
 			final Enumeration<? extends ZipEntry> entries = zf.entries();
@@ -311,8 +652,14 @@ public class DifferenceCalculator {
 				ZipEntry entry = entries.nextElement();
 				InputStream is = null;
 				try {
-					is = zf.getInputStream(entry);
+					// only nested archives are inflated
+					if (!entry.isDirectory() && isZipFile(entry.getName())) {
+						is = zf.getInputStream(entry);
+					}
 					processZipEntry("", entry, is, zipEntryMap, nl);
+					if ((is != null) && (statistics != null)) {
+						statistics.inflated(entry.getMethod(), entry.getSize());
+					}
 				} finally {
 					if (is != null) {
 						is.close();
@@ -327,161 +674,1199 @@ public class DifferenceCalculator {
 	}
 
 	/**
-	 * Will place ZipEntries for a given ZipEntry into the given Map. More ZipEntries will result
-	 * if zipEntry is itself a ZipFile. All embedded ZipFiles will be processed with their names
-	 * prefixed onto the names of their ZipEntries.
-	 * @param prefix The prefix of the ZipEntry that should be added to the key. Typically used
-	 * when processing embedded ZipFiles. The name of the embedded ZipFile would be the prefix of
-	 * all the embedded ZipEntries.
-	 * @param zipEntry The ZipEntry to place into the Map. If it is a ZipFile then all its ZipEntries
-	 * will also be placed in the Map.
-	 * @param is The InputStream of the corresponding ZipEntry.
-	 * @param zipEntryMap The Map in which to place all the ZipEntries into. The key will
-	 * be the name of the ZipEntry.
-	 * @throws IOException
-	 */
-	protected void processZipEntry(String prefix, ZipEntry zipEntry, InputStream is, Map<String, ZipEntry> zipEntryMap) throws IOException {
-		processZipEntry(prefix, zipEntry, is, zipEntryMap, 0);
-	}
-
-	/**
-	 * Will place ZipEntries for a given ZipEntry into the given Map. More ZipEntries will result
-	 * if zipEntry is itself a ZipFile. All embedded ZipFiles will be processed with their names
-	 * prefixed onto the names of their ZipEntries.
-	 * @param prefix The prefix of the ZipEntry that should be added to the key. Typically used
-	 * when processing embedded ZipFiles. The name of the embedded ZipFile would be the prefix of
-	 * all the embedded ZipEntries.
-	 * @param zipEntry The ZipEntry to place into the Map. If it is a ZipFile then all its ZipEntries
-	 * will also be placed in the Map.
-	 * @param is The InputStream of the corresponding ZipEntry.
-	 * @param zipEntryMap The Map in which to place all the ZipEntries into. The key will
-	 * be the name of the ZipEntry.
+	 * Builds up the map of all the entries like {@link #buildZipEntryMap(ZipFile, int)},
+	 * but every nested archive is indexed by its own task on the ForkJoinPool. The tasks
+	 * are started largest first and their maps are merged in the order of the entries,
+	 * so that the result is the same as that of the sequential expansion.
+	 * @param zf The ZipFile for which to build up the map of ZipEntries
 	 * @param nl Number of directory levels to trim
+	 * @return The map containing all the ZipEntries. The key being the name of the ZipEntry.
 	 * @throws IOException
 	 */
-	protected void processZipEntry(String prefix, ZipEntry zipEntry, InputStream is, Map<String, ZipEntry> zipEntryMap, int nl) throws IOException {
-		if (excludeThisFile(prefix, zipEntry.getName())) {
-			logger.log(Level.FINE, "ignoring file: " + zipEntry.getName());
-		} else {
-			final String name = StringUtil.removeDirectoryPrefix(prefix + zipEntry.getName(), nl);
-			if ((name == null) || name.equals("")) {
-				return;
+	protected Map<String, ZipEntry> buildZipEntryMapInParallel(ZipFile zf, int nl) throws IOException {
+		final List<Object> segments = new ArrayList<Object>();
+		final List<NestedArchiveTask> tasks = new ArrayList<NestedArchiveTask>();
+		try {
+			final Enumeration<? extends ZipEntry> entries = zf.entries();
+			while (entries.hasMoreElements()) {
+				final ZipEntry entry = entries.nextElement();
+				if (!entry.isDirectory() && isZipFile(entry.getName())) {
+					final NestedArchiveTask task = new NestedArchiveTask(zf, "", entry, null, null, nl);
+					tasks.add(task);
+					segments.add(task);
+				} else {
+					segments.add(entry);
+				}
 			}
 
-			logger.log(Level.FINEST, "processing ZipEntry: " + name);
-			zipEntryMap.put(name, zipEntry);
+			final List<NestedArchiveTask> largestFirst = new ArrayList<NestedArchiveTask>(tasks);
+			Collections.sort(largestFirst, new Comparator<NestedArchiveTask>() {
+				public int compare(NestedArchiveTask o1, NestedArchiveTask o2) {
+					final long s1 = o1.getCompressedSize();
+					final long s2 = o2.getCompressedSize();
+					return (s1 < s2) ? 1 : ((s1 > s2) ? -1 : 0);
+				}
+			});
+			for (NestedArchiveTask task : largestFirst) {
+				forkJoinPool.execute(task);
+			}
 
-			if (!zipEntry.isDirectory() && isZipFile(name)) {
-				processEmbeddedZipFile(name + "!", is, zipEntryMap);
+			final Map<String, ZipEntry> zipEntryMap = new HashMap<String, ZipEntry>();
+			for (Object segment : segments) {
+				if (segment instanceof NestedArchiveTask) {
+					zipEntryMap.putAll(((NestedArchiveTask) segment).getResult());
+				} else {
+					processZipEntry("", (ZipEntry) segment, null, zipEntryMap, nl);
+				}
+			}
+			return zipEntryMap;
+		} finally {
+			// the archive must not be closed while tasks are still reading from it
+			for (NestedArchiveTask task : tasks) {
+				if (!task.cancel(false)) {
+					task.quietlyJoin();
+				}
 			}
+			zf.close();
 		}
 	}
 
 	/**
-	 * Method processEmbeddedZipFile.
-	 * @param prefix String
-	 * @param is InputStream
-	 * @param m Map&lt;String,ZipEntry&gt;
-	 * @throws IOException
+	 * Indexes a nested archive, and forks a task for each archive nested in it.
+	 * Top level archives are read from the ZipFile. Deeper ones are copied by the enclosing
+	 * task because a ZipInputStream can only be read in order: small archives into memory,
+	 * archives of at least {@link #SPILL_THRESHOLD} bytes or of unknown size into a temporary file.
 	 */
-	protected void processEmbeddedZipFile(String prefix, InputStream is, Map<String, ZipEntry> m) throws IOException {
-		final ZipInputStream zis = new ZipInputStream(is);
+	private final class NestedArchiveTask extends RecursiveTask<Map<String, ZipEntry>> {
+		/**
+		 * Field serialVersionUID.
+		 */
+		private static final long serialVersionUID = 1L;
 
-		ZipEntry entry = zis.getNextEntry();
+		/**
+		 * Field zf, null for archives which are not at the top level.
+		 */
+		private final ZipFile zf;
 
-		while (entry != null) {
-			processZipEntry(prefix, entry, zis, m);
-			zis.closeEntry();
-			entry = zis.getNextEntry();
+		/**
+		 * Field prefix.
+		 */
+		private final String prefix;
+
+		/**
+		 * Field entry.
+		 */
+		private final ZipEntry entry;
+
+		/**
+		 * Field content, null for archives at the top level or in a temporary file.
+		 */
+		private final byte[] content;
+
+		/**
+		 * Field spill, temporary file with the content, it is deleted by the task.
+		 */
+		private final File spill;
+
+		/**
+		 * Field nl.
+		 */
+		private final int nl;
+
+		/**
+		 * Field failure.
+		 */
+		private IOException failure;
+
+		/**
+		 * Constructor for NestedArchiveTask.
+		 * @param zf ZipFile containing the entry, or null if the content is given
+		 * @param prefix String
+		 * @param entry ZipEntry of the nested archive
+		 * @param content byte[] content of the nested archive, or null
+		 * @param spill temporary file with the content of the nested archive, or null
+		 * @param nl number of directory levels to trim
+		 */
+		NestedArchiveTask(ZipFile zf, String prefix, ZipEntry entry, byte[] content, File spill, int nl) {
+			this.zf = zf;
+			this.prefix = prefix;
+			this.entry = entry;
+			this.content = content;
+			this.spill = spill;
+			this.nl = nl;
 		}
-	}
 
-	/**
-	 * Returns true if the filename has a valid zip extension (i.e. jar, war, ear, rar, zip)
-	 * @param filename The name of the file to check.
-	 * @return true if it has a valid extension.
-	 */
-	@SuppressWarnings("resource")
-	public static boolean isZipFile(String filename) {
-		try {
-			return new ZipInputStream(new FileInputStream(filename)).getNextEntry() != null;
-		} catch (IOException e) {
-			return false;
+		/**
+		 * Method getCompressedSize.
+		 * @return long
+		 */
+		long getCompressedSize() {
+			return entry.getCompressedSize();
+		}
+
+		/**
+		 * waits for the task and returns its entries
+		 * @return Map&lt;String,ZipEntry&gt;
+		 * @throws IOException
+		 */
+		Map<String, ZipEntry> getResult() throws IOException {
+			final Map<String, ZipEntry> m = join();
+			if (failure != null) {
+				throw failure;
+			}
+			return m;
+		}
+
+		/**
+		 * Method compute.
+		 * @return Map&lt;String,ZipEntry&gt;
+		 */
+		@Override
+		protected Map<String, ZipEntry> compute() {
+			final Map<String, ZipEntry> m = new HashMap<String, ZipEntry>();
+			try {
+				// archives nested deeper have been checked before their content was copied
+				if ((zf != null) && excludeThisFile(prefix, entry.getName())) {
+					logger.log(Level.FINE, "ignoring file: " + entry.getName());
+					return m;
+				}
+				final String name = StringUtil.removeDirectoryPrefix(prefix + entry.getName(), nl);
+				if ((name == null) || name.equals("")) {
+					return m;
+				}
+				if (excludeThisKey(name, entry.getName())) {
+					logger.log(Level.FINE, "ignoring file: " + name);
+				} else {
+					logger.log(Level.FINEST, "processing ZipEntry: " + name);
+					m.put(name, entry);
+					countEntry();
+				}
+
+				final InputStream is;
+				if (zf != null) {
+					is = zf.getInputStream(entry);
+				} else if (content != null) {
+					is = new ByteArrayInputStream(content);
+				} else {
+					is = new FileInputStream(spill);
+				}
+				try {
+					final InputStream in = is.markSupported() ? is : new BufferedInputStream(is);
+					if (ZipUtil.startsWithLocalHeader(in)) {
+						if (zf != null) {
+							countNestedArchive(entry.getMethod(), entry.getSize());
+						} else if (statistics != null) {
+							// the data has been counted by the enclosing task, which inflated it
+							statistics.nestedArchiveOpened();
+						}
+						expand(name + "!", in, m);
+					} else {
+						logger.log(Level.FINE, "not a zip archive: " + name);
+					}
+				} finally {
+					is.close();
+				}
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				if ((spill != null) && !spill.delete()) {
+					spill.deleteOnExit();
+				}
+			}
+			return m;
+		}
+
+		/**
+		 * Adds the entries of an archive to the map, archives nested in it are indexed by subtasks.
+		 * @param archivePrefix the name of the archive including the separator
+		 * @param is InputStream of the archive
+		 * @param m the map to add the entries to
+		 * @throws IOException
+		 */
+		private void expand(String archivePrefix, InputStream is, Map<String, ZipEntry> m) throws IOException {
+			final List<Object> segments = new ArrayList<Object>();
+			Map<String, ZipEntry> current = new HashMap<String, ZipEntry>();
+			segments.add(current);
+
+			final ZipInputStream zis = new ZipInputStream(is);
+			ZipEntry nested = zis.getNextEntry();
+			while (nested != null) {
+				if (nested.isDirectory() || !isZipFile(nested.getName())) {
+					processZipEntry(archivePrefix, nested, null, current, 0);
+				} else if (excludeThisFile(archivePrefix, nested.getName())) {
+					logger.log(Level.FINE, "ignoring file: " + nested.getName());
+				} else {
+					final NestedArchiveTask task;
+					if ((nested.getSize() >= 0) && (nested.getSize() < SPILL_THRESHOLD)) {
+						final ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) nested.getSize());
+						final byte[] b = new byte[8192];
+						int count = zis.read(b);
+						while (count >= 0) {
+							buffer.write(b, 0, count);
+							count = zis.read(b);
+						}
+						task = new NestedArchiveTask(null, archivePrefix, nested, buffer.toByteArray(), null, 0);
+					} else {
+						final File spill = File.createTempFile("zipdiff", ".zip");
+						try {
+							Files.copy(zis, spill.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						} catch (IOException e) {
+							if (!spill.delete()) {
+								spill.deleteOnExit();
+							}
+							throw e;
+						}
+						task = new NestedArchiveTask(null, archivePrefix, nested, null, spill, 0);
+					}
+					task.fork();
+					segments.add(task);
+					current = new HashMap<String, ZipEntry>();
+					segments.add(current);
+				}
+				zis.closeEntry();
+				if (statistics != null) {
+					statistics.inflated(nested.getMethod(), nested.getSize());
+				}
+				nested = zis.getNextEntry();
+			}
+
+			for (Object segment : segments) {
+				if (segment instanceof NestedArchiveTask) {
+					m.putAll(((NestedArchiveTask) segment).getResult());
+				} else {
+					@SuppressWarnings("unchecked")
+					final Map<String, ZipEntry> entries = (Map<String, ZipEntry>) segment;
+					m.putAll(entries);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the central directory of a zip file into an EntryTable. Nested archives
+	 * are expanded, their entries are added with the name of the nested archive as prefix.
+	 * If an index cache is set, a cached index is returned without opening the file,
+	 * and new indexes are stored in the cache.
+	 * @param file The zip file to index
+	 * @param nl Number of directory levels to trim
+	 * @return The table containing all the entries
+	 * @throws IOException
+	 */
+	protected EntryTable buildEntryTable(File file, int nl) throws IOException {
+		if ((file == sourceFile) && (sourceStream != null)) {
+			return buildEntryTable(sourceStream, nl);
+		}
+		if ((file == targetFile) && (targetStream != null)) {
+			return buildEntryTable(targetStream, nl);
+		}
+		if (file.isDirectory()) {
+			return new DirectoryIndex(this, file, nl).scan().build(null);
+		}
+		if (indexCache != null) {
+			final String options = getIndexOptions(nl);
+			final EntryTable cached = indexCache.get(file, options);
+			if (cached != null) {
+				logger.log(Level.FINE, "using cached index of " + file);
+				return cached;
+			}
+		}
+		// read before the archive, an archive which changes while it is indexed is indexed again next time
+		final BasicFileAttributes attributes = (indexCache != null) ? Files.readAttributes(file.toPath(), BasicFileAttributes.class) : null;
+		final CentralDirectory cd = new CentralDirectory(file);
+		try {
+			final EntryTable table = buildEntryTable(cd, nl);
+			if (indexCache != null) {
+				try {
+					indexCache.put(file, attributes, getIndexOptions(nl), cd.digest(), table);
+				} catch (IOException e) {
+					// e.g. a read-only or full cache directory, the comparison does not need the cache
+					logger.log(Level.WARNING, "cannot store the index of " + file + ": " + e);
+				}
+			}
+			return table;
+		} finally {
+			cd.close();
+		}
+	}
+
+	/**
+	 * Reads a central directory into an EntryTable. Nested archives
+	 * are expanded, their entries are added with the name of the nested archive as prefix.
+	 * @param cd The central directory of the zip file to index
+	 * @param nl Number of directory levels to trim
+	 * @return The table containing all the entries
+	 * @throws IOException
+	 */
+	protected EntryTable buildEntryTable(CentralDirectory cd, int nl) throws IOException {
+		return buildEntryTable(cd, nl, true);
+	}
+
+	/**
+	 * Reads a central directory into an EntryTable.
+	 * @param cd The central directory of the zip file to index
+	 * @param nl Number of directory levels to trim
+	 * @param expand true to add the entries of nested archives, with the name of the nested archive as prefix
+	 * @return The table containing all the entries
+	 * @throws IOException
+	 */
+	private EntryTable buildEntryTable(CentralDirectory cd, int nl, boolean expand) throws IOException {
+		final EntryTable table = new EntryTable((int) Math.min(cd.getEntryCount(), 1 << 20));
+		byte[] name = new byte[256];
+		while (cd.next()) {
+			final int length = cd.getNameLength();
+			if (length > name.length) {
+				name = new byte[Math.max(length, name.length * 2)];
+			}
+			cd.getName(name, 0);
+			if (isExcluding() && excludeThisFile("", cd.getName())) {
+				logger.log(Level.FINE, "ignoring file: " + cd.getName());
+				continue;
+			}
+			final int keyOffset = trimOffset(name, length, nl);
+			if (keyOffset >= length) {
+				continue;
+			}
+			String key = null;
+			if ((keyOffset > 0) && isExcluding()) {
+				key = new String(name, keyOffset, length - keyOffset, CentralDirectory.UTF8);
+			}
+			if ((key != null) && excludeThisFile("", key)) {
+				logger.log(Level.FINE, "ignoring file: " + key);
+			} else {
+				final int row = table.add(name, 0, length, 0, keyOffset, cd.getSize(), cd.getCompressedSize(),
+						cd.getCrc(), cd.getDosTime(), cd.getMethod(), cd.getFlags(), cd.getLocalHeaderOffset());
+				key = table.getKey(row);
+				countEntry();
+			}
+
+			if (expand && !cd.isDirectory() && ZipUtil.hasArchiveExtension(name, 0, length)) {
+				processEmbeddedZipFile(key + "!", cd, table);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Places the entries of the nested archive in the current record of a central directory
+	 * into an EntryTable, expanding nested archives recursively. The central directory of the
+	 * nested archive is read instead of decoding all its entries with a ZipInputStream: a
+	 * stored archive is read in place, a compressed one is inflated once into a temporary file.
+	 * Small compressed archives are decoded with a ZipInputStream, which is cheaper for them.
+	 * @param prefix The name of the nested archive including the separator
+	 * @param cd The central directory positioned at the nested archive
+	 * @param table The EntryTable to add the entries to
+	 * @throws IOException
+	 */
+	protected void processEmbeddedZipFile(String prefix, CentralDirectory cd, EntryTable table) throws IOException {
+		final InputStream in = new BufferedInputStream(cd.getInputStream());
+		File spill = null;
+		try {
+			if (!ZipUtil.startsWithLocalHeader(in)) {
+				return;
+			}
+			countNestedArchive(cd.getMethod(), cd.getSize());
+			if (cd.getMethod() != ZipEntry.STORED) {
+				if (cd.getSize() < SPILL_THRESHOLD) {
+					processEmbeddedZipFile(prefix, in, table);
+					return;
+				}
+				spill = File.createTempFile("zipdiff", ".zip");
+				Files.copy(in, spill.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			CentralDirectory nested;
+			try {
+				nested = (spill != null) ? new CentralDirectory(spill) : cd.openStoredArchive();
+			} catch (ZipException e) {
+				// e.g. a truncated archive without central directory, whose entries can still be read one by one
+				logger.log(Level.FINE, "reading " + prefix + " sequentially: " + e);
+				nested = null;
+			}
+			if (nested == null) {
+				final InputStream data = new BufferedInputStream((spill != null) ? new FileInputStream(spill) : cd.getInputStream());
+				try {
+					processEmbeddedZipFile(prefix, data, table);
+				} finally {
+					data.close();
+				}
+				return;
+			}
+			try {
+				addNestedEntries(prefix, nested, table);
+			} finally {
+				nested.close();
+			}
+		} finally {
+			in.close();
+			if ((spill != null) && !spill.delete()) {
+				spill.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Adds the entries of a nested archive from its central directory, see
+	 * {@link #processEmbeddedZipFile(String, CentralDirectory, EntryTable)}
+	 * @param prefix The name of the nested archive including the separator
+	 * @param cd The central directory of the nested archive
+	 * @param table The EntryTable to add the entries to
+	 * @throws IOException
+	 */
+	private void addNestedEntries(String prefix, CentralDirectory cd, EntryTable table) throws IOException {
+		// the prefix is stored once, the entries only refer to it
+		final int prefixId = table.addPrefix(prefix.getBytes(CentralDirectory.UTF8));
+		byte[] name = new byte[256];
+		while (cd.next()) {
+			final int length = cd.getNameLength();
+			if (length > name.length) {
+				name = new byte[Math.max(length, name.length * 2)];
+			}
+			cd.getName(name, 0);
+			if (isExcluding() && excludeThisFile(prefix, cd.getName())) {
+				logger.log(Level.FINE, "ignoring file: " + cd.getName());
+				continue;
+			}
+			if (!cd.isDirectory() && ZipUtil.hasArchiveExtension(name, 0, length)) {
+				processEmbeddedZipFile(prefix + cd.getName() + "!", cd, table);
+			}
+			if (isExcluding() && excludeThisKey(prefix + cd.getName(), cd.getName())) {
+				logger.log(Level.FINE, "ignoring file: " + prefix + cd.getName());
+			} else {
+				table.add(prefixId, name, 0, length, cd.getSize(), cd.getCompressedSize(), cd.getCrc(), cd.getDosTime(),
+						cd.getMethod(), cd.getFlags());
+				countEntry();
+			}
+		}
+	}
+
+	/**
+	 * Reads a zip archive from a stream into an EntryTable in a single forward pass, see
+	 * {@link #setSourceStream(InputStream)}. Each entry is added after its data has been
+	 * read, so that the sizes and CRC of entries with a data descriptor are known. Nested
+	 * archives are expanded while they are read, their entries are added with the name of
+	 * the nested archive as prefix.
+	 * @param in InputStream of the zip archive, it is not closed
+	 * @param nl Number of directory levels to trim
+	 * @return The table containing all the entries
+	 * @throws IOException
+	 */
+	protected EntryTable buildEntryTable(InputStream in, int nl) throws IOException {
+		final EntryTable table = new EntryTable(1024);
+		final ZipInputStream zis = new ZipInputStream(new BufferedInputStream(in, 64 * 1024));
+		ZipEntry entry = zis.getNextEntry();
+		while (entry != null) {
+			final String entryName = entry.getName();
+			if (isExcluding() && excludeThisFile("", entryName)) {
+				logger.log(Level.FINE, "ignoring file: " + entryName);
+				entry = zis.getNextEntry();
+				continue;
+			}
+			final byte[] name = entryName.getBytes(CentralDirectory.UTF8);
+			final int keyOffset = trimOffset(name, name.length, nl);
+			if (keyOffset >= name.length) {
+				entry = zis.getNextEntry();
+				continue;
+			}
+			final String key = new String(name, keyOffset, name.length - keyOffset, CentralDirectory.UTF8);
+			if (!entry.isDirectory() && isZipFile(entryName)) {
+				final InputStream nested = new BufferedInputStream(zis);
+				if (ZipUtil.startsWithLocalHeader(nested)) {
+					if (statistics != null) {
+						statistics.nestedArchiveOpened();
+					}
+					processEmbeddedZipFile(key + "!", nested, table);
+				}
+			}
+			// sizes and CRC of entries with a data descriptor are known after the data has been read
+			zis.closeEntry();
+			if (statistics != null) {
+				statistics.inflated(entry.getMethod(), entry.getSize());
+			}
+			if ((keyOffset > 0) && isExcluding() && excludeThisFile("", key)) {
+				logger.log(Level.FINE, "ignoring file: " + key);
+			} else {
+				table.add(name, 0, name.length, 0, keyOffset, entry.getSize(), entry.getCompressedSize(),
+						(int) entry.getCrc(), EntryTable.getDosTime(entry), entry.getMethod(), 0, -1);
+				countEntry();
+			}
+			entry = zis.getNextEntry();
+		}
+		return table;
+	}
+
+	/**
+	 * describes the options which influence the entries of an index, so that indexes
+	 * built with other options are not taken from the cache
+	 * @param nl Number of directory levels to trim
+	 * @return String
+	 */
+	protected String getIndexOptions(int nl) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("trim=").append(nl);
+		sb.append(";scm=").append(isExcludingSCMFiles());
+		for (String regex : excludeRegexes) {
+			sb.append(";exclude=").append(regex);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Places the entries of a nested archive into an EntryTable, expanding nested archives recursively.
+	 * @param prefix The name of the nested archive including the separator
+	 * @param is InputStream of the nested archive
+	 * @param table The EntryTable to add the entries to
+	 * @throws IOException
+	 */
+	protected void processEmbeddedZipFile(String prefix, InputStream is, EntryTable table) throws IOException {
+		// the prefix is stored once, the entries only refer to it
+		final int prefixId = table.addPrefix(prefix.getBytes(CentralDirectory.UTF8));
+		final ZipInputStream zis = new ZipInputStream(is);
+
+		ZipEntry entry = zis.getNextEntry();
+		while (entry != null) {
+			final boolean excluded = excludeThisFile(prefix, entry.getName());
+			if (excluded) {
+				logger.log(Level.FINE, "ignoring file: " + entry.getName());
+			} else if (!entry.isDirectory() && isZipFile(entry.getName())) {
+				final InputStream in = new BufferedInputStream(zis);
+				if (ZipUtil.startsWithLocalHeader(in)) {
+					if (statistics != null) {
+						statistics.nestedArchiveOpened();
+					}
+					processEmbeddedZipFile(prefix + entry.getName() + "!", in, table);
+				}
+			}
+			// sizes and CRC of entries with a data descriptor are known after the data has been read
+			zis.closeEntry();
+			if (!excluded) {
+				if (statistics != null) {
+					statistics.inflated(entry.getMethod(), entry.getSize());
+				}
+				if (isExcluding() && excludeThisKey(prefix + entry.getName(), entry.getName())) {
+					logger.log(Level.FINE, "ignoring file: " + prefix + entry.getName());
+				} else {
+					table.add(prefixId, entry);
+					countEntry();
+				}
+			}
+			entry = zis.getNextEntry();
+		}
+	}
+
+	/**
+	 * Finds the start of the key in a name, the same way as {@link StringUtil#removeDirectoryPrefix(String, int)}
+	 * @param name UTF-8 encoded name
+	 * @param length length of the name
+	 * @param nl number of directory levels to trim
+	 * @return position of the key in the name
+	 */
+	private static int trimOffset(byte[] name, int length, int nl) {
+		int pos = 0;
+		for (int i = 0; i < nl; i++) {
+			int slash = -1;
+			for (int j = pos; j < length; j++) {
+				if (name[j] == '/') {
+					slash = j;
+					break;
+				}
+			}
+			pos = slash + 1;
+		}
+		return pos;
+	}
+
+	/**
+	 * Will place ZipEntries for a given ZipEntry into the given Map. More ZipEntries will result
+	 * if zipEntry is itself a ZipFile. All embedded ZipFiles will be processed with their names
+	 * prefixed onto the names of their ZipEntries.
+	 * @param prefix The prefix of the ZipEntry that should be added to the key. Typically used
+	 * when processing embedded ZipFiles. The name of the embedded ZipFile would be the prefix of
+	 * all the embedded ZipEntries.
+	 * @param zipEntry The ZipEntry to place into the Map. If it is a ZipFile then all its ZipEntries
+	 * will also be placed in the Map.
+	 * @param is The InputStream of the corresponding ZipEntry.
+	 * @param zipEntryMap The Map in which to place all the ZipEntries into. The key will
+	 * be the name of the ZipEntry.
+	 * @throws IOException
+	 */
+	protected void processZipEntry(String prefix, ZipEntry zipEntry, InputStream is, Map<String, ZipEntry> zipEntryMap) throws IOException {
+		processZipEntry(prefix, zipEntry, is, zipEntryMap, 0);
+	}
+
+	/**
+	 * Will place ZipEntries for a given ZipEntry into the given Map. More ZipEntries will result
+	 * if zipEntry is itself a ZipFile. All embedded ZipFiles will be processed with their names
+	 * prefixed onto the names of their ZipEntries.
+	 * @param prefix The prefix of the ZipEntry that should be added to the key. Typically used
+	 * when processing embedded ZipFiles. The name of the embedded ZipFile would be the prefix of
+	 * all the embedded ZipEntries.
+	 * @param zipEntry The ZipEntry to place into the Map. If it is a ZipFile then all its ZipEntries
+	 * will also be placed in the Map.
+	 * @param is The InputStream of the corresponding ZipEntry, may be null if the entry
+	 * is not a nested archive.
+	 * @param zipEntryMap The Map in which to place all the ZipEntries into. The key will
+	 * be the name of the ZipEntry.
+	 * @param nl Number of directory levels to trim
+	 * @throws IOException
+	 */
+	protected void processZipEntry(String prefix, ZipEntry zipEntry, InputStream is, Map<String, ZipEntry> zipEntryMap, int nl) throws IOException {
+		if (excludeThisFile(prefix, zipEntry.getName())) {
+			logger.log(Level.FINE, "ignoring file: " + zipEntry.getName());
+		} else {
+			final String name = StringUtil.removeDirectoryPrefix(prefix + zipEntry.getName(), nl);
+			if ((name == null) || name.equals("")) {
+				return;
+			}
+
+			if (excludeThisKey(name, zipEntry.getName())) {
+				logger.log(Level.FINE, "ignoring file: " + name);
+			} else {
+				logger.log(Level.FINEST, "processing ZipEntry: " + name);
+				zipEntryMap.put(name, zipEntry);
+				countEntry();
+			}
+
+			if ((is != null) && !zipEntry.isDirectory() && isZipFile(name)) {
+				final InputStream in = is.markSupported() ? is : new BufferedInputStream(is);
+				if (ZipUtil.startsWithLocalHeader(in)) {
+					if (statistics != null) {
+						statistics.nestedArchiveOpened();
+					}
+					processEmbeddedZipFile(name + "!", in, zipEntryMap);
+				} else {
+					logger.log(Level.FINE, "not a zip archive: " + name);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method processEmbeddedZipFile.
+	 * @param prefix String
+	 * @param is InputStream
+	 * @param m Map&lt;String,ZipEntry&gt;
+	 * @throws IOException
+	 */
+	protected void processEmbeddedZipFile(String prefix, InputStream is, Map<String, ZipEntry> m) throws IOException {
+		final ZipInputStream zis = new ZipInputStream(is);
+
+		ZipEntry entry = zis.getNextEntry();
+
+		while (entry != null) {
+			processZipEntry(prefix, entry, zis, m);
+			zis.closeEntry();
+			if (statistics != null) {
+				statistics.inflated(entry.getMethod(), entry.getSize());
+			}
+			entry = zis.getNextEntry();
+		}
+	}
+
+	/**
+	 * Returns true if the filename has a valid zip extension (i.e. jar, war, ear, rar, zip).
+	 * Only the name is checked, the content of a nested archive is verified by
+	 * {@link #processZipEntry(String, ZipEntry, InputStream, Map, int)} before it is expanded.
+	 * @param filename The name of the file to check.
+	 * @return true if it has a valid extension.
+	 */
+	public static boolean isZipFile(String filename) {
+		return ZipUtil.hasArchiveExtension(filename);
+	}
+
+	/**
+	 * Calculates all the differences between two zip files.
+	 * It builds up the 2 maps of ZipEntries for the two files
+	 * and then compares them.
+	 * @param sourcezip The source ZipFile to compare
+	 * @param targetzip The target ZipFile to compare		
+	 * @return All the differences between the two files.
+	 * @throws IOException
+	 */
+	protected Differences calculateDifferences(ZipFile sourcezip, ZipFile targetzip) throws IOException {
+		return calculateDifferences(sourcezip, targetzip, 0, 0);
+	}
+
+	/**
+	 * Calculates all the differences between two zip files.
+	 * It builds up the 2 maps of ZipEntries for the two files
+	 * and then compares them.
+	 * @param sourcezip The source ZipFile to compare
+	 * @param targetzip The target ZipFile to compare
+	 * @param nsourcel number of directory levels to trim in the source file
+	 * @param ntargetl number of directory levels to trim in the target file	
+	 * @return All the differences between the two files.
+	 * @throws IOException
+	 */
+	protected Differences calculateDifferences(ZipFile sourcezip, ZipFile targetzip, int nsourcel, int ntargetl) throws IOException {
+		final Differences diff = new Differences();
+		calculateDifferences(sourcezip, targetzip, nsourcel, ntargetl, diff);
+		return diff;
+	}
+
+	/**
+	 * Calculates all the differences between two zip files and reports them to a listener.
+	 * It builds up the 2 maps of ZipEntries for the two files
+	 * and then compares them.
+	 * @param sourcezip The source ZipFile to compare
+	 * @param targetzip The target ZipFile to compare
+	 * @param nsourcel number of directory levels to trim in the source file
+	 * @param ntargetl number of directory levels to trim in the target file
+	 * @param listener receives the differences
+	 * @throws IOException
+	 */
+	protected void calculateDifferences(final ZipFile sourcezip, final ZipFile targetzip, int nsourcel, final int ntargetl,
+			DifferenceListener listener) throws IOException {
+		if (executor == null) {
+			final Map<String, ZipEntry> sourcemap = buildZipEntryMap(sourcezip, nsourcel);
+			final Map<String, ZipEntry> targetmap = buildZipEntryMap(targetzip, ntargetl);
+
+			calculateDifferences(sourcemap, targetmap, new File(sourcezip.getName()), new File(targetzip.getName()), listener);
+			return;
+		}
+
+		// the target is indexed by the executor while the calling thread indexes the source
+		final Future<Map<String, ZipEntry>> pending = executor.submit(new Callable<Map<String, ZipEntry>>() {
+			public Map<String, ZipEntry> call() throws IOException {
+				return buildZipEntryMap(targetzip, ntargetl);
+			}
+		});
+		final Map<String, ZipEntry> sourcemap;
+		try {
+			sourcemap = buildZipEntryMap(sourcezip, nsourcel);
+		} catch (IOException e) {
+			pending.cancel(true);
+			throw e;
+		} catch (RuntimeException e) {
+			pending.cancel(true);
+			throw e;
+		}
+		final Map<String, ZipEntry> targetmap = await(pending);
+
+		calculateDifferences(sourcemap, targetmap, new File(sourcezip.getName()), new File(targetzip.getName()), listener);
+	}
+
+	/**
+	 * Waits for a task and unwraps its failure.
+	 * @param future the pending task
+	 * @param <T> result type
+	 * @return the result of the task
+	 * @throws IOException if the task failed with an IOException or the wait was interrupted
+	 */
+	public static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			final InterruptedIOException iioe = new InterruptedIOException("interrupted while indexing");
+			iioe.initCause(e);
+			throw iioe;
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Given two Maps of ZipEntries it will generate a Differences of all the
+	 * differences found between the two maps. The names of both maps are sorted
+	 * once and then merged in a single pass, so that the differences are reported
+	 * in the order of their names.
+	 * @param sourcemap Map&lt;String, ZipEntry&gt;
+	 * @param targetmap Map&lt;String, ZipEntry&gt;
+	 * @return All the differences found between the two maps
+	 * @throws IOException
+	 */
+	protected Differences calculateDifferences(Map<String, ZipEntry> sourcemap, Map<String, ZipEntry> targetmap) throws IOException {
+		final Differences diff = new Differences();
+		calculateDifferences(sourcemap, targetmap, diff);
+		return diff;
+	}
+
+	/**
+	 * Given two Maps of ZipEntries it will report all the differences found
+	 * between the two maps to a listener, in the order of their names.
+	 * @param sourcemap Map&lt;String, ZipEntry&gt;
+	 * @param targetmap Map&lt;String, ZipEntry&gt;
+	 * @param diff receives the differences
+	 * @throws IOException
+	 */
+	protected void calculateDifferences(Map<String, ZipEntry> sourcemap, Map<String, ZipEntry> targetmap, DifferenceListener diff) throws IOException {
+		calculateDifferences(sourcemap, targetmap, sourceFile, targetFile, diff);
+	}
+
+	/**
+	 * Given two Maps of ZipEntries it will report all the differences found
+	 * between the two maps to a listener, in the order of their names.
+	 * @param sourcemap Map&lt;String, ZipEntry&gt;
+	 * @param targetmap Map&lt;String, ZipEntry&gt;
+	 * @param sourcefile the file the source entries were read from, used to compare contents
+	 * @param targetfile the file the target entries were read from, used to compare contents
+	 * @param diff receives the differences
+	 * @throws IOException
+	 */
+	private void calculateDifferences(Map<String, ZipEntry> sourcemap, Map<String, ZipEntry> targetmap,
+			File sourcefile, File targetfile, DifferenceListener diff) throws IOException {
+		startPhase(DiffStatistics.COMPARING);
+		final String[] sourcenames = sourcemap.keySet().toArray(new String[sourcemap.size()]);
+		final String[] targetnames = targetmap.keySet().toArray(new String[targetmap.size()]);
+		Arrays.sort(sourcenames);
+		Arrays.sort(targetnames);
+
+		final ContentComparator comparator = createContentComparator(sourcefile, targetfile);
+		try {
+			if ((comparator != null) && (executor != null)) {
+				// the contents are compared by the executor while the merge below waits for them in order
+				for (String name : sourcenames) {
+					final ZipEntry srcentry = sourcemap.get(name);
+					final ZipEntry trgentry = targetmap.get(name);
+					if ((trgentry != null) && entriesMatch(srcentry, trgentry)
+							&& needsContentComparison(name, srcentry, trgentry)) {
+						comparator.submit(name, srcentry.getName(), trgentry.getName());
+					}
+				}
+			}
+			calculateDifferences(sourcemap, sourcenames, targetmap, targetnames, comparator, diff);
+		} finally {
+			if (comparator != null) {
+				comparator.close();
+			}
 		}
 	}
 
 	/**
-	 * Calculates all the differences between two zip files.
-	 * It builds up the 2 maps of ZipEntries for the two files
-	 * and then compares them.
-	 * @param sourcezip The source ZipFile to compare
-	 * @param targetzip The target ZipFile to compare		
-	 * @return All the differences between the two files.
+	 * merges the sorted names of two maps and reports the differences
+	 * @param sourcemap Map&lt;String, ZipEntry&gt;
+	 * @param sourcenames sorted names of the source map
+	 * @param targetmap Map&lt;String, ZipEntry&gt;
+	 * @param targetnames sorted names of the target map
+	 * @param comparator compares the contents of entries, null if contents are not compared
+	 * @param diff receives the differences
 	 * @throws IOException
 	 */
-	protected Differences calculateDifferences(ZipFile sourcezip, ZipFile targetzip) throws IOException {
-		return calculateDifferences(sourcezip, targetzip, 0, 0);
+	private void calculateDifferences(Map<String, ZipEntry> sourcemap, String[] sourcenames, Map<String, ZipEntry> targetmap,
+			String[] targetnames, ContentComparator comparator, DifferenceListener diff) throws IOException {
+		int i = 0;
+		int j = 0;
+		while ((i < sourcenames.length) || (j < targetnames.length)) {
+			final int cmp;
+			if (i == sourcenames.length) {
+				cmp = 1;
+			} else if (j == targetnames.length) {
+				cmp = -1;
+			} else {
+				cmp = sourcenames[i].compareTo(targetnames[j]);
+			}
+
+			// excluded entries have not been indexed
+			if (cmp < 0) {
+				final String name = sourcenames[i++];
+				diff.fileRemoved(name, sourcemap.get(name));
+			} else if (cmp > 0) {
+				final String name = targetnames[j++];
+				diff.fileAdded(name, targetmap.get(name));
+			} else {
+				final String name = sourcenames[i++];
+				j++;
+				ZipEntry srcentry = sourcemap.get(name);
+				ZipEntry trgentry = targetmap.get(name);
+				if (!entriesMatch(srcentry, trgentry)
+						|| ((comparator != null) && needsContentComparison(name, srcentry, trgentry)
+							&& !comparator.contentsMatch(name, srcentry.getName(), trgentry.getName()))) {
+					diff.fileChanged(name, srcentry, trgentry);
+				}
+			}
+		}
 	}
 
 	/**
-	 * Calculates all the differences between two zip files.
-	 * It builds up the 2 maps of ZipEntries for the two files
-	 * and then compares them.
-	 * @param sourcezip The source ZipFile to compare
-	 * @param targetzip The target ZipFile to compare
+	 * Calculates all the differences between two zip files using EntryTables.
+	 * @param sourcefile The source file to compare
+	 * @param targetfile The target file to compare
 	 * @param nsourcel number of directory levels to trim in the source file
-	 * @param ntargetl number of directory levels to trim in the target file	
+	 * @param ntargetl number of directory levels to trim in the target file
 	 * @return All the differences between the two files.
 	 * @throws IOException
 	 */
-	protected Differences calculateDifferences(ZipFile sourcezip, ZipFile targetzip, int nsourcel, int ntargetl) throws IOException {
-		final Map<String, ZipEntry> sourcemap = buildZipEntryMap(sourcezip, nsourcel);
-		final Map<String, ZipEntry> targetmap = buildZipEntryMap(targetzip, ntargetl);
+	protected Differences calculateDifferences(File sourcefile, File targetfile, int nsourcel, int ntargetl) throws IOException {
+		final Differences diff = new Differences();
+		calculateDifferences(sourcefile, targetfile, nsourcel, ntargetl, diff);
+		return diff;
+	}
 
-		return calculateDifferences(sourcemap, targetmap);
+	/**
+	 * Calculates all the differences between two zip files using EntryTables
+	 * and reports them to a listener.
+	 * @param sourcefile The source file to compare
+	 * @param targetfile The target file to compare
+	 * @param nsourcel number of directory levels to trim in the source file
+	 * @param ntargetl number of directory levels to trim in the target file
+	 * @param listener receives the differences
+	 * @throws IOException
+	 */
+	protected void calculateDifferences(File sourcefile, final File targetfile, int nsourcel, final int ntargetl,
+			DifferenceListener listener) throws IOException {
+		if (sourcefile.isDirectory() || targetfile.isDirectory()) {
+			calculateDirectoryDifferences(sourcefile, targetfile, nsourcel, ntargetl, listener);
+			return;
+		}
+		if ((executor == null) || (sourceIndex != null)) {
+			final EntryTable sourcetable = (sourceIndex != null) ? sourceIndex : buildEntryTable(sourcefile, nsourcel);
+			final EntryTable targettable = buildEntryTable(targetfile, ntargetl);
+
+			calculateDifferences(sourcetable, targettable, sourcefile, targetfile, listener);
+			return;
+		}
+
+		final Future<EntryTable> pending = executor.submit(new Callable<EntryTable>() {
+			public EntryTable call() throws IOException {
+				return buildEntryTable(targetfile, ntargetl);
+			}
+		});
+		final EntryTable sourcetable;
+		try {
+			sourcetable = buildEntryTable(sourcefile, nsourcel);
+		} catch (IOException e) {
+			pending.cancel(true);
+			throw e;
+		} catch (RuntimeException e) {
+			pending.cancel(true);
+			throw e;
+		}
+		final EntryTable targettable = await(pending);
+
+		calculateDifferences(sourcetable, targettable, sourcefile, targetfile, listener);
 	}
 
 	/**
-	 * Given two Maps of ZipEntries it will generate a Differences of all the
-	 * differences found between the two maps.
-	 * @param sourcemap Map&lt;String, ZipEntry&gt;
-	 * @param targetmap Map&lt;String, ZipEntry&gt;
-	 * @return All the differences found between the two maps
+	 * Calculates the differences if one or both files are directories. The directories are
+	 * walked first, so that only the files with an entry of the same key and size on the
+	 * other side are read to compute their CRC.
+	 * @param sourcefile The source file or directory to compare
+	 * @param targetfile The target file or directory to compare
+	 * @param nsourcel number of directory levels to trim in the source
+	 * @param ntargetl number of directory levels to trim in the target
+	 * @param listener receives the differences
+	 * @throws IOException
+	 */
+	private void calculateDirectoryDifferences(File sourcefile, File targetfile, int nsourcel, int ntargetl,
+			DifferenceListener listener) throws IOException {
+		EntryTable sourcetable = sourceIndex;
+		DirectoryIndex sourcedir = null;
+		if (sourcetable == null) {
+			if (sourcefile.isDirectory()) {
+				sourcedir = new DirectoryIndex(this, sourcefile, nsourcel).scan();
+			} else {
+				sourcetable = buildEntryTable(sourcefile, nsourcel);
+			}
+		}
+		EntryTable targettable = null;
+		DirectoryIndex targetdir = null;
+		if (targetfile.isDirectory()) {
+			targetdir = new DirectoryIndex(this, targetfile, ntargetl).scan();
+		} else {
+			targettable = buildEntryTable(targetfile, ntargetl);
+		}
+
+		if (sourcedir != null) {
+			sourcetable = sourcedir.build((targetdir != null) ? targetdir.getSizes() : DirectoryIndex.getSizes(targettable));
+		}
+		if (targetdir != null) {
+			targettable = targetdir.build((sourcedir != null) ? sourcedir.getSizes() : DirectoryIndex.getSizes(sourcetable));
+		}
+		calculateDifferences(sourcetable, targettable, sourcefile, targetfile, listener);
+	}
+
+	/**
+	 * Given two EntryTables it will generate a Differences of all the
+	 * differences found between the two tables. Both tables are sorted by key
+	 * and merged in a single pass. ZipEntries are only created for the differences.
+	 * @param sourcetable EntryTable
+	 * @param targettable EntryTable
+	 * @return All the differences found between the two tables
+	 * @throws IOException
 	 */
-	protected Differences calculateDifferences(Map<String, ZipEntry> sourcemap, Map<String, ZipEntry> targetmap) {
+	protected Differences calculateDifferences(EntryTable sourcetable, EntryTable targettable) throws IOException {
 		final Differences diff = new Differences();
+		calculateDifferences(sourcetable, targettable, diff);
+		return diff;
+	}
 
-		final Set<String> sourcenames = sourcemap.keySet();
-		final Set<String> targetnames = targetmap.keySet();
+	/**
+	 * Given two EntryTables it will report all the differences found between
+	 * the two tables to a listener, in the order of their keys.
+	 * @param sourcetable EntryTable
+	 * @param targettable EntryTable
+	 * @param diff receives the differences
+	 * @throws IOException
+	 */
+	protected void calculateDifferences(EntryTable sourcetable, EntryTable targettable, DifferenceListener diff) throws IOException {
+		calculateDifferences(sourcetable, targettable, sourceFile, targetFile, diff);
+	}
 
-		final Set<String> allNames = new HashSet<String>();
-		allNames.addAll(sourcenames);
-		allNames.addAll(targetnames);
+	/**
+	 * Given two EntryTables it will report all the differences found between
+	 * the two tables to a listener, in the order of their keys.
+	 * @param sourcetable EntryTable
+	 * @param targettable EntryTable
+	 * @param sourcefile the file the source table was read from, used to compare contents
+	 * @param targetfile the file the target table was read from, used to compare contents
+	 * @param diff receives the differences
+	 * @throws IOException
+	 */
+	private void calculateDifferences(EntryTable sourcetable, EntryTable targettable,
+			File sourcefile, File targetfile, DifferenceListener diff) throws IOException {
+		startPhase(DiffStatistics.COMPARING);
+		int[] sourcerows = sourcetable.sortedRows();
+		int[] targetrows = targettable.sortedRows();
+		if (sourcefile.isDirectory() || targetfile.isDirectory()) {
+			// a directory does not list its subdirectories as entries
+			sourcerows = withoutDirectories(sourcetable, sourcerows);
+			targetrows = withoutDirectories(targettable, targetrows);
+		}
 
-		for (String name: allNames) {
-			if (excludeThisFile("", name)) {
-				// do nothing
-			} else if (sourcenames.contains(name) && (!targetnames.contains(name))) {
-				diff.fileRemoved(name, sourcemap.get(name));
-			} else if (targetnames.contains(name) && (!sourcenames.contains(name))) {
-				diff.fileAdded(name, targetmap.get(name));
-			} else if (sourcenames.contains(name) && (targetnames.contains(name))) {
-				ZipEntry srcentry = sourcemap.get(name);
-				ZipEntry trgentry = targetmap.get(name);
-				if (!entriesMatch(srcentry, trgentry)) {
-					diff.fileChanged(name, srcentry, trgentry);
+		final ContentComparator comparator = createContentComparator(sourcefile, targetfile);
+		try {
+			if ((comparator != null) && (executor != null)) {
+				// the contents are compared by the executor while the merge below waits for them in order
+				int i = 0;
+				int j = 0;
+				while ((i < sourcerows.length) && (j < targetrows.length)) {
+					final int cmp = sourcetable.compareKeys(sourcerows[i], targettable, targetrows[j]);
+					if (cmp < 0) {
+						i++;
+					} else if (cmp > 0) {
+						j++;
+					} else {
+						final int srcrow = sourcerows[i++];
+						final int trgrow = targetrows[j++];
+						if (entriesMatch(sourcetable, srcrow, targettable, trgrow)) {
+							final String name = sourcetable.getKey(srcrow);
+							if (needsContentComparison(name, sourcetable, srcrow, targettable, trgrow)) {
+								comparator.submit(name, sourcetable, srcrow, targettable, trgrow);
+							}
+						}
+					}
 				}
+			}
+			calculateDifferences(sourcetable, sourcerows, targettable, targetrows, comparator, diff);
+		} finally {
+			if (comparator != null) {
+				comparator.close();
+			}
+		}
+	}
+
+	/**
+	 * merges the sorted rows of two EntryTables and reports the differences
+	 * @param sourcetable EntryTable
+	 * @param sourcerows sorted rows of the source table
+	 * @param targettable EntryTable
+	 * @param targetrows sorted rows of the target table
+	 * @param comparator compares the contents of entries, null if contents are not compared
+	 * @param diff receives the differences
+	 * @throws IOException
+	 */
+	private void calculateDifferences(EntryTable sourcetable, int[] sourcerows, EntryTable targettable, int[] targetrows,
+			ContentComparator comparator, DifferenceListener diff) throws IOException {
+		int i = 0;
+		int j = 0;
+		while ((i < sourcerows.length) || (j < targetrows.length)) {
+			final int cmp;
+			if (i == sourcerows.length) {
+				cmp = 1;
+			} else if (j == targetrows.length) {
+				cmp = -1;
+			} else {
+				cmp = sourcetable.compareKeys(sourcerows[i], targettable, targetrows[j]);
+			}
+
+			// excluded entries have not been indexed
+			if (cmp < 0) {
+				final int row = sourcerows[i++];
+				diff.fileRemoved(sourcetable.getKey(row), sourcetable.toZipEntry(row));
+			} else if (cmp > 0) {
+				final int row = targetrows[j++];
+				diff.fileAdded(targettable.getKey(row), targettable.toZipEntry(row));
 			} else {
-				throw new IllegalStateException("unexpected state");
+				final int srcrow = sourcerows[i++];
+				final int trgrow = targetrows[j++];
+				boolean match = entriesMatch(sourcetable, srcrow, targettable, trgrow);
+				String name = null;
+				if (match && (comparator != null)) {
+					name = sourcetable.getKey(srcrow);
+					match = !needsContentComparison(name, sourcetable, srcrow, targettable, trgrow)
+						|| comparator.contentsMatch(name, sourcetable, srcrow, targettable, trgrow);
+				}
+				if (!match) {
+					if (name == null) {
+						name = sourcetable.getKey(srcrow);
+					}
+					diff.fileChanged(name, sourcetable.toZipEntry(srcrow), targettable.toZipEntry(trgrow));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method withoutDirectories.
+	 * @param table EntryTable
+	 * @param rows rows of the table
+	 * @return the rows which are not directories
+	 */
+	private static int[] withoutDirectories(EntryTable table, int[] rows) {
+		int n = 0;
+		final int[] result = new int[rows.length];
+		for (int row : rows) {
+			if (!table.isDirectory(row)) {
+				result[n++] = row;
 			}
 		}
+		return Arrays.copyOf(result, n);
+	}
 
-		return diff;
+	/**
+	 * returns true if the two entries of EntryTables are equivalent, see
+	 * {@link #entriesMatch(ZipEntry, ZipEntry)}
+	 * @param sourcetable EntryTable
+	 * @param i row in the source table
+	 * @param targettable EntryTable
+	 * @param j row in the target table
+	 * @return true if the entries are equivalent.
+	 */
+	protected boolean entriesMatch(EntryTable sourcetable, int i, EntryTable targettable, int j) {
+		boolean result =
+			(sourcetable.isDirectory(i) == targettable.isDirectory(j))
+				&& (sourcetable.getSize(i) == targettable.getSize(j));
+
+		// files of a directory have no compressed size, they are compared by CRC instead
+		final boolean compressed = (sourcetable.getCompressedSize(i) >= 0) && (targettable.getCompressedSize(j) >= 0);
+		if (!isComparingContents() && compressed) {
+			result = result && (sourcetable.getCompressedSize(i) == targettable.getCompressedSize(j));
+		}
+
+		if (isComparingTimestamps()) {
+			result = result && (sourcetable.getDosTime(i) == targettable.getDosTime(j));
+		}
+
+		if (isComparingCRCValues() || isComparingContents() || !compressed) {
+			result = result && (sourcetable.getCrc(i) == targettable.getCrc(j));
+		}
+
+		return result;
 	}
 
 	/**
 	 * returns true if the two entries are equivalent in type, name, size, compressed size
-	 * and time or CRC.
+	 * and time or CRC. In content equivalence mode the compressed size is ignored and the
+	 * CRC is always compared. Times are compared in MS-DOS format, like the times of EntryTables,
+	 * so that both ways of comparing agree on entries whose extended timestamps differ by a second.
 	 * @param srcentry The source ZipEntry to compare
 	 * @param trgentry The target ZipEntry to compare	
 	 * @return true if the entries are equivalent.
@@ -489,30 +1874,408 @@ public class DifferenceCalculator {
 	protected boolean entriesMatch(ZipEntry srcentry, ZipEntry trgentry) {
 		boolean result =
 			(srcentry.isDirectory() == trgentry.isDirectory())
-				&& (srcentry.getSize() == trgentry.getSize())
-				&& (srcentry.getCompressedSize() == trgentry.getCompressedSize());
+				&& (srcentry.getSize() == trgentry.getSize());
+
+		if (!isComparingContents()) {
+			result = result && (srcentry.getCompressedSize() == trgentry.getCompressedSize());
+		}
 
 		if (isComparingTimestamps()) {
-			result = result && (srcentry.getTime() == trgentry.getTime());
+			result = result && (EntryTable.getDosTime(srcentry) == EntryTable.getDosTime(trgentry));
 		}
 
-		if (isComparingCRCValues()) {
+		if (isComparingCRCValues() || isComparingContents()) {
 			result = result && (srcentry.getCrc() == trgentry.getCrc());
 		}
 
 		return result;
 	}
 
+	/**
+	 * returns true if the content of two entries with matching size and CRC has to be read
+	 * to decide whether they are equal. This is the case for top level files whose compressed
+	 * data differs. Entries of nested archives are accepted on size and CRC.
+	 * @param name key of the entries
+	 * @param srcentry The source ZipEntry
+	 * @param trgentry The target ZipEntry
+	 * @return true if the content has to be compared
+	 */
+	protected boolean needsContentComparison(String name, ZipEntry srcentry, ZipEntry trgentry) {
+		return isComparingContents() && (name.indexOf('!') < 0) && !srcentry.isDirectory()
+			&& ((srcentry.getCompressedSize() != trgentry.getCompressedSize()) || (srcentry.getMethod() != trgentry.getMethod()));
+	}
+
+	/**
+	 * returns true if the content of two entries of EntryTables has to be read, see
+	 * {@link #needsContentComparison(String, ZipEntry, ZipEntry)}
+	 * @param name key of the entries
+	 * @param sourcetable EntryTable
+	 * @param i row in the source table
+	 * @param targettable EntryTable
+	 * @param j row in the target table
+	 * @return true if the content has to be compared
+	 */
+	protected boolean needsContentComparison(String name, EntryTable sourcetable, int i, EntryTable targettable, int j) {
+		return isComparingContents() && (name.indexOf('!') < 0) && !sourcetable.isDirectory(i)
+			&& (sourcetable.getCompressedSize(i) >= 0) && (targettable.getCompressedSize(j) >= 0)
+			&& ((sourcetable.getCompressedSize(i) != targettable.getCompressedSize(j))
+				|| (sourcetable.getMethod(i) != targettable.getMethod(j)));
+	}
+
+	/**
+	 * Method createContentComparator.
+	 * @param sourcefile File
+	 * @param targetfile File
+	 * @return ContentComparator, or null if contents are not compared
+	 */
+	private ContentComparator createContentComparator(File sourcefile, File targetfile) {
+		// files of a directory and streamed archives are compared by size and CRC
+		if (!isComparingContents() || isStreaming() || sourcefile.isDirectory() || targetfile.isDirectory()) {
+			return null;
+		}
+		final ContentComparator comparator = new ContentComparator(sourcefile, targetfile, executor);
+		comparator.setStatistics(statistics);
+		return comparator;
+	}
+
 	/**
 	 * Calculates differences between source and target files and saves their names
 	 * @return all the differences found between the two zip files.
 	 * @throws IOException
 	 */
 	public Differences getDifferences() throws IOException {
-		final Differences diff = calculateDifferences(source, target, numberOfSourceLevelsToTrim, numberOfTargetLevelsToTrim);
-		diff.setSource(source.getName());
-		diff.setTarget(target.getName());
+		final Differences diff = new Differences();
+		getDifferences(diff);
 
 		return diff;
 	}
+
+	/**
+	 * Calculates differences between source and target files and reports them to
+	 * a listener as they are found, instead of keeping them in memory.
+	 * @param listener receives the differences
+	 * @throws IOException also if the listener cannot write its output, see {@link ListenerException}
+	 */
+	public void getDifferences(DifferenceListener listener) throws IOException {
+		try {
+			getDifferences(listener, detectMoves);
+		} catch (ListenerException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Method getDifferences.
+	 * @param listener receives the differences
+	 * @param moves true to detect moves
+	 * @throws IOException
+	 */
+	private void getDifferences(DifferenceListener listener, boolean moves) throws IOException {
+		final MoveDetector moveDetector = moves ? new MoveDetector(listener) : null;
+		final DifferenceListener diff = (moveDetector != null) ? moveDetector : listener;
+		diff.start(sourceFile.getPath(), targetFile.getPath());
+		startPhase(DiffStatistics.INDEXING);
+		fastPath = checkIdentity();
+		if (fastPath != null) {
+			debug(sourceFile + " and " + targetFile + " are identical: " + fastPath);
+			closeZipFiles();
+		} else if (isUsingEntryTable()) {
+			closeZipFiles();
+			calculateDifferences(sourceFile, targetFile, numberOfSourceLevelsToTrim, numberOfTargetLevelsToTrim, diff);
+		} else {
+			calculateDifferences(getSourceZipFile(), getTargetZipFile(), numberOfSourceLevelsToTrim, numberOfTargetLevelsToTrim, diff);
+		}
+		if (moveDetector != null) {
+			startPhase(DiffStatistics.COMPARING);
+			final ContentComparator comparator = createContentComparator(sourceFile, targetFile);
+			try {
+				moveDetector.setContentComparator(comparator);
+				moveDetector.detectMoves();
+			} finally {
+				if (comparator != null) {
+					comparator.close();
+				}
+			}
+		}
+		diff.finish();
+		startPhase(DiffStatistics.IDLE);
+	}
+
+	/**
+	 * Method getFastPath.
+	 * @return the check which found the files of the last comparison identical without
+	 *         reading their entries, see FAST_PATH_*, or null if the entries have been compared
+	 */
+	public String getFastPath() {
+		return fastPath;
+	}
+
+	/**
+	 * checks whether the source and target files are identical before their entries are
+	 * indexed. Files are the same or have identical central directories; if contents are
+	 * compared, the files have to contain the same bytes.
+	 * @return the fast path, see FAST_PATH_*, or null if the entries have to be compared
+	 * @throws IOException
+	 */
+	private String checkIdentity() throws IOException {
+		if ((sourceIndex != null) || isStreaming() || !sourceFile.isFile() || !targetFile.isFile()
+				|| (numberOfSourceLevelsToTrim != numberOfTargetLevelsToTrim)) {
+			return null;
+		}
+		if (sourceFile.getCanonicalFile().equals(targetFile.getCanonicalFile())) {
+			return FAST_PATH_SAME_FILE;
+		}
+		if (isComparingContents()) {
+			// identical central directories may describe different data
+			return ZipUtil.fileEquals(sourceFile, targetFile) ? FAST_PATH_IDENTICAL_FILES : null;
+		}
+		if (sourceFile.length() != targetFile.length()) {
+			// archives of different lengths rarely have identical central directories, they are not hashed
+			return null;
+		}
+		final CentralDirectory sourcecd = new CentralDirectory(sourceFile);
+		try {
+			final CentralDirectory targetcd = new CentralDirectory(targetFile);
+			try {
+				return sameCentralDirectory(sourcecd, targetcd) ? FAST_PATH_CENTRAL_DIRECTORY : null;
+			} finally {
+				targetcd.close();
+			}
+		} finally {
+			sourcecd.close();
+		}
+	}
+
+	/**
+	 * Method sameCentralDirectory.
+	 * @param sourcecd CentralDirectory
+	 * @param targetcd CentralDirectory
+	 * @return true if both central directories have the same length, number of entries and digest,
+	 *         they are only hashed if the length and the number of entries are the same
+	 */
+	private static boolean sameCentralDirectory(CentralDirectory sourcecd, CentralDirectory targetcd) {
+		return (sourcecd.getLength() == targetcd.getLength()) && (sourcecd.getEntryCount() == targetcd.getEntryCount())
+				&& Arrays.equals(sourcecd.digest(), targetcd.digest());
+	}
+
+	/**
+	 * Checks whether there is any difference between the source and target files,
+	 * stopping at the first one. The cheapest signals are checked first: the identity
+	 * of the files and the digests of their central directories.
+	 * Then the top level entries are compared without expanding nested archives. Nested
+	 * archives are only expanded if their top level entries match except for the CRC,
+	 * which means that their content may differ. The full comparison is only run if it
+	 * cannot be decided this way, e.g. if contents have to be compared, and it stops at
+	 * the first difference as well.
+	 * @return true if a difference has been found
+	 * @throws IOException
+	 */
+	public boolean isDifferent() throws IOException {
+		if ((sourceIndex == null) && !isStreaming() && sourceFile.isFile() && targetFile.isFile()) {
+			final Boolean different = checkCentralDirectories();
+			if (different != null) {
+				return different.booleanValue();
+			}
+		}
+		try {
+			// a move is a difference as well, so it does not have to be detected
+			getDifferences(new DifferenceListener() {
+				public void start(String sourcename, String targetname) {
+					// nothing to do
+				}
+
+				public void fileAdded(String fqn, ZipEntry ze) {
+					throw new DifferenceFound();
+				}
+
+				public void fileRemoved(String fqn, ZipEntry ze) {
+					throw new DifferenceFound();
+				}
+
+				public void fileChanged(String fqn, ZipEntry srcze, ZipEntry trgze) {
+					throw new DifferenceFound();
+				}
+
+				public void fileMoved(String sourcefqn, String targetfqn, ZipEntry srcze, ZipEntry trgze) {
+					throw new DifferenceFound();
+				}
+
+				public void finish() {
+					// nothing to do
+				}
+			}, false);
+		} catch (DifferenceFound e) {
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * decides whether the files are different by their central directories and
+	 * the nested archives whose CRC has changed, see {@link #isDifferent()}
+	 * @return true or false, or null if the full comparison is needed
+	 * @throws IOException
+	 */
+	private Boolean checkCentralDirectories() throws IOException {
+		final boolean sameKeys = numberOfSourceLevelsToTrim == numberOfTargetLevelsToTrim;
+		if (sameKeys && sourceFile.getCanonicalFile().equals(targetFile.getCanonicalFile())) {
+			return Boolean.FALSE;
+		}
+		final CentralDirectory sourcecd = new CentralDirectory(sourceFile);
+		try {
+			final CentralDirectory targetcd = new CentralDirectory(targetFile);
+			try {
+				if (sameKeys && sameCentralDirectory(sourcecd, targetcd)) {
+					return Boolean.FALSE;
+				}
+				final EntryTable sourcetable = buildEntryTable(sourcecd, numberOfSourceLevelsToTrim, false);
+				final EntryTable targettable = buildEntryTable(targetcd, numberOfTargetLevelsToTrim, false);
+				return checkTopLevelEntries(sourcetable, targettable);
+			} finally {
+				targetcd.close();
+			}
+		} finally {
+			sourcecd.close();
+		}
+	}
+
+	/**
+	 * compares the top level entries and expands the nested archives whose CRC differs
+	 * @param sourcetable top level entries of the source file
+	 * @param targettable top level entries of the target file
+	 * @return true or false, or null if the full comparison is needed
+	 * @throws IOException
+	 */
+	private Boolean checkTopLevelEntries(EntryTable sourcetable, EntryTable targettable) throws IOException {
+		// like the full comparison, only the last of several entries with the same key is compared
+		final int[] sourcerows = sourcetable.sortedRows();
+		final int[] targetrows = targettable.sortedRows();
+		if (sourcerows.length != targetrows.length) {
+			return Boolean.TRUE;
+		}
+		boolean undecided = false;
+		final List<int[]> nested = new ArrayList<int[]>();
+		for (int k = 0; k < sourcerows.length; k++) {
+			final int i = sourcerows[k];
+			final int j = targetrows[k];
+			if ((sourcetable.compareKeys(i, targettable, j) != 0) || !entriesMatch(sourcetable, i, targettable, j)) {
+				return Boolean.TRUE;
+			}
+			if (needsContentComparison(sourcetable.getKey(i), sourcetable, i, targettable, j)) {
+				undecided = true;
+			} else if (!sourcetable.isDirectory(i) && isZipFile(sourcetable.getEntryName(i))
+					&& (sourcetable.getCrc(i) != targettable.getCrc(j))) {
+				nested.add(new int[] {i, j});
+			}
+		}
+		if (undecided) {
+			return null;
+		}
+		if (nested.isEmpty()) {
+			return Boolean.FALSE;
+		}
+
+		final ZipFile sourcezip = new ZipFile(sourceFile);
+		try {
+			final ZipFile targetzip = new ZipFile(targetFile);
+			try {
+				for (int[] pair : nested) {
+					final String prefix = sourcetable.getKey(pair[0]) + "!";
+					final EntryTable sourceentries = expand(sourcezip, sourcetable.getEntryName(pair[0]), prefix);
+					final EntryTable targetentries = expand(targetzip, targettable.getEntryName(pair[1]), prefix);
+					final int[] srcrows = sourceentries.sortedRows();
+					final int[] trgrows = targetentries.sortedRows();
+					if (srcrows.length != trgrows.length) {
+						return Boolean.TRUE;
+					}
+					for (int k = 0; k < srcrows.length; k++) {
+						if ((sourceentries.compareKeys(srcrows[k], targetentries, trgrows[k]) != 0)
+								|| !entriesMatch(sourceentries, srcrows[k], targetentries, trgrows[k])) {
+							return Boolean.TRUE;
+						}
+					}
+				}
+			} finally {
+				targetzip.close();
+			}
+		} finally {
+			sourcezip.close();
+		}
+		return Boolean.FALSE;
+	}
+
+	/**
+	 * indexes the entries of a nested archive, including its own nested archives
+	 * @param zf the archive containing the nested archive
+	 * @param name name of the nested archive in zf
+	 * @param prefix key of the nested archive including the separator
+	 * @return EntryTable, empty if the entry is not an archive
+	 * @throws IOException
+	 */
+	private EntryTable expand(ZipFile zf, String name, String prefix) throws IOException {
+		final EntryTable table = new EntryTable(16);
+		final InputStream in = new BufferedInputStream(zf.getInputStream(zf.getEntry(name)));
+		try {
+			if (ZipUtil.startsWithLocalHeader(in)) {
+				processEmbeddedZipFile(prefix, in, table);
+			}
+		} finally {
+			in.close();
+		}
+		return table;
+	}
+
+	/**
+	 * Thrown by the listener of {@link DifferenceCalculator#isDifferent()} to stop the comparison.
+	 */
+	private static class DifferenceFound extends RuntimeException {
+		/**
+		 * Field serialVersionUID.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor for DifferenceFound.
+		 */
+		DifferenceFound() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * opens the source file unless it has been passed as ZipFile
+	 * @return ZipFile
+	 * @throws IOException
+	 */
+	protected ZipFile getSourceZipFile() throws IOException {
+		if (source == null) {
+			source = new ZipFile(sourceFile);
+		}
+		return source;
+	}
+
+	/**
+	 * opens the target file unless it has been passed as ZipFile
+	 * @return ZipFile
+	 * @throws IOException
+	 */
+	protected ZipFile getTargetZipFile() throws IOException {
+		if (target == null) {
+			target = new ZipFile(targetFile);
+		}
+		return target;
+	}
+
+	/**
+	 * closes the ZipFiles which are not needed because the central directories are read directly
+	 * @throws IOException
+	 */
+	private void closeZipFiles() throws IOException {
+		if (source != null) {
+			source.close();
+		}
+		if (target != null) {
+			target.close();
+		}
+	}
 }
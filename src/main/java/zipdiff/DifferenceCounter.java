@@ -0,0 +1,172 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * Counts the differences reported to it and passes them on to another listener.
+ */
+public class DifferenceCounter implements DifferenceListener {
+	/**
+	 * Field delegate.
+	 */
+	private final DifferenceListener delegate;
+
+	/**
+	 * Field source.
+	 */
+	private String source;
+
+	/**
+	 * Field target.
+	 */
+	private String target;
+
+	/**
+	 * Field added.
+	 */
+	private int added = 0;
+
+	/**
+	 * Field removed.
+	 */
+	private int removed = 0;
+
+	/**
+	 * Field changed.
+	 */
+	private int changed = 0;
+
+	/**
+	 * Field moved.
+	 */
+	private int moved = 0;
+
+	/**
+	 * Constructor for DifferenceCounter.
+	 * @param delegate listener to pass the differences on to, may be null
+	 */
+	public DifferenceCounter(DifferenceListener delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Method start.
+	 * @param sourcename String
+	 * @param targetname String
+	 */
+	public void start(String sourcename, String targetname) {
+		source = sourcename;
+		target = targetname;
+		if (delegate != null) {
+			delegate.start(sourcename, targetname);
+		}
+	}
+
+	/**
+	 * Method fileAdded.
+	 * @param fqn String
+	 * @param ze ZipEntry
+	 */
+	public void fileAdded(String fqn, ZipEntry ze) {
+		added++;
+		if (delegate != null) {
+			delegate.fileAdded(fqn, ze);
+		}
+	}
+
+	/**
+	 * Method fileRemoved.
+	 * @param fqn String
+	 * @param ze ZipEntry
+	 */
+	public void fileRemoved(String fqn, ZipEntry ze) {
+		removed++;
+		if (delegate != null) {
+			delegate.fileRemoved(fqn, ze);
+		}
+	}
+
+	/**
+	 * Method fileChanged.
+	 * @param fqn String
+	 * @param srcze ZipEntry
+	 * @param trgze ZipEntry
+	 */
+	public void fileChanged(String fqn, ZipEntry srcze, ZipEntry trgze) {
+		changed++;
+		if (delegate != null) {
+			delegate.fileChanged(fqn, srcze, trgze);
+		}
+	}
+
+	/**
+	 * Method fileMoved.
+	 * @param sourcefqn String
+	 * @param targetfqn String
+	 * @param srcze ZipEntry
+	 * @param trgze ZipEntry
+	 */
+	public void fileMoved(String sourcefqn, String targetfqn, ZipEntry srcze, ZipEntry trgze) {
+		moved++;
+		if (delegate != null) {
+			delegate.fileMoved(sourcefqn, targetfqn, srcze, trgze);
+		}
+	}
+
+	/**
+	 * Method finish.
+	 */
+	public void finish() {
+		if (delegate != null) {
+			delegate.finish();
+		}
+	}
+
+	/**
+	 * Method getSource.
+	 * @return String
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Method getTarget.
+	 * @return String
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * Method hasDifferences.
+	 * @return boolean
+	 */
+	public boolean hasDifferences() {
+		return (added > 0) || (removed > 0) || (changed > 0) || (moved > 0);
+	}
+
+	/**
+	 * Method getCount.
+	 * @return number of added, removed, changed and moved entries
+	 */
+	public int getCount() {
+		return added + removed + changed + moved;
+	}
+
+	/**
+	 * Method toString.
+	 * @return String
+	 */
+	public String toString() {
+		final String moves = (moved == 0) ? "" : String.format("%d file%s moved\n", moved, (moved == 1) ? "" : "s");
+		return String.format("%d file%s added to %s\n%d file%s removed from %s\n%d file%s changed\n%sTotal differences: %d",
+				added, (added == 1) ? "" : "s", target, removed, (removed == 1) ? "" : "s", source,
+				changed, (changed == 1) ? "" : "s", moves, getCount());
+	}
+}
@@ -0,0 +1,59 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * Receives the differences between two zip files as they are found.
+ * {@link Differences} is the listener which collects all of them in memory,
+ * builders provide listeners which write them out directly.
+ */
+public interface DifferenceListener {
+	/**
+	 * called before the first difference is reported
+	 * @param source name of the source file
+	 * @param target name of the target file
+	 */
+	void start(String source, String target);
+
+	/**
+	 * called for an entry which exists in the target file only
+	 * @param fqn name of the entry
+	 * @param ze ZipEntry of the target file
+	 */
+	void fileAdded(String fqn, ZipEntry ze);
+
+	/**
+	 * called for an entry which exists in the source file only
+	 * @param fqn name of the entry
+	 * @param ze ZipEntry of the source file
+	 */
+	void fileRemoved(String fqn, ZipEntry ze);
+
+	/**
+	 * called for an entry which is different in the source and target file
+	 * @param fqn name of the entry
+	 * @param srcze ZipEntry of the source file
+	 * @param trgze ZipEntry of the target file
+	 */
+	void fileChanged(String fqn, ZipEntry srcze, ZipEntry trgze);
+
+	/**
+	 * called for an entry which exists under another name in the target file,
+	 * only if moves are detected, see {@link MoveDetector}
+	 * @param sourcefqn name of the entry in the source file
+	 * @param targetfqn name of the entry in the target file
+	 * @param srcze ZipEntry of the source file
+	 * @param trgze ZipEntry of the target file
+	 */
+	void fileMoved(String sourcefqn, String targetfqn, ZipEntry srcze, ZipEntry trgze);
+
+	/**
+	 * called after the last difference has been reported
+	 */
+	void finish();
+}
@@ -5,6 +5,8 @@
  */
 package zipdiff;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.zip.ZipEntry;
@@ -14,26 +16,36 @@ import java.util.zip.ZipEntry;
  *
  * @author Sean C. Sullivan
  */
-public class Differences {
+public class Differences implements DifferenceListener {
 	/**
 	 * Field added.
 	 */
-	private final Map<String, ZipEntry[]> added = new TreeMap<String, ZipEntry[]>();
+	private final Section added = new Section();
 
 	/**
 	 * Field removed.
 	 */
-	private final Map<String, ZipEntry[]> removed = new TreeMap<String, ZipEntry[]>();
+	private final Section removed = new Section();
 
 	/**
 	 * Field changed.
 	 */
-	private final Map<String, ZipEntry[]> changed = new TreeMap<String, ZipEntry[]>();
+	private final Section changed = new Section();
+
+	/**
+	 * Field moved, by the name in the target file.
+	 */
+	private final Section moved = new Section();
+
+	/**
+	 * Field movedFrom, the names of the moved entries in the source file by their names in the target file.
+	 */
+	private final Map<String, String> movedFrom = new HashMap<String, String>();
 
 	/**
 	 * Field excluded.
 	 */
-	private final Map<String, ZipEntry[]> excluded = new TreeMap<String, ZipEntry[]>();
+	private final Section excluded = new Section();
 
 	/**
 	 * Field source.
@@ -84,6 +96,23 @@ public class Differences {
 		return this.target;
 	}
 
+	/**
+	 * Method start.
+	 * @param sourcename String
+	 * @param targetname String
+	 */
+	public void start(String sourcename, String targetname) {
+		setSource(sourcename);
+		setTarget(targetname);
+	}
+
+	/**
+	 * Method finish.
+	 */
+	public void finish() {
+		// nothing to do, all differences are kept in memory
+	}
+
 	/**
 	 * Method fileAdded.
 	 * @param fqn String
@@ -121,12 +150,24 @@ public class Differences {
 		this.changed.put(fqn, new ZipEntry[] {srcze, trgze});
 	}
 
+	/**
+	 * Method fileMoved.
+	 * @param sourcefqn String
+	 * @param targetfqn String
+	 * @param srcze ZipEntry
+	 * @param trgze ZipEntry
+	 */
+	public void fileMoved(String sourcefqn, String targetfqn, ZipEntry srcze, ZipEntry trgze) {
+		this.moved.put(targetfqn, new ZipEntry[] {srcze, trgze});
+		this.movedFrom.put(targetfqn, sourcefqn);
+	}
+
 	/**
 	 * Method getAdded.
 	 * @return Map&lt;String, ZipEntry[]&gt;
 	 */
 	public Map<String, ZipEntry[]> getAdded() {
-		return this.added;
+		return this.added.getMap();
 	}
 
 	/**
@@ -134,7 +175,7 @@ public class Differences {
 	 * @return Map&lt;String, ZipEntry[]&gt;
 	 */
 	public Map<String, ZipEntry[]> getRemoved() {
-		return this.removed;
+		return this.removed.getMap();
 	}
 
 	/**
@@ -142,7 +183,24 @@ public class Differences {
 	 * @return Map&lt;String, ZipEntry[]&gt;
 	 */
 	public Map<String, ZipEntry[]> getChanged() {
-		return this.changed;
+		return this.changed.getMap();
+	}
+
+	/**
+	 * Method getMoved.
+	 * @return Map&lt;String, ZipEntry[]&gt; by the name in the target file
+	 */
+	public Map<String, ZipEntry[]> getMoved() {
+		return this.moved.getMap();
+	}
+
+	/**
+	 * Method getMovedFrom.
+	 * @param targetfqn name of a moved entry in the target file
+	 * @return name of the entry in the source file, or null if it has not been moved
+	 */
+	public String getMovedFrom(String targetfqn) {
+		return this.movedFrom.get(targetfqn);
 	}
 
 	/**
@@ -150,7 +208,7 @@ public class Differences {
 	 * @return Map&lt;String, ZipEntry[]&gt;
 	 */
 	public Map<String, ZipEntry[]> getExcluded() {
-		return this.excluded;
+		return this.excluded.getMap();
 	}
 
 	/**
@@ -158,7 +216,81 @@ public class Differences {
 	 * @return boolean
 	 */
 	public boolean hasDifferences() {
-		return (getChanged().size() > 0) || (getAdded().size() > 0) || (getRemoved().size() > 0);
+		return (getChanged().size() > 0) || (getAdded().size() > 0) || (getRemoved().size() > 0) || (getMoved().size() > 0);
+	}
+
+	/**
+	 * reports the differences to a listener, the added, removed, changed, moved and
+	 * excluded entries each in the order of their names
+	 * @param listener DifferenceListener
+	 */
+	public void report(DifferenceListener listener) {
+		listener.start(getSource(), getTarget());
+		for (Map.Entry<String, ZipEntry[]> entry : getAdded().entrySet()) {
+			listener.fileAdded(entry.getKey(), entry.getValue()[0]);
+		}
+		for (Map.Entry<String, ZipEntry[]> entry : getRemoved().entrySet()) {
+			listener.fileRemoved(entry.getKey(), entry.getValue()[0]);
+		}
+		for (Map.Entry<String, ZipEntry[]> entry : getChanged().entrySet()) {
+			listener.fileChanged(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+		}
+		for (Map.Entry<String, ZipEntry[]> entry : getMoved().entrySet()) {
+			listener.fileMoved(getMovedFrom(entry.getKey()), entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+		}
+		listener.finish();
+	}
+
+	/**
+	 * Entries of one kind of difference in the order of their names. Names which are
+	 * reported in order are appended; the entries are only sorted again if a name
+	 * has been reported out of order.
+	 */
+	private static class Section {
+		/**
+		 * Field map.
+		 */
+		private final Map<String, ZipEntry[]> map = new LinkedHashMap<String, ZipEntry[]>();
+
+		/**
+		 * Field last.
+		 */
+		private String last;
+
+		/**
+		 * Field sorted.
+		 */
+		private boolean sorted = true;
+
+		/**
+		 * Method put.
+		 * @param fqn String
+		 * @param entries ZipEntry[]
+		 */
+		void put(String fqn, ZipEntry[] entries) {
+			if (sorted && (last != null) && (fqn.compareTo(last) < 0)) {
+				sorted = false;
+			}
+			if (sorted) {
+				last = fqn;
+			}
+			map.put(fqn, entries);
+		}
+
+		/**
+		 * Method getMap.
+		 * @return entries ordered by name
+		 */
+		Map<String, ZipEntry[]> getMap() {
+			if (!sorted) {
+				final TreeMap<String, ZipEntry[]> copy = new TreeMap<String, ZipEntry[]>(map);
+				map.clear();
+				map.putAll(copy);
+				last = copy.isEmpty() ? null : copy.lastKey();
+				sorted = true;
+			}
+			return map;
+		}
 	}
 
 	/**
@@ -184,7 +316,14 @@ public class Differences {
 			sb.append(String.format("\t[changed] %s (size: %d : %d)\n", name, entries[0].getSize(), entries[1].getSize()));
 		}
 
-		final int differenceCount = getAdded().size() + getChanged().size() + getRemoved().size();
+		if (getMoved().size() > 0) {
+			sb.append(String.format("%d file%s moved\n", getMoved().size(), (getMoved().size() == 1) ? "" : "s"));
+			for (String key : getMoved().keySet()) {
+				sb.append(String.format("\t[moved] %s -> %s\n", getMovedFrom(key), key));
+			}
+		}
+
+		final int differenceCount = getAdded().size() + getChanged().size() + getRemoved().size() + getMoved().size();
 		sb.append(String.format("Total differences: %d", differenceCount));
 		return sb.toString();
 	}
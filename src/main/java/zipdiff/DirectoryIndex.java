@@ -0,0 +1,477 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import zipdiff.util.StringUtil;
+import zipdiff.util.ZipUtil;
+
+/**
+ * Indexes the files of a directory, e.g. an exploded web application, so that it
+ * can be compared with an archive or another directory. The directory is walked
+ * first, which only reads the names, sizes and modification times. If the calculator
+ * has an executor, the directories {@link #SPLIT_LEVEL} levels below the root are walked
+ * on its threads, while the calling thread walks the levels above. The content of
+ * a file is only read if the other side has a file with the same key and size, or
+ * if the file is an archive whose entries have to be indexed. These files are read
+ * on the threads of the executor of the calculator.
+ */
+public class DirectoryIndex {
+	/**
+	 * Field SPLIT_LEVEL, the depth below the root of the directories which are walked
+	 * on the threads of the executor, e.g. the packages of WEB-INF/classes/com.
+	 * (value is 3)
+	 */
+	private static final int SPLIT_LEVEL = 3;
+
+	/**
+	 * Field logger.
+	 */
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * Field calc, which decides about exclusions and indexes nested archives.
+	 */
+	private final DifferenceCalculator calc;
+
+	/**
+	 * Field root.
+	 */
+	private final File root;
+
+	/**
+	 * Field nl, number of directory levels to trim.
+	 */
+	private final int nl;
+
+	/**
+	 * Field files, the files in the order they were found.
+	 */
+	private final List<File> files = new ArrayList<File>();
+
+	/**
+	 * Field names, the paths of the files relative to the root, separated by '/'.
+	 */
+	private final List<String> names = new ArrayList<String>();
+
+	/**
+	 * Field keys.
+	 */
+	private final List<String> keys = new ArrayList<String>();
+
+	/**
+	 * Field sizes, the sizes of the files by key.
+	 */
+	private final Map<String, Long> sizes = new HashMap<String, Long>();
+
+	/**
+	 * Field fileSizes.
+	 */
+	private long[] fileSizes = new long[16];
+
+	/**
+	 * Field lastModified.
+	 */
+	private long[] lastModified = new long[16];
+
+	/**
+	 * Constructor for DirectoryIndex.
+	 * @param calc calculator, whose exclusions are applied and which indexes nested archives
+	 * @param root the directory
+	 * @param nl number of directory levels to trim
+	 */
+	public DirectoryIndex(DifferenceCalculator calc, File root, int nl) {
+		this.calc = calc;
+		this.root = root;
+		this.nl = nl;
+	}
+
+	/**
+	 * walks the directory and records the names, sizes and modification times of the files.
+	 * The files are recorded in the order of a walk by a single thread, so that the result
+	 * does not depend on which thread walked a directory. Files and directories which cannot
+	 * be read, and links to a directory which contains them, are logged and skipped.
+	 * @return this
+	 * @throws IOException if the root cannot be read
+	 */
+	public DirectoryIndex scan() throws IOException {
+		final ExecutorService executor = calc.getExecutor();
+		final List<Part> parts = new ArrayList<Part>();
+		boolean done = false;
+		try {
+			walk(root.toPath(), new ArrayList<Object>(), executor, parts);
+			for (Part part : parts) {
+				addAll(part.get());
+			}
+			done = true;
+		} finally {
+			if (!done) {
+				for (Part part : parts) {
+					part.cancel();
+				}
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * walks a directory, the directories {@link #SPLIT_LEVEL} levels below it are walked
+	 * on the executor
+	 * @param start directory
+	 * @param ancestors the file keys of the directories above start, to detect links to them
+	 * @param executor ExecutorService, or null to walk all directories in the calling thread
+	 * @param parts receives the files, or the pending walks of the directories, in the order of the walk
+	 * @throws IOException if start cannot be read
+	 */
+	private void walk(final Path start, final List<Object> ancestors, final ExecutorService executor,
+			final List<Part> parts) throws IOException {
+		final Path rootPath = root.toPath();
+		Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+			private List<Found> found;
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				final Object key = attrs.fileKey();
+				if ((key != null) && ancestors.contains(key)) {
+					logger.log(Level.WARNING, "skipping " + dir + ", which links to a directory containing it");
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				if ((executor != null) && (ancestors.size() == SPLIT_LEVEL)) {
+					final List<Object> path = new ArrayList<Object>(ancestors);
+					final Path subdir = dir;
+					parts.add(new Part(null, executor.submit(new Callable<List<Found>>() {
+						public List<Found> call() throws IOException {
+							final List<Part> subparts = new ArrayList<Part>();
+							walk(subdir, path, null, subparts);
+							final List<Found> result = new ArrayList<Found>();
+							for (Part part : subparts) {
+								result.addAll(part.get());
+							}
+							return result;
+						}
+					})));
+					found = null;
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				ancestors.add(key);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					if (found == null) {
+						found = new ArrayList<Found>();
+						parts.add(new Part(found, null));
+					}
+					found.add(new Found(file.toFile(), rootPath.relativize(file).toString().replace(File.separatorChar, '/'),
+							attrs.size(), attrs.lastModifiedTime().toMillis()));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				if (file.equals(start)) {
+					throw exc;
+				}
+				logger.log(Level.WARNING, "skipping " + file + ": " + exc);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+				if (exc != null) {
+					logger.log(Level.WARNING, "skipping the rest of " + dir + ": " + exc);
+				}
+				ancestors.remove(ancestors.size() - 1);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * records the files which were found by a walk
+	 * @param found files
+	 */
+	private void addAll(List<Found> found) {
+		for (Found file : found) {
+			add(file.file, file.name, file.size, file.time);
+		}
+	}
+
+	/**
+	 * records a file unless it is excluded
+	 * @param file File
+	 * @param name path relative to the root
+	 * @param size size of the file
+	 * @param time modification time of the file
+	 */
+	private void add(File file, String name, long size, long time) {
+		if (calc.excludeThisFile("", name)) {
+			logger.log(Level.FINE, "ignoring file: " + name);
+			return;
+		}
+		final String key = StringUtil.removeDirectoryPrefix(name, nl);
+		if ((key == null) || key.equals("") || calc.excludeThisKey(key, name)) {
+			return;
+		}
+		final int i = files.size();
+		if (i == lastModified.length) {
+			fileSizes = Arrays.copyOf(fileSizes, i * 2);
+			lastModified = Arrays.copyOf(lastModified, i * 2);
+		}
+		files.add(file);
+		names.add(name);
+		keys.add(key);
+		sizes.put(key, Long.valueOf(size));
+		fileSizes[i] = size;
+		lastModified[i] = time;
+	}
+
+	/**
+	 * Method getSizes.
+	 * @return the sizes of the files by key
+	 */
+	public Map<String, Long> getSizes() {
+		return sizes;
+	}
+
+	/**
+	 * collects the sizes of the entries of a table, see {@link #build(Map)}
+	 * @param table EntryTable
+	 * @return the sizes of the entries by key
+	 */
+	public static Map<String, Long> getSizes(EntryTable table) {
+		final Map<String, Long> result = new HashMap<String, Long>(table.size() * 2);
+		for (int row = 0; row < table.size(); row++) {
+			result.put(table.getKey(row), Long.valueOf(table.getSize(row)));
+		}
+		return result;
+	}
+
+	/**
+	 * creates an EntryTable of the files. The compressed size and the method of the
+	 * files are unknown, so that they are compared by size and CRC.
+	 * @param candidates sizes of the entries of the other side by key, only files with
+	 *        an entry of the same key and size are hashed, or with an entry of the same
+	 *        size under any key if moves are detected; null to hash all files
+	 * @return EntryTable
+	 * @throws IOException if a file cannot be read
+	 */
+	public EntryTable build(final Map<String, Long> candidates) throws IOException {
+		// moves are paired on size and CRC, so a file which is not hashed must not have a partner
+		final Set<Long> movable = ((candidates != null) && calc.isDetectingMoves()) ? new HashSet<Long>(candidates.values()) : null;
+		final int n = files.size();
+		final int[] crcs = new int[n];
+		final EntryTable[] nested = new EntryTable[n];
+
+		final ExecutorService executor = calc.getExecutor();
+		final List<Future<Void>> pending = new ArrayList<Future<Void>>();
+		boolean done = false;
+		try {
+			for (int i = 0; i < n; i++) {
+				final int index = i;
+				final boolean hash = needsHash(keys.get(i), fileSizes[i], candidates)
+						|| ((movable != null) && movable.contains(Long.valueOf(fileSizes[i])));
+				final boolean archive = DifferenceCalculator.isZipFile(names.get(i));
+				if (!hash && !archive) {
+					continue;
+				}
+				if (executor == null) {
+					read(index, hash, archive, crcs, nested);
+				} else {
+					pending.add(executor.submit(new Callable<Void>() {
+						public Void call() throws IOException {
+							read(index, hash, archive, crcs, nested);
+							return null;
+						}
+					}));
+				}
+			}
+			for (Future<Void> future : pending) {
+				DifferenceCalculator.await(future);
+			}
+			done = true;
+		} finally {
+			if (!done) {
+				for (Future<Void> future : pending) {
+					future.cancel(true);
+				}
+			}
+		}
+
+		final EntryTable table = new EntryTable(n);
+		for (int i = 0; i < n; i++) {
+			final byte[] name = names.get(i).getBytes(CentralDirectory.UTF8);
+			final int keyOffset = name.length - keys.get(i).getBytes(CentralDirectory.UTF8).length;
+			table.add(name, 0, name.length, 0, keyOffset, fileSizes[i], -1, crcs[i], EntryTable.javaToDosTime(lastModified[i]), -1, 0, -1);
+			if (nested[i] != null) {
+				table.addAll(nested[i]);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Method needsHash.
+	 * @param key key of a file
+	 * @param size size of the file
+	 * @param candidates sizes of the entries of the other side by key, or null
+	 * @return true if the CRC of the file is needed for the comparison
+	 */
+	private static boolean needsHash(String key, long size, Map<String, Long> candidates) {
+		if (candidates == null) {
+			return true;
+		}
+		final Long other = candidates.get(key);
+		return (other != null) && (other.longValue() == size);
+	}
+
+	/**
+	 * reads a file to compute its CRC and to index its entries if it is an archive
+	 * @param i index of the file
+	 * @param hash true to compute the CRC
+	 * @param archive true if the file may be an archive
+	 * @param crcs receives the CRC
+	 * @param nested receives the entries of the archive
+	 * @throws IOException in case of an input/output error
+	 */
+	private void read(int i, boolean hash, boolean archive, int[] crcs, EntryTable[] nested) throws IOException {
+		final CRC32 crc = new CRC32();
+		final InputStream in = new BufferedInputStream(new CheckedInputStream(new FileInputStream(files.get(i)), crc));
+		try {
+			if (archive && ZipUtil.startsWithLocalHeader(in)) {
+				final EntryTable table = new EntryTable(16);
+				calc.processEmbeddedZipFile(keys.get(i) + "!", in, table);
+				nested[i] = table;
+			}
+			if (hash) {
+				// the CRC covers everything which has been read, including the part read by the archive index
+				final byte[] buffer = new byte[8192];
+				while (in.read(buffer) >= 0) {
+					continue;
+				}
+				crcs[i] = (int) crc.getValue();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The files found by the calling thread between two directories walked on the executor,
+	 * or the pending walk of such a directory.
+	 */
+	private static class Part {
+		/**
+		 * Field found, null if the files are found by a pending walk.
+		 */
+		private final List<Found> found;
+
+		/**
+		 * Field future, null if the files have been found.
+		 */
+		private final Future<List<Found>> future;
+
+		/**
+		 * Constructor for Part.
+		 * @param found the files, or null
+		 * @param future the pending walk, or null
+		 */
+		Part(List<Found> found, Future<List<Found>> future) {
+			this.found = found;
+			this.future = future;
+		}
+
+		/**
+		 * waits for the walk if it is pending
+		 * @return the files in the order they were found
+		 * @throws IOException if the walk failed
+		 */
+		List<Found> get() throws IOException {
+			if (future == null) {
+				return found;
+			}
+			return DifferenceCalculator.await(future);
+		}
+
+		/**
+		 * cancels the walk if it is pending
+		 */
+		void cancel() {
+			if (future != null) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * A regular file found by a walk. The files are recorded by the calling thread,
+	 * so that the lists of the index are not shared between threads.
+	 */
+	private static class Found {
+		/**
+		 * Field file.
+		 */
+		final File file;
+
+		/**
+		 * Field name, the path relative to the root.
+		 */
+		final String name;
+
+		/**
+		 * Field size.
+		 */
+		final long size;
+
+		/**
+		 * Field time, the modification time.
+		 */
+		final long time;
+
+		/**
+		 * Constructor for Found.
+		 * @param file File
+		 * @param name path relative to the root
+		 * @param size size of the file
+		 * @param time modification time of the file
+		 */
+		Found(File file, String name, long size, long time) {
+			this.file = file;
+			this.name = name;
+			this.size = size;
+			this.time = time;
+		}
+	}
+}
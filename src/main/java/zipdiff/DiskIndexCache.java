@@ -0,0 +1,291 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps the indexes of archives as files in a directory. An index is found by the
+ * canonical path of the archive and the options, and it is only used if the size
+ * and modification time of the archive are unchanged, so a hit does not open the
+ * archive. Each index file carries the digest of the central directory of the archive
+ * and a checksum of its own content. Corrupt index files are deleted. If the total
+ * size of the index files exceeds the limit, the least recently used ones are deleted.
+ */
+public class DiskIndexCache implements IndexCache {
+	/**
+	 * Field MAGIC.
+	 * (value is "ZDIX")
+	 */
+	private static final int MAGIC = 0x5A444958;
+
+	/**
+	 * Field VERSION, version 2 stores the prefixes of nested archives once, version 3
+	 * takes the times of entries from their extended timestamps.
+	 */
+	private static final int VERSION = 3;
+
+	/**
+	 * Field SUFFIX.
+	 * (value is "".idx"")
+	 */
+	private static final String SUFFIX = ".idx";
+
+	/**
+	 * Field logger.
+	 */
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * Field directory.
+	 */
+	private final File directory;
+
+	/**
+	 * Field maxSize.
+	 */
+	private final long maxSize;
+
+	/**
+	 * Field verifyCentralDirectory.
+	 */
+	private boolean verifyCentralDirectory = false;
+
+	/**
+	 * Constructor for DiskIndexCache.
+	 * @param directory directory for the index files, it is created if necessary
+	 * @param maxSize maximum total size of the index files in bytes
+	 * @throws IOException if the directory cannot be created
+	 */
+	public DiskIndexCache(File directory, long maxSize) throws IOException {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create index cache directory " + directory);
+		}
+	}
+
+	/**
+	 * Selects whether the digest of the central directory of the archive is compared on
+	 * every hit. This detects archives which were replaced without changing size and
+	 * modification time, but it reads the central directory of the archive.
+	 * @param b true to compare the digest of the central directory
+	 */
+	public void setVerifyCentralDirectory(boolean b) {
+		verifyCentralDirectory = b;
+	}
+
+	/**
+	 * Method isVerifyingCentralDirectory.
+	 * @return true if the digest of the central directory is compared on every hit
+	 */
+	public boolean isVerifyingCentralDirectory() {
+		return verifyCentralDirectory;
+	}
+
+	/**
+	 * looks up the index of an archive
+	 * @param archive the archive
+	 * @param options fingerprint of the options which influence the index
+	 * @return the cached index, or null if there is no valid index
+	 * @throws IOException in case of an input/output error
+	 */
+	public EntryTable get(File archive, String options) throws IOException {
+		final String path = archive.getCanonicalPath();
+		final File file = getIndexFile(path, options);
+		if (!file.isFile()) {
+			return null;
+		}
+
+		final byte[] digest;
+		final EntryTable table;
+		final CRC32 checksum = new CRC32();
+		final DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), checksum));
+		try {
+			if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+				throw new IOException("unknown format");
+			}
+			if (!path.equals(in.readUTF()) || !options.equals(in.readUTF())) {
+				// another archive with the same hash
+				return null;
+			}
+			if ((in.readLong() != archive.length()) || (in.readLong() != archive.lastModified())) {
+				logger.log(Level.FINE, "stale index for " + path);
+				return null;
+			}
+			digest = new byte[in.readUnsignedShort()];
+			in.readFully(digest);
+			table = EntryTable.read(in, file.length());
+			final long value = checksum.getValue();
+			if (in.readLong() != value) {
+				throw new IOException("checksum mismatch");
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "discarding corrupt index " + file + ": " + e);
+			in.close();
+			delete(file);
+			return null;
+		} finally {
+			in.close();
+		}
+
+		if (verifyCentralDirectory) {
+			final CentralDirectory cd = new CentralDirectory(archive);
+			try {
+				if (!Arrays.equals(digest, cd.digest())) {
+					logger.log(Level.FINE, "central directory of " + path + " has changed");
+					return null;
+				}
+			} finally {
+				cd.close();
+			}
+		}
+
+		// the modification time of the index file records its last use
+		if (!file.setLastModified(System.currentTimeMillis())) {
+			logger.log(Level.FINE, "cannot update the modification time of " + file);
+		}
+		return table;
+	}
+
+	/**
+	 * stores the index of an archive
+	 * @param archive the archive
+	 * @param attributes attributes of the archive, read before it was indexed
+	 * @param options fingerprint of the options which influence the index
+	 * @param digest digest of the central directory of the archive
+	 * @param table the index
+	 * @throws IOException in case of an input/output error
+	 */
+	public void put(File archive, BasicFileAttributes attributes, String options, byte[] digest, EntryTable table) throws IOException {
+		final String path = archive.getCanonicalPath();
+		final File file = getIndexFile(path, options);
+		final File tmp = File.createTempFile("index", ".tmp", directory);
+		try {
+			final CRC32 checksum = new CRC32();
+			final DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), checksum));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(path);
+				out.writeUTF(options);
+				out.writeLong(attributes.size());
+				out.writeLong(attributes.lastModifiedTime().toMillis());
+				out.writeShort(digest.length);
+				out.write(digest);
+				table.write(out);
+				out.writeLong(checksum.getValue());
+			} finally {
+				out.close();
+			}
+
+			// readers see either the old or the new index, never a partial one
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			delete(tmp);
+		}
+		evict();
+	}
+
+	/**
+	 * deletes the least recently used index files until their total size is within the limit
+	 */
+	protected void evict() {
+		final File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().endsWith(SUFFIX);
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		final long[] lastModified = new long[files.length];
+		long total = 0;
+		for (int i = 0; i < files.length; i++) {
+			total += files[i].length();
+		}
+		if (total <= maxSize) {
+			return;
+		}
+
+		// the modification times are read once, they may change while sorting
+		final Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			lastModified[i] = files[i].lastModified();
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				final long t1 = lastModified[o1.intValue()];
+				final long t2 = lastModified[o2.intValue()];
+				return (t1 < t2) ? -1 : ((t1 > t2) ? 1 : 0);
+			}
+		});
+		for (int i = 0; (i < order.length) && (total > maxSize); i++) {
+			final File file = files[order[i].intValue()];
+			final long length = file.length();
+			if (delete(file)) {
+				total -= length;
+			}
+		}
+	}
+
+	/**
+	 * Method getIndexFile.
+	 * @param path canonical path of the archive
+	 * @param options String
+	 * @return the index file for an archive
+	 */
+	private File getIndexFile(String path, String options) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			final byte[] hash = md.digest((path + '\n' + options).getBytes(CentralDirectory.UTF8));
+			final StringBuilder name = new StringBuilder(hash.length * 2 + SUFFIX.length());
+			for (byte b : hash) {
+				name.append(Character.forDigit((b >> 4) & 0x0F, 16));
+				name.append(Character.forDigit(b & 0x0F, 16));
+			}
+			name.append(SUFFIX);
+			return new File(directory, name.toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Method delete.
+	 * @param file File
+	 * @return true if the file was deleted
+	 */
+	private boolean delete(File file) {
+		return file.exists() && file.delete();
+	}
+}
@@ -0,0 +1,720 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.zip.ZipEntry;
+
+import zipdiff.util.ZipUtil;
+
+/**
+ * Compact index of the entries of a zip file. Instead of one ZipEntry per entry,
+ * the names are kept in one shared byte array and the other attributes in one
+ * primitive array per attribute. ZipEntries are only created on request, e.g. for
+ * the entries which are reported as differences. Reading a table does not change it,
+ * so a complete table may be shared by threads.
+ * <p>
+ * The key of an entry of a nested archive, e.g. <code>app.ear!web.war!WEB-INF/lib/x.jar!a/B.class</code>,
+ * consists of the key of the nested archive and the name of the entry in its own archive.
+ * The key of the nested archive is stored once as prefix, each entry only refers to it, and
+ * the keys are compared segment by segment. Strings are only built for keys which are requested.
+ */
+public class EntryTable {
+	/**
+	 * Field names, the UTF-8 encoded names of all entries.
+	 */
+	private byte[] names;
+
+	/**
+	 * Field namesLength, number of used bytes in names.
+	 */
+	private int namesLength = 0;
+
+	/**
+	 * Field prefixes, the UTF-8 encoded keys of the nested archives including the separator.
+	 */
+	private byte[][] prefixes = new byte[4][];
+
+	/**
+	 * Field prefixCount.
+	 */
+	private int prefixCount = 0;
+
+	/**
+	 * Field prefixIds, the prefix of the key of an entry of a nested archive, -1 for other entries.
+	 */
+	private int[] prefixIds;
+
+	/**
+	 * Field nameStart, position of the full name in names.
+	 */
+	private int[] nameStart;
+
+	/**
+	 * Field keyStart, position of the key (the name without trimmed directory levels) in names.
+	 */
+	private int[] keyStart;
+
+	/**
+	 * Field entryNameStart, position of the name of the entry in its own archive in names.
+	 */
+	private int[] entryNameStart;
+
+	/**
+	 * Field sizes.
+	 */
+	private long[] sizes;
+
+	/**
+	 * Field compressedSizes.
+	 */
+	private long[] compressedSizes;
+
+	/**
+	 * Field crcs.
+	 */
+	private int[] crcs;
+
+	/**
+	 * Field dosTimes.
+	 */
+	private int[] dosTimes;
+
+	/**
+	 * Field methods.
+	 */
+	private short[] methods;
+
+	/**
+	 * Field flags.
+	 */
+	private short[] flags;
+
+	/**
+	 * Field localHeaderOffsets, -1 for entries of nested archives.
+	 */
+	private long[] localHeaderOffsets;
+
+	/**
+	 * Field count.
+	 */
+	private int count = 0;
+
+	/**
+	 * Field ROW_LENGTH, the number of bytes of a row written by {@link #write(DataOutput)}.
+	 * (value is 52)
+	 */
+	private static final int ROW_LENGTH = 52;
+
+	/**
+	 * Field NO_PREFIX.
+	 */
+	private static final byte[] NO_PREFIX = new byte[0];
+
+	/**
+	 * Field CALENDAR, one calendar per thread, so that a complete table can be
+	 * read by several threads.
+	 */
+	private static final ThreadLocal<Calendar> CALENDAR = new ThreadLocal<Calendar>() {
+		protected Calendar initialValue() {
+			return new GregorianCalendar();
+		}
+	};
+
+	/**
+	 * Constructor for EntryTable.
+	 * @param capacity expected number of entries
+	 */
+	public EntryTable(int capacity) {
+		final int n = Math.max(16, capacity);
+		names = new byte[n * 32];
+		prefixIds = new int[n];
+		nameStart = new int[n];
+		keyStart = new int[n];
+		entryNameStart = new int[n];
+		sizes = new long[n];
+		compressedSizes = new long[n];
+		crcs = new int[n];
+		dosTimes = new int[n];
+		methods = new short[n];
+		flags = new short[n];
+		localHeaderOffsets = new long[n];
+	}
+
+	/**
+	 * adds an entry
+	 * @param name array holding the UTF-8 encoded full name
+	 * @param off position of the full name in the array
+	 * @param len length of the full name
+	 * @param entryNameOffset position of the name of the entry in its own archive relative to off
+	 * @param keyOffset position of the key relative to off
+	 * @param size uncompressed size
+	 * @param compressedSize compressed size
+	 * @param crc CRC-32
+	 * @param dosTime modification time in MS-DOS format
+	 * @param method compression method
+	 * @param flag general purpose bit flags
+	 * @param localHeaderOffset position of the local header in the file, -1 if unknown
+	 * @return row of the new entry
+	 */
+	public int add(byte[] name, int off, int len, int entryNameOffset, int keyOffset, long size, long compressedSize,
+			int crc, int dosTime, int method, int flag, long localHeaderOffset) {
+		return add(-1, name, off, len, entryNameOffset, keyOffset, size, compressedSize, crc, dosTime, method, flag,
+				localHeaderOffset);
+	}
+
+	/**
+	 * adds an entry
+	 * @param prefix prefix of the key, see {@link #addPrefix(byte[])}, or -1
+	 * @param name array holding the UTF-8 encoded name
+	 * @param off position of the name in the array
+	 * @param len length of the name
+	 * @param entryNameOffset position of the name of the entry in its own archive relative to off
+	 * @param keyOffset position of the key without the prefix relative to off
+	 * @param size uncompressed size
+	 * @param compressedSize compressed size
+	 * @param crc CRC-32
+	 * @param dosTime modification time in MS-DOS format
+	 * @param method compression method
+	 * @param flag general purpose bit flags
+	 * @param localHeaderOffset position of the local header in the file, -1 if unknown
+	 * @return row of the new entry
+	 */
+	private int add(int prefix, byte[] name, int off, int len, int entryNameOffset, int keyOffset, long size,
+			long compressedSize, int crc, int dosTime, int method, int flag, long localHeaderOffset) {
+		if (count == sizes.length) {
+			grow();
+		}
+		if (namesLength + len > names.length) {
+			names = Arrays.copyOf(names, Math.max(namesLength + len, names.length * 2));
+		}
+		System.arraycopy(name, off, names, namesLength, len);
+		final int row = count++;
+		prefixIds[row] = prefix;
+		nameStart[row] = namesLength;
+		keyStart[row] = namesLength + keyOffset;
+		entryNameStart[row] = namesLength + entryNameOffset;
+		namesLength += len;
+		sizes[row] = size;
+		compressedSizes[row] = compressedSize;
+		crcs[row] = crc;
+		dosTimes[row] = dosTime;
+		methods[row] = (short) method;
+		flags[row] = (short) flag;
+		localHeaderOffsets[row] = localHeaderOffset;
+		return row;
+	}
+
+	/**
+	 * adds the prefix of the keys of the entries of a nested archive
+	 * @param prefix UTF-8 encoded key of the nested archive including the separator
+	 * @return id of the prefix
+	 */
+	public int addPrefix(byte[] prefix) {
+		if (prefixCount == prefixes.length) {
+			prefixes = Arrays.copyOf(prefixes, prefixCount * 2);
+		}
+		prefixes[prefixCount] = prefix;
+		return prefixCount++;
+	}
+
+	/**
+	 * adds an entry of a nested archive
+	 * @param prefix id of the key of the nested archive, see {@link #addPrefix(byte[])}
+	 * @param entry the entry, after its data has been read
+	 * @return row of the new entry
+	 */
+	public int add(int prefix, ZipEntry entry) {
+		final byte[] name = entry.getName().getBytes(CentralDirectory.UTF8);
+		return add(prefix, name, 0, name.length, 0, 0, entry.getSize(), entry.getCompressedSize(),
+				(int) entry.getCrc(), getDosTime(entry), entry.getMethod(), 0, -1);
+	}
+
+	/**
+	 * adds an entry of a nested archive which is read from its central directory
+	 * @param prefix id of the key of the nested archive, see {@link #addPrefix(byte[])}
+	 * @param name UTF-8 encoded name of the entry
+	 * @param off position of the name in the array
+	 * @param len length of the name
+	 * @param size uncompressed size
+	 * @param compressedSize compressed size
+	 * @param crc CRC-32
+	 * @param dosTime modification time in MS-DOS format
+	 * @param method compression method
+	 * @param flag general purpose bit flags
+	 * @return row of the new entry
+	 */
+	public int add(int prefix, byte[] name, int off, int len, long size, long compressedSize, int crc, int dosTime,
+			int method, int flag) {
+		return add(prefix, name, off, len, 0, 0, size, compressedSize, crc, dosTime, method, flag, -1);
+	}
+
+	/**
+	 * adds all entries of another table, e.g. the entries of a nested archive
+	 * which were indexed separately
+	 * @param other EntryTable
+	 */
+	public void addAll(EntryTable other) {
+		final int firstPrefix = prefixCount;
+		for (int i = 0; i < other.prefixCount; i++) {
+			addPrefix(other.prefixes[i]);
+		}
+		for (int row = 0; row < other.count; row++) {
+			final int start = other.nameStart[row];
+			final int prefix = other.prefixIds[row];
+			add((prefix < 0) ? -1 : firstPrefix + prefix, other.names, start, other.nameEnd(row) - start,
+					other.entryNameStart[row] - start, other.keyStart[row] - start, other.sizes[row],
+					other.compressedSizes[row], other.crcs[row], other.dosTimes[row], other.methods[row],
+					other.flags[row], other.localHeaderOffsets[row]);
+		}
+	}
+
+	/**
+	 * enlarges the attribute arrays
+	 */
+	private void grow() {
+		final int n = sizes.length * 2;
+		prefixIds = Arrays.copyOf(prefixIds, n);
+		nameStart = Arrays.copyOf(nameStart, n);
+		keyStart = Arrays.copyOf(keyStart, n);
+		entryNameStart = Arrays.copyOf(entryNameStart, n);
+		sizes = Arrays.copyOf(sizes, n);
+		compressedSizes = Arrays.copyOf(compressedSizes, n);
+		crcs = Arrays.copyOf(crcs, n);
+		dosTimes = Arrays.copyOf(dosTimes, n);
+		methods = Arrays.copyOf(methods, n);
+		flags = Arrays.copyOf(flags, n);
+		localHeaderOffsets = Arrays.copyOf(localHeaderOffsets, n);
+	}
+
+	/**
+	 * Method size.
+	 * @return number of entries
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * estimates the heap memory used by the table, including unused capacity
+	 * @return number of bytes
+	 */
+	public long getMemorySize() {
+		// four int, three long, two int and two short arrays per row
+		long size = names.length + 52L * nameStart.length;
+		for (int i = 0; i < prefixCount; i++) {
+			size += 16 + prefixes[i].length;
+		}
+		return size;
+	}
+
+	/**
+	 * Method nameEnd.
+	 * @param row int
+	 * @return position after the last byte of the name in names
+	 */
+	private int nameEnd(int row) {
+		return (row + 1 < count) ? nameStart[row + 1] : namesLength;
+	}
+
+	/**
+	 * Method getKey.
+	 * @param row int
+	 * @return the name of the entry without trimmed directory levels
+	 */
+	public String getKey(int row) {
+		final int start = keyStart[row];
+		final int length = nameEnd(row) - start;
+		final int prefix = prefixIds[row];
+		if (prefix < 0) {
+			return new String(names, start, length, CentralDirectory.UTF8);
+		}
+		final byte[] key = Arrays.copyOf(prefixes[prefix], prefixes[prefix].length + length);
+		System.arraycopy(names, start, key, prefixes[prefix].length, length);
+		return new String(key, CentralDirectory.UTF8);
+	}
+
+	/**
+	 * Method getEntryName.
+	 * @param row int
+	 * @return the name of the entry in its own archive
+	 */
+	public String getEntryName(int row) {
+		return new String(names, entryNameStart[row], nameEnd(row) - entryNameStart[row], CentralDirectory.UTF8);
+	}
+
+	/**
+	 * Method isDirectory.
+	 * @param row int
+	 * @return true if the name ends with a slash
+	 */
+	public boolean isDirectory(int row) {
+		final int end = nameEnd(row);
+		return (end > nameStart[row]) && (names[end - 1] == '/');
+	}
+
+	/**
+	 * Method getSize.
+	 * @param row int
+	 * @return uncompressed size
+	 */
+	public long getSize(int row) {
+		return sizes[row];
+	}
+
+	/**
+	 * Method getCompressedSize.
+	 * @param row int
+	 * @return compressed size
+	 */
+	public long getCompressedSize(int row) {
+		return compressedSizes[row];
+	}
+
+	/**
+	 * Method getCrc.
+	 * @param row int
+	 * @return CRC-32
+	 */
+	public long getCrc(int row) {
+		return crcs[row] & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Method getDosTime.
+	 * @param row int
+	 * @return modification time in MS-DOS format
+	 */
+	public int getDosTime(int row) {
+		return dosTimes[row];
+	}
+
+	/**
+	 * Method getMethod.
+	 * @param row int
+	 * @return compression method
+	 */
+	public int getMethod(int row) {
+		return methods[row] & 0xFFFF;
+	}
+
+	/**
+	 * Method getFlags.
+	 * @param row int
+	 * @return general purpose bit flags
+	 */
+	public int getFlags(int row) {
+		return flags[row] & 0xFFFF;
+	}
+
+	/**
+	 * Method getLocalHeaderOffset.
+	 * @param row int
+	 * @return position of the local header in the file, -1 for entries of nested archives
+	 */
+	public long getLocalHeaderOffset(int row) {
+		return localHeaderOffsets[row];
+	}
+
+	/**
+	 * creates a ZipEntry for an entry
+	 * @param row int
+	 * @return ZipEntry
+	 */
+	public ZipEntry toZipEntry(int row) {
+		final ZipEntry entry = new ZipEntry(getEntryName(row));
+		entry.setTime(dosToJavaTime(dosTimes[row]));
+		if (sizes[row] >= 0) {
+			entry.setSize(sizes[row]);
+		}
+		if (compressedSizes[row] >= 0) {
+			entry.setCompressedSize(compressedSizes[row]);
+		}
+		entry.setCrc(getCrc(row));
+		final int method = getMethod(row);
+		if ((method == ZipEntry.STORED) || (method == ZipEntry.DEFLATED)) {
+			entry.setMethod(method);
+		}
+		return entry;
+	}
+
+	/**
+	 * compares the keys of two entries byte by byte, which is the order of the
+	 * Unicode code points of the keys
+	 * @param row row in this table
+	 * @param other other table
+	 * @param otherRow row in the other table
+	 * @return negative, zero or positive if the key of this entry is less than,
+	 * equal to or greater than the key of the other entry
+	 */
+	public int compareKeys(int row, EntryTable other, int otherRow) {
+		final int start = keyStart[row];
+		final int length = nameEnd(row) - start;
+		final int otherStart = other.keyStart[otherRow];
+		final int otherLength = other.nameEnd(otherRow) - otherStart;
+		final int prefix = prefixIds[row];
+		final int otherPrefix = other.prefixIds[otherRow];
+		if ((prefix < 0) && (otherPrefix < 0)) {
+			return compare(names, start, length, other.names, otherStart, otherLength);
+		}
+		if ((other == this) && (prefix == otherPrefix)) {
+			// entries of the same nested archive
+			return compare(names, start, length, names, otherStart, otherLength);
+		}
+
+		final byte[] p = (prefix < 0) ? NO_PREFIX : prefixes[prefix];
+		final byte[] q = (otherPrefix < 0) ? NO_PREFIX : other.prefixes[otherPrefix];
+		final int total = p.length + length;
+		final int otherTotal = q.length + otherLength;
+		final int n = Math.min(total, otherTotal);
+		for (int i = 0; i < n; i++) {
+			final int b = (i < p.length) ? p[i] : names[start + i - p.length];
+			final int c = (i < q.length) ? q[i] : other.names[otherStart + i - q.length];
+			final int cmp = (b & 0xFF) - (c & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return total - otherTotal;
+	}
+
+	/**
+	 * compares two byte sequences as unsigned bytes
+	 * @param a first array
+	 * @param aStart start in the first array
+	 * @param aLength length in the first array
+	 * @param b second array
+	 * @param bStart start in the second array
+	 * @param bLength length in the second array
+	 * @return negative, zero or positive
+	 */
+	private static int compare(byte[] a, int aStart, int aLength, byte[] b, int bStart, int bLength) {
+		final int n = Math.min(aLength, bLength);
+		for (int i = 0; i < n; i++) {
+			final int cmp = (a[aStart + i] & 0xFF) - (b[bStart + i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return aLength - bLength;
+	}
+
+	/**
+	 * sorts the rows by key. If a key is repeated, only the last row with that
+	 * key is kept, as a map would do.
+	 * @return rows ordered by key
+	 */
+	public int[] sortedRows() {
+		int[] rows = new int[count];
+		for (int i = 0; i < count; i++) {
+			rows[i] = i;
+		}
+		sort(rows, new int[count], 0, count);
+
+		// the sort is stable, so the last of equal keys is the last added row
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if ((i + 1 < count) && (compareKeys(rows[i], this, rows[i + 1]) == 0)) {
+				continue;
+			}
+			rows[n++] = rows[i];
+		}
+		if (n < count) {
+			rows = Arrays.copyOf(rows, n);
+		}
+		return rows;
+	}
+
+	/**
+	 * stable merge sort of rows by key
+	 * @param rows rows to sort
+	 * @param tmp scratch array of the same length
+	 * @param from first index, inclusive
+	 * @param to last index, exclusive
+	 */
+	private void sort(int[] rows, int[] tmp, int from, int to) {
+		if (to - from < 8) {
+			for (int i = from + 1; i < to; i++) {
+				final int row = rows[i];
+				int j = i - 1;
+				while ((j >= from) && (compareKeys(rows[j], this, row) > 0)) {
+					rows[j + 1] = rows[j];
+					j--;
+				}
+				rows[j + 1] = row;
+			}
+			return;
+		}
+		final int mid = (from + to) >>> 1;
+		sort(rows, tmp, from, mid);
+		sort(rows, tmp, mid, to);
+		if (compareKeys(rows[mid - 1], this, rows[mid]) <= 0) {
+			return;
+		}
+		System.arraycopy(rows, from, tmp, from, to - from);
+		int i = from;
+		int j = mid;
+		for (int k = from; k < to; k++) {
+			if ((j >= to) || ((i < mid) && (compareKeys(tmp[i], this, tmp[j]) <= 0))) {
+				rows[k] = tmp[i++];
+			} else {
+				rows[k] = tmp[j++];
+			}
+		}
+	}
+
+	/**
+	 * writes the entries, so that they can be restored by {@link #read(DataInput)}
+	 * @param out DataOutput
+	 * @throws IOException
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeInt(prefixCount);
+		for (int i = 0; i < prefixCount; i++) {
+			out.writeInt(prefixes[i].length);
+			out.write(prefixes[i]);
+		}
+		out.writeInt(count);
+		out.writeInt(namesLength);
+		out.write(names, 0, namesLength);
+		for (int row = 0; row < count; row++) {
+			out.writeInt(prefixIds[row]);
+			out.writeInt(nameStart[row]);
+			out.writeInt(keyStart[row]);
+			out.writeInt(entryNameStart[row]);
+			out.writeLong(sizes[row]);
+			out.writeLong(compressedSizes[row]);
+			out.writeInt(crcs[row]);
+			out.writeInt(dosTimes[row]);
+			out.writeShort(methods[row]);
+			out.writeShort(flags[row]);
+			out.writeLong(localHeaderOffsets[row]);
+		}
+	}
+
+	/**
+	 * reads entries written by {@link #write(DataOutput)}. The counts and lengths are checked
+	 * against the number of bytes which can be left before anything is allocated, so that
+	 * corrupt data is an IOException instead of an OutOfMemoryError.
+	 * @param in DataInput
+	 * @param available maximum number of bytes of the entries, e.g. the length of the file
+	 * @return EntryTable
+	 * @throws IOException if the data cannot be read or is inconsistent
+	 */
+	static EntryTable read(DataInput in, long available) throws IOException {
+		long remaining = available - 4;
+		final int prefixCount = in.readInt();
+		if ((prefixCount < 0) || ((long) prefixCount * 4 > remaining)) {
+			throw new IOException("invalid entry table header");
+		}
+		final byte[][] prefixes = new byte[Math.max(4, prefixCount)][];
+		for (int i = 0; i < prefixCount; i++) {
+			final int prefixLength = in.readInt();
+			remaining -= 4;
+			if ((prefixLength < 0) || (prefixLength > remaining)) {
+				throw new IOException("invalid entry table prefix " + i);
+			}
+			prefixes[i] = new byte[prefixLength];
+			in.readFully(prefixes[i]);
+			remaining -= prefixLength;
+		}
+		final int n = in.readInt();
+		final int length = in.readInt();
+		remaining -= 8;
+		if ((n < 0) || (length < 0) || (n > length) || (length + (long) n * ROW_LENGTH > remaining)) {
+			throw new IOException("invalid entry table header");
+		}
+		final EntryTable table = new EntryTable(n);
+		table.prefixes = prefixes;
+		table.prefixCount = prefixCount;
+		table.names = new byte[Math.max(16, length)];
+		in.readFully(table.names, 0, length);
+		table.namesLength = length;
+		int previous = 0;
+		for (int row = 0; row < n; row++) {
+			table.prefixIds[row] = in.readInt();
+			table.nameStart[row] = in.readInt();
+			table.keyStart[row] = in.readInt();
+			table.entryNameStart[row] = in.readInt();
+			table.sizes[row] = in.readLong();
+			table.compressedSizes[row] = in.readLong();
+			table.crcs[row] = in.readInt();
+			table.dosTimes[row] = in.readInt();
+			table.methods[row] = in.readShort();
+			table.flags[row] = in.readShort();
+			table.localHeaderOffsets[row] = in.readLong();
+			final int start = table.nameStart[row];
+			if ((table.prefixIds[row] < -1) || (table.prefixIds[row] >= prefixCount)
+					|| (start < previous) || (start > length) || (table.keyStart[row] < start) || (table.keyStart[row] > length)
+					|| (table.entryNameStart[row] < start) || (table.entryNameStart[row] > length)) {
+				throw new IOException("invalid entry table row " + row);
+			}
+			previous = start;
+		}
+		table.count = n;
+		return table;
+	}
+
+	/**
+	 * converts a time in MS-DOS format to milliseconds
+	 * @param dosTime int
+	 * @return milliseconds since the epoch
+	 */
+	long dosToJavaTime(int dosTime) {
+		final Calendar calendar = CALENDAR.get();
+		calendar.clear();
+		calendar.set(((dosTime >> 25) & 0x7f) + 1980, ((dosTime >> 21) & 0x0f) - 1, (dosTime >> 16) & 0x1f,
+				(dosTime >> 11) & 0x1f, (dosTime >> 5) & 0x3f, (dosTime << 1) & 0x3e);
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * derives the modification time of an entry read from a stream in MS-DOS format.
+	 * The modification time of an Info-ZIP extended timestamp is preferred, as by
+	 * ZipEntry.getTime() of newer Java versions, so that an entry has the same time whether it is
+	 * read from a stream or from a central directory, see {@link CentralDirectory#getDosTime()}.
+	 * @param entry ZipEntry
+	 * @return int
+	 */
+	static int getDosTime(ZipEntry entry) {
+		return getDosTime(javaToDosTime(entry.getTime()), ZipUtil.getExtendedTime(entry.getExtra()));
+	}
+
+	/**
+	 * Method getDosTime.
+	 * @param dosTime modification time in MS-DOS format
+	 * @param extendedTime modification time of the extended timestamp in seconds, -1 if there is none
+	 * @return the modification time in MS-DOS format
+	 */
+	static int getDosTime(int dosTime, long extendedTime) {
+		return (extendedTime == -1) ? dosTime : javaToDosTime(extendedTime * 1000);
+	}
+
+	/**
+	 * converts milliseconds to a time in MS-DOS format
+	 * @param time milliseconds since the epoch, -1 if unknown
+	 * @return int
+	 */
+	static int javaToDosTime(long time) {
+		if (time == -1) {
+			return 0;
+		}
+		final Calendar calendar = CALENDAR.get();
+		calendar.setTimeInMillis(time);
+		final int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return ((year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21)
+			| (calendar.get(Calendar.DAY_OF_MONTH) << 16) | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+			| (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+	}
+}
@@ -0,0 +1,38 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Stores the EntryTables of archives, including the entries of their nested
+ * archives, so that an archive which is compared again does not have to be indexed again.
+ */
+public interface IndexCache {
+
+	/**
+	 * looks up the index of an archive
+	 * @param archive the archive
+	 * @param options fingerprint of the options which influence the index, e.g. trimmed levels and exclusions
+	 * @return the cached index, or null if there is no valid index
+	 * @throws IOException in case of an input/output error
+	 */
+	EntryTable get(File archive, String options) throws IOException;
+
+	/**
+	 * stores the index of an archive
+	 * @param archive the archive
+	 * @param attributes attributes of the archive, read before it was indexed, so that an archive
+	 *        which changes while it is indexed does not match the stored index
+	 * @param options fingerprint of the options which influence the index
+	 * @param digest digest of the central directory of the archive, see {@link CentralDirectory#digest()}
+	 * @param table the index
+	 * @throws IOException in case of an input/output error
+	 */
+	void put(File archive, BasicFileAttributes attributes, String options, byte[] digest, EntryTable table) throws IOException;
+}
@@ -0,0 +1,37 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link DifferenceListener} whose output cannot be written, because the
+ * methods of a listener cannot throw an IOException.
+ * {@link DifferenceCalculator#getDifferences(DifferenceListener)} throws its cause.
+ */
+public class ListenerException extends RuntimeException {
+	/**
+	 * Field serialVersionUID.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor for ListenerException.
+	 * @param cause the error of the output
+	 */
+	public ListenerException(IOException cause) {
+		super(cause);
+	}
+
+	/**
+	 * Method getCause.
+	 * @return the error of the output
+	 */
+	@Override
+	public synchronized IOException getCause() {
+		return (IOException) super.getCause();
+	}
+}
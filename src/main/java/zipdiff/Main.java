@@ -7,8 +7,16 @@ package zipdiff;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.management.JMException;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -19,8 +27,10 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import zipdiff.output.AbstractBuilder;
 import zipdiff.output.Builder;
 import zipdiff.output.BuilderFactory;
+import zipdiff.output.ZipBuilder;
 
 /**
  * Provides a command line interface to zipdiff
@@ -52,6 +62,18 @@ public class Main {
 	 */
 	private static final String OPTION_COMPARE_TIMESTAMPS = "comparetimestamps";
 
+	/**
+	 * Field OPTION_COMPARE_CONTENTS.
+	 * (value is ""comparecontents"")
+	 */
+	private static final String OPTION_COMPARE_CONTENTS = "comparecontents";
+
+	/**
+	 * Field OPTION_DETECT_MOVES.
+	 * (value is ""detectmoves"")
+	 */
+	private static final String OPTION_DETECT_MOVES = "detectmoves";
+
 	/**
 	 * Field OPTION_EXCLUDE_SCM_FILES.
 	 * (value is ""excludescmfiles"")
@@ -76,6 +98,12 @@ public class Main {
 	 */
 	private static final String OPTION_TARGET_FILE = "target";
 
+	/**
+	 * Field STDIN, the name of the source or target file which is read from standard input.
+	 * (value is ""-"")
+	 */
+	private static final String STDIN = "-";
+
 	/**
 	 * Field OPTION_TRIM_OUTPUT_LEVELS.
 	 * (value is ""trimoutputlevels"")
@@ -112,11 +140,96 @@ public class Main {
 	 */
 	private static final String OPTION_VERBOSE = "verbose";
 
+	/**
+	 * Field OPTION_THREADS.
+	 * (value is ""threads"")
+	 */
+	private static final String OPTION_THREADS = "threads";
+
+	/**
+	 * Field OPTION_STREAM.
+	 * (value is ""stream"")
+	 */
+	private static final String OPTION_STREAM = "stream";
+
+	/**
+	 * Field OPTION_INDEX_CACHE.
+	 * (value is ""indexcache"")
+	 */
+	private static final String OPTION_INDEX_CACHE = "indexcache";
+
+	/**
+	 * Field OPTION_INDEX_CACHE_SIZE.
+	 * (value is ""indexcachesize"")
+	 */
+	private static final String OPTION_INDEX_CACHE_SIZE = "indexcachesize";
+
+	/**
+	 * Field OPTION_VERIFY_INDEX_CACHE.
+	 * (value is ""verifyindexcache"")
+	 */
+	private static final String OPTION_VERIFY_INDEX_CACHE = "verifyindexcache";
+
+	/**
+	 * Field OPTION_STATS.
+	 * (value is ""stats"")
+	 */
+	private static final String OPTION_STATS = "stats";
+
+	/**
+	 * Field OPTION_JMX.
+	 * (value is ""jmx"")
+	 */
+	private static final String OPTION_JMX = "jmx";
+
+	/**
+	 * Field OPTION_NESTED_PATCHES.
+	 * (value is ""nestedpatches"")
+	 */
+	private static final String OPTION_NESTED_PATCHES = "nestedpatches";
+
+	/**
+	 * Field OPTION_BATCH.
+	 * (value is ""batch"")
+	 */
+	private static final String OPTION_BATCH = "batch";
+
+	/**
+	 * Field DEFAULT_INDEX_CACHE_SIZE.
+	 * (value is 256)
+	 */
+	private static final long DEFAULT_INDEX_CACHE_SIZE = 256;
+
 	/**
 	 * Field OPTIONS.
 	 */
 	private static final Options OPTIONS;
 
+	/**
+	 * Field directory, relative file names are resolved against it, null for the working directory.
+	 */
+	private final File directory;
+
+	/**
+	 * Field out, receives the messages and the output file "-".
+	 */
+	private final PrintStream out;
+
+	/**
+	 * Field err, receives the error messages.
+	 */
+	private final PrintStream err;
+
+	/**
+	 * Field in, the source or target file "-" is read from it.
+	 */
+	private InputStream in = System.in;
+
+	/**
+	 * Field indexCache, used unless an index cache directory is given, may be null.
+	 */
+	private IndexCache indexCache;
+
 	// static initializer
 	static {
 		OPTIONS = new Options();
@@ -129,13 +242,30 @@ public class Main {
 			new Option(OPTION_COMPARE_CRC_VALUES, OPTION_COMPARE_CRC_VALUES, false, "compare CRC values");
 		compareCRC.setRequired(false);
 
+		final Option compareContents =
+			new Option(OPTION_COMPARE_CONTENTS, OPTION_COMPARE_CONTENTS, false,
+					   "ignore the compressed size and compare the content of files whose compressed data differs");
+		compareContents.setRequired(false);
+
+		final Option detectMoves =
+			new Option(OPTION_DETECT_MOVES, OPTION_DETECT_MOVES, false,
+					   "report removed and added files with the same size and CRC as moved");
+		detectMoves.setRequired(false);
+
 		final Option source =
-			new Option(OPTION_SOURCE_FILE, OPTION_SOURCE_FILE, true, "source file to compare");
+			new Option(OPTION_SOURCE_FILE, OPTION_SOURCE_FILE, true, "source file or directory to compare, - to read it from standard input");
 		source.setRequired(true);
 
 		final Option target =
-			new Option(OPTION_TARGET_FILE, OPTION_TARGET_FILE, true, "target file to compare");
-		target.setRequired(true);
+			new Option(OPTION_TARGET_FILE, OPTION_TARGET_FILE, true, "target file or directory to compare, - to read it from standard input");
+		// either target or batch is required
+		target.setRequired(false);
+
+		final Option batch =
+			new Option(OPTION_BATCH, OPTION_BATCH, true,
+					   "file listing target files to compare with the source, one per line optionally followed by a tab"
+					   + " and an output file, or a directory of target files");
+		batch.setRequired(false);
 
 		final Option numberOfLevelsToTrimInOutput =
 			new Option(OPTION_TRIM_OUTPUT_LEVELS, OPTION_TRIM_OUTPUT_LEVELS, true,
@@ -158,7 +288,7 @@ public class Main {
 
 		final Option regex =
 			new Option(OPTION_EXCLUDE_REGEX, OPTION_EXCLUDE_REGEX, true,
-                       "regular expression to exclude matching files e.g. (?i)meta-inf.*");
+                       "regular expression to exclude matching files e.g. (?i)meta-inf.*, may be repeated");
 		regex.setRequired(false);
 
 		final Option excludeSCMFilesOption =
@@ -172,10 +302,55 @@ public class Main {
 		final Option verboseOption =
 			new Option(OPTION_VERBOSE, OPTION_VERBOSE, false, "verbose mode");
 
+		final Option threadsOption =
+			new Option(OPTION_THREADS, OPTION_THREADS, true,
+					   "number of threads used to index the source and target files and their nested archives,"
+					   + " or the number of targets compared at the same time in batch mode (default 1)");
+		threadsOption.setRequired(false);
+
+		final Option streamOption =
+			new Option(OPTION_STREAM, OPTION_STREAM, false,
+					   "write the output while comparing instead of collecting all differences in memory");
+		streamOption.setRequired(false);
+
+		final Option nestedPatchesOption =
+			new Option(OPTION_NESTED_PATCHES, OPTION_NESTED_PATCHES, false,
+					   "in zip output files, rebuild archives containing changed nested archives"
+					   + " with only their added and modified entries, their names end with " + ZipBuilder.PATCH_SUFFIX);
+		nestedPatchesOption.setRequired(false);
+
+		final Option indexCacheOption =
+			new Option(OPTION_INDEX_CACHE, OPTION_INDEX_CACHE, true,
+					   "directory to keep the indexes of the compared files in");
+		indexCacheOption.setRequired(false);
+
+		final Option indexCacheSizeOption =
+			new Option(OPTION_INDEX_CACHE_SIZE, OPTION_INDEX_CACHE_SIZE, true,
+					   "maximum size of the index cache in megabytes (default " + DEFAULT_INDEX_CACHE_SIZE + ")");
+		indexCacheSizeOption.setRequired(false);
+
+		final Option verifyIndexCacheOption =
+			new Option(OPTION_VERIFY_INDEX_CACHE, OPTION_VERIFY_INDEX_CACHE, false,
+					   "compare the central directory of a file with its cached index, also if its size and modification time are unchanged");
+		verifyIndexCacheOption.setRequired(false);
+
+		final Option statsOption =
+			new Option(OPTION_STATS, OPTION_STATS, false,
+					   "print the number of indexed entries, nested archives and inflated bytes and the time of each phase");
+		statsOption.setRequired(false);
+
+		final Option jmxOption =
+			new Option(OPTION_JMX, OPTION_JMX, false,
+					   "register the progress as MBean " + DiffStatistics.OBJECT_NAME + ",id=<n>");
+		jmxOption.setRequired(false);
+
 		OPTIONS.addOption(compareTS);
 		OPTIONS.addOption(compareCRC);
+		OPTIONS.addOption(compareContents);
+		OPTIONS.addOption(detectMoves);
 		OPTIONS.addOption(source);
 		OPTIONS.addOption(target);
+		OPTIONS.addOption(batch);
 		OPTIONS.addOption(numberOfLevelsToTrimInOutput);
 		OPTIONS.addOption(numberOfLevelsToTrimInSource);
 		OPTIONS.addOption(numberOfLevelsToTrimInTarget);
@@ -183,42 +358,291 @@ public class Main {
 		OPTIONS.addOption(excludeSCMFilesOption);
 		OPTIONS.addOption(exitWithError);
 		OPTIONS.addOption(verboseOption);
+		OPTIONS.addOption(threadsOption);
+		OPTIONS.addOption(streamOption);
+		OPTIONS.addOption(nestedPatchesOption);
+		OPTIONS.addOption(indexCacheOption);
+		OPTIONS.addOption(indexCacheSizeOption);
+		OPTIONS.addOption(verifyIndexCacheOption);
+		OPTIONS.addOption(statsOption);
+		OPTIONS.addOption(jmxOption);
 		OPTIONS.addOption(outputFileOption);
 	}
 
+	/**
+	 * Constructor for Main.
+	 * @param directory relative file names are resolved against this directory, null for the working directory
+	 * @param out receives the messages and the output file "-"
+	 * @param err receives the error messages
+	 */
+	public Main(File directory, PrintStream out, PrintStream err) {
+		this.directory = directory;
+		this.out = out;
+		this.err = err;
+	}
+
+	/**
+	 * sets the stream which is read for the source or target file "-"
+	 * @param in InputStream, standard input by default
+	 */
+	public void setInput(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * sets the index cache which is used unless an index cache directory is given on the command line
+	 * @param indexCache IndexCache, or null
+	 */
+	public void setIndexCache(IndexCache indexCache) {
+		this.indexCache = indexCache;
+	}
+
+	/**
+	 * Method resolve.
+	 * @param name file name, relative to the directory of this run
+	 * @return File
+	 */
+	private File resolve(String name) {
+		final File file = new File(name);
+		if ((directory == null) || file.isAbsolute() || name.equals(STDIN)) {
+			return file;
+		}
+		return new File(directory, name);
+	}
+
+	/**
+	 * resolves the name of an output file, "-" for stdout is kept
+	 * @param name file name, relative to the directory of this run
+	 * @return String
+	 */
+	private String resolveOutput(String name) {
+		if ((name == null) || name.equals("-")) {
+			return name;
+		}
+		return resolve(name).getPath();
+	}
+
 	/**
 	 * Method checkFile.
 	 * @param f File
+	 * @return true if the file exists and is readable
 	 */
-	private static void checkFile(File f) {
+	private boolean checkFile(File f) {
 		final String filename = f.toString();
 
 		if (!f.exists()) {
-			System.err.println("'" + filename + "' does not exist");
-			System.exit(EXITCODE_ERROR);
+			err.println("'" + filename + "' does not exist");
+			return false;
 		}
 
 		if (!f.canRead()) {
-			System.err.println("'" + filename + "' is not readable");
-			System.exit(EXITCODE_ERROR);
-		}
-
-		if (f.isDirectory()) {
-			System.err.println("'" + filename + "' is a directory");
-			System.exit(EXITCODE_ERROR);
+			err.println("'" + filename + "' is not readable");
+			return false;
 		}
+		return true;
 	}
 
 	/**
 	 * Method writeOutputFile.
 	 * @param filename String
 	 * @param numberOfOutputLevelsToTrim int
+	 * @param nestedPatches boolean
+	 * @param statistics DiffStatistics, or null
 	 * @param d Differences
 	 * @throws IOException
 	 */
-	private static void writeOutputFile(String filename, int numberOfOutputLevelsToTrim, Differences d) throws IOException {
-		final Builder builder = BuilderFactory.create(filename);
-		builder.build(filename, numberOfOutputLevelsToTrim, d);
+	private void writeOutputFile(String filename, int numberOfOutputLevelsToTrim, boolean nestedPatches,
+			DiffStatistics statistics, Differences d) throws IOException {
+		createBuilder(filename, nestedPatches, statistics).build(filename, numberOfOutputLevelsToTrim, d);
+	}
+
+	/**
+	 * Method createBuilder.
+	 * @param filename name of the output file
+	 * @param nestedPatches boolean
+	 * @param statistics DiffStatistics, or null
+	 * @return Builder
+	 */
+	private Builder createBuilder(String filename, boolean nestedPatches, DiffStatistics statistics) {
+		final Builder builder = BuilderFactory.create(filename, nestedPatches);
+		if (builder instanceof AbstractBuilder) {
+			((AbstractBuilder) builder).setStatistics(statistics);
+			((AbstractBuilder) builder).setStandardOutput(out);
+			((AbstractBuilder) builder).setErrorOutput(err);
+		}
+		return builder;
+	}
+
+	/**
+	 * creates the statistics if they are requested on the command line
+	 * @param line CommandLine
+	 * @return DiffStatistics, or null
+	 * @throws JMException if the MBean cannot be registered
+	 */
+	private static DiffStatistics createStatistics(CommandLine line) throws JMException {
+		if (!line.hasOption(OPTION_STATS) && !line.hasOption(OPTION_JMX)) {
+			return null;
+		}
+		final DiffStatistics statistics = new DiffStatistics();
+		if (line.hasOption(OPTION_JMX)) {
+			statistics.register();
+		}
+		return statistics;
+	}
+
+	/**
+	 * prints the statistics if they are requested on the command line
+	 * @param line CommandLine
+	 * @param statistics DiffStatistics, or null
+	 */
+	private void printStatistics(CommandLine line, DiffStatistics statistics) {
+		if ((statistics != null) && line.hasOption(OPTION_STATS)) {
+			out.println(statistics);
+		}
+	}
+
+	/**
+	 * prints the usage
+	 */
+	private void printHelp() {
+		final PrintWriter pw = new PrintWriter(out);
+		final HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(pw, HelpFormatter.DEFAULT_WIDTH, "zipdiff.Main [options] ", null, OPTIONS,
+				HelpFormatter.DEFAULT_LEFT_PAD, HelpFormatter.DEFAULT_DESC_PAD, null);
+		pw.flush();
+	}
+
+	/**
+	 * sets the options of the command line on a calculator
+	 * @param calc DifferenceCalculator
+	 * @param line CommandLine
+	 * @throws IOException if the index cache cannot be created
+	 */
+	private void configure(DifferenceCalculator calc, CommandLine line) throws IOException {
+		int numberOfLevelsToTrimInSource = 0;
+		if (line.getOptionValue(OPTION_TRIM_SOURCE_LEVELS) != null) {
+			numberOfLevelsToTrimInSource = Integer.parseInt(line.getOptionValue(OPTION_TRIM_SOURCE_LEVELS));
+		}
+		int numberOfLevelsToTrimInTarget = 0;
+		if (line.getOptionValue(OPTION_TRIM_TARGET_LEVELS) != null) {
+			numberOfLevelsToTrimInTarget = Integer.parseInt(line.getOptionValue(OPTION_TRIM_TARGET_LEVELS));
+		}
+
+		calc.setNumberOfSourceLevelsToTrim(numberOfLevelsToTrimInSource);
+		calc.setNumberOfTargetLevelsToTrim(numberOfLevelsToTrimInTarget);
+
+		if (line.hasOption(OPTION_COMPARE_CRC_VALUES)) {
+			calc.setCompareCRCValues(true);
+		} else {
+			calc.setCompareCRCValues(false);
+		}
+
+		if (line.hasOption(OPTION_COMPARE_CONTENTS)) {
+			calc.setCompareContents(true);
+		}
+
+		if (line.hasOption(OPTION_DETECT_MOVES)) {
+			calc.setDetectMoves(true);
+		}
+
+		if (line.hasOption(OPTION_EXCLUDE_SCM_FILES)) {
+			calc.setExcludeSCMFiles(true);
+		} else {
+			calc.setExcludeSCMFiles(false);
+		}
+
+		if (line.hasOption(OPTION_COMPARE_TIMESTAMPS)) {
+			calc.setCompareTimestamps(true);
+		} else {
+			calc.setCompareTimestamps(false);
+		}
+
+		if (line.hasOption(OPTION_EXCLUDE_REGEX)) {
+			// the option may be given more than once
+			final Set<String> regexSet = new HashSet<String>();
+			for (String regularExpression : line.getOptionValues(OPTION_EXCLUDE_REGEX)) {
+				regexSet.add(regularExpression);
+			}
+
+			calc.setExcludeRegex(regexSet);
+		}
+
+		if (line.getOptionValue(OPTION_INDEX_CACHE) != null) {
+			long indexCacheSize = DEFAULT_INDEX_CACHE_SIZE;
+			if (line.getOptionValue(OPTION_INDEX_CACHE_SIZE) != null) {
+				indexCacheSize = Long.parseLong(line.getOptionValue(OPTION_INDEX_CACHE_SIZE));
+			}
+			final DiskIndexCache cache = new DiskIndexCache(resolve(line.getOptionValue(OPTION_INDEX_CACHE)), indexCacheSize * 1024 * 1024);
+			cache.setVerifyCentralDirectory(line.hasOption(OPTION_VERIFY_INDEX_CACHE));
+			calc.setIndexCache(cache);
+		} else {
+			calc.setIndexCache(indexCache);
+		}
+	}
+
+	/**
+	 * compares the source file with all targets of the batch option
+	 * @param line CommandLine
+	 * @param source the source file
+	 * @param numberOfThreads number of targets compared at the same time
+	 * @param numberOfLevelsToTrimInOutput int
+	 * @param statistics DiffStatistics, or null
+	 * @return exit code
+	 * @throws IOException if the source file or the list of targets cannot be read
+	 */
+	private int runBatch(final CommandLine line, File source, int numberOfThreads, int numberOfLevelsToTrimInOutput,
+			final DiffStatistics statistics) throws IOException {
+		final BatchComparison batch = new BatchComparison(source) {
+			protected DifferenceCalculator createCalculator(File sourcefile, File targetfile) throws IOException {
+				final DifferenceCalculator calc = super.createCalculator(sourcefile, targetfile);
+				configure(calc, line);
+				return calc;
+			}
+
+			protected Builder createBuilder(String output) {
+				return Main.this.createBuilder(output, line.hasOption(OPTION_NESTED_PATCHES), statistics);
+			}
+		};
+		batch.setThreads(numberOfThreads);
+		batch.setNumberOfOutputLevelsToTrim(numberOfLevelsToTrimInOutput);
+		batch.setNestedPatches(line.hasOption(OPTION_NESTED_PATCHES));
+		batch.setStatistics(statistics);
+		batch.setDirectory(directory);
+
+		final File list = resolve(line.getOptionValue(OPTION_BATCH));
+		if (list.isDirectory()) {
+			batch.addDirectory(list, resolveOutput(line.getOptionValue(OPTION_OUTPUT_FILE)));
+		} else {
+			batch.addList(list);
+		}
+
+		int failed = 0;
+		int different = 0;
+		final List<BatchComparison.Result> results = batch.run();
+		for (BatchComparison.Result result : results) {
+			if (result.isFailed()) {
+				failed++;
+				err.println(result);
+			} else {
+				out.println(result);
+				if (result.hasDifferences()) {
+					different++;
+					if (line.hasOption(OPTION_VERBOSE)) {
+						out.println(result.getCounter());
+					}
+				}
+			}
+		}
+		out.println(results.size() + " targets compared, " + different + " different, " + failed + " failed.");
+		printStatistics(line, statistics);
+
+		if (failed > 0) {
+			return EXITCODE_ERROR;
+		}
+		if ((different > 0) && line.hasOption(OPTION_ERROR_ON_DIFF)) {
+			return EXITCODE_DIFF;
+		}
+		return 0;
 	}
 
 	/**
@@ -226,65 +650,80 @@ public class Main {
 	 * @param args The command line parameters
 	 */
 	public static void main(String[] args) {
+		final int exitCode = new Main(null, System.out, System.err).run(args);
+		if (exitCode != 0) {
+			System.exit(exitCode);
+		}
+	}
+
+	/**
+	 * runs a comparison with the options of the command line
+	 * @param args The command line parameters
+	 * @return exit code, 0 unless an error occurred or differences were found with errorondifference
+	 */
+	public int run(String[] args) {
 		final CommandLineParser parser = new GnuParser();
 
+		DiffStatistics statistics = null;
 		try {
 			final CommandLine line = parser.parse(OPTIONS, args);
+			if (!line.hasOption(OPTION_TARGET_FILE) && !line.hasOption(OPTION_BATCH)) {
+				throw new MissingOptionException(Collections.singletonList(OPTION_TARGET_FILE));
+			}
 
 			final String sourcefile = line.getOptionValue(OPTION_SOURCE_FILE);
-			final String targetfile = line.getOptionValue(OPTION_TARGET_FILE);
-
-			final File source = new File(sourcefile);
-			final File target = new File(targetfile);
-
-			checkFile(source);
-			checkFile(target);
-
-			System.out.println("Source = " + source);
-			System.out.println("Target = " + target);
-
-			final DifferenceCalculator calc = new DifferenceCalculator(source, target);
-
-			int numberOfLevelsToTrimInSource = 0;
-			if (line.getOptionValue(OPTION_TRIM_SOURCE_LEVELS) != null) {
-				numberOfLevelsToTrimInSource = Integer.parseInt(line.getOptionValue(OPTION_TRIM_SOURCE_LEVELS));
+			final File source = resolve(sourcefile);
+			if (sourcefile.equals(STDIN) && line.hasOption(OPTION_BATCH)) {
+				err.println("The source file cannot be read from standard input in batch mode");
+				return EXITCODE_ERROR;
 			}
-			int numberOfLevelsToTrimInTarget = 0;
-			if (line.getOptionValue(OPTION_TRIM_TARGET_LEVELS) != null) {
-				numberOfLevelsToTrimInTarget = Integer.parseInt(line.getOptionValue(OPTION_TRIM_TARGET_LEVELS));
+			if (!sourcefile.equals(STDIN) && !checkFile(source)) {
+				return EXITCODE_ERROR;
 			}
+			out.println("Source = " + source);
+
 			int numberOfLevelsToTrimInOutput = 0;
 			if (line.getOptionValue(OPTION_TRIM_OUTPUT_LEVELS) != null) {
 				numberOfLevelsToTrimInOutput = Integer.parseInt(line.getOptionValue(OPTION_TRIM_OUTPUT_LEVELS));
 			}
 
-			calc.setNumberOfSourceLevelsToTrim(numberOfLevelsToTrimInSource);
-			calc.setNumberOfTargetLevelsToTrim(numberOfLevelsToTrimInTarget);
-
-			if (line.hasOption(OPTION_COMPARE_CRC_VALUES)) {
-				calc.setCompareCRCValues(true);
-			} else {
-				calc.setCompareCRCValues(false);
+			int numberOfThreads = 1;
+			if (line.getOptionValue(OPTION_THREADS) != null) {
+				numberOfThreads = Integer.parseInt(line.getOptionValue(OPTION_THREADS));
 			}
 
-			if (line.hasOption(OPTION_EXCLUDE_SCM_FILES)) {
-				calc.setExcludeSCMFiles(true);
-			} else {
-				calc.setExcludeSCMFiles(false);
+			statistics = createStatistics(line);
+
+			if (line.hasOption(OPTION_BATCH)) {
+				return runBatch(line, source, numberOfThreads, numberOfLevelsToTrimInOutput, statistics);
 			}
 
-			if (line.hasOption(OPTION_COMPARE_TIMESTAMPS)) {
-				calc.setCompareTimestamps(true);
-			} else {
-				calc.setCompareTimestamps(false);
+			final String targetfile = line.getOptionValue(OPTION_TARGET_FILE);
+			final File target = resolve(targetfile);
+			if (sourcefile.equals(STDIN) && targetfile.equals(STDIN)) {
+				err.println("Only one of the source and target files can be read from standard input");
+				return EXITCODE_ERROR;
 			}
+			if (!targetfile.equals(STDIN) && !checkFile(target)) {
+				return EXITCODE_ERROR;
+			}
+			out.println("Target = " + target);
 
-			if (line.hasOption(OPTION_EXCLUDE_REGEX)) {
-				final String regularExpression = line.getOptionValue(OPTION_EXCLUDE_REGEX);
-				final Set<String> regexSet = new HashSet<String>();
-				regexSet.add(regularExpression);
+			final String outputfile = resolveOutput(line.getOptionValue(OPTION_OUTPUT_FILE));
+			if (targetfile.equals(STDIN) && (BuilderFactory.create(outputfile) instanceof ZipBuilder)) {
+				// the zip builder copies the added and changed entries from the target file
+				err.println("A zip output file cannot be written if the target file is read from standard input");
+				return EXITCODE_ERROR;
+			}
 
-				calc.setExcludeRegex(regexSet);
+			final DifferenceCalculator calc = new DifferenceCalculator(source, target);
+			configure(calc, line);
+			calc.setStatistics(statistics);
+			if (sourcefile.equals(STDIN)) {
+				calc.setSourceStream(in);
+			}
+			if (targetfile.equals(STDIN)) {
+				calc.setTargetStream(in);
 			}
 
 			boolean exitWithErrorOnDiff = false;
@@ -292,42 +731,95 @@ public class Main {
 				exitWithErrorOnDiff = true;
 			}
 
-			final Differences diff = calc.getDifferences();
+			ForkJoinPool executor = null;
+			if (numberOfThreads > 1) {
+				executor = new ForkJoinPool(numberOfThreads);
+				calc.setExecutor(executor);
+				calc.setForkJoinPool(executor);
+			}
 
-			if (line.hasOption(OPTION_OUTPUT_FILE)) {
-				final String outputfile = line.getOptionValue(OPTION_OUTPUT_FILE);
-				writeOutputFile(outputfile, numberOfLevelsToTrimInOutput, diff);
+			final Differences diff;
+			final DifferenceCounter counter;
+			try {
+				if (exitWithErrorOnDiff && (outputfile == null) && !line.hasOption(OPTION_VERBOSE)) {
+					// only the exit code is needed, so the comparison stops at the first difference
+					final boolean different = calc.isDifferent();
+					printStatistics(line, statistics);
+					if (different) {
+						return EXITCODE_DIFF;
+					}
+					out.println("No differences found.");
+					return 0;
+				} else if (line.hasOption(OPTION_STREAM)) {
+					diff = null;
+					DifferenceListener listener = null;
+					if (outputfile != null) {
+						listener = BuilderFactory.createListener(createBuilder(outputfile, line.hasOption(OPTION_NESTED_PATCHES), statistics),
+								outputfile, numberOfLevelsToTrimInOutput);
+					}
+					counter = new DifferenceCounter(listener);
+					calc.getDifferences(counter);
+				} else {
+					diff = calc.getDifferences();
+					counter = null;
+				}
+			} finally {
+				if (executor != null) {
+					executor.shutdown();
+				}
 			}
 
-			if (diff.hasDifferences()) {
+			if ((diff != null) && (outputfile != null)) {
+				writeOutputFile(outputfile, numberOfLevelsToTrimInOutput, line.hasOption(OPTION_NESTED_PATCHES), statistics, diff);
+			}
+			printStatistics(line, statistics);
+
+			final boolean hasDifferences = (diff != null) ? diff.hasDifferences() : counter.hasDifferences();
+			if (hasDifferences) {
 				if (line.hasOption(OPTION_VERBOSE)) {
-					System.out.println(diff);
-					System.out.println(diff.getSource() + " and " + diff.getTarget() + " are different.");
+					if (diff != null) {
+						out.println(diff);
+						out.println(diff.getSource() + " and " + diff.getTarget() + " are different.");
+					} else {
+						out.println(counter);
+						out.println(counter.getSource() + " and " + counter.getTarget() + " are different.");
+					}
 				}
 				if (exitWithErrorOnDiff) {
-					System.exit(EXITCODE_DIFF);
+					return EXITCODE_DIFF;
 				}
 			} else {
-				System.out.println("No differences found.");
+				if (line.hasOption(OPTION_VERBOSE) && (calc.getFastPath() != null)) {
+					out.println("Entries not compared: " + calc.getFastPath());
+				}
+				out.println("No differences found.");
 			}
+			return 0;
 		} catch (MissingOptionException mox) {
 			final StringBuilder sb = new StringBuilder("Missing required options: ");
 			for (Object option : mox.getMissingOptions()) {
 				sb.append((String)option).append(", ");
 			}
 			sb.setLength(sb.length() - 2);
-			System.err.println(sb.toString());
-			final HelpFormatter formatter = new HelpFormatter();
-			formatter.printHelp("zipdiff.Main [options] ", OPTIONS);
-			System.exit(EXITCODE_ERROR);
+			err.println(sb.toString());
+			printHelp();
+			return EXITCODE_ERROR;
 		} catch (ParseException pex) {
-			System.err.println(pex.getMessage());
-			final HelpFormatter formatter = new HelpFormatter();
-			formatter.printHelp("zipdiff.Main [options] ", OPTIONS);
-			System.exit(EXITCODE_ERROR);
+			err.println(pex.getMessage());
+			printHelp();
+			return EXITCODE_ERROR;
 		} catch (Exception ex) {
-			ex.printStackTrace();
-			System.exit(EXITCODE_ERROR);
+			ex.printStackTrace(err);
+			return EXITCODE_ERROR;
+		} finally {
+			if (statistics != null) {
+				try {
+					statistics.unregister();
+				} catch (JMException e) {
+					err.println("Cannot unregister the statistics: " + e);
+				}
+			}
+			out.flush();
 		}
 	}
 }
@@ -0,0 +1,150 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the indexes of recently compared archives in memory, for a process which
+ * compares many archives, like {@link DiffDaemon}. An index is found by the canonical
+ * path of the archive and the options, and it is only used if the identity of the file,
+ * its size and its modification time are unchanged. If the estimated size of the indexes
+ * exceeds the limit, the least recently used ones are dropped. The cached tables are
+ * shared by the comparisons and must not be modified.
+ */
+public class MemoryIndexCache implements IndexCache {
+	/**
+	 * Field entries, in the order of their last use.
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/**
+	 * Field maxSize.
+	 */
+	private final long maxSize;
+
+	/**
+	 * Field size, the estimated size of all cached tables.
+	 */
+	private long size = 0;
+
+	/**
+	 * Constructor for MemoryIndexCache.
+	 * @param maxSize maximum estimated size of the cached indexes in bytes
+	 */
+	public MemoryIndexCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * looks up the index of an archive
+	 * @param archive the archive
+	 * @param options fingerprint of the options which influence the index
+	 * @return the cached index, or null if there is no valid index
+	 * @throws IOException in case of an input/output error
+	 */
+	public EntryTable get(File archive, String options) throws IOException {
+		final String key = archive.getCanonicalPath() + '\n' + options;
+		final Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry == null) {
+			return null;
+		}
+		if (!entry.identity.equals(getIdentity(Files.readAttributes(archive.toPath(), BasicFileAttributes.class)))) {
+			synchronized (this) {
+				if (entries.get(key) == entry) {
+					entries.remove(key);
+					size -= entry.table.getMemorySize();
+				}
+			}
+			return null;
+		}
+		return entry.table;
+	}
+
+	/**
+	 * stores the index of an archive
+	 * @param archive the archive
+	 * @param attributes attributes of the archive, read before it was indexed
+	 * @param options fingerprint of the options which influence the index
+	 * @param digest digest of the central directory of the archive, it is not needed
+	 *        because the identity of the file is checked
+	 * @param table the index
+	 * @throws IOException in case of an input/output error
+	 */
+	public void put(File archive, BasicFileAttributes attributes, String options, byte[] digest, EntryTable table) throws IOException {
+		final String key = archive.getCanonicalPath() + '\n' + options;
+		final Entry entry = new Entry(getIdentity(attributes), table);
+		final long tableSize = table.getMemorySize();
+		if (tableSize > maxSize) {
+			return;
+		}
+		synchronized (this) {
+			final Entry previous = entries.put(key, entry);
+			if (previous != null) {
+				size -= previous.table.getMemorySize();
+			}
+			size += tableSize;
+			final Iterator<Map.Entry<String, Entry>> itr = entries.entrySet().iterator();
+			while ((size > maxSize) && itr.hasNext()) {
+				final Entry eldest = itr.next().getValue();
+				itr.remove();
+				size -= eldest.table.getMemorySize();
+			}
+		}
+	}
+
+	/**
+	 * Method size.
+	 * @return number of cached indexes
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * describes the identity of a file: its file key, e.g. device and inode,
+	 * if the file system provides one, its size and its modification time
+	 * @param attributes BasicFileAttributes of the file
+	 * @return String
+	 */
+	private static String getIdentity(BasicFileAttributes attributes) {
+		return attributes.fileKey() + ";" + attributes.size() + ";" + attributes.lastModifiedTime().toMillis();
+	}
+
+	/**
+	 * A cached index with the identity of its file.
+	 */
+	private static class Entry {
+		/**
+		 * Field identity.
+		 */
+		final String identity;
+
+		/**
+		 * Field table.
+		 */
+		final EntryTable table;
+
+		/**
+		 * Constructor for Entry.
+		 * @param identity String
+		 * @param table EntryTable
+		 */
+		Entry(String identity, EntryTable table) {
+			this.identity = identity;
+			this.table = table;
+		}
+	}
+}
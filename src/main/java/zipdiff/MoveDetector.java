@@ -0,0 +1,303 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * Reports removed and added entries with the same size and CRC as moves and passes
+ * all other differences on to another listener. The removed and added entries are
+ * kept until the comparison is finished and are then joined in linear time: first on
+ * size, CRC and file name, so that a file keeps its name if it has only changed its
+ * directory, then on size and CRC. Directories and empty files are not moved.
+ * <p>
+ * If a ContentComparator is set, the contents of top level entries are compared
+ * before they are reported as moved, like entries with the same name and a different
+ * compressed size. Entries of nested archives are accepted on size and CRC.
+ */
+public class MoveDetector implements DifferenceListener {
+	/**
+	 * Field delegate.
+	 */
+	private final DifferenceListener delegate;
+
+	/**
+	 * Field comparator, null if contents are not compared.
+	 */
+	private ContentComparator comparator;
+
+	/**
+	 * Field removed, the candidates of the source file in the order they were reported.
+	 */
+	private final List<Candidate> removed = new ArrayList<Candidate>();
+
+	/**
+	 * Field added, the candidates of the target file in the order they were reported.
+	 */
+	private final List<Candidate> added = new ArrayList<Candidate>();
+
+	/**
+	 * Constructor for MoveDetector.
+	 * @param delegate listener to pass the differences on to
+	 */
+	public MoveDetector(DifferenceListener delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Method setContentComparator.
+	 * @param comparator compares the contents of top level entries, or null
+	 */
+	public void setContentComparator(ContentComparator comparator) {
+		this.comparator = comparator;
+	}
+
+	/**
+	 * Method start.
+	 * @param sourcename String
+	 * @param targetname String
+	 */
+	public void start(String sourcename, String targetname) {
+		delegate.start(sourcename, targetname);
+	}
+
+	/**
+	 * Method fileAdded.
+	 * @param fqn String
+	 * @param ze ZipEntry
+	 */
+	public void fileAdded(String fqn, ZipEntry ze) {
+		if (isMovable(ze)) {
+			added.add(new Candidate(fqn, ze));
+		} else {
+			delegate.fileAdded(fqn, ze);
+		}
+	}
+
+	/**
+	 * Method fileRemoved.
+	 * @param fqn String
+	 * @param ze ZipEntry
+	 */
+	public void fileRemoved(String fqn, ZipEntry ze) {
+		if (isMovable(ze)) {
+			removed.add(new Candidate(fqn, ze));
+		} else {
+			delegate.fileRemoved(fqn, ze);
+		}
+	}
+
+	/**
+	 * Method fileChanged.
+	 * @param fqn String
+	 * @param srcze ZipEntry
+	 * @param trgze ZipEntry
+	 */
+	public void fileChanged(String fqn, ZipEntry srcze, ZipEntry trgze) {
+		delegate.fileChanged(fqn, srcze, trgze);
+	}
+
+	/**
+	 * Method fileMoved.
+	 * @param sourcefqn String
+	 * @param targetfqn String
+	 * @param srcze ZipEntry
+	 * @param trgze ZipEntry
+	 */
+	public void fileMoved(String sourcefqn, String targetfqn, ZipEntry srcze, ZipEntry trgze) {
+		delegate.fileMoved(sourcefqn, targetfqn, srcze, trgze);
+	}
+
+	/**
+	 * joins the removed and added entries and reports the moves and the entries which
+	 * have not been moved. If it has not been called, {@link #finish()} joins them without
+	 * comparing contents.
+	 * @throws IOException if the contents cannot be compared
+	 */
+	public void detectMoves() throws IOException {
+		final List<Candidate> moves = join();
+		if (comparator != null) {
+			for (Candidate candidate : moves) {
+				if (needsContentComparison(candidate)) {
+					comparator.submit(candidate.fqn, candidate.partner.ze.getName(), candidate.ze.getName());
+				}
+			}
+			for (Candidate candidate : moves) {
+				if (needsContentComparison(candidate)
+						&& !comparator.contentsMatch(candidate.fqn, candidate.partner.ze.getName(), candidate.ze.getName())) {
+					candidate.partner.partner = null;
+					candidate.partner = null;
+				}
+			}
+		}
+		report();
+	}
+
+	/**
+	 * Method finish.
+	 */
+	public void finish() {
+		if (!added.isEmpty() || !removed.isEmpty()) {
+			join();
+			report();
+		}
+		delegate.finish();
+	}
+
+	/**
+	 * pairs the added entries with removed entries, see {@link MoveDetector}
+	 * @return the added entries which have been paired, in the order they were reported
+	 */
+	private List<Candidate> join() {
+		final Map<String, ArrayDeque<Candidate>> byName = new HashMap<String, ArrayDeque<Candidate>>();
+		final Map<String, ArrayDeque<Candidate>> byContent = new HashMap<String, ArrayDeque<Candidate>>();
+		for (Candidate candidate : removed) {
+			add(byName, candidate.getNameKey(), candidate);
+			add(byContent, candidate.getContentKey(), candidate);
+		}
+		for (Candidate candidate : added) {
+			candidate.pair(byName.get(candidate.getNameKey()));
+		}
+		final List<Candidate> moves = new ArrayList<Candidate>();
+		for (Candidate candidate : added) {
+			if (candidate.partner == null) {
+				candidate.pair(byContent.get(candidate.getContentKey()));
+			}
+			if (candidate.partner != null) {
+				moves.add(candidate);
+			}
+		}
+		return moves;
+	}
+
+	/**
+	 * Method add.
+	 * @param map Map&lt;String, ArrayDeque&lt;Candidate&gt;&gt;
+	 * @param key String
+	 * @param candidate Candidate
+	 */
+	private static void add(Map<String, ArrayDeque<Candidate>> map, String key, Candidate candidate) {
+		ArrayDeque<Candidate> candidates = map.get(key);
+		if (candidates == null) {
+			candidates = new ArrayDeque<Candidate>(1);
+			map.put(key, candidates);
+		}
+		candidates.add(candidate);
+	}
+
+	/**
+	 * reports the moves and the entries which have not been moved and forgets them
+	 */
+	private void report() {
+		for (Candidate candidate : added) {
+			if (candidate.partner != null) {
+				delegate.fileMoved(candidate.partner.fqn, candidate.fqn, candidate.partner.ze, candidate.ze);
+			}
+		}
+		for (Candidate candidate : added) {
+			if (candidate.partner == null) {
+				delegate.fileAdded(candidate.fqn, candidate.ze);
+			}
+		}
+		for (Candidate candidate : removed) {
+			if (candidate.partner == null) {
+				delegate.fileRemoved(candidate.fqn, candidate.ze);
+			}
+		}
+		added.clear();
+		removed.clear();
+	}
+
+	/**
+	 * Method needsContentComparison.
+	 * @param candidate added entry which has been paired
+	 * @return true if both entries are top level entries
+	 */
+	private static boolean needsContentComparison(Candidate candidate) {
+		return (candidate.fqn.indexOf('!') < 0) && (candidate.partner.fqn.indexOf('!') < 0);
+	}
+
+	/**
+	 * Method isMovable.
+	 * @param ze ZipEntry
+	 * @return true if the entry is a file with a known CRC and content
+	 */
+	private static boolean isMovable(ZipEntry ze) {
+		return (ze != null) && !ze.isDirectory() && (ze.getSize() > 0) && (ze.getCrc() != -1);
+	}
+
+	/**
+	 * A removed or added entry.
+	 */
+	private static class Candidate {
+		/**
+		 * Field fqn.
+		 */
+		final String fqn;
+
+		/**
+		 * Field ze.
+		 */
+		final ZipEntry ze;
+
+		/**
+		 * Field partner, the entry it has been paired with, or null.
+		 */
+		Candidate partner;
+
+		/**
+		 * Constructor for Candidate.
+		 * @param fqn String
+		 * @param ze ZipEntry
+		 */
+		Candidate(String fqn, ZipEntry ze) {
+			this.fqn = fqn;
+			this.ze = ze;
+		}
+
+		/**
+		 * pairs this added entry with the first removed entry which has not been paired yet.
+		 * Paired entries are dropped from the queue, so each is looked at once per queue.
+		 * @param candidates removed entries with the same key, or null
+		 */
+		void pair(ArrayDeque<Candidate> candidates) {
+			if (candidates == null) {
+				return;
+			}
+			while (!candidates.isEmpty()) {
+				final Candidate candidate = candidates.poll();
+				if (candidate.partner == null) {
+					candidate.partner = this;
+					partner = candidate;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Method getContentKey.
+		 * @return size and CRC
+		 */
+		String getContentKey() {
+			return ze.getSize() + ":" + ze.getCrc();
+		}
+
+		/**
+		 * Method getNameKey.
+		 * @return size, CRC and the name of the file without its directories
+		 */
+		String getNameKey() {
+			final int index = Math.max(fqn.lastIndexOf('/'), fqn.lastIndexOf('!'));
+			return getContentKey() + ":" + fqn.substring(index + 1);
+		}
+	}
+}
@@ -5,27 +5,47 @@
  */
 package zipdiff.ant;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
 
 import zipdiff.DifferenceCalculator;
 import zipdiff.Differences;
+import zipdiff.DiskIndexCache;
 import zipdiff.output.Builder;
 import zipdiff.output.BuilderFactory;
 
 /**
- * Ant task for running zipdiff from a build.xml file
+ * Ant task for running zipdiff from a build.xml file. Besides the source and
+ * target attributes, pairs of archives can be given as nested pair elements, or
+ * as filesets of targets whose sources are found at the same relative path in the
+ * baseline directory. These pairs are compared on a thread pool, which is shared
+ * by all zipdiff tasks of the JVM, so that tasks run in parallel do not start more
+ * threads than there are processors.
  *
  * @author Sean C. Sullivan
  */
 public class ZipDiffTask extends Task {
+	/**
+	 * Field pool, shared by all tasks, null until pairs are compared.
+	 */
+	private static ExecutorService pool;
+
 	/**
 	 * Field source.
 	 */
@@ -71,6 +91,36 @@ public class ZipDiffTask extends Task {
 	 */
 	private boolean compareCRCValues = false;
 
+	/**
+	 * Field compareContents.
+	 */
+	private boolean compareContents = false;
+
+	/**
+	 * Field detectMoves.
+	 */
+	private boolean detectMoves = false;
+
+	/**
+	 * Field nestedPatches.
+	 */
+	private boolean nestedPatches = false;
+
+	/**
+	 * Field indexCache.
+	 */
+	private String indexCache;
+
+	/**
+	 * Field indexCacheSize, in megabytes.
+	 */
+	private long indexCacheSize = 256;
+
+	/**
+	 * Field verifyIndexCache.
+	 */
+	private boolean verifyIndexCache = false;
+
 	/**
 	 * Field patterns.
 	 */
@@ -81,6 +131,36 @@ public class ZipDiffTask extends Task {
 	 */
 	private String property = "";
 
+	/**
+	 * Field pairs.
+	 */
+	private final List<Pair> pairs = new ArrayList<Pair>();
+
+	/**
+	 * Field filesets, target files which are compared with the files in the baseline directory.
+	 */
+	private final List<FileSet> filesets = new ArrayList<FileSet>();
+
+	/**
+	 * Field baseline, the directory of the source files of the filesets.
+	 */
+	private File baseline;
+
+	/**
+	 * Field outputDir, the directory of the output files of the filesets, null for none.
+	 */
+	private File outputDir;
+
+	/**
+	 * Field outputSuffix, appended to the relative path of a target to name its output file.
+	 */
+	private String outputSuffix = ".txt";
+
+	/**
+	 * Field propertyPrefix, prefixed to the relative path of a target to name its property.
+	 */
+	private String propertyPrefix;
+
 	// Backwards compatibility stuff
 
 	public void setFilename1(String name) {
@@ -219,6 +299,103 @@ public class ZipDiffTask extends Task {
 		this.compareCRCValues = b;
 	}
 
+	/**
+	 * Method getCompareContents.
+	 * @return boolean
+	 */
+	public boolean getCompareContents() {
+		return this.compareContents;
+	}
+
+	/**
+	 * Method setCompareContents.
+	 * @param b boolean
+	 */
+	public void setCompareContents(boolean b) {
+		this.compareContents = b;
+	}
+
+	/**
+	 * Method getDetectMoves.
+	 * @return boolean
+	 */
+	public boolean getDetectMoves() {
+		return this.detectMoves;
+	}
+
+	/**
+	 * Method setDetectMoves.
+	 * @param b true to report removed and added files with the same size and CRC as moved
+	 */
+	public void setDetectMoves(boolean b) {
+		this.detectMoves = b;
+	}
+
+	/**
+	 * Method getNestedPatches.
+	 * @return true if archives containing changed nested archives are rebuilt as patches
+	 */
+	public boolean getNestedPatches() {
+		return this.nestedPatches;
+	}
+
+	/**
+	 * Method setNestedPatches.
+	 * @param b boolean
+	 */
+	public void setNestedPatches(boolean b) {
+		this.nestedPatches = b;
+	}
+
+	/**
+	 * Method getIndexCache.
+	 * @return directory of the index cache, or null
+	 */
+	public String getIndexCache() {
+		return this.indexCache;
+	}
+
+	/**
+	 * sets the directory to keep the indexes of the compared files in
+	 * @param name directory
+	 */
+	public void setIndexCache(String name) {
+		this.indexCache = name;
+	}
+
+	/**
+	 * Method getIndexCacheSize.
+	 * @return maximum size of the index cache in megabytes
+	 */
+	public long getIndexCacheSize() {
+		return this.indexCacheSize;
+	}
+
+	/**
+	 * Method setIndexCacheSize.
+	 * @param megabytes maximum size of the index cache
+	 */
+	public void setIndexCacheSize(long megabytes) {
+		this.indexCacheSize = megabytes;
+	}
+
+	/**
+	 * Method getVerifyIndexCache.
+	 * @return true if the central directory of a file is compared with its cached index
+	 */
+	public boolean getVerifyIndexCache() {
+		return this.verifyIndexCache;
+	}
+
+	/**
+	 * compares the central directory of a file with its cached index, also if
+	 * its size and modification time are unchanged
+	 * @param b boolean
+	 */
+	public void setVerifyIndexCache(boolean b) {
+		this.verifyIndexCache = b;
+	}
+
 	/**
 	 * Method getExludeRegexp.
 	 * @return Set&lt;String&gt;
@@ -243,6 +420,15 @@ public class ZipDiffTask extends Task {
 		}
 	}
 
+	/**
+	 * creates a nested excluderegexp element, so that more than one
+	 * regular expression can be given
+	 * @return ExcludeRegexp
+	 */
+	public ExcludeRegexp createExcludeRegexp() {
+		return new ExcludeRegexp();
+	}
+
 	/**
 	 * gets the name of the output file
 	 * @return output file
@@ -267,11 +453,68 @@ public class ZipDiffTask extends Task {
 		this.property = name;
 	}
 
+	/**
+	 * creates a nested pair element
+	 * @return Pair
+	 */
+	public Pair createPair() {
+		final Pair pair = new Pair();
+		pairs.add(pair);
+		return pair;
+	}
+
+	/**
+	 * adds a fileset of target files, which are compared with the files at the
+	 * same relative path in the baseline directory
+	 * @param fileset FileSet
+	 */
+	public void addFileset(FileSet fileset) {
+		filesets.add(fileset);
+	}
+
+	/**
+	 * sets the directory of the source files of the filesets
+	 * @param dir directory
+	 */
+	public void setBaseline(File dir) {
+		this.baseline = dir;
+	}
+
+	/**
+	 * sets the directory of the output files of the filesets, the relative path of
+	 * a target followed by the output suffix is the name of its output file
+	 * @param dir directory
+	 */
+	public void setOutputDir(File dir) {
+		this.outputDir = dir;
+	}
+
+	/**
+	 * sets the suffix of the output files of the filesets, which selects their format
+	 * @param suffix e.g. ".html", default ".txt"
+	 */
+	public void setOutputSuffix(String suffix) {
+		this.outputSuffix = suffix;
+	}
+
+	/**
+	 * sets the prefix of the properties of the filesets, the property of a target,
+	 * which is set if it is different, is named by the prefix followed by its relative path
+	 * @param prefix String
+	 */
+	public void setPropertyPrefix(String prefix) {
+		this.propertyPrefix = prefix;
+	}
+
 	/**
 	 * Method execute.
 	 * @throws BuildException
 	 */
 	public void execute() throws BuildException {
+		if (!pairs.isEmpty() || !filesets.isEmpty()) {
+			executePairs();
+			return;
+		}
 		validate();
 
 		// log("Source=" + source, Project.MSG_DEBUG);
@@ -290,15 +533,143 @@ public class ZipDiffTask extends Task {
 		}
 	}
 
+	/**
+	 * compares all pairs on the shared pool, including the source and target attributes
+	 * if they are set, and sets the property of each pair which is different
+	 * @throws BuildException if a pair is invalid or a comparison failed
+	 */
+	private void executePairs() throws BuildException {
+		final List<Pair> all = new ArrayList<Pair>();
+		if ((this.source != null) || (this.target != null)) {
+			final Pair pair = new Pair();
+			pair.setSource(this.source);
+			pair.setTarget(this.target);
+			pair.setOutput(getOutput());
+			pair.setProperty(this.property);
+			all.add(pair);
+		}
+		all.addAll(pairs);
+		for (FileSet fileset : filesets) {
+			addFileset(fileset, all);
+		}
+		for (Pair pair : all) {
+			pair.validate();
+		}
+
+		final ExecutorService executor = getPool();
+		final List<Future<Boolean>> pending = new ArrayList<Future<Boolean>>(all.size());
+		for (final Pair pair : all) {
+			pending.add(executor.submit(new Callable<Boolean>() {
+				public Boolean call() throws IOException {
+					return Boolean.valueOf(compare(pair));
+				}
+			}));
+		}
+
+		// all comparisons are finished before the first failure is reported
+		BuildException failure = null;
+		for (int i = 0; i < all.size(); i++) {
+			final Pair pair = all.get(i);
+			try {
+				if (DifferenceCalculator.await(pending.get(i)).booleanValue()) {
+					log(pair.source + " and " + pair.target + " are different", Project.MSG_VERBOSE);
+					if (!"".equals(pair.property) && (null == getProject().getProperty(pair.property))) {
+						getProject().setNewProperty(pair.property, "true");
+					}
+				}
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = new BuildException("Cannot compare " + pair.source + " and " + pair.target + ": " + e, e);
+				}
+			} catch (RuntimeException e) {
+				if (failure == null) {
+					failure = new BuildException("Cannot compare " + pair.source + " and " + pair.target + ": " + e, e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * adds a pair for each target of a fileset
+	 * @param fileset FileSet
+	 * @param all the list to add the pairs to
+	 * @throws BuildException if there is no baseline directory
+	 */
+	private void addFileset(FileSet fileset, List<Pair> all) throws BuildException {
+		if (this.baseline == null) {
+			throw new BuildException("baseline is required for filesets");
+		}
+		final File dir = fileset.getDir(getProject());
+		for (String name : fileset.getDirectoryScanner(getProject()).getIncludedFiles()) {
+			final Pair pair = new Pair();
+			pair.setSource(new File(this.baseline, name).getPath());
+			pair.setTarget(new File(dir, name).getPath());
+			if (this.outputDir != null) {
+				pair.setOutput(new File(this.outputDir, name + this.outputSuffix).getPath());
+			}
+			if (this.propertyPrefix != null) {
+				pair.setProperty(this.propertyPrefix + name.replace(File.separatorChar, '/'));
+			}
+			all.add(pair);
+		}
+	}
+
+	/**
+	 * compares a pair and writes its output file
+	 * @param pair Pair
+	 * @return true if there are differences
+	 * @throws IOException in case of an input/output error
+	 */
+	private boolean compare(Pair pair) throws IOException {
+		final Differences diff = createCalculator(pair.source, pair.target).getDifferences();
+		if (pair.output != null) {
+			final File parent = new File(pair.output).getParentFile();
+			if (parent != null) {
+				parent.mkdirs();
+			}
+			writeOutput(pair.output, diff);
+		}
+		return diff.hasDifferences();
+	}
+
+	/**
+	 * gets the pool shared by all tasks, it has as many daemon threads as there are processors
+	 * @return ExecutorService
+	 */
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "zipdiff");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
 	/**
 	 * writes the output file
 	 * @param d set of Differences
 	 * @throws IOException
 	 */
 	protected void writeOutput(Differences d) throws IOException {
-		final String output = getOutput();
-		final Builder builder = BuilderFactory.create(output);
-		builder.build(output, getTrimOutputLevels(), d);
+		writeOutput(getOutput(), d);
+	}
+
+	/**
+	 * writes an output file
+	 * @param filename name of the output file
+	 * @param d set of Differences
+	 * @throws IOException
+	 */
+	protected void writeOutput(String filename, Differences d) throws IOException {
+		final Builder builder = BuilderFactory.create(filename, getNestedPatches());
+		builder.build(filename, getTrimOutputLevels(), d);
 	}
 
 	/**
@@ -310,15 +681,7 @@ public class ZipDiffTask extends Task {
 		Differences diff = null;
 
 		try {
-			final DifferenceCalculator calculator = new DifferenceCalculator(this.source, this.target);
-			calculator.setNumberOfSourceLevelsToTrim(getTrimSourceLevels());
-			calculator.setNumberOfTargetLevelsToTrim(getTrimTargetLevels());
-			calculator.setCompareCRCValues(getCompareCRCValues());
-			calculator.setCompareTimestamps(getCompareTimestamps());
-			calculator.setExcludeSCMFiles(getExcludeSCMFiles());
-			calculator.setExcludeRegex(getExludeRegexp());
-
-			diff = calculator.getDifferences();
+			diff = createCalculator(this.source, this.target).getDifferences();
 		} catch (IOException ex) {
 			throw new BuildException(ex);
 		}
@@ -326,6 +689,31 @@ public class ZipDiffTask extends Task {
 		return diff;
 	}
 
+	/**
+	 * creates a calculator with the options of the task
+	 * @param sourcename name of the source file
+	 * @param targetname name of the target file
+	 * @return DifferenceCalculator
+	 * @throws IOException if the index cache cannot be created
+	 */
+	protected DifferenceCalculator createCalculator(String sourcename, String targetname) throws IOException {
+		final DifferenceCalculator calculator = new DifferenceCalculator(sourcename, targetname);
+		calculator.setNumberOfSourceLevelsToTrim(getTrimSourceLevels());
+		calculator.setNumberOfTargetLevelsToTrim(getTrimTargetLevels());
+		calculator.setCompareCRCValues(getCompareCRCValues());
+		calculator.setCompareTimestamps(getCompareTimestamps());
+		calculator.setCompareContents(getCompareContents());
+		calculator.setDetectMoves(getDetectMoves());
+		if (getIndexCache() != null) {
+			final DiskIndexCache cache = new DiskIndexCache(new File(getIndexCache()), getIndexCacheSize() * 1024 * 1024);
+			cache.setVerifyCentralDirectory(getVerifyIndexCache());
+			calculator.setIndexCache(cache);
+		}
+		calculator.setExcludeSCMFiles(getExcludeSCMFiles());
+		calculator.setExcludeRegex(getExludeRegexp());
+		return calculator;
+	}
+
 	/**
 	 * validates the parameters
 	 * @throws BuildException in case of invalid parameters
@@ -344,4 +732,88 @@ public class ZipDiffTask extends Task {
 			throw new BuildException("output is required");
 		}
 	}
+
+	/**
+	 * A nested pair element, a source and target which are compared with the options of the task.
+	 */
+	public static class Pair {
+		/**
+		 * Field source.
+		 */
+		private String source;
+
+		/**
+		 * Field target.
+		 */
+		private String target;
+
+		/**
+		 * Field output, null for none.
+		 */
+		private String output;
+
+		/**
+		 * Field property.
+		 */
+		private String property = "";
+
+		/**
+		 * Method setSource.
+		 * @param name String
+		 */
+		public void setSource(String name) {
+			this.source = name;
+		}
+
+		/**
+		 * Method setTarget.
+		 * @param name String
+		 */
+		public void setTarget(String name) {
+			this.target = name;
+		}
+
+		/**
+		 * sets the name of the output file, no output is written without it
+		 * @param name filename
+		 */
+		public void setOutput(String name) {
+			this.output = name;
+		}
+
+		/**
+		 * sets the property which is set if the files are different
+		 * @param name String
+		 */
+		public void setProperty(String name) {
+			this.property = name;
+		}
+
+		/**
+		 * validates the parameters
+		 * @throws BuildException in case of invalid parameters
+		 */
+		void validate() throws BuildException {
+			if ((this.source == null) || (this.source.length() < 1)) {
+				throw new BuildException("source is required");
+			}
+			if ((this.target == null) || (this.target.length() < 1)) {
+				throw new BuildException("target is required");
+			}
+		}
+	}
+
+	/**
+	 * A nested excluderegexp element.
+	 */
+	public class ExcludeRegexp {
+
+		/**
+		 * Method setPattern.
+		 * @param pattern regular expression matching the names of excluded entries
+		 */
+		public void setPattern(String pattern) {
+			setExcludeRegexp(pattern);
+		}
+	}
 }
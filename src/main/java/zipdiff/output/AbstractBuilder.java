@@ -7,10 +7,16 @@ package zipdiff.output;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintStream;
 
+import zipdiff.DiffStatistics;
+import zipdiff.DifferenceCounter;
+import zipdiff.DifferenceListener;
 import zipdiff.Differences;
+import zipdiff.ListenerException;
 
 /**
  * abstract base class for Builders.
@@ -23,6 +29,21 @@ public abstract class AbstractBuilder implements Builder {
 	 */
 	private int numberOfOutputLevelsToTrim;
 
+	/**
+	 * statistics to count the written differences in, may be null
+	 */
+	private DiffStatistics statistics;
+
+	/**
+	 * stream the output file "-" is written to
+	 */
+	private OutputStream standardOutput = System.out;
+
+	/**
+	 * stream the warnings are written to
+	 */
+	private PrintStream errorOutput = System.err;
+
 	/**
 	 * builds the output
 	 * @param filename name of output file
@@ -34,23 +55,162 @@ public abstract class AbstractBuilder implements Builder {
 	public void build(String filename, int numberOfLevelsToTrim, Differences d) throws IOException {
 		this.numberOfOutputLevelsToTrim = numberOfLevelsToTrim;
 
+		if (statistics != null) {
+			statistics.startPhase(DiffStatistics.WRITING);
+		}
+		final OutputStream os = openOutput(filename);
+		try {
+			build(os, d);
+		} catch (ListenerException e) {
+			throw e.getCause();
+		} finally {
+			release(os);
+			if (statistics != null) {
+				statistics.differencesWritten(d.getAdded().size() + d.getRemoved().size() + d.getChanged().size()
+						+ d.getMoved().size());
+				statistics.startPhase(DiffStatistics.IDLE);
+			}
+		}
+	}
+
+	/**
+	 * opens the output and creates a listener which writes the differences as they are reported
+	 * @param filename name of output file
+	 * @param numberOfLevelsToTrim number of directory levels to trim
+	 * @return listener, the output is complete after its finish method has been called
+	 * @throws IOException in case of an input/output error
+	 * @see BuilderFactory#createListener(Builder, String, int)
+	 */
+	public DifferenceListener createListener(String filename, int numberOfLevelsToTrim) throws IOException {
+		this.numberOfOutputLevelsToTrim = numberOfLevelsToTrim;
+
+		final DifferenceListener listener = createListener(openOutput(filename));
+		if (statistics == null) {
+			return listener;
+		}
+		// the differences are written while comparing, so there is no phase of its own
+		final DiffStatistics counted = statistics;
+		return new DifferenceCounter(listener) {
+			@Override
+			public void finish() {
+				super.finish();
+				counted.differencesWritten(getCount());
+			}
+		};
+	}
+
+	/**
+	 * creates a listener writing to an output stream. This implementation collects
+	 * the differences and builds the output when the listener is finished, builders
+	 * which can write differences one by one override it.
+	 * @param out OutputStream to write to, it is closed when the listener is finished
+	 * @return DifferenceListener
+	 */
+	protected DifferenceListener createListener(final OutputStream out) {
+		return new Differences() {
+			@Override
+			public void finish() {
+				try {
+					build(out, this);
+				} finally {
+					complete(out);
+				}
+			}
+		};
+	}
+
+	/**
+	 * opens the output file. The stream keeps the first error, so that {@link #release(OutputStream)}
+	 * reports errors which a writer only records in its error flag.
+	 * @param filename name of output file, "-" for stdout
+	 * @return OutputStream
+	 * @throws IOException in case of an input/output error
+	 */
+	protected OutputStream openOutput(String filename) throws IOException {
 		OutputStream os = null;
 		if ((filename == null) || filename.equals("-")) {
-			os = System.out;
+			os = standardOutput;
 		} else {
 			final File file = new File(filename);
 			if (file.isDirectory()) {
-				System.err.println("File \"" + filename + "\" is a directory, using stdout instead");
-				os = System.out;
+				errorOutput.println("File \"" + filename + "\" is a directory, using stdout instead");
+				os = standardOutput;
 			} else if (file.exists() && !file.canWrite()) {
-				System.err.println("Cannot write to \"" + filename + "\", using stdout instead");
-				os = System.out;
+				errorOutput.println("Cannot write to \"" + filename + "\", using stdout instead");
+				os = standardOutput;
 			} else {
-				os = new FileOutputStream(filename);
+				return new Output(new FileOutputStream(filename), true);
 			}
 		}
-		build(os, d);
-		os.flush();
+		return new Output(os, false);
+	}
+
+	/**
+	 * flushes an output stream and closes it unless it is stdout
+	 * @param out OutputStream
+	 * @throws IOException if the output could not be written completely
+	 */
+	protected void release(OutputStream out) throws IOException {
+		if (out instanceof Output) {
+			((Output) out).release();
+			return;
+		}
+		out.flush();
+		if ((out != System.out) && (out != standardOutput)) {
+			out.close();
+		}
+	}
+
+	/**
+	 * releases the output of a listener when it is finished, see {@link #release(OutputStream)}
+	 * @param out OutputStream
+	 * @throws ListenerException if the output could not be written completely
+	 */
+	protected void complete(OutputStream out) {
+		try {
+			release(out);
+		} catch (IOException e) {
+			throw new ListenerException(e);
+		}
+	}
+
+	/**
+	 * flushes the report of a listener when it is finished and releases its output,
+	 * see {@link #release(OutputStream)}
+	 * @param pw writer of the report
+	 * @param out OutputStream the writer writes to
+	 * @throws ListenerException if the report could not be written completely
+	 */
+	protected void complete(ReportWriter pw, OutputStream out) {
+		pw.flush();
+		complete(out);
+		if (pw.checkError()) {
+			throw new ListenerException(new IOException("Error while writing output"));
+		}
+	}
+
+	/**
+	 * Method setStatistics.
+	 * @param statistics DiffStatistics to count the written differences and the time spent writing in, or null
+	 */
+	public void setStatistics(DiffStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * sets the stream the output file "-" is written to, it is flushed but not closed
+	 * @param out OutputStream, default System.out
+	 */
+	public void setStandardOutput(OutputStream out) {
+		this.standardOutput = out;
+	}
+
+	/**
+	 * sets the stream the warnings are written to
+	 * @param err PrintStream, default System.err
+	 */
+	public void setErrorOutput(PrintStream err) {
+		this.errorOutput = err;
 	}
 
 	/**
@@ -67,4 +227,119 @@ public abstract class AbstractBuilder implements Builder {
 	 * @param d differences
 	 */
 	public abstract void build(OutputStream out, Differences d);
+
+	/**
+	 * The output of a builder. It keeps the first error, because the writers of
+	 * the reports only record that an error occurred.
+	 */
+	private static class Output extends FilterOutputStream {
+		/**
+		 * Field closing, false for the standard output, which is flushed but not closed.
+		 */
+		private final boolean closing;
+
+		/**
+		 * Field error, the first error which occurred.
+		 */
+		private IOException error;
+
+		/**
+		 * Constructor for Output.
+		 * @param out OutputStream
+		 * @param closing true to close the stream when the output is released
+		 */
+		Output(OutputStream out, boolean closing) {
+			super(out);
+			this.closing = closing;
+		}
+
+		/**
+		 * Method write.
+		 * @param b int
+		 * @throws IOException in case of an input/output error
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				throw failed(e);
+			}
+		}
+
+		/**
+		 * Method write.
+		 * @param b byte[]
+		 * @param off int
+		 * @param len int
+		 * @throws IOException in case of an input/output error
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				throw failed(e);
+			}
+		}
+
+		/**
+		 * Method flush.
+		 * @throws IOException in case of an input/output error
+		 */
+		@Override
+		public void flush() throws IOException {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				throw failed(e);
+			}
+		}
+
+		/**
+		 * Method close, see {@link #release()}.
+		 * @throws IOException in case of an input/output error
+		 */
+		@Override
+		public void close() throws IOException {
+			release();
+		}
+
+		/**
+		 * flushes and closes the stream unless it is the standard output
+		 * @throws IOException the first error which occurred while writing
+		 */
+		void release() throws IOException {
+			try {
+				flush();
+			} catch (IOException e) {
+				// reported below
+			}
+			if (closing) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					failed(e);
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+			if ((out instanceof PrintStream) && ((PrintStream) out).checkError()) {
+				throw new IOException("Error while writing to standard output");
+			}
+		}
+
+		/**
+		 * Method failed.
+		 * @param e IOException
+		 * @return the first error which occurred
+		 */
+		private IOException failed(IOException e) {
+			if (error == null) {
+				error = e;
+			}
+			return error;
+		}
+	}
 }
@@ -0,0 +1,263 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.output;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+
+import zipdiff.DifferenceListener;
+import zipdiff.Differences;
+import zipdiff.ListenerException;
+
+/**
+ * Writes the differences in a compact binary format. The file starts with the
+ * bytes "ZDIF" and a version byte, followed by length-prefixed records: the type of
+ * the record as byte, the length of its content as int and the content. Strings are
+ * written as their length in UTF-8 bytes followed by the bytes, or -1 for null.
+ * All numbers are big-endian.
+ * <ul>
+ * <li>start: source name, target name</li>
+ * <li>added, removed: name, entry</li>
+ * <li>changed: name, source entry, target entry</li>
+ * <li>moved: name in the target, name in the source, source entry, target entry</li>
+ * <li>finish: number of added, removed, changed and moved entries as long</li>
+ * </ul>
+ * An entry consists of its name in its own archive, size, compressed size and CRC
+ * as long, method as int and time as long; unknown values are -1. Readers skip records
+ * of unknown types, so new types do not change the version.
+ * The output is read by {@link DiffReader}.
+ */
+public class BinaryDiffBuilder extends AbstractBuilder {
+	/**
+	 * builds the output
+	 * @param out OutputStream to write to
+	 * @param d differences
+	 */
+	@Override
+	public void build(OutputStream out, Differences d) {
+		d.report(new RecordWriter(out));
+	}
+
+	/**
+	 * creates a listener which writes one record per difference as it is reported
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	@Override
+	protected DifferenceListener createListener(final OutputStream out) {
+		return new RecordWriter(out) {
+			@Override
+			public void finish() {
+				try {
+					super.finish();
+				} finally {
+					complete(out);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes the records, it is flushed but not closed when it is finished.
+	 * An error stops the comparison with a {@link ListenerException}.
+	 */
+	private static class RecordWriter implements DifferenceListener {
+		/**
+		 * Field out.
+		 */
+		private final DataOutputStream out;
+
+		/**
+		 * Field record, collects the content of a record to determine its length.
+		 */
+		private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+		/**
+		 * Field content.
+		 */
+		private final DataOutputStream content = new DataOutputStream(record);
+
+		/**
+		 * Field added.
+		 */
+		private long added = 0;
+
+		/**
+		 * Field removed.
+		 */
+		private long removed = 0;
+
+		/**
+		 * Field changed.
+		 */
+		private long changed = 0;
+
+		/**
+		 * Field moved.
+		 */
+		private long moved = 0;
+
+		/**
+		 * Constructor for RecordWriter.
+		 * @param out OutputStream
+		 */
+		RecordWriter(OutputStream out) {
+			this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		}
+
+		/**
+		 * Method start.
+		 * @param source name of the source file
+		 * @param target name of the target file
+		 */
+		public void start(String source, String target) {
+			try {
+				out.write(DiffReader.MAGIC);
+				out.writeByte(DiffReader.VERSION);
+				writeString(source);
+				writeString(target);
+				writeRecord(DiffReader.START);
+			} catch (IOException e) {
+				throw new ListenerException(e);
+			}
+		}
+
+		/**
+		 * Method fileAdded.
+		 * @param fqn name of the entry
+		 * @param ze ZipEntry of the target file
+		 */
+		public void fileAdded(String fqn, ZipEntry ze) {
+			added++;
+			writeRecord(DiffReader.ADDED, fqn, null, ze);
+		}
+
+		/**
+		 * Method fileRemoved.
+		 * @param fqn name of the entry
+		 * @param ze ZipEntry of the source file
+		 */
+		public void fileRemoved(String fqn, ZipEntry ze) {
+			removed++;
+			writeRecord(DiffReader.REMOVED, fqn, ze, null);
+		}
+
+		/**
+		 * Method fileChanged.
+		 * @param fqn name of the entry
+		 * @param srcze ZipEntry of the source file
+		 * @param trgze ZipEntry of the target file
+		 */
+		public void fileChanged(String fqn, ZipEntry srcze, ZipEntry trgze) {
+			changed++;
+			writeRecord(DiffReader.CHANGED, fqn, srcze, trgze);
+		}
+
+		/**
+		 * Method fileMoved.
+		 * @param sourcefqn name of the entry in the source file
+		 * @param targetfqn name of the entry in the target file
+		 * @param srcze ZipEntry of the source file
+		 * @param trgze ZipEntry of the target file
+		 */
+		public void fileMoved(String sourcefqn, String targetfqn, ZipEntry srcze, ZipEntry trgze) {
+			moved++;
+			try {
+				writeString(targetfqn);
+				writeString(sourcefqn);
+				writeEntry(srcze);
+				writeEntry(trgze);
+				writeRecord(DiffReader.MOVED);
+			} catch (IOException e) {
+				throw new ListenerException(e);
+			}
+		}
+
+		/**
+		 * Method finish.
+		 */
+		public void finish() {
+			try {
+				content.writeLong(added);
+				content.writeLong(removed);
+				content.writeLong(changed);
+				content.writeLong(moved);
+				writeRecord(DiffReader.FINISH);
+				out.flush();
+			} catch (IOException e) {
+				throw new ListenerException(e);
+			}
+		}
+
+		/**
+		 * writes the record of a difference
+		 * @param type kind of difference
+		 * @param fqn name of the entry
+		 * @param srcze ZipEntry of the source file, or null
+		 * @param trgze ZipEntry of the target file, or null
+		 */
+		private void writeRecord(int type, String fqn, ZipEntry srcze, ZipEntry trgze) {
+			try {
+				writeString(fqn);
+				if (srcze != null) {
+					writeEntry(srcze);
+				}
+				if (trgze != null) {
+					writeEntry(trgze);
+				}
+				writeRecord(type);
+			} catch (IOException e) {
+				throw new ListenerException(e);
+			}
+		}
+
+		/**
+		 * writes the collected content as record
+		 * @param type type of the record
+		 * @throws IOException in case of an input/output error
+		 */
+		private void writeRecord(int type) throws IOException {
+			content.flush();
+			out.writeByte(type);
+			out.writeInt(record.size());
+			record.writeTo(out);
+			record.reset();
+		}
+
+		/**
+		 * Method writeEntry.
+		 * @param ze ZipEntry
+		 * @throws IOException in case of an input/output error
+		 */
+		private void writeEntry(ZipEntry ze) throws IOException {
+			writeString(ze.getName());
+			content.writeLong(ze.getSize());
+			content.writeLong(ze.getCompressedSize());
+			content.writeLong(ze.getCrc());
+			content.writeInt(ze.getMethod());
+			content.writeLong(ze.getTime());
+		}
+
+		/**
+		 * Method writeString.
+		 * @param text String, may be null
+		 * @throws IOException in case of an input/output error
+		 */
+		private void writeString(String text) throws IOException {
+			if (text == null) {
+				content.writeInt(-1);
+				return;
+			}
+			final byte[] bytes = text.getBytes("UTF-8");
+			content.writeInt(bytes.length);
+			content.write(bytes);
+		}
+	}
+}
@@ -6,6 +6,7 @@
 package zipdiff.output;
 
 import java.io.IOException;
+
 import zipdiff.Differences;
 
 /**
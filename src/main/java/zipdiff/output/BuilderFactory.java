@@ -5,6 +5,12 @@
  */
 package zipdiff.output;
 
+import java.io.IOException;
+
+import zipdiff.DifferenceListener;
+import zipdiff.Differences;
+import zipdiff.ListenerException;
+
 /**
  * creates builders based on the filename extension.
  *
@@ -29,6 +35,10 @@ public class BuilderFactory {
 			builder = new XmlBuilder();
 		} else if (filename.endsWith(".zip")) {
 			builder = new ZipBuilder();
+		} else if (filename.endsWith(".jsonl")) {
+			builder = new JsonLinesBuilder();
+		} else if (filename.endsWith(".zdiff")) {
+			builder = new BinaryDiffBuilder();
 		} else {
 			System.err.println("Unknown extension, using text output");
 			builder = new TextBuilder();
@@ -36,4 +46,46 @@ public class BuilderFactory {
 
 		return builder;
 	}
+
+	/**
+	 * creates a builder based on the name of the output file
+	 * @param filename name of output file
+	 * @param nestedPatches true to rebuild archives containing changed nested archives
+	 *        as patches, see {@link ZipBuilder}
+	 * @return Builder
+	 */
+	public static Builder create(String filename, boolean nestedPatches) {
+		final Builder builder = create(filename);
+		if (builder instanceof ZipBuilder) {
+			((ZipBuilder) builder).setNestedPatches(nestedPatches);
+		}
+		return builder;
+	}
+
+	/**
+	 * creates a listener which writes the differences with a builder. Builders derived from
+	 * {@link AbstractBuilder} write them as they are reported, other builders when all
+	 * differences have been collected.
+	 * @param builder Builder
+	 * @param filename name of output file
+	 * @param numberOfOutputLevelsToTrim number of directory levels to trim
+	 * @return listener, the output is complete after its finish method has been called
+	 * @throws IOException in case of an input/output error
+	 */
+	public static DifferenceListener createListener(final Builder builder, final String filename,
+			final int numberOfOutputLevelsToTrim) throws IOException {
+		if (builder instanceof AbstractBuilder) {
+			return ((AbstractBuilder) builder).createListener(filename, numberOfOutputLevelsToTrim);
+		}
+		return new Differences() {
+			@Override
+			public void finish() {
+				try {
+					builder.build(filename, numberOfOutputLevelsToTrim, this);
+				} catch (IOException e) {
+					throw new ListenerException(e);
+				}
+			}
+		};
+	}
 }
@@ -0,0 +1,679 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.output;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+import zipdiff.DifferenceListener;
+
+/**
+ * Reads the output of the {@link JsonLinesBuilder} and the {@link BinaryDiffBuilder}
+ * one record at a time, so that the memory use does not depend on the number of
+ * differences. The format is detected from the first bytes.
+ * <pre>
+ * DiffReader reader = new DiffReader(new File("diff.zdiff"));
+ * try {
+ *     while (reader.next()) {
+ *         if (reader.getType() == DiffReader.CHANGED) {
+ *             ... reader.getName(), reader.getSourceEntry(), reader.getTargetEntry()
+ *         }
+ *     }
+ * } finally {
+ *     reader.close();
+ * }
+ * </pre>
+ */
+public class DiffReader implements Closeable {
+	/**
+	 * Field START, the first record, which names the compared files.
+	 * (value is 1)
+	 */
+	public static final int START = 1;
+
+	/**
+	 * Field ADDED.
+	 * (value is 2)
+	 */
+	public static final int ADDED = 2;
+
+	/**
+	 * Field REMOVED.
+	 * (value is 3)
+	 */
+	public static final int REMOVED = 3;
+
+	/**
+	 * Field CHANGED.
+	 * (value is 4)
+	 */
+	public static final int CHANGED = 4;
+
+	/**
+	 * Field FINISH, the last record, the output is incomplete without it.
+	 * (value is 5)
+	 */
+	public static final int FINISH = 5;
+
+	/**
+	 * Field MOVED, an entry which has another name in the target file.
+	 * (value is 6)
+	 */
+	public static final int MOVED = 6;
+
+	/**
+	 * Field MAGIC, the first bytes of the binary format.
+	 */
+	static final byte[] MAGIC = {'Z', 'D', 'I', 'F'};
+
+	/**
+	 * Field VERSION, version of the binary format.
+	 * (value is 1)
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * Field TYPES, the names of the record types in the JSON format.
+	 */
+	private static final String[] TYPES = {null, "start", "added", "removed", "changed", "finish", "moved"};
+
+	/**
+	 * Field data, the binary input, or null.
+	 */
+	private final DataInputStream data;
+
+	/**
+	 * Field lines, the JSON input, or null.
+	 */
+	private final BufferedReader lines;
+
+	/**
+	 * Field remaining, number of bytes of the current binary record which have not been read.
+	 */
+	private int remaining;
+
+	/**
+	 * Field type.
+	 */
+	private int type;
+
+	/**
+	 * Field name.
+	 */
+	private String name;
+
+	/**
+	 * Field movedFrom.
+	 */
+	private String movedFrom;
+
+	/**
+	 * Field sourceEntry.
+	 */
+	private ZipEntry sourceEntry;
+
+	/**
+	 * Field targetEntry.
+	 */
+	private ZipEntry targetEntry;
+
+	/**
+	 * Field source.
+	 */
+	private String source;
+
+	/**
+	 * Field target.
+	 */
+	private String target;
+
+	/**
+	 * Constructor for DiffReader.
+	 * @param file output of a JsonLinesBuilder or BinaryDiffBuilder
+	 * @throws IOException in case of an input/output error
+	 */
+	public DiffReader(File file) throws IOException {
+		this(new FileInputStream(file));
+	}
+
+	/**
+	 * Constructor for DiffReader.
+	 * @param in output of a JsonLinesBuilder or BinaryDiffBuilder, it is closed by {@link #close()}
+	 * @throws IOException in case of an input/output error
+	 */
+	public DiffReader(InputStream in) throws IOException {
+		final BufferedInputStream bis = new BufferedInputStream(in, 64 * 1024);
+		bis.mark(MAGIC.length);
+		boolean binary = true;
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (bis.read() != MAGIC[i]) {
+				binary = false;
+				break;
+			}
+		}
+		if (binary) {
+			data = new DataInputStream(bis);
+			final int version = data.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("unsupported version " + version);
+			}
+			lines = null;
+		} else {
+			bis.reset();
+			data = null;
+			lines = new BufferedReader(new InputStreamReader(bis, "UTF-8"));
+		}
+	}
+
+	/**
+	 * reads the next record
+	 * @return false at the end of the input
+	 * @throws IOException in case of an input/output error or an invalid record
+	 */
+	public boolean next() throws IOException {
+		name = null;
+		movedFrom = null;
+		sourceEntry = null;
+		targetEntry = null;
+		if (data != null) {
+			return nextBinary();
+		}
+		return nextJson();
+	}
+
+	/**
+	 * Method getType.
+	 * @return type of the current record, e.g. {@link #CHANGED}
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Method getName.
+	 * @return name of the entry of the current record, including the names of nested archives
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Method getMovedFrom.
+	 * @return name of the entry in the source file if the current record is a move, otherwise null
+	 */
+	public String getMovedFrom() {
+		return movedFrom;
+	}
+
+	/**
+	 * Method getSourceEntry.
+	 * @return entry in the source file, null for added entries
+	 */
+	public ZipEntry getSourceEntry() {
+		return sourceEntry;
+	}
+
+	/**
+	 * Method getTargetEntry.
+	 * @return entry in the target file, null for removed entries
+	 */
+	public ZipEntry getTargetEntry() {
+		return targetEntry;
+	}
+
+	/**
+	 * Method getSource.
+	 * @return name of the source file, known after the start record
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Method getTarget.
+	 * @return name of the target file, known after the start record
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * reads the remaining records and reports them to a listener,
+	 * e.g. to convert the output into another format
+	 * @param listener DifferenceListener
+	 * @throws IOException in case of an input/output error or an invalid record
+	 */
+	public void report(DifferenceListener listener) throws IOException {
+		while (next()) {
+			switch (type) {
+				case START:
+					listener.start(source, target);
+					break;
+				case ADDED:
+					listener.fileAdded(name, targetEntry);
+					break;
+				case REMOVED:
+					listener.fileRemoved(name, sourceEntry);
+					break;
+				case CHANGED:
+					listener.fileChanged(name, sourceEntry, targetEntry);
+					break;
+				case MOVED:
+					listener.fileMoved(movedFrom, name, sourceEntry, targetEntry);
+					break;
+				case FINISH:
+					listener.finish();
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	/**
+	 * closes the input
+	 * @throws IOException in case of an input/output error
+	 */
+	public void close() throws IOException {
+		if (data != null) {
+			data.close();
+		} else {
+			lines.close();
+		}
+	}
+
+	/**
+	 * reads the next binary record, records of unknown types are skipped
+	 * @return false at the end of the input
+	 * @throws IOException in case of an input/output error
+	 */
+	private boolean nextBinary() throws IOException {
+		while (true) {
+			final int t = data.read();
+			if (t < 0) {
+				return false;
+			}
+			remaining = data.readInt();
+			if (remaining < 0) {
+				throw new IOException("invalid record length: " + remaining);
+			}
+			type = t;
+			switch (t) {
+				case START:
+					source = readString();
+					target = readString();
+					return true;
+				case ADDED:
+					name = readString();
+					targetEntry = readEntry();
+					return true;
+				case REMOVED:
+					name = readString();
+					sourceEntry = readEntry();
+					return true;
+				case CHANGED:
+					name = readString();
+					sourceEntry = readEntry();
+					targetEntry = readEntry();
+					return true;
+				case MOVED:
+					name = readString();
+					movedFrom = readString();
+					sourceEntry = readEntry();
+					targetEntry = readEntry();
+					return true;
+				default:
+					// the counts of the finish record are not needed
+					while (remaining > 0) {
+						final int n = data.skipBytes(remaining);
+						if (n <= 0) {
+							throw new EOFException("truncated record");
+						}
+						remaining -= n;
+					}
+					if (t == FINISH) {
+						return true;
+					}
+			}
+		}
+	}
+
+	/**
+	 * Method readString.
+	 * @return String, may be null
+	 * @throws IOException in case of an input/output error
+	 */
+	private String readString() throws IOException {
+		consume(4);
+		final int length = data.readInt();
+		if (length < 0) {
+			return null;
+		}
+		consume(length);
+		final byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * checks that the current record contains the bytes which are read next, so that
+	 * a corrupt length cannot make the reader allocate more than the record holds
+	 * @param length number of bytes
+	 * @throws IOException if the record is shorter
+	 */
+	private void consume(int length) throws IOException {
+		if (length > remaining) {
+			throw new IOException("corrupt record: " + length + " bytes expected, " + remaining + " left");
+		}
+		remaining -= length;
+	}
+
+	/**
+	 * Method readEntry.
+	 * @return ZipEntry
+	 * @throws IOException in case of an input/output error
+	 */
+	private ZipEntry readEntry() throws IOException {
+		final ZipEntry entry = new ZipEntry(readString());
+		consume(36);
+		setEntry(entry, data.readLong(), data.readLong(), data.readLong(), data.readInt(), data.readLong());
+		return entry;
+	}
+
+	/**
+	 * sets the known fields of an entry
+	 * @param entry ZipEntry
+	 * @param size size, or -1
+	 * @param compressedSize compressed size, or -1
+	 * @param crc CRC, or -1
+	 * @param method compression method, or -1
+	 * @param time modification time, or -1
+	 */
+	private static void setEntry(ZipEntry entry, long size, long compressedSize, long crc, int method, long time) {
+		if (size >= 0) {
+			entry.setSize(size);
+		}
+		if (compressedSize >= 0) {
+			entry.setCompressedSize(compressedSize);
+		}
+		if (crc >= 0) {
+			entry.setCrc(crc);
+		}
+		if ((method == ZipEntry.STORED) || (method == ZipEntry.DEFLATED)) {
+			entry.setMethod(method);
+		}
+		if (time != -1) {
+			entry.setTime(time);
+		}
+	}
+
+	/**
+	 * reads the next JSON record, empty lines and records of unknown types are skipped
+	 * @return false at the end of the input
+	 * @throws IOException in case of an input/output error or an invalid record
+	 */
+	private boolean nextJson() throws IOException {
+		while (true) {
+			final String line = lines.readLine();
+			if (line == null) {
+				return false;
+			}
+			if (line.trim().length() == 0) {
+				continue;
+			}
+			final Map<String, Object> record = new JsonParser(line).parseRecord();
+			final Object t = record.get("type");
+			for (int i = START; i < TYPES.length; i++) {
+				if (TYPES[i].equals(t)) {
+					type = i;
+					if (i == START) {
+						source = (String) record.get("source");
+						target = (String) record.get("target");
+					}
+					name = (String) record.get("name");
+					movedFrom = (String) record.get("from");
+					sourceEntry = toEntry(record.get("source"), i);
+					targetEntry = toEntry(record.get("target"), i);
+					return true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method toEntry.
+	 * @param value parsed JSON object of an entry
+	 * @param t type of the record
+	 * @return ZipEntry, or null if the record does not contain the entry
+	 */
+	@SuppressWarnings("unchecked")
+	private static ZipEntry toEntry(Object value, int t) {
+		if ((t == START) || !(value instanceof Map)) {
+			return null;
+		}
+		final Map<String, Object> map = (Map<String, Object>) value;
+		final ZipEntry entry = new ZipEntry((String) map.get("entry"));
+		setEntry(entry, getLong(map, "size"), getLong(map, "compressedSize"), getLong(map, "crc"),
+				(int) getLong(map, "method"), getLong(map, "time"));
+		return entry;
+	}
+
+	/**
+	 * Method getLong.
+	 * @param map parsed JSON object
+	 * @param key String
+	 * @return the number, or -1 if it is missing
+	 */
+	private static long getLong(Map<String, Object> map, String key) {
+		final Object value = map.get(key);
+		return (value instanceof Long) ? ((Long) value).longValue() : -1;
+	}
+
+	/**
+	 * Parses the JSON objects written by the JsonLinesBuilder: objects,
+	 * strings, integers, true, false and null.
+	 */
+	private static class JsonParser {
+		/**
+		 * Field text.
+		 */
+		private final String text;
+
+		/**
+		 * Field pos.
+		 */
+		private int pos = 0;
+
+		/**
+		 * Constructor for JsonParser.
+		 * @param text one line
+		 */
+		JsonParser(String text) {
+			this.text = text;
+		}
+
+		/**
+		 * Method parseRecord.
+		 * @return the fields of the object
+		 * @throws IOException if the line is not a JSON object
+		 */
+		@SuppressWarnings("unchecked")
+		Map<String, Object> parseRecord() throws IOException {
+			final Object value = parseValue();
+			skipWhitespace();
+			if (!(value instanceof Map) || (pos < text.length())) {
+				throw error("object expected");
+			}
+			return (Map<String, Object>) value;
+		}
+
+		/**
+		 * Method parseValue.
+		 * @return Map, String, Long, Boolean or null
+		 * @throws IOException in case of invalid JSON
+		 */
+		private Object parseValue() throws IOException {
+			skipWhitespace();
+			if (pos >= text.length()) {
+				throw error("value expected");
+			}
+			final char c = text.charAt(pos);
+			if (c == '{') {
+				return parseObject();
+			} else if (c == '"') {
+				return parseString();
+			} else if ((c == '-') || ((c >= '0') && (c <= '9'))) {
+				final int start = pos++;
+				while ((pos < text.length()) && Character.isDigit(text.charAt(pos))) {
+					pos++;
+				}
+				try {
+					return Long.valueOf(text.substring(start, pos));
+				} catch (NumberFormatException e) {
+					throw error("invalid number");
+				}
+			} else if (text.startsWith("true", pos)) {
+				pos += 4;
+				return Boolean.TRUE;
+			} else if (text.startsWith("false", pos)) {
+				pos += 5;
+				return Boolean.FALSE;
+			} else if (text.startsWith("null", pos)) {
+				pos += 4;
+				return null;
+			}
+			throw error("unexpected character");
+		}
+
+		/**
+		 * Method parseObject.
+		 * @return the fields of the object
+		 * @throws IOException in case of invalid JSON
+		 */
+		private Map<String, Object> parseObject() throws IOException {
+			final Map<String, Object> result = new HashMap<String, Object>();
+			pos++;
+			skipWhitespace();
+			if ((pos < text.length()) && (text.charAt(pos) == '}')) {
+				pos++;
+				return result;
+			}
+			while (true) {
+				skipWhitespace();
+				if ((pos >= text.length()) || (text.charAt(pos) != '"')) {
+					throw error("field name expected");
+				}
+				final String key = parseString();
+				expect(':');
+				result.put(key, parseValue());
+				skipWhitespace();
+				if ((pos < text.length()) && (text.charAt(pos) == ',')) {
+					pos++;
+				} else {
+					expect('}');
+					return result;
+				}
+			}
+		}
+
+		/**
+		 * Method parseString.
+		 * @return String
+		 * @throws IOException in case of invalid JSON
+		 */
+		private String parseString() throws IOException {
+			pos++;
+			final StringBuilder sb = new StringBuilder();
+			while (pos < text.length()) {
+				final char c = text.charAt(pos++);
+				if (c == '"') {
+					return sb.toString();
+				}
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				if (pos >= text.length()) {
+					break;
+				}
+				final char escaped = text.charAt(pos++);
+				switch (escaped) {
+					case 'n':
+						sb.append('\n');
+						break;
+					case 'r':
+						sb.append('\r');
+						break;
+					case 't':
+						sb.append('\t');
+						break;
+					case 'b':
+						sb.append('\b');
+						break;
+					case 'f':
+						sb.append('\f');
+						break;
+					case 'u':
+						if (pos + 4 > text.length()) {
+							throw error("invalid escape");
+						}
+						try {
+							sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+						} catch (NumberFormatException e) {
+							throw error("invalid escape");
+						}
+						pos += 4;
+						break;
+					default:
+						sb.append(escaped);
+				}
+			}
+			throw error("unterminated string");
+		}
+
+		/**
+		 * Method expect.
+		 * @param c the expected character
+		 * @throws IOException if the next character is a different one
+		 */
+		private void expect(char c) throws IOException {
+			skipWhitespace();
+			if ((pos >= text.length()) || (text.charAt(pos) != c)) {
+				throw error("'" + c + "' expected");
+			}
+			pos++;
+		}
+
+		/**
+		 * Method skipWhitespace.
+		 */
+		private void skipWhitespace() {
+			while ((pos < text.length()) && Character.isWhitespace(text.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		/**
+		 * Method error.
+		 * @param message String
+		 * @return IOException describing the position of an error
+		 */
+		private IOException error(String message) {
+			return new IOException("invalid record, " + message + " at position " + pos + ": " + text);
+		}
+	}
+}
@@ -8,8 +8,11 @@ package zipdiff.output;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.Date;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.ZipEntry;
 
+import zipdiff.DifferenceListener;
 import zipdiff.Differences;
 
 /**
@@ -35,22 +38,23 @@ public class HtmlBuilder extends AbstractBuilder {
 			target = "target.zip";
 		}
 
-		final PrintWriter pw = new PrintWriter(out);
+		final ReportWriter pw = new ReportWriter(out);
 
-		pw.println("<html>");
-		pw.println("<meta http-equiv=\"Content-Type\" content=\"text/html\"/>");
-		pw.println("<head>");
-		pw.println("<title>File differences</title>");
-		pw.println(getStyleTag());
-		pw.println("</head>");
-
-		pw.println("<body>");
-
-		pw.println(String.format("<p>Source: %s<br/>Target: %s</p>", source, target));
+		writeHeader(pw, source, target);
 
 		writeDiffSet(pw, "Added", d.getAdded().keySet());
 		writeDiffSet(pw, "Removed", d.getRemoved().keySet());
 		writeDiffSet(pw, "Changed", d.getChanged().keySet());
+		if (d.getMoved().size() > 0) {
+			pw.print("<h2>Moved (");
+			pw.print(d.getMoved().size());
+			pw.println(" entries)</h2>");
+			pw.println("<ul>");
+			for (Map.Entry<String, ZipEntry[]> entry : d.getMoved().entrySet()) {
+				writeMoved(pw, null, d.getMovedFrom(entry.getKey()), entry.getKey());
+			}
+			pw.println("</ul>");
+		}
 		pw.println("<hr/>");
 		pw.println("<p>");
 		pw.println("Generated at " + new Date());
@@ -69,16 +73,139 @@ public class HtmlBuilder extends AbstractBuilder {
 	 * @param s	set
 	 */
 	protected void writeDiffSet(PrintWriter pw, String name, Set<String> s) {
-		pw.println(String.format("<h2>%s (%d entries)</h2>", name, s.size()));
+		pw.print("<h2>");
+		pw.print(name);
+		pw.print(" (");
+		pw.print(s.size());
+		pw.println(" entries)</h2>");
 		if (s.size() > 0) {
 			pw.println("<ul>");
 			for (String key: s) {
-				pw.println(String.format("<li>%s</li>", key));
+				writeItem(pw, null, key);
 			}
 			pw.println("</ul>");
 		}
 	}
 
+	/**
+	 * writes the head of the page and the names of the compared files
+	 * @param pw writer to write to
+	 * @param source name of the source file
+	 * @param target name of the target file
+	 */
+	private void writeHeader(PrintWriter pw, String source, String target) {
+		pw.println("<html>");
+		pw.println("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\"/>");
+		pw.println("<head>");
+		pw.println("<title>File differences</title>");
+		pw.println(getStyleTag());
+		pw.println("</head>");
+		pw.println("<body>");
+		pw.print("<p>Source: ");
+		ReportWriter.printEscaped(pw, source);
+		pw.print("<br/>Target: ");
+		ReportWriter.printEscaped(pw, target);
+		pw.println("</p>");
+	}
+
+	/**
+	 * writes a list item
+	 * @param pw writer to write to
+	 * @param prefix text before the name, or null
+	 * @param fqn name of the file
+	 */
+	private static void writeItem(PrintWriter pw, String prefix, String fqn) {
+		pw.print("<li>");
+		if (prefix != null) {
+			pw.print(prefix);
+		}
+		ReportWriter.printEscaped(pw, fqn);
+		pw.println("</li>");
+	}
+
+	/**
+	 * writes a list item for a moved file
+	 * @param pw writer to write to
+	 * @param prefix text before the names, or null
+	 * @param sourcefqn name of the file in the source
+	 * @param targetfqn name of the file in the target
+	 */
+	private static void writeMoved(PrintWriter pw, String prefix, String sourcefqn, String targetfqn) {
+		pw.print("<li>");
+		if (prefix != null) {
+			pw.print(prefix);
+		}
+		ReportWriter.printEscaped(pw, sourcefqn);
+		pw.print(" -&gt; ");
+		ReportWriter.printEscaped(pw, targetfqn);
+		pw.println("</li>");
+	}
+
+	/**
+	 * creates a listener which writes one list item per difference as it is reported
+	 * and the number of differences at the end.
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	@Override
+	protected DifferenceListener createListener(final OutputStream out) {
+		return new DifferenceListener() {
+			private final ReportWriter pw = new ReportWriter(out);
+			private int added = 0;
+			private int removed = 0;
+			private int changed = 0;
+			private int moved = 0;
+
+			public void start(String source, String target) {
+				writeHeader(pw, (source == null) ? "source.zip" : source, (target == null) ? "target.zip" : target);
+				pw.println("<h2>Differences</h2>");
+				pw.println("<ul>");
+			}
+
+			public void fileAdded(String fqn, ZipEntry ze) {
+				added++;
+				writeItem(pw, "Added: ", fqn);
+			}
+
+			public void fileRemoved(String fqn, ZipEntry ze) {
+				removed++;
+				writeItem(pw, "Removed: ", fqn);
+			}
+
+			public void fileChanged(String fqn, ZipEntry srcze, ZipEntry trgze) {
+				changed++;
+				writeItem(pw, "Changed: ", fqn);
+			}
+
+			public void fileMoved(String sourcefqn, String targetfqn, ZipEntry srcze, ZipEntry trgze) {
+				moved++;
+				writeMoved(pw, "Moved: ", sourcefqn, targetfqn);
+			}
+
+			public void finish() {
+				pw.println("</ul>");
+				pw.print("<p>Added: ");
+				pw.print(added);
+				pw.print(", removed: ");
+				pw.print(removed);
+				pw.print(", changed: ");
+				pw.print(changed);
+				if (moved > 0) {
+					pw.print(", moved: ");
+					pw.print(moved);
+				}
+				pw.println("</p>");
+				pw.println("<hr/>");
+				pw.println("<p>");
+				pw.println("Generated at " + new Date());
+				pw.println("</p>");
+				pw.println("</body>");
+				pw.println("</html>");
+				complete(pw, out);
+			}
+		};
+	}
+
 	/**
 	 * generates the HTML style tag.
 	 * @return content of style tag
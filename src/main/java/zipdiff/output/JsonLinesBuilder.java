@@ -0,0 +1,254 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.output;
+
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+
+import zipdiff.DifferenceListener;
+import zipdiff.Differences;
+
+/**
+ * Writes one JSON object per line and difference, including the sizes, CRC and
+ * compression method of the entries. The first line names the compared files, the
+ * last line contains the number of differences:
+ * <pre>
+ * {"type":"start","source":"a.zip","target":"b.zip"}
+ * {"type":"changed","name":"lib/x.jar!A.class","source":{"entry":"A.class","size":10,...},"target":{...}}
+ * {"type":"moved","name":"lib/y/B.class","from":"lib/x/B.class","source":{...},"target":{...}}
+ * {"type":"finish","added":0,"removed":0,"changed":1,"moved":1}
+ * </pre>
+ * The output is read by {@link DiffReader}.
+ */
+public class JsonLinesBuilder extends AbstractBuilder {
+	/**
+	 * builds the output
+	 * @param out OutputStream to write to
+	 * @param d differences
+	 */
+	@Override
+	public void build(OutputStream out, Differences d) {
+		d.report(new RecordWriter(out));
+	}
+
+	/**
+	 * creates a listener which writes one line per difference as it is reported
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	@Override
+	protected DifferenceListener createListener(final OutputStream out) {
+		return new RecordWriter(out) {
+			@Override
+			public void finish() {
+				try {
+					super.finish();
+				} finally {
+					complete(out);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes the records, it is flushed but not closed when it is finished.
+	 */
+	private static class RecordWriter implements DifferenceListener {
+		/**
+		 * Field pw.
+		 */
+		private final ReportWriter pw;
+
+		/**
+		 * Field added.
+		 */
+		private long added = 0;
+
+		/**
+		 * Field removed.
+		 */
+		private long removed = 0;
+
+		/**
+		 * Field changed.
+		 */
+		private long changed = 0;
+
+		/**
+		 * Field moved.
+		 */
+		private long moved = 0;
+
+		/**
+		 * Constructor for RecordWriter.
+		 * @param out OutputStream
+		 */
+		RecordWriter(OutputStream out) {
+			pw = new ReportWriter(out);
+		}
+
+		/**
+		 * Method start.
+		 * @param source name of the source file
+		 * @param target name of the target file
+		 */
+		public void start(String source, String target) {
+			pw.print("{\"type\":\"start\",\"source\":");
+			writeString(source);
+			pw.print(",\"target\":");
+			writeString(target);
+			pw.println('}');
+		}
+
+		/**
+		 * Method fileAdded.
+		 * @param fqn name of the entry
+		 * @param ze ZipEntry of the target file
+		 */
+		public void fileAdded(String fqn, ZipEntry ze) {
+			added++;
+			writeRecord("added", fqn, null, ze);
+		}
+
+		/**
+		 * Method fileRemoved.
+		 * @param fqn name of the entry
+		 * @param ze ZipEntry of the source file
+		 */
+		public void fileRemoved(String fqn, ZipEntry ze) {
+			removed++;
+			writeRecord("removed", fqn, ze, null);
+		}
+
+		/**
+		 * Method fileChanged.
+		 * @param fqn name of the entry
+		 * @param srcze ZipEntry of the source file
+		 * @param trgze ZipEntry of the target file
+		 */
+		public void fileChanged(String fqn, ZipEntry srcze, ZipEntry trgze) {
+			changed++;
+			writeRecord("changed", fqn, srcze, trgze);
+		}
+
+		/**
+		 * Method fileMoved.
+		 * @param sourcefqn name of the entry in the source file
+		 * @param targetfqn name of the entry in the target file
+		 * @param srcze ZipEntry of the source file
+		 * @param trgze ZipEntry of the target file
+		 */
+		public void fileMoved(String sourcefqn, String targetfqn, ZipEntry srcze, ZipEntry trgze) {
+			moved++;
+			pw.print("{\"type\":\"moved\",\"name\":");
+			writeString(targetfqn);
+			pw.print(",\"from\":");
+			writeString(sourcefqn);
+			pw.print(",\"source\":");
+			writeEntry(srcze);
+			pw.print(",\"target\":");
+			writeEntry(trgze);
+			pw.println('}');
+		}
+
+		/**
+		 * Method finish.
+		 */
+		public void finish() {
+			pw.print("{\"type\":\"finish\",\"added\":");
+			pw.print(added);
+			pw.print(",\"removed\":");
+			pw.print(removed);
+			pw.print(",\"changed\":");
+			pw.print(changed);
+			pw.print(",\"moved\":");
+			pw.print(moved);
+			pw.println('}');
+			pw.flush();
+		}
+
+		/**
+		 * writes the record of a difference
+		 * @param type kind of difference
+		 * @param fqn name of the entry
+		 * @param srcze ZipEntry of the source file, or null
+		 * @param trgze ZipEntry of the target file, or null
+		 */
+		private void writeRecord(String type, String fqn, ZipEntry srcze, ZipEntry trgze) {
+			pw.print("{\"type\":\"");
+			pw.print(type);
+			pw.print("\",\"name\":");
+			writeString(fqn);
+			if (srcze != null) {
+				pw.print(",\"source\":");
+				writeEntry(srcze);
+			}
+			if (trgze != null) {
+				pw.print(",\"target\":");
+				writeEntry(trgze);
+			}
+			pw.println('}');
+		}
+
+		/**
+		 * writes the fields of an entry as object, unknown values are -1
+		 * @param ze ZipEntry
+		 */
+		private void writeEntry(ZipEntry ze) {
+			pw.print("{\"entry\":");
+			writeString(ze.getName());
+			pw.print(",\"size\":");
+			pw.print(ze.getSize());
+			pw.print(",\"compressedSize\":");
+			pw.print(ze.getCompressedSize());
+			pw.print(",\"crc\":");
+			pw.print(ze.getCrc());
+			pw.print(",\"method\":");
+			pw.print(ze.getMethod());
+			pw.print(",\"time\":");
+			pw.print(ze.getTime());
+			pw.print('}');
+		}
+
+		/**
+		 * writes a JSON string
+		 * @param text String, may be null
+		 */
+		private void writeString(String text) {
+			if (text == null) {
+				pw.print("null");
+				return;
+			}
+			pw.print('"');
+			int start = 0;
+			final int length = text.length();
+			for (int i = 0; i < length; i++) {
+				final char c = text.charAt(i);
+				if ((c == '"') || (c == '\\') || (c < 0x20)) {
+					pw.write(text, start, i - start);
+					if (c == '"') {
+						pw.print("\\\"");
+					} else if (c == '\\') {
+						pw.print("\\\\");
+					} else if (c == '\n') {
+						pw.print("\\n");
+					} else if (c == '\r') {
+						pw.print("\\r");
+					} else if (c == '\t') {
+						pw.print("\\t");
+					} else {
+						pw.print("\\u00");
+						pw.print(Character.forDigit(c >> 4, 16));
+						pw.print(Character.forDigit(c & 0xF, 16));
+					}
+					start = i + 1;
+				}
+			}
+			pw.write(text, start, length - start);
+			pw.print('"');
+		}
+	}
+}
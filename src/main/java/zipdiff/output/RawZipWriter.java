@@ -0,0 +1,489 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.output;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import zipdiff.CentralDirectory;
+import zipdiff.util.ZipUtil;
+
+/**
+ * Writes a zip file by copying the compressed data of entries of another zip file
+ * verbatim, together with their CRC, sizes, method and time. Only the headers are
+ * written anew, so that an entry can be renamed. Nothing is inflated or deflated.
+ * Zip64 records are written if sizes, offsets or the number of entries require them.
+ * Entries whose content is created while writing, e.g. rebuilt nested archives, are
+ * deflated and followed by a data descriptor. Like ZipOutputStream, the writer
+ * rejects a second entry with the same name.
+ */
+public class RawZipWriter {
+	/**
+	 * Field LOCAL_HEADER_LENGTH.
+	 * (value is 30)
+	 */
+	private static final int LOCAL_HEADER_LENGTH = 30;
+
+	/**
+	 * Field CENTRAL_HEADER_LENGTH.
+	 * (value is 46)
+	 */
+	private static final int CENTRAL_HEADER_LENGTH = 46;
+
+	/**
+	 * Field MAGIC32, marks a value which is stored in the zip64 extra field.
+	 */
+	private static final long MAGIC32 = 0xFFFFFFFFL;
+
+	/**
+	 * Field FLAG_DATA_DESCRIPTOR.
+	 * (value is 8)
+	 */
+	private static final int FLAG_DATA_DESCRIPTOR = 8;
+
+	/**
+	 * Field DATA_DESCRIPTOR_SIGNATURE.
+	 * (value is 0x08074b50)
+	 */
+	private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+	/**
+	 * Field FLAG_UTF8.
+	 * (value is 0x800)
+	 */
+	private static final int FLAG_UTF8 = 0x800;
+
+	/**
+	 * Field channel.
+	 */
+	private final WritableByteChannel channel;
+
+	/**
+	 * Field buffer, collects the headers between the transfers of entry data.
+	 * It holds a header with a name of the maximum length.
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocate(128 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Field entries, the entries written so far.
+	 */
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Field names, the names of the entries written so far.
+	 */
+	private final Set<String> names = new HashSet<String>();
+
+	/**
+	 * Field position, the number of bytes written so far.
+	 */
+	private long position = 0;
+
+	/**
+	 * Constructor for RawZipWriter.
+	 * @param out stream to write to, all writes go to its channel if it is a file
+	 */
+	public RawZipWriter(OutputStream out) {
+		if (out instanceof FileOutputStream) {
+			channel = ((FileOutputStream) out).getChannel();
+		} else {
+			channel = Channels.newChannel(out);
+		}
+	}
+
+	/**
+	 * copies the current record of a central directory
+	 * @param cd central directory positioned at the entry to copy
+	 * @param name name of the entry in the new zip file
+	 * @throws IOException in case of an input/output error, a ZipException if an entry
+	 *         with the same name has been written
+	 */
+	public void copy(CentralDirectory cd, String name) throws IOException {
+		if ((cd.getFlags() & 1) != 0) {
+			throw new ZipException("encrypted entries are not supported");
+		}
+		addName(name);
+		final Entry entry = new Entry();
+		entry.name = name.getBytes("UTF-8");
+		// the sizes are known, so they are written into the local header instead of a data descriptor
+		entry.flags = (cd.getFlags() & ~FLAG_DATA_DESCRIPTOR) | FLAG_UTF8;
+		entry.method = cd.getMethod();
+		entry.dosTime = cd.getDosTime();
+		entry.crc = cd.getCrc();
+		entry.compressedSize = cd.getCompressedSize();
+		entry.size = cd.getSize();
+		entry.localHeaderOffset = position;
+
+		final boolean zip64 = (entry.size >= MAGIC32) || (entry.compressedSize >= MAGIC32);
+		reserve(LOCAL_HEADER_LENGTH + entry.name.length + (zip64 ? 20 : 0));
+		buffer.putInt(ZipUtil.LOCAL_HEADER_SIGNATURE);
+		buffer.putShort((short) (zip64 ? 45 : 20));
+		buffer.putShort((short) entry.flags);
+		buffer.putShort((short) entry.method);
+		buffer.putInt(entry.dosTime);
+		buffer.putInt(entry.crc);
+		buffer.putInt((int) (zip64 ? MAGIC32 : entry.compressedSize));
+		buffer.putInt((int) (zip64 ? MAGIC32 : entry.size));
+		buffer.putShort((short) entry.name.length);
+		buffer.putShort((short) (zip64 ? 20 : 0));
+		buffer.put(entry.name);
+		if (zip64) {
+			buffer.putShort((short) 1);
+			buffer.putShort((short) 16);
+			buffer.putLong(entry.size);
+			buffer.putLong(entry.compressedSize);
+		}
+		flush();
+
+		cd.transferCompressedData(channel);
+		position += entry.compressedSize;
+		entries.add(entry);
+	}
+
+	/**
+	 * starts an entry whose content is written to the returned stream. The content
+	 * is deflated, its CRC and sizes follow in a data descriptor. The entry is
+	 * complete when the stream is closed, which does not close the underlying stream.
+	 * @param name name of the entry in the new zip file
+	 * @param dosTime modification time in MS-DOS format
+	 * @return OutputStream
+	 * @throws IOException in case of an input/output error, a ZipException if an entry
+	 *         with the same name has been written
+	 */
+	public OutputStream openEntry(String name, int dosTime) throws IOException {
+		addName(name);
+		final Entry entry = new Entry();
+		entry.name = name.getBytes("UTF-8");
+		entry.flags = FLAG_DATA_DESCRIPTOR | FLAG_UTF8;
+		entry.method = ZipEntry.DEFLATED;
+		entry.dosTime = dosTime;
+		entry.localHeaderOffset = position;
+
+		reserve(LOCAL_HEADER_LENGTH + entry.name.length);
+		buffer.putInt(ZipUtil.LOCAL_HEADER_SIGNATURE);
+		buffer.putShort((short) 20);
+		buffer.putShort((short) entry.flags);
+		buffer.putShort((short) entry.method);
+		buffer.putInt(entry.dosTime);
+		// CRC and sizes are in the data descriptor
+		buffer.putInt(0);
+		buffer.putInt(0);
+		buffer.putInt(0);
+		buffer.putShort((short) entry.name.length);
+		buffer.putShort((short) 0);
+		buffer.put(entry.name);
+		flush();
+		return new EntryOutputStream(entry);
+	}
+
+	/**
+	 * Method contains.
+	 * @param name name of an entry in the new zip file
+	 * @return true if an entry with this name has been written
+	 */
+	public boolean contains(String name) {
+		return names.contains(name);
+	}
+
+	/**
+	 * records the name of a new entry
+	 * @param name name of the entry in the new zip file
+	 * @throws ZipException if an entry with the same name has been written
+	 */
+	private void addName(String name) throws ZipException {
+		if (!names.add(name)) {
+			throw new ZipException("duplicate entry: " + name);
+		}
+	}
+
+	/**
+	 * writes bytes directly to the channel
+	 * @param b bytes
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 * @throws IOException in case of an input/output error
+	 */
+	private void write(byte[] b, int off, int len) throws IOException {
+		final ByteBuffer data = ByteBuffer.wrap(b, off, len);
+		while (data.hasRemaining()) {
+			channel.write(data);
+		}
+		position += len;
+	}
+
+	/**
+	 * writes the central directory, the zip file is complete afterwards.
+	 * The underlying stream is not closed.
+	 * @throws IOException in case of an input/output error
+	 */
+	public void finish() throws IOException {
+		final long cdOffset = position;
+		for (Entry entry : entries) {
+			final boolean sizes64 = (entry.size >= MAGIC32) || (entry.compressedSize >= MAGIC32);
+			final boolean offset64 = entry.localHeaderOffset >= MAGIC32;
+			final int extraLength = (sizes64 || offset64) ? 4 + (sizes64 ? 16 : 0) + (offset64 ? 8 : 0) : 0;
+			reserve(CENTRAL_HEADER_LENGTH + entry.name.length + extraLength);
+			buffer.putInt(CentralDirectory.CENTRAL_HEADER_SIGNATURE);
+			buffer.putShort((short) (extraLength > 0 ? 45 : 20));
+			buffer.putShort((short) (extraLength > 0 ? 45 : 20));
+			buffer.putShort((short) entry.flags);
+			buffer.putShort((short) entry.method);
+			buffer.putInt(entry.dosTime);
+			buffer.putInt(entry.crc);
+			buffer.putInt((int) (sizes64 ? MAGIC32 : entry.compressedSize));
+			buffer.putInt((int) (sizes64 ? MAGIC32 : entry.size));
+			buffer.putShort((short) entry.name.length);
+			buffer.putShort((short) extraLength);
+			// comment length, disk number, internal and external attributes
+			buffer.putShort((short) 0);
+			buffer.putShort((short) 0);
+			buffer.putShort((short) 0);
+			buffer.putInt(0);
+			buffer.putInt((int) (offset64 ? MAGIC32 : entry.localHeaderOffset));
+			buffer.put(entry.name);
+			if (extraLength > 0) {
+				buffer.putShort((short) 1);
+				buffer.putShort((short) (extraLength - 4));
+				if (sizes64) {
+					buffer.putLong(entry.size);
+					buffer.putLong(entry.compressedSize);
+				}
+				if (offset64) {
+					buffer.putLong(entry.localHeaderOffset);
+				}
+			}
+		}
+		final long cdLength = position + buffer.position() - cdOffset;
+		final long count = entries.size();
+
+		final boolean zip64 = (count >= 0xFFFF) || (cdLength >= MAGIC32) || (cdOffset >= MAGIC32);
+		if (zip64) {
+			final long zip64EndOffset = position + buffer.position();
+			reserve(56 + 20);
+			buffer.putInt(CentralDirectory.ZIP64_END_SIGNATURE);
+			buffer.putLong(44);
+			buffer.putShort((short) 45);
+			buffer.putShort((short) 45);
+			buffer.putInt(0);
+			buffer.putInt(0);
+			buffer.putLong(count);
+			buffer.putLong(count);
+			buffer.putLong(cdLength);
+			buffer.putLong(cdOffset);
+			buffer.putInt(CentralDirectory.ZIP64_LOCATOR_SIGNATURE);
+			buffer.putInt(0);
+			buffer.putLong(zip64EndOffset);
+			buffer.putInt(1);
+		}
+		reserve(22);
+		buffer.putInt(CentralDirectory.END_SIGNATURE);
+		buffer.putShort((short) 0);
+		buffer.putShort((short) 0);
+		buffer.putShort((short) (zip64 ? 0xFFFF : count));
+		buffer.putShort((short) (zip64 ? 0xFFFF : count));
+		buffer.putInt((int) (zip64 ? MAGIC32 : cdLength));
+		buffer.putInt((int) (zip64 ? MAGIC32 : cdOffset));
+		buffer.putShort((short) 0);
+		flush();
+	}
+
+	/**
+	 * makes room in the buffer, writing its content if necessary
+	 * @param length number of bytes to be put into the buffer
+	 * @throws IOException in case of an input/output error
+	 */
+	private void reserve(int length) throws IOException {
+		if (buffer.remaining() < length) {
+			flush();
+		}
+	}
+
+	/**
+	 * writes the content of the buffer
+	 * @throws IOException in case of an input/output error
+	 */
+	private void flush() throws IOException {
+		buffer.flip();
+		position += buffer.remaining();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Deflates the content of an entry started by {@link RawZipWriter#openEntry(String, int)}.
+	 */
+	private class EntryOutputStream extends OutputStream {
+		/**
+		 * Field entry.
+		 */
+		private final Entry entry;
+
+		/**
+		 * Field deflater.
+		 */
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+		/**
+		 * Field crc.
+		 */
+		private final CRC32 crc = new CRC32();
+
+		/**
+		 * Field output, receives the deflated data.
+		 */
+		private final byte[] output = new byte[64 * 1024];
+
+		/**
+		 * Field closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor for EntryOutputStream.
+		 * @param entry Entry
+		 */
+		EntryOutputStream(Entry entry) {
+			this.entry = entry;
+		}
+
+		/**
+		 * Method write.
+		 * @param b int
+		 * @throws IOException in case of an input/output error
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		/**
+		 * Method write.
+		 * @param b bytes
+		 * @param off offset of the first byte
+		 * @param len number of bytes
+		 * @throws IOException in case of an input/output error
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("entry already closed");
+			}
+			crc.update(b, off, len);
+			entry.size += len;
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput()) {
+				deflate();
+			}
+		}
+
+		/**
+		 * writes the deflated data which is available
+		 * @throws IOException in case of an input/output error
+		 */
+		private void deflate() throws IOException {
+			final int count = deflater.deflate(output, 0, output.length);
+			if (count > 0) {
+				RawZipWriter.this.write(output, 0, count);
+				entry.compressedSize += count;
+			}
+		}
+
+		/**
+		 * finishes the entry and writes its data descriptor
+		 * @throws IOException in case of an input/output error
+		 */
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				deflater.finish();
+				while (!deflater.finished()) {
+					deflate();
+				}
+			} finally {
+				deflater.end();
+			}
+			entry.crc = (int) crc.getValue();
+
+			final boolean zip64 = (entry.size >= MAGIC32) || (entry.compressedSize >= MAGIC32);
+			reserve(24);
+			buffer.putInt(DATA_DESCRIPTOR_SIGNATURE);
+			buffer.putInt(entry.crc);
+			if (zip64) {
+				buffer.putLong(entry.compressedSize);
+				buffer.putLong(entry.size);
+			} else {
+				buffer.putInt((int) entry.compressedSize);
+				buffer.putInt((int) entry.size);
+			}
+			RawZipWriter.this.flush();
+			entries.add(entry);
+		}
+	}
+
+	/**
+	 * The header fields of an entry which has been written.
+	 */
+	private static class Entry {
+		/**
+		 * Field name.
+		 */
+		byte[] name;
+
+		/**
+		 * Field flags.
+		 */
+		int flags;
+
+		/**
+		 * Field method.
+		 */
+		int method;
+
+		/**
+		 * Field dosTime.
+		 */
+		int dosTime;
+
+		/**
+		 * Field crc.
+		 */
+		int crc;
+
+		/**
+		 * Field compressedSize.
+		 */
+		long compressedSize;
+
+		/**
+		 * Field size.
+		 */
+		long size;
+
+		/**
+		 * Field localHeaderOffset.
+		 */
+		long localHeaderOffset;
+	}
+}
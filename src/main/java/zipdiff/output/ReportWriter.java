@@ -0,0 +1,105 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.output;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Writes the reports of the text, xml and html builders. The text is encoded in
+ * UTF-8 and buffered, so that a report is written in large blocks. Names are escaped
+ * while they are written, so that no intermediate strings are created for them.
+ */
+public class ReportWriter extends PrintWriter {
+	/**
+	 * Field UTF8.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Field BUFFER_SIZE.
+	 * (value is 65536)
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Field REPLACEMENT, replaces characters which are not allowed in xml.
+	 * (value is ""\uFFFD"")
+	 */
+	private static final String REPLACEMENT = "\uFFFD";
+
+	/**
+	 * Constructor for ReportWriter.
+	 * @param out stream to write to
+	 */
+	public ReportWriter(OutputStream out) {
+		super(new BufferedWriter(new OutputStreamWriter(out, UTF8), BUFFER_SIZE));
+	}
+
+	/**
+	 * writes a text escaped for xml and html, i.e. markup characters are replaced by
+	 * entity references and control characters by the Unicode replacement character
+	 * @param text String
+	 */
+	public void printEscaped(String text) {
+		printEscaped(this, text);
+	}
+
+	/**
+	 * writes a text escaped for xml and html to any writer, see {@link #printEscaped(String)}
+	 * @param pw PrintWriter
+	 * @param text String
+	 */
+	public static void printEscaped(PrintWriter pw, String text) {
+		if (text == null) {
+			pw.print(text);
+			return;
+		}
+		int start = 0;
+		final int length = text.length();
+		for (int i = 0; i < length; i++) {
+			final String replacement = escape(text.charAt(i));
+			if (replacement != null) {
+				pw.write(text, start, i - start);
+				pw.write(replacement);
+				start = i + 1;
+			}
+		}
+		pw.write(text, start, length - start);
+	}
+
+	/**
+	 * Method escape.
+	 * @param c char
+	 * @return the replacement of a character, or null if it is written as it is
+	 */
+	private static String escape(char c) {
+		switch (c) {
+			case '&':
+				return "&amp;";
+			case '<':
+				return "&lt;";
+			case '>':
+				return "&gt;";
+			case '"':
+				return "&quot;";
+			case '\'':
+				return "&#39;";
+			case '\t':
+			case '\n':
+			case '\r':
+				return null;
+			default:
+				if ((c < 0x20) || (c == 0xFFFE) || (c == 0xFFFF)) {
+					return REPLACEMENT;
+				}
+				return null;
+		}
+	}
+}
@@ -6,8 +6,10 @@
 package zipdiff.output;
 
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.util.Map;
+import java.util.zip.ZipEntry;
 
+import zipdiff.DifferenceListener;
 import zipdiff.Differences;
 
 /**
@@ -23,8 +25,138 @@ public class TextBuilder extends AbstractBuilder {
 	 */
 	@Override
 	public void build(OutputStream out, Differences d) {
-		final PrintWriter pw = new PrintWriter(out);
-		pw.println(d.toString());
+		final ReportWriter pw = new ReportWriter(out);
+		writeCount(pw, d.getAdded().size(), " added to " + d.getTarget());
+		for (String key : d.getAdded().keySet()) {
+			writeDifference(pw, "added", key);
+		}
+		writeCount(pw, d.getRemoved().size(), " removed from " + d.getSource());
+		for (String key : d.getRemoved().keySet()) {
+			writeDifference(pw, "removed", key);
+		}
+		writeCount(pw, d.getChanged().size(), " changed");
+		for (Map.Entry<String, ZipEntry[]> entry : d.getChanged().entrySet()) {
+			writeChanged(pw, entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+		}
+		if (d.getMoved().size() > 0) {
+			writeCount(pw, d.getMoved().size(), " moved");
+			for (Map.Entry<String, ZipEntry[]> entry : d.getMoved().entrySet()) {
+				writeMoved(pw, d.getMovedFrom(entry.getKey()), entry.getKey());
+			}
+		}
+		pw.print("Total differences: ");
+		pw.println(d.getAdded().size() + d.getRemoved().size() + d.getChanged().size() + d.getMoved().size());
 		pw.flush();
 	}
+
+	/**
+	 * writes the number of files of a kind of difference
+	 * @param pw writer to write to
+	 * @param count number of files
+	 * @param suffix text after the number of files
+	 */
+	private static void writeCount(ReportWriter pw, int count, String suffix) {
+		pw.print(count);
+		pw.print((count == 1) ? " file" : " files");
+		pw.println(suffix);
+	}
+
+	/**
+	 * writes an added or removed file
+	 * @param pw writer to write to
+	 * @param kind kind of difference
+	 * @param fqn name of the file
+	 */
+	private static void writeDifference(ReportWriter pw, String kind, String fqn) {
+		pw.print("\t[");
+		pw.print(kind);
+		pw.print("] ");
+		pw.println(fqn);
+	}
+
+	/**
+	 * writes a changed file
+	 * @param pw writer to write to
+	 * @param fqn name of the file
+	 * @param srcze entry in the source
+	 * @param trgze entry in the target
+	 */
+	private static void writeChanged(ReportWriter pw, String fqn, ZipEntry srcze, ZipEntry trgze) {
+		pw.print("\t[changed] ");
+		pw.print(fqn);
+		pw.print(" (size: ");
+		pw.print(srcze.getSize());
+		pw.print(" : ");
+		pw.print(trgze.getSize());
+		pw.println(")");
+	}
+
+	/**
+	 * writes a moved file
+	 * @param pw writer to write to
+	 * @param sourcefqn name of the file in the source
+	 * @param targetfqn name of the file in the target
+	 */
+	private static void writeMoved(ReportWriter pw, String sourcefqn, String targetfqn) {
+		pw.print("\t[moved] ");
+		pw.print(sourcefqn);
+		pw.print(" -> ");
+		pw.println(targetfqn);
+	}
+
+	/**
+	 * creates a listener which writes one line per difference as it is reported
+	 * and the number of differences at the end.
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	@Override
+	protected DifferenceListener createListener(final OutputStream out) {
+		return new DifferenceListener() {
+			private final ReportWriter pw = new ReportWriter(out);
+			private String source;
+			private String target;
+			private int added = 0;
+			private int removed = 0;
+			private int changed = 0;
+			private int moved = 0;
+
+			public void start(String sourcename, String targetname) {
+				source = sourcename;
+				target = targetname;
+			}
+
+			public void fileAdded(String fqn, ZipEntry ze) {
+				added++;
+				writeDifference(pw, "added", fqn);
+			}
+
+			public void fileRemoved(String fqn, ZipEntry ze) {
+				removed++;
+				writeDifference(pw, "removed", fqn);
+			}
+
+			public void fileChanged(String fqn, ZipEntry srcze, ZipEntry trgze) {
+				changed++;
+				writeChanged(pw, fqn, srcze, trgze);
+			}
+
+			public void fileMoved(String sourcefqn, String targetfqn, ZipEntry srcze, ZipEntry trgze) {
+				moved++;
+				writeMoved(pw, sourcefqn, targetfqn);
+			}
+
+			public void finish() {
+				writeCount(pw, added, " added to " + target);
+				writeCount(pw, removed, " removed from " + source);
+				writeCount(pw, changed, " changed");
+				if (moved > 0) {
+					writeCount(pw, moved, " moved");
+				}
+				pw.print("Total differences: ");
+				pw.println(added + removed + changed + moved);
+				complete(pw, out);
+			}
+		};
+	}
 }
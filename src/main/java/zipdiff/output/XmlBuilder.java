@@ -8,7 +8,9 @@ package zipdiff.output;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.Set;
+import java.util.zip.ZipEntry;
 
+import zipdiff.DifferenceListener;
 import zipdiff.Differences;
 
 /**
@@ -34,14 +36,15 @@ public class XmlBuilder extends AbstractBuilder {
 			target = "target.zip";
 		}
 
-		final PrintWriter pw = new PrintWriter(out);
+		final ReportWriter pw = new ReportWriter(out);
 
-		pw.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-		pw.print(String.format("<zipdiff source=\"%s\" target=\"%s\">", source, target));
-		pw.println("<differences>");
+		writeHeader(pw, source, target);
 		writeStatusTags(pw, "added", d.getAdded().keySet());
 		writeStatusTags(pw, "removed", d.getRemoved().keySet());
 		writeStatusTags(pw, "changed", d.getChanged().keySet());
+		for (String key : d.getMoved().keySet()) {
+			writeMovedTag(pw, d.getMovedFrom(key), key);
+		}
 		pw.println("</differences>");
 		pw.println("</zipdiff>");
 
@@ -56,7 +59,92 @@ public class XmlBuilder extends AbstractBuilder {
 	 */
 	protected void writeStatusTags(PrintWriter pw, String statusTag, Set<String> modified) {
 		for (String key : modified) {
-			pw.print(String.format("<%s>%s</%s>", statusTag, key, statusTag));
+			writeStatusTag(pw, statusTag, key);
 		}
 	}
+
+	/**
+	 * writes the xml declaration and the start tags
+	 * @param pw writer to write to
+	 * @param source name of the source file
+	 * @param target name of the target file
+	 */
+	private static void writeHeader(PrintWriter pw, String source, String target) {
+		pw.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		pw.print("<zipdiff source=\"");
+		ReportWriter.printEscaped(pw, source);
+		pw.print("\" target=\"");
+		ReportWriter.printEscaped(pw, target);
+		pw.print("\">");
+		pw.println("<differences>");
+	}
+
+	/**
+	 * writes one modified file
+	 * @param pw writer to write to
+	 * @param statusTag kind of modification (added, removed, changed)
+	 * @param fqn name of the file
+	 */
+	private static void writeStatusTag(PrintWriter pw, String statusTag, String fqn) {
+		pw.print('<');
+		pw.print(statusTag);
+		pw.print('>');
+		ReportWriter.printEscaped(pw, fqn);
+		pw.print("</");
+		pw.print(statusTag);
+		pw.println('>');
+	}
+
+	/**
+	 * writes one moved file
+	 * @param pw writer to write to
+	 * @param sourcefqn name of the file in the source
+	 * @param targetfqn name of the file in the target
+	 */
+	private static void writeMovedTag(PrintWriter pw, String sourcefqn, String targetfqn) {
+		pw.print("<moved from=\"");
+		ReportWriter.printEscaped(pw, sourcefqn);
+		pw.print("\">");
+		ReportWriter.printEscaped(pw, targetfqn);
+		pw.println("</moved>");
+	}
+
+	/**
+	 * creates a listener which writes one tag per difference as it is reported.
+	 * The tags of the different kinds of differences are mixed in the order of their names.
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	@Override
+	protected DifferenceListener createListener(final OutputStream out) {
+		return new DifferenceListener() {
+			private final ReportWriter pw = new ReportWriter(out);
+
+			public void start(String source, String target) {
+				writeHeader(pw, (source == null) ? "source.zip" : source, (target == null) ? "target.zip" : target);
+			}
+
+			public void fileAdded(String fqn, ZipEntry ze) {
+				writeStatusTag(pw, "added", fqn);
+			}
+
+			public void fileRemoved(String fqn, ZipEntry ze) {
+				writeStatusTag(pw, "removed", fqn);
+			}
+
+			public void fileChanged(String fqn, ZipEntry srcze, ZipEntry trgze) {
+				writeStatusTag(pw, "changed", fqn);
+			}
+
+			public void fileMoved(String sourcefqn, String targetfqn, ZipEntry srcze, ZipEntry trgze) {
+				writeMovedTag(pw, sourcefqn, targetfqn);
+			}
+
+			public void finish() {
+				pw.println("</differences>");
+				pw.println("</zipdiff>");
+				complete(pw, out);
+			}
+		};
+	}
 }
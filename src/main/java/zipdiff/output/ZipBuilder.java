@@ -5,30 +5,101 @@
  */
 package zipdiff.output;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import zipdiff.CentralDirectory;
+import zipdiff.DifferenceCalculator;
+import zipdiff.DifferenceListener;
 import zipdiff.Differences;
+import zipdiff.ListenerException;
 import zipdiff.util.StringUtil;
 
 /**
- * creates a zip file with the new versions of files that have been added or modified
+ * creates a zip file with the new versions of files that have been added or modified.
+ * <p>
+ * With nested patches, an archive which contains a changed nested archive is not
+ * copied as a whole. It is rebuilt as a patch of its own, which contains only its
+ * added and modified entries, so that e.g. an ear patch contains the changed jar
+ * inside the war instead of the complete war. Archives which only contain changed
+ * files are copied complete and stored, so that their entries keep their
+ * compressed data. Everything is streamed from the target, only the other files of
+ * a rebuilt archive are deflated again. A rebuilt archive is incomplete, so its name
+ * gets the suffix {@link #PATCH_SUFFIX}, e.g. app.war.patch, which keeps it from being
+ * deployed in place of the archive.
+ * <p>
+ * If trimming the output levels maps several files to the same name, the first of
+ * them is written and the others are skipped with a warning.
  *
  * @author Hendrik Brummermann, HIS GmbH
  */
 public class ZipBuilder extends AbstractBuilder {
+	/**
+	 * Field PATCH_SUFFIX, appended to the names of archives which are rebuilt as patches.
+	 * (value is "".patch"")
+	 */
+	public static final String PATCH_SUFFIX = ".patch";
+
+	/**
+	 * Field logger.
+	 */
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
 	/**
 	 * Field filenames.
 	 */
 	private final Set<String> filenames = new TreeSet<String>();
 
+	/**
+	 * Field keys, the keys of the added and modified files by name.
+	 */
+	private final Map<String, String> keys = new HashMap<String, String>();
+
+	/**
+	 * Field nestedEntries, the target entries of added and modified files in nested archives by key.
+	 */
+	private final Map<String, ZipEntry> nestedEntries = new HashMap<String, ZipEntry>();
+
+	/**
+	 * Field containers, the keys of the archives which are rebuilt as patches.
+	 */
+	private Set<String> containers = new HashSet<String>();
+
+	/**
+	 * Field nestedPatches.
+	 */
+	private boolean nestedPatches = false;
+
+	/**
+	 * Method setNestedPatches.
+	 * @param nestedPatches true to rebuild archives containing changed nested archives as patches
+	 */
+	public void setNestedPatches(boolean nestedPatches) {
+		this.nestedPatches = nestedPatches;
+	}
+
+	/**
+	 * Method isNestedPatches.
+	 * @return true if archives containing changed nested archives are rebuilt as patches
+	 */
+	public boolean isNestedPatches() {
+		return nestedPatches;
+	}
+
 	/**
 	 * builds the output
 	 * @param out OutputStream to write to
@@ -39,22 +110,63 @@ public class ZipBuilder extends AbstractBuilder {
 		try {
 			collectAddedFiles(diff);
 			collectModifiedFiles(diff);
+			collectMovedFiles(diff);
 			copyEntries(out, diff.getTarget());
 		} catch (IOException e) {
-			System.err.println("Error while writing zip file: " + e);
-			e.printStackTrace();
+			throw new ListenerException(e);
 		}
 	}
 
+	/**
+	 * creates a listener which only keeps the names of the added and modified files
+	 * and copies them when it is finished.
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	@Override
+	protected DifferenceListener createListener(final OutputStream out) {
+		return new DifferenceListener() {
+			private String target;
+
+			public void start(String sourcename, String targetname) {
+				target = targetname;
+			}
+
+			public void fileAdded(String fqn, ZipEntry ze) {
+				addFile(fqn, ze);
+			}
+
+			public void fileRemoved(String fqn, ZipEntry ze) {
+				// removed files are not part of the output
+			}
+
+			public void fileChanged(String fqn, ZipEntry srcze, ZipEntry trgze) {
+				addFile(fqn, trgze);
+			}
+
+			public void fileMoved(String sourcefqn, String targetfqn, ZipEntry srcze, ZipEntry trgze) {
+				addFile(targetfqn, trgze);
+			}
+
+			public void finish() {
+				try {
+					copyEntries(out, target);
+				} catch (IOException e) {
+					throw new ListenerException(e);
+				} finally {
+					complete(out);
+				}
+			}
+		};
+	}
+
 	/**
 	 * collects all the files that have been added in the second zip archive
 	 * @param diff differences
 	 */
 	private void collectAddedFiles(Differences diff) {
 		for (Map.Entry<String, ZipEntry[]> mapEntry : diff.getAdded().entrySet()) {
-			if (!mapEntry.getKey().contains("!")) {
-				this.filenames.add((mapEntry.getValue())[0].getName());
-			}
+			addFile(mapEntry.getKey(), (mapEntry.getValue())[0]);
 		}
 	}
 
@@ -64,34 +176,195 @@ public class ZipBuilder extends AbstractBuilder {
 	 */
 	private void collectModifiedFiles(Differences diff) {
 		for (Map.Entry<String, ZipEntry[]> mapEntry : diff.getChanged().entrySet()) {
-			if (!mapEntry.getKey().contains("!")) {
-				this.filenames.add((mapEntry.getValue())[1].getName());
+			addFile(mapEntry.getKey(), (mapEntry.getValue())[1]);
+		}
+	}
+
+	/**
+	 * collects the files that have been moved, they are part of the output under their new names
+	 * @param diff differences
+	 */
+	private void collectMovedFiles(Differences diff) {
+		for (Map.Entry<String, ZipEntry[]> mapEntry : diff.getMoved().entrySet()) {
+			addFile(mapEntry.getKey(), (mapEntry.getValue())[1]);
+		}
+	}
+
+	/**
+	 * records an added or modified file
+	 * @param key key of the file
+	 * @param ze entry of the file in the target
+	 */
+	private void addFile(String key, ZipEntry ze) {
+		if (!key.contains("!")) {
+			this.filenames.add(ze.getName());
+			this.keys.put(ze.getName(), key);
+		} else if (nestedPatches) {
+			this.nestedEntries.put(key, ze);
+		}
+	}
+
+	/**
+	 * finds the archives which are rebuilt as patches, these are the archives
+	 * which contain a nested archive with added or modified files
+	 * @return keys of the archives
+	 */
+	private Set<String> findContainers() {
+		final Set<String> result = new HashSet<String>();
+		for (String key : nestedEntries.keySet()) {
+			int separator = key.indexOf('!');
+			int next = key.indexOf('!', separator + 1);
+			while (next >= 0) {
+				result.add(key.substring(0, separator));
+				separator = next;
+				next = key.indexOf('!', separator + 1);
 			}
 		}
+		return result;
 	}
 
 	/**
 	 * copies the zip entries (with data) from the second archive file to the output file.
+	 * The compressed data is copied as it is, in the order of the entries in the archive.
 	 * @param out output stream
 	 * @param target target file name
 	 * @throws IOException in case of an input/output error
 	 */
 	private void copyEntries(OutputStream out, String target) throws IOException {
-		final ZipOutputStream os = new ZipOutputStream(out);
-		final ZipFile zipFile = new ZipFile(target);
+		this.containers = findContainers();
+		final File targetFile = new File(target);
+		if (targetFile.isDirectory()) {
+			copyFiles(out, targetFile);
+			return;
+		}
+		final Set<String> remaining = new HashSet<String>(this.filenames);
+		final RawZipWriter writer = new RawZipWriter(out);
+		final CentralDirectory cd = new CentralDirectory(targetFile);
+		try {
+			while (cd.next()) {
+				final String filename = cd.getName();
+				// the first of duplicate entries is copied
+				if (remaining.remove(filename)) {
+					final String name = StringUtil.removeDirectoryPrefix(filename, getTrimOutputLevels());
+					if ((name == null) || (name.length() == 0)) {
+						continue;
+					}
+					final String key = this.keys.get(filename);
+					final boolean patch = this.containers.contains(key);
+					if (writer.contains(patch ? name + PATCH_SUFFIX : name)) {
+						skipDuplicate(filename, name);
+						continue;
+					}
+					if (patch) {
+						final OutputStream os = writer.openEntry(name + PATCH_SUFFIX, cd.getDosTime());
+						final InputStream is = new BufferedInputStream(cd.getInputStream());
+						try {
+							writePatch(is, key, os);
+						} finally {
+							is.close();
+						}
+						os.close();
+					} else {
+						writer.copy(cd, name);
+					}
+				}
+			}
+		} finally {
+			cd.close();
+		}
+		writer.finish();
+	}
 
+	/**
+	 * compresses the files from the target directory into the output file.
+	 * @param out output stream
+	 * @param directory the target directory
+	 * @throws IOException in case of an input/output error
+	 */
+	private void copyFiles(OutputStream out, File directory) throws IOException {
+		final ZipOutputStream os = new ZipOutputStream(out);
+		final Set<String> written = new HashSet<String>();
 		for (String filename : this.filenames) {
-			ZipEntry zipEntry = zipFile.getEntry(filename);
-			InputStream is = zipFile.getInputStream(zipEntry);
-			ZipEntry z = new ZipEntry(StringUtil.removeDirectoryPrefix(filename, getTrimOutputLevels()));
+			final String name = StringUtil.removeDirectoryPrefix(filename, getTrimOutputLevels());
+			if ((name == null) || (name.length() == 0)) {
+				continue;
+			}
+			final String key = this.keys.get(filename);
+			final boolean patch = this.containers.contains(key);
+			if (!written.add(patch ? name + PATCH_SUFFIX : name)) {
+				skipDuplicate(filename, name);
+				continue;
+			}
+			final File file = new File(directory, filename);
+			final ZipEntry z = new ZipEntry(patch ? name + PATCH_SUFFIX : name);
+			z.setTime(file.lastModified());
 			os.putNextEntry(z);
-			copyStream(is, os);
+			final InputStream is = new BufferedInputStream(new FileInputStream(file));
+			try {
+				if (patch) {
+					writePatch(is, key, os);
+				} else {
+					copyStream(is, os);
+				}
+			} finally {
+				is.close();
+			}
 			os.closeEntry();
-			is.close();
 		}
+		os.finish();
+	}
+
+	/**
+	 * logs a file which is not written, because a file with the same trimmed name has been written
+	 * @param filename name of the file in the target
+	 * @param name name of the file in the output
+	 */
+	private void skipDuplicate(String filename, String name) {
+		logger.log(Level.WARNING, "skipping " + filename + ", another file has been written as " + name);
+	}
 
-		zipFile.close();
-		os.close();
+	/**
+	 * rebuilds a nested archive as a patch, which contains only its added and modified
+	 * entries. Nested archives are rebuilt recursively if they contain changed nested
+	 * archives themselves, with the suffix {@link #PATCH_SUFFIX}, otherwise they are
+	 * copied complete.
+	 * @param in content of the archive in the target
+	 * @param key key of the archive
+	 * @param out output stream, which is not closed
+	 * @throws IOException in case of an input/output error
+	 */
+	private void writePatch(InputStream in, String key, OutputStream out) throws IOException {
+		final ZipOutputStream zos = new ZipOutputStream(out);
+		final ZipInputStream zis = new ZipInputStream(in);
+		final Set<String> written = new HashSet<String>();
+		ZipEntry entry = zis.getNextEntry();
+		while (entry != null) {
+			final String entryKey = key + "!" + entry.getName();
+			final ZipEntry changed = this.nestedEntries.get(entryKey);
+			// the first of duplicate entries is copied
+			if ((changed != null) && written.add(entry.getName())) {
+				final boolean patch = this.containers.contains(entryKey);
+				final ZipEntry z = new ZipEntry(patch ? entry.getName() + PATCH_SUFFIX : entry.getName());
+				z.setTime(entry.getTime());
+				if (patch) {
+					zos.putNextEntry(z);
+					writePatch(new BufferedInputStream(zis), entryKey, zos);
+				} else {
+					if (DifferenceCalculator.isZipFile(entry.getName()) && (changed.getSize() >= 0)) {
+						// a complete archive is stored, so that the data of its entries is copied as it is
+						z.setMethod(ZipEntry.STORED);
+						z.setSize(changed.getSize());
+						z.setCompressedSize(changed.getSize());
+						z.setCrc(changed.getCrc());
+					}
+					zos.putNextEntry(z);
+					copyStream(zis, zos);
+				}
+				zos.closeEntry();
+			}
+			entry = zis.getNextEntry();
+		}
+		zos.finish();
 	}
 
 	/**
@@ -0,0 +1,125 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a region of a file channel with positional reads, so that several streams
+ * can share one channel without moving its position.
+ */
+public class ChannelInputStream extends InputStream {
+	/**
+	 * Field channel.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Field position.
+	 */
+	private long position;
+
+	/**
+	 * Field end.
+	 */
+	private final long end;
+
+	/**
+	 * Field single.
+	 */
+	private ByteBuffer single;
+
+	/**
+	 * Constructor for ChannelInputStream.
+	 * @param channel channel to read from, it is not closed by this stream
+	 * @param position offset of the first byte of the region
+	 * @param length number of bytes in the region
+	 */
+	public ChannelInputStream(FileChannel channel, long position, long length) {
+		this.channel = channel;
+		this.position = position;
+		this.end = position + length;
+	}
+
+	/**
+	 * Method read.
+	 * @return int
+	 * @throws IOException
+	 */
+	@Override
+	public int read() throws IOException {
+		if (single == null) {
+			single = ByteBuffer.allocate(1);
+		}
+		single.clear();
+		if (read(single) <= 0) {
+			return -1;
+		}
+		return single.get(0) & 0xFF;
+	}
+
+	/**
+	 * Method read.
+	 * @param b byte[]
+	 * @param off int
+	 * @param len int
+	 * @return int
+	 * @throws IOException
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		return read(ByteBuffer.wrap(b, off, len));
+	}
+
+	/**
+	 * reads the next bytes of the region into a buffer
+	 * @param buffer ByteBuffer
+	 * @return number of bytes read, -1 at the end of the region
+	 * @throws IOException
+	 */
+	private int read(ByteBuffer buffer) throws IOException {
+		final long remaining = end - position;
+		if (remaining <= 0) {
+			return -1;
+		}
+		if (buffer.remaining() > remaining) {
+			buffer.limit(buffer.position() + (int) remaining);
+		}
+		final int count = channel.read(buffer, position);
+		if (count < 0) {
+			return -1;
+		}
+		position += count;
+		return count;
+	}
+
+	/**
+	 * Method skip.
+	 * @param n long
+	 * @return long
+	 */
+	@Override
+	public long skip(long n) {
+		final long skipped = Math.max(0, Math.min(n, end - position));
+		position += skipped;
+		return skipped;
+	}
+
+	/**
+	 * Method available.
+	 * @return int
+	 */
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(0, end - position));
+	}
+}
@@ -0,0 +1,358 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether an entry is excluded from the comparison. The matcher is
+ * compiled once: The SCM directory names are kept in a trie of reversed names, which
+ * is checked at every '/' of a name instead of searching each directory name. Regular
+ * expressions which are a literal, a literal prefix, suffix or infix are matched with
+ * String methods, only the others are matched by their own Pattern.
+ */
+public class ExclusionMatcher {
+	/**
+	 * Field SCM_DIRECTORIES.
+	 */
+	private static final String[] SCM_DIRECTORIES = {"CVS", "RCS", "SCCS", ".svn", ".bzr", ".hg", ".git"};
+
+	/**
+	 * Field SCM_TRIE, the reversed SCM directory names.
+	 */
+	private static final Node SCM_TRIE = new Node();
+
+	/**
+	 * Field ANY, a regular expression matching any text of one line.
+	 * (value is "".*"")
+	 */
+	private static final String ANY = ".*";
+
+	/**
+	 * Field METACHARACTERS, characters which have to be escaped to be matched literally.
+	 * (value is ""\\^$.|?*+()[]{}"")
+	 */
+	private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+	static {
+		for (String directory : SCM_DIRECTORIES) {
+			Node node = SCM_TRIE;
+			for (int i = directory.length() - 1; i >= 0; i--) {
+				node = node.add(directory.charAt(i));
+			}
+			node.terminal = true;
+		}
+	}
+
+	/**
+	 * Field excludeSCMFiles.
+	 */
+	private final boolean excludeSCMFiles;
+
+	/**
+	 * Field literals, names which are excluded.
+	 */
+	private final Set<String> literals = new HashSet<String>();
+
+	/**
+	 * Field prefixes, names starting with one of these are excluded.
+	 */
+	private final List<String> prefixes = new ArrayList<String>();
+
+	/**
+	 * Field suffixes, names ending with one of these are excluded.
+	 */
+	private final List<String> suffixes = new ArrayList<String>();
+
+	/**
+	 * Field infixes, names containing one of these are excluded.
+	 */
+	private final List<String> infixes = new ArrayList<String>();
+
+	/**
+	 * Field patterns, the regular expressions which are not literals.
+	 */
+	private final List<Pattern> patterns = new ArrayList<Pattern>();
+
+	/**
+	 * Constructor for ExclusionMatcher.
+	 * @param excludeSCMFiles true to exclude files in SCM directories
+	 * @param regexes regular expressions matching the names of excluded entries, may be null
+	 * @throws java.util.regex.PatternSyntaxException if a regular expression is invalid
+	 */
+	public ExclusionMatcher(boolean excludeSCMFiles, Collection<String> regexes) {
+		this.excludeSCMFiles = excludeSCMFiles;
+		if (regexes != null) {
+			for (String regex : regexes) {
+				add(regex);
+			}
+		}
+	}
+
+	/**
+	 * sorts a regular expression into the fast paths or the remaining patterns
+	 * @param regex regular expression
+	 */
+	private void add(String regex) {
+		int start = 0;
+		int end = regex.length();
+		final boolean anyPrefix = regex.startsWith(ANY);
+		if (anyPrefix) {
+			start += ANY.length();
+		}
+		final boolean anySuffix = (end - start >= ANY.length()) && regex.endsWith(ANY) && !isEscaped(regex, end - ANY.length());
+		if (anySuffix) {
+			end -= ANY.length();
+		}
+		final String literal = unescape(regex, start, end);
+		if (literal == null) {
+			patterns.add(Pattern.compile(regex));
+		} else if (anyPrefix && anySuffix) {
+			infixes.add(literal);
+		} else if (anyPrefix) {
+			suffixes.add(literal);
+		} else if (anySuffix) {
+			prefixes.add(literal);
+		} else {
+			literals.add(literal);
+		}
+	}
+
+	/**
+	 * Method isEscaped.
+	 * @param regex String
+	 * @param pos int
+	 * @return true if the character at pos is preceded by an odd number of backslashes
+	 */
+	private static boolean isEscaped(String regex, int pos) {
+		int backslashes = 0;
+		while ((pos - backslashes > 0) && (regex.charAt(pos - backslashes - 1) == '\\')) {
+			backslashes++;
+		}
+		return (backslashes % 2) == 1;
+	}
+
+	/**
+	 * converts a part of a regular expression into the text it matches
+	 * @param regex regular expression
+	 * @param start start of the part
+	 * @param end end of the part
+	 * @return the text, or null if the part is not a literal
+	 */
+	private static String unescape(String regex, int start, int end) {
+		final StringBuilder sb = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				i++;
+				if (i == end) {
+					return null;
+				}
+				c = regex.charAt(i);
+				if (Character.isLetterOrDigit(c) || (c > 127)) {
+					return null;
+				}
+			} else if (METACHARACTERS.indexOf(c) >= 0) {
+				return null;
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Method isEmpty.
+	 * @return true if no entry is excluded
+	 */
+	public boolean isEmpty() {
+		return !excludeSCMFiles && literals.isEmpty() && prefixes.isEmpty() && suffixes.isEmpty()
+			&& infixes.isEmpty() && patterns.isEmpty();
+	}
+
+	/**
+	 * checks whether an entry is excluded
+	 * @param filepath name of the archive containing the entry, including the separator
+	 * @param entryName name of the entry
+	 * @return true if the entry is in an SCM directory and those are excluded,
+	 *         or if one of the regular expressions matches the name of the entry
+	 */
+	public boolean matches(String filepath, String entryName) {
+		if (entryName == null) {
+			return false;
+		}
+		if (excludeSCMFiles && (isSCMPath(filepath) || isSCMPath(entryName))) {
+			return true;
+		}
+		return matchesRegex(entryName);
+	}
+
+	/**
+	 * checks whether one of the regular expressions matches a name
+	 * @param name String
+	 * @return true if a regular expression matches the complete name
+	 */
+	public boolean matchesRegex(String name) {
+		if (literals.contains(name)) {
+			return true;
+		}
+		if (!prefixes.isEmpty() || !suffixes.isEmpty() || !infixes.isEmpty()) {
+			// .* does not match line terminators
+			final boolean singleLine = !hasLineTerminator(name);
+			if (singleLine) {
+				for (String prefix : prefixes) {
+					if (name.startsWith(prefix)) {
+						return true;
+					}
+				}
+				for (String suffix : suffixes) {
+					if (name.endsWith(suffix)) {
+						return true;
+					}
+				}
+				for (String infix : infixes) {
+					if (name.contains(infix)) {
+						return true;
+					}
+				}
+			} else {
+				if (matchesAcrossLines(name)) {
+					return true;
+				}
+			}
+		}
+		for (Pattern pattern : patterns) {
+			if (pattern.matcher(name).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * matches the fast path expressions against a name with line terminators, which
+	 * is rare enough to do it with regular expressions.
+	 * @param name String
+	 * @return true if a prefix, suffix or infix expression matches
+	 */
+	private boolean matchesAcrossLines(String name) {
+		for (String prefix : prefixes) {
+			if (Pattern.compile(Pattern.quote(prefix) + ANY).matcher(name).matches()) {
+				return true;
+			}
+		}
+		for (String suffix : suffixes) {
+			if (Pattern.compile(ANY + Pattern.quote(suffix)).matcher(name).matches()) {
+				return true;
+			}
+		}
+		for (String infix : infixes) {
+			if (Pattern.compile(ANY + Pattern.quote(infix) + ANY).matcher(name).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Method hasLineTerminator.
+	 * @param name String
+	 * @return true if the name contains a character which is a line terminator for regular expressions
+	 */
+	private static boolean hasLineTerminator(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			if ((c == '\n') || (c == '\r') || (c == '\u0085') || (c == '\u2028') || (c == '\u2029')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * checks whether a path contains a directory of a source control system,
+	 * i.e. one of CVS/, RCS/, SCCS/, .svn/, .bzr/, .hg/ or .git/
+	 * @param path String
+	 * @return true if the path contains an SCM directory name followed by '/'
+	 */
+	public static boolean isSCMPath(String path) {
+		if (path == null) {
+			return false;
+		}
+		int slash = path.indexOf('/');
+		while (slash >= 0) {
+			Node node = SCM_TRIE;
+			for (int i = slash - 1; (i >= 0) && (node != null); i--) {
+				node = node.get(path.charAt(i));
+				if ((node != null) && node.terminal) {
+					return true;
+				}
+			}
+			slash = path.indexOf('/', slash + 1);
+		}
+		return false;
+	}
+
+	/**
+	 * A node of the trie of reversed directory names.
+	 */
+	private static final class Node {
+		/**
+		 * Field keys.
+		 */
+		private char[] keys = new char[0];
+
+		/**
+		 * Field children.
+		 */
+		private Node[] children = new Node[0];
+
+		/**
+		 * Field terminal, true if a directory name ends here.
+		 */
+		private boolean terminal;
+
+		/**
+		 * Method get.
+		 * @param c char
+		 * @return the child for a character, or null
+		 */
+		Node get(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Method add.
+		 * @param c char
+		 * @return the child for a character, which is created if necessary
+		 */
+		Node add(char c) {
+			Node child = get(c);
+			if (child == null) {
+				child = new Node();
+				final int n = keys.length;
+				final char[] newKeys = new char[n + 1];
+				final Node[] newChildren = new Node[n + 1];
+				System.arraycopy(keys, 0, newKeys, 0, n);
+				System.arraycopy(children, 0, newChildren, 0, n);
+				newKeys[n] = c;
+				newChildren[n] = child;
+				keys = newKeys;
+				children = newChildren;
+			}
+			return child;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Zip archive detection methods
+ */
+public class ZipUtil {
+
+	/**
+	 * Field LOCAL_HEADER_SIGNATURE.
+	 * (value is "PK\003\004" read as a little endian int)
+	 */
+	public static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+	/**
+	 * Field EXTENDED_TIMESTAMP_ID, the id of the Info-ZIP extended timestamp extra field.
+	 * (value is 0x5455)
+	 */
+	public static final int EXTENDED_TIMESTAMP_ID = 0x5455;
+
+	/**
+	 * Field ARCHIVE_EXTENSIONS.
+	 */
+	private static final String[] ARCHIVE_EXTENSIONS = {".jar", ".war", ".ear", ".rar", ".zip"};
+
+	/**
+	 * Field BUFFER_SIZE.
+	 * (value is 65536)
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Field MAP_SIZE, the size of the regions of files which are mapped at once.
+	 * (value is 16777216)
+	 */
+	private static final int MAP_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Field BUFFERS, a pair of buffers per thread which is reused by {@link #contentEquals(InputStream, InputStream)}.
+	 */
+	private static final ThreadLocal<byte[][]> BUFFERS = new ThreadLocal<byte[][]>() {
+		@Override
+		protected byte[][] initialValue() {
+			return new byte[][] {new byte[BUFFER_SIZE], new byte[BUFFER_SIZE]};
+		}
+	};
+
+	/**
+	 * checks whether a file name has an archive extension (i.e. jar, war, ear, rar, zip),
+	 * ignoring case. No file is opened.
+	 * @param name file name with path
+	 * @return true if the name has an archive extension
+	 */
+	public static boolean hasArchiveExtension(String name) {
+		if (name == null) {
+			return false;
+		}
+		final int length = name.length();
+		for (String extension : ARCHIVE_EXTENSIONS) {
+			if (name.regionMatches(true, length - extension.length(), extension, 0, extension.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * checks whether an UTF-8 encoded file name has an archive extension, ignoring case
+	 * @param name array holding the name
+	 * @param off position of the name in the array
+	 * @param len length of the name
+	 * @return true if the name has an archive extension
+	 */
+	public static boolean hasArchiveExtension(byte[] name, int off, int len) {
+		for (String extension : ARCHIVE_EXTENSIONS) {
+			final int start = off + len - extension.length();
+			if (start < off) {
+				continue;
+			}
+			boolean match = true;
+			for (int i = 0; match && (i < extension.length()); i++) {
+				match = Character.toLowerCase((char) (name[start + i] & 0xFF)) == extension.charAt(i);
+			}
+			if (match) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * checks whether a stream starts with the signature of a zip local file header.
+	 * The stream is reset to its previous position afterwards.
+	 * @param is stream which supports mark and reset
+	 * @return true if the next four bytes are a local file header signature
+	 * @throws IOException in case of an input/output error
+	 */
+	public static boolean startsWithLocalHeader(InputStream is) throws IOException {
+		if (!is.markSupported()) {
+			throw new IllegalArgumentException("stream does not support mark");
+		}
+		is.mark(4);
+		try {
+			int signature = 0;
+			for (int i = 0; i < 4; i++) {
+				final int b = is.read();
+				if (b < 0) {
+					return false;
+				}
+				signature |= b << (8 * i);
+			}
+			return signature == LOCAL_HEADER_SIGNATURE;
+		} finally {
+			is.reset();
+		}
+	}
+
+	/**
+	 * reads the modification time of an Info-ZIP extended timestamp. The modification time
+	 * is the first time of the extra field in both the local and the central header.
+	 * @param buffer little endian buffer
+	 * @param position position of the extra fields
+	 * @param length length of the extra fields
+	 * @return modification time in seconds since the epoch, -1 if there is none
+	 */
+	public static long getExtendedTime(ByteBuffer buffer, int position, int length) {
+		final int end = position + length;
+		int pos = position;
+		while (pos + 4 <= end) {
+			final int id = buffer.getShort(pos) & 0xFFFF;
+			final int dataLength = buffer.getShort(pos + 2) & 0xFFFF;
+			if (id == EXTENDED_TIMESTAMP_ID) {
+				if ((dataLength < 5) || (pos + 9 > end) || ((buffer.get(pos + 4) & 1) == 0)) {
+					return -1;
+				}
+				return buffer.getInt(pos + 5);
+			}
+			pos += 4 + dataLength;
+		}
+		return -1;
+	}
+
+	/**
+	 * reads the modification time of an Info-ZIP extended timestamp
+	 * @param extra extra fields of an entry, may be null
+	 * @return modification time in seconds since the epoch, -1 if there is none
+	 */
+	public static long getExtendedTime(byte[] extra) {
+		if (extra == null) {
+			return -1;
+		}
+		return getExtendedTime(ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN), 0, extra.length);
+	}
+
+	/**
+	 * compares the content of two streams, stopping at the first difference.
+	 * The streams are not closed.
+	 * @param is1 first stream
+	 * @param is2 second stream
+	 * @return true if both streams contain the same bytes
+	 * @throws IOException in case of an input/output error
+	 */
+	public static boolean contentEquals(InputStream is1, InputStream is2) throws IOException {
+		final byte[][] buffers = BUFFERS.get();
+		final byte[] b1 = buffers[0];
+		final byte[] b2 = buffers[1];
+		while (true) {
+			final int n1 = readFully(is1, b1);
+			final int n2 = readFully(is2, b2);
+			if (n1 != n2) {
+				return false;
+			}
+			for (int i = 0; i < n1; i++) {
+				if (b1[i] != b2[i]) {
+					return false;
+				}
+			}
+			if (n1 < b1.length) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * compares the content of two files, stopping at the first difference. The files
+	 * are memory mapped region by region, so that they are not copied onto the heap.
+	 * @param file1 first file
+	 * @param file2 second file
+	 * @return true if both files have the same length and contain the same bytes
+	 * @throws IOException in case of an input/output error
+	 */
+	public static boolean fileEquals(File file1, File file2) throws IOException {
+		final long length = file1.length();
+		if (length != file2.length()) {
+			return false;
+		}
+		final RandomAccessFile raf1 = new RandomAccessFile(file1, "r");
+		try {
+			final RandomAccessFile raf2 = new RandomAccessFile(file2, "r");
+			try {
+				final FileChannel channel1 = raf1.getChannel();
+				final FileChannel channel2 = raf2.getChannel();
+				for (long position = 0; position < length; position += MAP_SIZE) {
+					final long size = Math.min(MAP_SIZE, length - position);
+					if (!channel1.map(FileChannel.MapMode.READ_ONLY, position, size)
+							.equals(channel2.map(FileChannel.MapMode.READ_ONLY, position, size))) {
+						return false;
+					}
+				}
+				return true;
+			} finally {
+				raf2.close();
+			}
+		} finally {
+			raf1.close();
+		}
+	}
+
+	/**
+	 * reads until the buffer is full or the end of the stream is reached
+	 * @param is stream
+	 * @param b buffer
+	 * @return number of bytes read, less than the length of the buffer only at the end of the stream
+	 * @throws IOException in case of an input/output error
+	 */
+	private static int readFully(InputStream is, byte[] b) throws IOException {
+		int n = 0;
+		while (n < b.length) {
+			final int count = is.read(b, n, b.length - n);
+			if (count < 0) {
+				break;
+			}
+			n += count;
+		}
+		return n;
+	}
+}
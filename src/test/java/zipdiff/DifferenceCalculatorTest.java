@@ -9,23 +9,65 @@ package zipdiff;
 import static org.junit.Assert.*;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import javax.management.ObjectName;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.w3c.dom.Document;
 
+import zipdiff.ant.ZipDiffTask;
 import zipdiff.output.AbstractBuilder;
+import zipdiff.output.Builder;
+import zipdiff.output.BuilderFactory;
+import zipdiff.output.DiffReader;
 import zipdiff.output.HtmlBuilder;
 import zipdiff.output.TextBuilder;
 import zipdiff.output.XmlBuilder;
+import zipdiff.output.ZipBuilder;
+import zipdiff.util.ExclusionMatcher;
+import zipdiff.util.ZipUtil;
 
 /**
  * tests for DifferenceCalculator
@@ -309,6 +351,1882 @@ public class DifferenceCalculatorTest {
 		exerciseOutputBuilders(differences);
 	}
 
+	/**
+	 * Test that indexing both files concurrently finds the same differences
+	 * as indexing them one after the other.
+	 * @throws IOException
+	 */
+	@Test
+	public void testCalculateDifferencesConcurrentIndexing() throws IOException {
+		createJarOneEntryA1();
+		createJarOneEntryB1();
+		final Differences expected = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename).getDifferences();
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename);
+			calc.setExecutor(executor);
+			Differences differences = calc.getDifferences();
+			assertTrue(differences.hasDifferences());
+			assertEquals(expected.getAdded().keySet(), differences.getAdded().keySet());
+			assertEquals(expected.getRemoved().keySet(), differences.getRemoved().keySet());
+			assertEquals(expected.getChanged().keySet(), differences.getChanged().keySet());
+
+			calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename) {
+				@Override
+				protected Map<String, ZipEntry> buildZipEntryMap(ZipFile zf, int nl) throws IOException {
+					if (zf.getName().equals(testJarOneEntryB1Filename)) {
+						zf.close();
+						throw new IOException("unreadable target");
+					}
+					return super.buildZipEntryMap(zf, nl);
+				}
+			};
+			calc.setExecutor(executor);
+			try {
+				calc.getDifferences();
+				fail("IOException of the target should be propagated");
+			} catch (IOException e) {
+				assertEquals("unreadable target", e.getMessage());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Create a jar containing a nested jar with entry A and a text file with a jar extension
+	 * @param filename name of the jar to create
+	 * @throws IOException
+	 */
+	public void createJarNested(String filename) throws IOException {
+		File testDir = new File(testDirPathName);
+		testDir.mkdirs();
+		ByteArrayOutputStream inner = new ByteArrayOutputStream();
+		JarOutputStream innerJarOS = new JarOutputStream(inner);
+		innerJarOS.putNextEntry(new JarEntry(ENTRYA));
+		innerJarOS.write(new byte[] {'a', 'a', 'a'});
+		innerJarOS.close();
+
+		JarOutputStream testJarOS =
+			new JarOutputStream(
+				new BufferedOutputStream(
+					new FileOutputStream(filename)));
+		testJarOS.putNextEntry(new JarEntry("lib/inner.jar"));
+		testJarOS.write(inner.toByteArray());
+		testJarOS.putNextEntry(new JarEntry("fake.jar"));
+		testJarOS.write(new byte[] {'n', 'o', 't', ' ', 'a', ' ', 'j', 'a', 'r'});
+		testJarOS.flush();
+		testJarOS.close();
+	}
+
+	/**
+	 * Test that nested archives are detected by name and signature and expanded.
+	 * @throws IOException
+	 */
+	@Test
+	public void testBuildZipEntryMapNestedArchives() throws IOException {
+		final String filename = testDirPathName + File.separator + "testJarNested.jar";
+		createJarNested(filename);
+		DifferenceCalculator calc = new DifferenceCalculator(filename, filename);
+		Map<String, ZipEntry> map = calc.buildZipEntryMap(new ZipFile(filename));
+		assertTrue(map.containsKey("lib/inner.jar"));
+		assertTrue(map.containsKey("lib/inner.jar!A"));
+		assertTrue(map.containsKey("fake.jar"));
+		assertEquals(3, map.size());
+		assertFalse(DifferenceCalculator.isZipFile("A"));
+		assertTrue(DifferenceCalculator.isZipFile("lib/INNER.JAR"));
+	}
+
+	/**
+	 * Test that the parallel expansion of nested archives finds the same entries
+	 * as the sequential expansion, also for archives nested in nested archives,
+	 * large ones of which are copied into temporary files, and inflates as many bytes.
+	 * @throws IOException
+	 */
+	@Test
+	public void testBuildZipEntryMapInParallel() throws IOException {
+		final String nested = testDirPathName + File.separator + "testJarNested.jar";
+		createJarNested(nested);
+		final String large = testDirPathName + File.separator + "testJarLarge.jar";
+		createJarCompressed(large, 0);
+		assertTrue(new File(large).length() > 64 * 1024);
+		final String filename = testDirPathName + File.separator + "testEarNested.ear";
+		JarOutputStream earOS = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		earOS.putNextEntry(new JarEntry("app.war"));
+		earOS.write(Files.readAllBytes(new File(nested).toPath()));
+		earOS.putNextEntry(new JarEntry("lib/inner.jar"));
+		earOS.write(Files.readAllBytes(new File(nested).toPath()));
+		earOS.putNextEntry(new JarEntry("lib/outer.jar"));
+		final ByteArrayOutputStream outer = new ByteArrayOutputStream();
+		final JarOutputStream outerOS = new JarOutputStream(outer);
+		outerOS.putNextEntry(new JarEntry("large.jar"));
+		outerOS.write(Files.readAllBytes(new File(large).toPath()));
+		outerOS.close();
+		earOS.write(outer.toByteArray());
+		earOS.putNextEntry(new JarEntry(ENTRYB));
+		earOS.write(new byte[] {'b'});
+		earOS.close();
+
+		DifferenceCalculator calc = new DifferenceCalculator(filename, filename);
+		final DiffStatistics sequential = new DiffStatistics();
+		calc.setStatistics(sequential);
+		Map<String, ZipEntry> expected = calc.buildZipEntryMap(new ZipFile(filename), 1);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			calc.setForkJoinPool(pool);
+			final DiffStatistics parallel = new DiffStatistics();
+			calc.setStatistics(parallel);
+			Map<String, ZipEntry> map = calc.buildZipEntryMap(new ZipFile(filename), 1);
+			assertEquals(expected.keySet(), map.keySet());
+			for (Map.Entry<String, ZipEntry> entry : expected.entrySet()) {
+				assertEquals(entry.getValue().getName(), map.get(entry.getKey()).getName());
+				assertEquals(entry.getValue().getCrc(), map.get(entry.getKey()).getCrc());
+			}
+			assertTrue(map.containsKey("inner.jar!lib/inner.jar!A"));
+			assertFalse(map.containsKey("inner.jar!fake.jar!A"));
+			assertTrue(map.containsKey("outer.jar!large.jar!A"));
+			assertEquals(sequential.getNestedArchivesOpened(), parallel.getNestedArchivesOpened());
+			assertEquals(sequential.getBytesInflated(), parallel.getBytesInflated());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Create a jar with a compressible entry A at the given deflate level
+	 * @param filename name of the jar to create
+	 * @param level deflate level
+	 * @throws IOException
+	 */
+	public void createJarCompressed(String filename, int level) throws IOException {
+		JarOutputStream testJarOS = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		testJarOS.setLevel(level);
+		testJarOS.putNextEntry(new JarEntry(ENTRYA));
+		for (int i = 0; i < 10000; i++) {
+			testJarOS.write(("line " + (i % 100) + "\n").getBytes("UTF-8"));
+		}
+		testJarOS.close();
+	}
+
+	/**
+	 * Test that entries which were compressed differently are equal in content
+	 * equivalence mode, with and without executor and EntryTables.
+	 * @throws IOException
+	 */
+	@Test
+	public void testCompareContents() throws IOException {
+		final String fast = testDirPathName + File.separator + "testJarCompressedFast.jar";
+		final String best = testDirPathName + File.separator + "testJarCompressedBest.jar";
+		createJarCompressed(fast, 1);
+		createJarCompressed(best, 9);
+		createJarOneEntryAContentsChanged();
+
+		Differences differences = new DifferenceCalculator(fast, best).getDifferences();
+		assertTrue(differences.getChanged().containsKey(ENTRYA));
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (int i = 0; i < 4; i++) {
+				DifferenceCalculator calc = new DifferenceCalculator(fast, best);
+				calc.setCompareContents(true);
+				calc.setUseEntryTable((i & 1) != 0);
+				calc.setExecutor((i & 2) != 0 ? executor : null);
+				assertFalse(calc.getDifferences().hasDifferences());
+
+				calc = new DifferenceCalculator(fast, testJarOneEntryAContentsChangedFilename);
+				calc.setCompareContents(true);
+				calc.setUseEntryTable((i & 1) != 0);
+				calc.setExecutor((i & 2) != 0 ? executor : null);
+				assertTrue(calc.getDifferences().getChanged().containsKey(ENTRYA));
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		byte[] content = new byte[100000];
+		byte[] changed = content.clone();
+		changed[content.length - 1] = 1;
+		assertTrue(ZipUtil.contentEquals(new ByteArrayInputStream(content), new ByteArrayInputStream(content.clone())));
+		assertFalse(ZipUtil.contentEquals(new ByteArrayInputStream(content), new ByteArrayInputStream(changed)));
+		assertFalse(ZipUtil.contentEquals(new ByteArrayInputStream(content), new ByteArrayInputStream(new byte[10])));
+	}
+
+	/**
+	 * Test that indexing EntryTables from the central directory finds the same
+	 * differences as indexing maps of ZipEntries.
+	 * @throws IOException
+	 */
+	@Test
+	public void testCalculateDifferencesEntryTable() throws IOException {
+		createJarOneEntryA1();
+		createJarOneEntryB1();
+		createJarOneEntryAContentsChanged();
+		final String nested = testDirPathName + File.separator + "testJarNested.jar";
+		createJarNested(nested);
+		final String[][] pairs = {
+			{testJarOneEntryA1Filename, testJarOneEntryB1Filename},
+			{testJarOneEntryA1Filename, testJarOneEntryAContentsChangedFilename},
+			{testJarOneEntryA1Filename, nested},
+		};
+		for (String[] pair : pairs) {
+			Differences expected = new DifferenceCalculator(pair[0], pair[1]).getDifferences();
+			DifferenceCalculator calc = new DifferenceCalculator(pair[0], pair[1]);
+			calc.setUseEntryTable(true);
+			Differences differences = calc.getDifferences();
+			assertEquals(expected.getAdded().keySet(), differences.getAdded().keySet());
+			assertEquals(expected.getRemoved().keySet(), differences.getRemoved().keySet());
+			assertEquals(expected.getChanged().keySet(), differences.getChanged().keySet());
+			for (Map.Entry<String, ZipEntry[]> entry : expected.getAdded().entrySet()) {
+				ZipEntry actual = differences.getAdded().get(entry.getKey())[0];
+				assertEquals(entry.getValue()[0].getName(), actual.getName());
+				assertEquals(entry.getValue()[0].getSize(), actual.getSize());
+				assertEquals(entry.getValue()[0].getCrc(), actual.getCrc());
+			}
+		}
+		assertTrue(new DifferenceCalculator(testJarOneEntryA1Filename, nested).getDifferences().getAdded().containsKey("lib/inner.jar!A"));
+	}
+
+	/**
+	 * Test that indexes are taken from the cache until the archive changes,
+	 * and that corrupt indexes are discarded.
+	 * @throws IOException
+	 */
+	@Test
+	public void testDiskIndexCache() throws IOException {
+		createJarOneEntryA1();
+		final String nested = testDirPathName + File.separator + "testJarNested.jar";
+		createJarNested(nested);
+		final File directory = new File(testDirPathName, "testIndexCache");
+		if (directory.isDirectory()) {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+		}
+		DiskIndexCache cache = new DiskIndexCache(directory, 1024 * 1024);
+
+		Differences expected = new DifferenceCalculator(testJarOneEntryA1Filename, nested).getDifferences();
+		for (int i = 0; i < 2; i++) {
+			DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, nested);
+			calc.setIndexCache(cache);
+			Differences differences = calc.getDifferences();
+			assertEquals(expected.getAdded().keySet(), differences.getAdded().keySet());
+			assertEquals(expected.getRemoved().keySet(), differences.getRemoved().keySet());
+			assertEquals(expected.getChanged().keySet(), differences.getChanged().keySet());
+		}
+
+		final File archive = new File(nested);
+		final String options = new DifferenceCalculator(testJarOneEntryA1Filename, nested).getIndexOptions(0);
+		EntryTable table = cache.get(archive, options);
+		assertNotNull(table);
+		assertEquals(3, table.size());
+		assertNull(cache.get(archive, options + ";other"));
+
+		// stale
+		assertTrue(archive.setLastModified(archive.lastModified() - 10000));
+		assertNull(cache.get(archive, options));
+
+		// corrupt
+		CentralDirectory cd = new CentralDirectory(archive);
+		try {
+			cache.put(archive, Files.readAttributes(archive.toPath(), BasicFileAttributes.class), options, cd.digest(), table);
+		} finally {
+			cd.close();
+		}
+		assertNotNull(cache.get(archive, options));
+		assertEquals(2, directory.listFiles().length);
+		for (File file : directory.listFiles()) {
+			byte[] content = Files.readAllBytes(file.toPath());
+			content[content.length - 20] ^= 1;
+			Files.write(file.toPath(), content);
+		}
+		assertNull(cache.get(archive, options));
+		assertEquals(1, directory.listFiles().length);
+
+		// an archive which changes while it is indexed is stored with its attributes from before
+		final BasicFileAttributes before = Files.readAttributes(archive.toPath(), BasicFileAttributes.class);
+		assertTrue(archive.setLastModified(archive.lastModified() - 10000));
+		cache.put(archive, before, options, new byte[20], table);
+		assertNull(cache.get(archive, options));
+
+		// a failing cache does not stop the comparison
+		final String longRegex = new String(new char[70000]).replace('\0', 'x');
+		DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, nested);
+		calc.setExcludeRegex(new HashSet<String>(Arrays.asList(longRegex)));
+		calc.setIndexCache(cache);
+		assertEquals(expected.getAdded().keySet(), calc.getDifferences().getAdded().keySet());
+
+		// verification of the central directory
+		assertEquals(1, new Main(null, new PrintStream(new ByteArrayOutputStream()), System.err).run(new String[] {
+			"-source", testJarOneEntryA1Filename, "-target", nested, "-errorondifference",
+			"-indexcache", directory.getPath(), "-verifyindexcache"}));
+		final BasicFileAttributes attributes = Files.readAttributes(archive.toPath(), BasicFileAttributes.class);
+		cache.setVerifyCentralDirectory(true);
+		cache.put(archive, attributes, options, new byte[20], table);
+		assertNull(cache.get(archive, options));
+		cd = new CentralDirectory(archive);
+		try {
+			cache.put(archive, attributes, options, cd.digest(), table);
+		} finally {
+			cd.close();
+		}
+		assertNotNull(cache.get(archive, options));
+
+		// eviction
+		new DiskIndexCache(directory, 0).put(archive, before, options, new byte[20], table);
+		assertEquals(0, directory.listFiles().length);
+	}
+
+	/**
+	 * Test that the central directory of a zip64 archive is read.
+	 * @throws IOException
+	 */
+	@Test
+	public void testEntryTableZip64() throws IOException {
+		final String filename = testDirPathName + File.separator + "testZip64.zip";
+		final int count = 0x10000 + 10;
+		ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		for (int i = 0; i < count; i++) {
+			zos.putNextEntry(new ZipEntry("e" + i));
+		}
+		zos.close();
+
+		DifferenceCalculator calc = new DifferenceCalculator(filename, filename);
+		EntryTable table = calc.buildEntryTable(new File(filename), 0);
+		assertEquals(count, table.size());
+		assertEquals("e" + (count - 1), table.getKey(count - 1));
+	}
+
+	/**
+	 * Test that keys with a shared prefix are sorted and compared like complete names.
+	 * @throws IOException
+	 */
+	@Test
+	public void testEntryTablePrefixes() throws IOException {
+		final String[] keys = {"lib/a.jar", "lib/a.jar.txt", "lib/b.jar"};
+		final String[] nested = {"x/B.class", "A.class", "x/A.class"};
+		final EntryTable prefixed = new EntryTable(4);
+		final EntryTable flat = new EntryTable(4);
+		for (String key : keys) {
+			final byte[] name = key.getBytes("UTF-8");
+			prefixed.add(name, 0, name.length, 0, 0, 1, 1, 0, 0, ZipEntry.STORED, 0, -1);
+			flat.add(name, 0, name.length, 0, 0, 1, 1, 0, 0, ZipEntry.STORED, 0, -1);
+		}
+		final int prefix = prefixed.addPrefix("lib/a.jar!".getBytes("UTF-8"));
+		for (String name : nested) {
+			prefixed.add(prefix, new ZipEntry(name));
+			final byte[] key = ("lib/a.jar!" + name).getBytes("UTF-8");
+			flat.add(key, 0, key.length, 10, 0, -1, -1, 0, 0, ZipEntry.STORED, 0, -1);
+		}
+		assertEquals("lib/a.jar!A.class", prefixed.getKey(4));
+		assertEquals("A.class", prefixed.getEntryName(4));
+
+		// the tables are compared across the prefix, also after they have been copied and stored
+		final EntryTable copy = new EntryTable(4);
+		copy.addAll(flat);
+		copy.addAll(prefixed);
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		copy.write(new DataOutputStream(baos));
+		final EntryTable read = EntryTable.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())), baos.size());
+		for (EntryTable table : new EntryTable[] {prefixed, read}) {
+			final int[] rows = table.sortedRows();
+			final int[] flatRows = flat.sortedRows();
+			assertEquals(flatRows.length, rows.length);
+			for (int i = 0; i < rows.length; i++) {
+				assertEquals(flat.getKey(flatRows[i]), table.getKey(rows[i]));
+				assertEquals(0, table.compareKeys(rows[i], flat, flatRows[i]));
+				assertEquals(0, flat.compareKeys(flatRows[i], table, rows[i]));
+			}
+		}
+		assertEquals("lib/a.jar!A.class", prefixed.getKey(prefixed.sortedRows()[1]));
+	}
+
+	/**
+	 * Test that counts which do not fit into the stored entries are rejected
+	 * before anything is allocated.
+	 * @throws IOException
+	 */
+	@Test
+	public void testEntryTableReadCorrupt() throws IOException {
+		final int[][] headers = {
+			{Integer.MAX_VALUE},
+			{1, Integer.MAX_VALUE},
+			{0, Integer.MAX_VALUE / 2, Integer.MAX_VALUE},
+			{0, 1000000, 1000000},
+		};
+		for (int[] header : headers) {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(baos);
+			for (int value : header) {
+				out.writeInt(value);
+			}
+			out.write(new byte[100]);
+			try {
+				EntryTable.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())), baos.size());
+				fail("read " + Arrays.toString(header));
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Test that differences are ordered by name, whether they are reported in order or not.
+	 */
+	@Test
+	public void testDifferencesOrder() {
+		Differences differences = new Differences();
+		differences.fileAdded("a", new ZipEntry("a"));
+		differences.fileAdded("c", new ZipEntry("c"));
+		differences.fileAdded("b", new ZipEntry("b"));
+		differences.fileRemoved("x", new ZipEntry("x"));
+		differences.fileRemoved("y", new ZipEntry("y"));
+		assertEquals("[a, b, c]", differences.getAdded().keySet().toString());
+		assertEquals("[x, y]", differences.getRemoved().keySet().toString());
+		differences.fileAdded("d", new ZipEntry("d"));
+		differences.fileAdded("0", new ZipEntry("0"));
+		assertEquals("[0, a, b, c, d]", differences.getAdded().keySet().toString());
+	}
+
+	/**
+	 * Test that the differences can be written while they are calculated.
+	 * @throws IOException
+	 */
+	@Test
+	public void testStreamingListener() throws IOException {
+		createJarOneEntryA1();
+		createJarOneEntryB1();
+		final String output = testDirPathName + File.separator + "testStreamingListener.txt";
+		DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename);
+		DifferenceCounter counter = new DifferenceCounter(new TextBuilder().createListener(output, 0));
+		calc.getDifferences(counter);
+		assertTrue(counter.hasDifferences());
+
+		final String text = new String(Files.readAllBytes(new File(output).toPath()), "UTF-8");
+		assertTrue(text.contains("\t[removed] A"));
+		assertTrue(text.contains("\t[added] B"));
+		assertTrue(text.contains("Total differences: 2"));
+
+		// builders which only implement the interface get the collected differences
+		final List<Differences> built = new ArrayList<Differences>();
+		final Builder builder = new Builder() {
+			public void build(String filename, int numberOfOutputLevelsToTrim, Differences d) {
+				built.add(d);
+			}
+		};
+		new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename).getDifferences(
+				BuilderFactory.createListener(builder, output, 0));
+		assertEquals(1, built.size());
+		assertEquals(1, built.get(0).getAdded().size());
+		assertEquals(1, built.get(0).getRemoved().size());
+	}
+
+	/**
+	 * Test that errors while writing the output are thrown to the caller of every builder,
+	 * although the writers of the reports only record them.
+	 * @throws IOException
+	 */
+	@Test
+	public void testOutputErrors() throws IOException {
+		createJarOneEntryA1();
+		createJarOneEntryB1();
+		final OutputStream failing = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("No space left on device");
+			}
+		};
+		final String[] extensions = {"txt", "xml", "html", "jsonl", "zdiff", "zip"};
+		for (String extension : extensions) {
+			final AbstractBuilder builder = (AbstractBuilder) BuilderFactory.create("output." + extension);
+			builder.setStandardOutput(failing);
+			try {
+				builder.build("-", 0, new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename).getDifferences());
+				fail("build does not report the error of " + extension);
+			} catch (IOException e) {
+				assertEquals("No space left on device", e.getMessage());
+			}
+			try {
+				new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename).getDifferences(builder.createListener("-", 0));
+				fail("listener does not report the error of " + extension);
+			} catch (IOException e) {
+				assertEquals("No space left on device", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Test that an output file which is a directory is replaced by the output
+	 * and error streams of the command line, also in batch mode.
+	 * @throws IOException
+	 */
+	@Test
+	public void testOutputToDirectory() throws IOException {
+		createJarOneEntryA1();
+		createJarOneEntryB1();
+		final File directory = new File(testDirPathName, "testOutputToDirectory.txt");
+		directory.mkdirs();
+		final File list = new File(testDirPathName, "testOutputToDirectory.lst");
+		Files.write(list.toPath(), (testJarOneEntryB1Filename + "\t" + directory.getPath() + "\n").getBytes("UTF-8"));
+
+		final String[][] commands = {
+			{"-source", testJarOneEntryA1Filename, "-target", testJarOneEntryB1Filename, "-output", directory.getPath()},
+			{"-source", testJarOneEntryA1Filename, "-batch", list.getPath()}
+		};
+		for (String[] command : commands) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final ByteArrayOutputStream err = new ByteArrayOutputStream();
+			new Main(null, new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8")).run(command);
+			assertTrue(out.toString("UTF-8").contains("Total differences: 2"));
+			assertTrue(err.toString("UTF-8").contains("is a directory, using stdout instead"));
+		}
+	}
+
+	/**
+	 * Test that the compiled exclusion matcher agrees with matching each regular
+	 * expression, and that keys of nested entries are excluded when they are indexed.
+	 * @throws IOException
+	 */
+	@Test
+	public void testExclusionMatcher() throws IOException {
+		final String[] regexes = {"META-INF/MANIFEST.MF", "doc/.*", ".*\\.txt", ".*/tmp/.*", "(?i).*\\.bak", "a\\.b"};
+		final String[] names = {"META-INF/MANIFEST.MF", "META-INF/MANIFEST_MF", "doc/a", "docs/a", "a.txt", "a.txt/b",
+			"x/tmp/y", "tmp/y", "A.BAK", "a.b", "axb", "doc/a\nb", "CVS/Root", "a/.svn/b", "xCVS/Root", "a/.git"};
+		final ExclusionMatcher matcher = new ExclusionMatcher(false, Arrays.asList(regexes));
+		final ExclusionMatcher scmMatcher = new ExclusionMatcher(true, null);
+		for (String name : names) {
+			boolean expected = false;
+			for (String regex : regexes) {
+				expected = expected || Pattern.compile(regex).matcher(name).matches();
+			}
+			assertEquals(name, expected, matcher.matches("", name));
+			boolean scm = false;
+			for (String directory : new String[] {"CVS/", "RCS/", "SCCS/", ".svn/", ".bzr/", ".hg/", ".git/"}) {
+				scm = scm || name.contains(directory);
+			}
+			assertEquals(name, scm, scmMatcher.matches("", name));
+		}
+		assertTrue(new ExclusionMatcher(false, null).isEmpty());
+
+		final String filename = testDirPathName + File.separator + "testJarNested.jar";
+		createJarNested(filename);
+		DifferenceCalculator calc = new DifferenceCalculator(filename, filename);
+		Set<String> patterns = new HashSet<String>();
+		patterns.add("lib/inner\\.jar!.*");
+		calc.setExcludeRegex(patterns);
+		Map<String, ZipEntry> map = calc.buildZipEntryMap(new ZipFile(filename));
+		assertEquals("[fake.jar, lib/inner.jar]", new TreeSet<String>(map.keySet()).toString());
+		EntryTable table = calc.buildEntryTable(new File(filename), 0);
+		assertEquals(2, table.size());
+	}
+
+	/**
+	 * Test that a batch compares the source with each target, using one index
+	 * of the source, and that a failed comparison does not stop the others.
+	 * @throws IOException
+	 */
+	@Test
+	public void testBatchComparison() throws IOException {
+		createJarOneEntryA1();
+		createJarOneEntryA2();
+		createJarOneEntryB1();
+		final int[] indexed = new int[1];
+		BatchComparison batch = new BatchComparison(new File(testJarOneEntryA1Filename)) {
+			protected DifferenceCalculator createCalculator(File sourcefile, File targetfile) throws IOException {
+				return new DifferenceCalculator(sourcefile, targetfile) {
+					protected EntryTable buildEntryTable(File file, int nl) throws IOException {
+						if (file.getPath().equals(testJarOneEntryA1Filename)) {
+							synchronized (indexed) {
+								indexed[0]++;
+							}
+						}
+						return super.buildEntryTable(file, nl);
+					}
+				};
+			}
+		};
+		batch.setThreads(2);
+		batch.add(new File(testJarOneEntryA2Filename), null);
+		batch.add(new File(testJarOneEntryB1Filename), null);
+		batch.add(new File(testDirPathName, "testBatchMissing.jar"), null);
+		batch.add(new File(testJarOneEntryB1Filename), null);
+		List<BatchComparison.Result> results = batch.run();
+		assertEquals(4, results.size());
+		assertFalse(results.get(0).hasDifferences());
+		assertTrue(results.get(1).hasDifferences());
+		assertTrue(results.get(2).isFailed());
+		assertTrue(results.get(3).hasDifferences());
+		assertEquals(1, indexed[0]);
+
+		// the reports of several targets would be mixed up on stdout
+		batch = new BatchComparison(new File(testJarOneEntryA1Filename));
+		batch.setThreads(2);
+		batch.add(new File(testJarOneEntryA2Filename), "-");
+		batch.add(new File(testJarOneEntryB1Filename), "-");
+		try {
+			batch.run();
+			fail("several reports written to stdout on two threads");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("stdout"));
+		}
+		batch.setThreads(1);
+		final PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		try {
+			assertEquals(2, batch.run().size());
+		} finally {
+			System.setOut(stdout);
+		}
+
+		assertEquals("out" + File.separator + "diff-app-1.2.xml",
+			BatchComparison.getOutputName("out" + File.separator + "diff.xml", new File("app-1.2.jar")));
+	}
+
+	/**
+	 * Test that an exploded directory is compared with the archive it came from,
+	 * including the entries of a nested archive.
+	 * @throws IOException
+	 */
+	@Test
+	public void testDirectoryComparison() throws IOException {
+		final String filename = testDirPathName + File.separator + "testJarNested.jar";
+		createJarNested(filename);
+		final File dir = new File(testDirPathName, "testExploded");
+		final File lib = new File(dir, "lib");
+		lib.mkdirs();
+		new File(dir, "added.txt").delete();
+		ZipFile zf = new ZipFile(filename);
+		try {
+			Files.copy(zf.getInputStream(zf.getEntry("lib/inner.jar")), new File(lib, "inner.jar").toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			zf.close();
+		}
+		Files.write(new File(dir, "fake.jar").toPath(), new byte[] {'n', 'o', 't', ' ', 'a', ' ', 'j', 'a', 'r'});
+
+		DifferenceCalculator calc = new DifferenceCalculator(new File(filename), dir);
+		calc.setCompareCRCValues(false);
+		Differences differences = calc.getDifferences();
+		assertFalse(differences.toString(), differences.hasDifferences());
+
+		// same size, different content
+		Files.write(new File(dir, "fake.jar").toPath(), new byte[] {'n', 'o', 't', ' ', 'a', ' ', 'z', 'i', 'p'});
+		Files.write(new File(dir, "added.txt").toPath(), new byte[] {'b'});
+		calc = new DifferenceCalculator(dir, new File(filename));
+		differences = calc.getDifferences();
+		assertEquals("[fake.jar]", differences.getChanged().keySet().toString());
+		assertEquals("[added.txt]", differences.getRemoved().keySet().toString());
+		assertTrue(differences.getAdded().isEmpty());
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			calc = new DifferenceCalculator(dir, dir);
+			calc.setExecutor(executor);
+			assertFalse(calc.getDifferences().hasDifferences());
+
+			// the subdirectories are walked on the executor
+			calc = new DifferenceCalculator(dir, new File(filename));
+			calc.setExecutor(executor);
+			differences = calc.getDifferences();
+			assertEquals("[fake.jar]", differences.getChanged().keySet().toString());
+			assertEquals("[added.txt]", differences.getRemoved().keySet().toString());
+			assertTrue(differences.getAdded().isEmpty());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Test that the walk of a directory skips links to the directories containing them,
+	 * also below the directories which are walked on the executor.
+	 * @throws IOException
+	 */
+	@Test
+	public void testDirectoryWalk() throws IOException {
+		final File dir = new File(testDirPathName, "testWalk");
+		final File deep = new File(dir, "a/b/c/d");
+		deep.mkdirs();
+		Files.write(new File(dir, "top.txt").toPath(), new byte[] {'t'});
+		Files.write(new File(deep, "deep.txt").toPath(), new byte[] {'d'});
+		final File[] links = {new File(dir, "loop"), new File(deep, "loop")};
+		for (File link : links) {
+			link.delete();
+			Files.createSymbolicLink(link.toPath(), dir.getAbsoluteFile().toPath());
+		}
+		final String filename = testDirPathName + File.separator + "testWalk.jar";
+		final JarOutputStream jos = new JarOutputStream(new FileOutputStream(filename));
+		try {
+			jos.putNextEntry(new JarEntry("top.txt"));
+			jos.write('t');
+		} finally {
+			jos.close();
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (ExecutorService e : new ExecutorService[] {null, executor}) {
+				final DifferenceCalculator calc = new DifferenceCalculator(dir, new File(filename));
+				calc.setExecutor(e);
+				final Differences differences = calc.getDifferences();
+				assertEquals("[a/b/c/d/deep.txt]", differences.getRemoved().keySet().toString());
+				assertTrue(differences.getAdded().isEmpty());
+				assertTrue(differences.getChanged().isEmpty());
+			}
+		} finally {
+			executor.shutdown();
+			for (File link : links) {
+				link.delete();
+			}
+		}
+	}
+
+	/**
+	 * Test that the zip output writes the first of several files which are mapped to
+	 * the same name by the levels to trim, both from an archive and from a directory.
+	 * @throws IOException
+	 */
+	@Test
+	public void testZipBuilderDuplicateNames() throws IOException {
+		createJarOneEntryA1();
+		final String target = testDirPathName + File.separator + "testZipBuilderDuplicateNames.jar";
+		final JarOutputStream jos = new JarOutputStream(new FileOutputStream(target));
+		try {
+			jos.putNextEntry(new JarEntry("a/x.txt"));
+			jos.write("first".getBytes("UTF-8"));
+			jos.putNextEntry(new JarEntry("b/x.txt"));
+			jos.write("second".getBytes("UTF-8"));
+		} finally {
+			jos.close();
+		}
+		final File dir = new File(testDirPathName, "testZipBuilderDuplicateNames");
+		new File(dir, "a").mkdirs();
+		new File(dir, "b").mkdirs();
+		Files.write(new File(dir, "a/x.txt").toPath(), "first".getBytes("UTF-8"));
+		Files.write(new File(dir, "b/x.txt").toPath(), "second".getBytes("UTF-8"));
+
+		final String output = testDirPathName + File.separator + "testZipBuilderDuplicateNames.zip";
+		for (File file : new File[] {new File(target), dir}) {
+			final Differences differences = new DifferenceCalculator(new File(testJarOneEntryA1Filename), file).getDifferences();
+			assertEquals(2, differences.getAdded().size());
+			new ZipBuilder().build(output, 1, differences);
+			final ZipInputStream zis = new ZipInputStream(new FileInputStream(output));
+			try {
+				final ZipEntry entry = zis.getNextEntry();
+				assertEquals("x.txt", entry.getName());
+				final ByteArrayOutputStream content = new ByteArrayOutputStream();
+				final byte[] buffer = new byte[64];
+				int count = zis.read(buffer);
+				while (count >= 0) {
+					content.write(buffer, 0, count);
+					count = zis.read(buffer);
+				}
+				assertEquals("first", content.toString("UTF-8"));
+				assertNull(zis.getNextEntry());
+			} finally {
+				zis.close();
+			}
+		}
+	}
+
+	/**
+	 * Test that the zip output copies the compressed data of added and changed
+	 * entries, so that the output can be read and has the original CRC and sizes.
+	 * @throws IOException
+	 */
+	@Test
+	public void testZipBuilderRawCopy() throws IOException {
+		createJarOneEntryA1();
+		createJarOneEntryAContentsChanged();
+		final String output = testDirPathName + File.separator + "testZipBuilderRawCopy.zip";
+		DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryAContentsChangedFilename);
+		Differences differences = calc.getDifferences();
+		new ZipBuilder().build(output, 0, differences);
+
+		ZipFile target = new ZipFile(testJarOneEntryAContentsChangedFilename);
+		ZipFile zf = new ZipFile(output);
+		try {
+			assertEquals(2, zf.size());
+			for (String name : new String[] {ENTRYA, ENTRY_CVS}) {
+				ZipEntry expected = target.getEntry(name);
+				ZipEntry entry = zf.getEntry(name);
+				assertEquals(expected.getCrc(), entry.getCrc());
+				assertEquals(expected.getSize(), entry.getSize());
+				assertEquals(expected.getCompressedSize(), entry.getCompressedSize());
+				assertTrue(ZipUtil.contentEquals(target.getInputStream(expected), zf.getInputStream(entry)));
+			}
+		} finally {
+			zf.close();
+			target.close();
+		}
+
+		// the local headers are consistent for a streaming reader, too
+		ZipInputStream zis = new ZipInputStream(new FileInputStream(output));
+		try {
+			int count = 0;
+			while (zis.getNextEntry() != null) {
+				while (zis.read() >= 0) {
+					continue;
+				}
+				count++;
+			}
+			assertEquals(2, count);
+		} finally {
+			zis.close();
+		}
+	}
+
+	/**
+	 * Test that the reports escape markup in names, are encoded in UTF-8 and
+	 * that the text report matches the text of the differences.
+	 * @throws Exception
+	 */
+	@Test
+	public void testReportEscaping() throws Exception {
+		final String name = "a<b>&\"c\u00fc\u0001.txt";
+		Differences differences = new Differences();
+		differences.setSource("source & co.zip");
+		differences.setTarget("target.zip");
+		differences.fileAdded(name, new ZipEntry(name));
+		differences.fileRemoved(ENTRYA, new ZipEntry(ENTRYA));
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new XmlBuilder().build(baos, differences);
+		Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(baos.toByteArray()));
+		assertEquals("source & co.zip", document.getDocumentElement().getAttribute("source"));
+		assertEquals("a<b>&\"c\u00fc\ufffd.txt", document.getElementsByTagName("added").item(0).getTextContent());
+		assertEquals(ENTRYA, document.getElementsByTagName("removed").item(0).getTextContent());
+
+		baos = new ByteArrayOutputStream();
+		new HtmlBuilder().build(baos, differences);
+		String html = new String(baos.toByteArray(), "UTF-8");
+		assertTrue(html.contains("<li>a&lt;b&gt;&amp;&quot;c\u00fc\ufffd.txt</li>"));
+		assertTrue(html.contains("Source: source &amp; co.zip"));
+
+		// subclasses still override the methods which take a PrintWriter
+		baos = new ByteArrayOutputStream();
+		new HtmlBuilder() {
+			@Override
+			protected void writeDiffSet(PrintWriter pw, String heading, Set<String> s) {
+				pw.println("<p>" + heading + "</p>");
+			}
+		}.build(baos, differences);
+		assertTrue(new String(baos.toByteArray(), "UTF-8").contains("<p>Added</p>"));
+		baos = new ByteArrayOutputStream();
+		new XmlBuilder() {
+			@Override
+			protected void writeStatusTags(PrintWriter pw, String statusTag, Set<String> modified) {
+				pw.println("<" + statusTag + "s/>");
+			}
+		}.build(baos, differences);
+		assertTrue(new String(baos.toByteArray(), "UTF-8").contains("<addeds/>"));
+
+		baos = new ByteArrayOutputStream();
+		new TextBuilder().build(baos, differences);
+		String text = new String(baos.toByteArray(), "UTF-8");
+		final String lineSeparator = System.getProperty("line.separator");
+		assertEquals(differences.toString().replace("\n", lineSeparator) + lineSeparator, text);
+	}
+
+	/**
+	 * Test that the records written in JSON lines and in the binary format are read
+	 * back with their names, sizes, CRCs and methods.
+	 * @throws IOException
+	 */
+	@Test
+	public void testDiffRecordFormats() throws IOException {
+		final String name = "dir/\"quoted\"\\\u00fc\n.txt";
+		ZipEntry source = new ZipEntry("x.class");
+		source.setSize(10);
+		source.setCompressedSize(8);
+		source.setCrc(0xFFFFFFFFL);
+		source.setMethod(ZipEntry.DEFLATED);
+		source.setTime(1000000000000L);
+		ZipEntry target = new ZipEntry("x.class");
+		target.setSize(12);
+		target.setMethod(ZipEntry.STORED);
+		Differences differences = new Differences();
+		differences.setSource("source.zip");
+		differences.setTarget("target.zip");
+		differences.fileAdded(name, new ZipEntry(name));
+		differences.fileChanged("lib/a.jar!x.class", source, target);
+
+		for (String extension : new String[] {".jsonl", ".zdiff"}) {
+			final String output = testDirPathName + File.separator + "testDiffRecordFormats" + extension;
+			BuilderFactory.create(output).build(output, 0, differences);
+			DiffReader reader = new DiffReader(new File(output));
+			try {
+				assertTrue(reader.next());
+				assertEquals(DiffReader.START, reader.getType());
+				assertEquals("target.zip", reader.getTarget());
+				assertTrue(reader.next());
+				assertEquals(DiffReader.ADDED, reader.getType());
+				assertEquals(name, reader.getName());
+				assertEquals(-1, reader.getTargetEntry().getSize());
+				assertNull(reader.getSourceEntry());
+				assertTrue(reader.next());
+				assertEquals(DiffReader.CHANGED, reader.getType());
+				assertEquals("lib/a.jar!x.class", reader.getName());
+				assertEquals("x.class", reader.getSourceEntry().getName());
+				assertEquals(10, reader.getSourceEntry().getSize());
+				assertEquals(8, reader.getSourceEntry().getCompressedSize());
+				assertEquals(0xFFFFFFFFL, reader.getSourceEntry().getCrc());
+				assertEquals(ZipEntry.DEFLATED, reader.getSourceEntry().getMethod());
+				assertEquals(1000000000000L, reader.getSourceEntry().getTime());
+				assertEquals(12, reader.getTargetEntry().getSize());
+				assertEquals(ZipEntry.STORED, reader.getTargetEntry().getMethod());
+				assertTrue(reader.next());
+				assertEquals(DiffReader.FINISH, reader.getType());
+				assertFalse(reader.next());
+			} finally {
+				reader.close();
+			}
+
+			// the records can be reported to a listener again
+			reader = new DiffReader(new File(output));
+			Differences copy = new Differences();
+			try {
+				reader.report(copy);
+			} finally {
+				reader.close();
+			}
+			assertEquals(differences.toString(), copy.toString());
+		}
+
+		// a string longer than its record is rejected before it is allocated
+		final ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(corrupt);
+		out.writeBytes("ZDIF");
+		out.writeByte(1);
+		out.writeByte(DiffReader.ADDED);
+		out.writeInt(8);
+		out.writeInt(Integer.MAX_VALUE);
+		out.writeInt(0);
+		final DiffReader reader = new DiffReader(new ByteArrayInputStream(corrupt.toByteArray()));
+		try {
+			reader.next();
+			fail("corrupt record accepted");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("corrupt record"));
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Test nested pairs and filesets of the Ant task.
+	 * @throws IOException
+	 */
+	@Test
+	public void testZipDiffTaskPairs() throws IOException {
+		createJarOneEntryA1();
+		createJarOneEntryA2();
+		createJarOneEntryAContentsChanged();
+		final File baseline = new File(testDirPathName, "testTaskBaseline");
+		final File current = new File(testDirPathName, "testTaskCurrent");
+		final File outputs = new File(testDirPathName, "testTaskOutput");
+		new File(baseline, "mod").mkdirs();
+		new File(current, "mod").mkdirs();
+		final File a1 = new File(testJarOneEntryA1Filename);
+		Files.copy(a1.toPath(), new File(baseline, "same.jar").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.copy(a1.toPath(), new File(current, "same.jar").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.copy(a1.toPath(), new File(baseline, "mod/changed.jar").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.copy(new File(testJarOneEntryAContentsChangedFilename).toPath(), new File(current, "mod/changed.jar").toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+
+		final Project project = new Project();
+		project.init();
+		final ZipDiffTask task = new ZipDiffTask();
+		task.setProject(project);
+		task.setSource(testJarOneEntryA1Filename);
+		task.setTarget(testJarOneEntryA2Filename);
+		task.setOutput(new File(outputs, "attributes.txt").getPath());
+		task.setProperty("attributes.different");
+		final ZipDiffTask.Pair pair = task.createPair();
+		pair.setSource(testJarOneEntryA1Filename);
+		pair.setTarget(testJarOneEntryAContentsChangedFilename);
+		pair.setProperty("pair.different");
+		final FileSet fileset = new FileSet();
+		fileset.setDir(current);
+		fileset.setIncludes("**/*.jar");
+		task.addFileset(fileset);
+		task.setBaseline(baseline);
+		task.setOutputDir(outputs);
+		task.setOutputSuffix(".xml");
+		task.setPropertyPrefix("different.");
+		task.execute();
+
+		assertNull(project.getProperty("attributes.different"));
+		assertTrue(new File(outputs, "attributes.txt").isFile());
+		assertEquals("true", project.getProperty("pair.different"));
+		assertEquals("true", project.getProperty("different.mod/changed.jar"));
+		assertNull(project.getProperty("different.same.jar"));
+		assertTrue(new File(outputs, "mod/changed.jar.xml").isFile());
+		assertTrue(new File(outputs, "same.jar.xml").isFile());
+
+		final ZipDiffTask failing = new ZipDiffTask();
+		failing.setProject(project);
+		final ZipDiffTask.Pair missing = failing.createPair();
+		missing.setSource(testJarOneEntryA1Filename);
+		missing.setTarget(testDirPathName + File.separator + "doesNotExist.jar");
+		try {
+			failing.execute();
+			fail("BuildException expected");
+		} catch (BuildException e) {
+			assertTrue(e.getMessage().contains("doesNotExist.jar"));
+		}
+	}
+
+	/**
+	 * Test the counters and phases of the statistics.
+	 * @throws Exception
+	 */
+	@Test
+	public void testDiffStatistics() throws Exception {
+		final String source = testDirPathName + File.separator + "testStatisticsSource.ear";
+		final String target = testDirPathName + File.separator + "testStatisticsTarget.ear";
+		final String output = testDirPathName + File.separator + "testStatistics.txt";
+		createEarWithNestedJar(source, "a", "<web-app/>");
+		createEarWithNestedJar(target, "aa", "<web-app version=\"3.0\"/>");
+
+		for (boolean useEntryTable : new boolean[] {false, true}) {
+			final DiffStatistics statistics = new DiffStatistics();
+			final DifferenceCalculator calc = new DifferenceCalculator(source, target);
+			calc.setUseEntryTable(useEntryTable);
+			calc.setStatistics(statistics);
+			final Differences differences = calc.getDifferences();
+			assertEquals("idle", statistics.getPhase());
+			// two entries of the ear, three of the war and two of the jar in the war, on both sides
+			assertEquals(2 * 7, statistics.getEntriesIndexed());
+			assertEquals(4, statistics.getNestedArchivesOpened());
+			assertTrue(statistics.getBytesInflated() > 0);
+
+			final TextBuilder builder = new TextBuilder();
+			builder.setStatistics(statistics);
+			builder.build(output, 0, differences);
+			assertEquals(differences.getChanged().size(), statistics.getDifferencesWritten());
+			assertEquals("idle", statistics.getPhase());
+		}
+
+		// moved entries are written as well
+		final Differences moved = new Differences();
+		moved.fileMoved("a.txt", "b/a.txt", new ZipEntry("a.txt"), new ZipEntry("b/a.txt"));
+		final DiffStatistics written = new DiffStatistics();
+		final TextBuilder movedBuilder = new TextBuilder();
+		movedBuilder.setStatistics(written);
+		movedBuilder.build(output, 0, moved);
+		assertEquals(1, written.getDifferencesWritten());
+
+		// the phase of a comparison in another thread is kept while this thread becomes idle
+		final DiffStatistics shared = new DiffStatistics();
+		final Thread indexing = new Thread() {
+			@Override
+			public void run() {
+				shared.startPhase(DiffStatistics.INDEXING);
+			}
+		};
+		indexing.start();
+		indexing.join();
+		shared.startPhase(DiffStatistics.COMPARING);
+		assertEquals("comparing", shared.getPhase());
+		shared.startPhase(DiffStatistics.IDLE);
+		assertEquals("indexing", shared.getPhase());
+		final long comparingTime = shared.getComparingTime();
+		Thread.sleep(20);
+		assertEquals(comparingTime, shared.getComparingTime());
+		assertTrue(shared.getIndexingTime() >= 20);
+		shared.reset();
+		assertTrue(shared.getIndexingTime() < 20);
+
+		// concurrent comparisons, e.g. in the daemon, register their statistics under different names
+		final DiffStatistics statistics = new DiffStatistics();
+		final DiffStatistics other = new DiffStatistics();
+		statistics.register();
+		try {
+			other.register();
+			assertFalse(statistics.getObjectName().equals(other.getObjectName()));
+			final DifferenceCalculator calc = new DifferenceCalculator(source, target);
+			calc.setStatistics(statistics);
+			calc.getDifferences();
+			final ObjectName name = statistics.getObjectName();
+			assertTrue(name.toString(), name.toString().startsWith(DiffStatistics.OBJECT_NAME + ","));
+			assertEquals(Long.valueOf(2 * 7), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "EntriesIndexed"));
+			assertEquals("idle", ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Phase"));
+			assertEquals(Long.valueOf(0), ManagementFactory.getPlatformMBeanServer().getAttribute(other.getObjectName(), "EntriesIndexed"));
+		} finally {
+			statistics.unregister();
+			other.unregister();
+		}
+		assertNull(statistics.getObjectName());
+	}
+
+	/**
+	 * Test the fast paths for identical files.
+	 * @throws IOException
+	 */
+	@Test
+	public void testIdentityFastPaths() throws IOException {
+		createJarOneEntryA1();
+		createJarOneEntryAContentsChanged();
+		final String copy = testDirPathName + File.separator + "testIdentityFastPathsCopy.jar";
+		Files.copy(new File(testJarOneEntryA1Filename).toPath(), new File(copy).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryA1Filename);
+		assertFalse(calc.getDifferences().hasDifferences());
+		assertEquals(DifferenceCalculator.FAST_PATH_SAME_FILE, calc.getFastPath());
+
+		calc = new DifferenceCalculator(testJarOneEntryA1Filename, copy);
+		calc.setUseEntryTable(true);
+		assertFalse(calc.getDifferences().hasDifferences());
+		assertEquals(DifferenceCalculator.FAST_PATH_CENTRAL_DIRECTORY, calc.getFastPath());
+
+		calc = new DifferenceCalculator(testJarOneEntryA1Filename, copy);
+		calc.setCompareContents(true);
+		assertFalse(calc.getDifferences().hasDifferences());
+		assertEquals(DifferenceCalculator.FAST_PATH_IDENTICAL_FILES, calc.getFastPath());
+
+		calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryAContentsChangedFilename);
+		assertTrue(calc.getDifferences().hasDifferences());
+		assertNull(calc.getFastPath());
+
+		// the levels to trim change the keys, so the entries have to be compared
+		calc = new DifferenceCalculator(testJarOneEntryA1Filename, copy);
+		calc.setNumberOfSourceLevelsToTrim(1);
+		calc.getDifferences();
+		assertNull(calc.getFastPath());
+
+		// archives of different lengths are compared without hashing their central directories
+		final String commented = testDirPathName + File.separator + "testIdentityFastPathsComment.jar";
+		final byte[] bytes = Files.readAllBytes(new File(testJarOneEntryA1Filename).toPath());
+		final byte[] withComment = Arrays.copyOf(bytes, bytes.length + 1);
+		withComment[bytes.length - 2] = 1;
+		withComment[bytes.length] = 'x';
+		Files.write(new File(commented).toPath(), withComment);
+		calc = new DifferenceCalculator(testJarOneEntryA1Filename, commented);
+		assertFalse(calc.getDifferences().hasDifferences());
+		assertNull(calc.getFastPath());
+
+		// zip files are closed on the fast path as well
+		final ZipFile sourcezip = new ZipFile(testJarOneEntryA1Filename);
+		final ZipFile targetzip = new ZipFile(copy);
+		try {
+			calc = new DifferenceCalculator(sourcezip, targetzip);
+			assertFalse(calc.getDifferences().hasDifferences());
+			assertEquals(DifferenceCalculator.FAST_PATH_CENTRAL_DIRECTORY, calc.getFastPath());
+			for (ZipFile zf : new ZipFile[] {sourcezip, targetzip}) {
+				try {
+					zf.size();
+					fail(zf.getName() + " is open");
+				} catch (IllegalStateException e) {
+					// expected
+				}
+			}
+		} finally {
+			sourcezip.close();
+			targetzip.close();
+		}
+	}
+
+	/**
+	 * Create an ear containing a stored jar, whose entry has the given time
+	 * @param filename name of the ear to create
+	 * @param time modification time of the entry in the jar
+	 * @throws IOException
+	 */
+	private void createEarWithStoredJar(String filename, long time) throws IOException {
+		ByteArrayOutputStream jar = new ByteArrayOutputStream();
+		JarOutputStream jarOS = new JarOutputStream(jar);
+		JarEntry entry = new JarEntry(ENTRYA);
+		entry.setTime(time);
+		jarOS.putNextEntry(entry);
+		jarOS.write(new byte[] {'a'});
+		jarOS.close();
+		final byte[] bytes = jar.toByteArray();
+
+		JarOutputStream earOS = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		JarEntry jarEntry = new JarEntry("lib/inner.jar");
+		jarEntry.setTime(1000000000000L);
+		jarEntry.setMethod(ZipEntry.STORED);
+		jarEntry.setSize(bytes.length);
+		jarEntry.setCompressedSize(bytes.length);
+		java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+		crc.update(bytes);
+		jarEntry.setCrc(crc.getValue());
+		earOS.putNextEntry(jarEntry);
+		earOS.write(bytes);
+		earOS.close();
+	}
+
+	/**
+	 * Test that the early exit check gives the same answer as the full comparison.
+	 * @throws IOException
+	 */
+	@Test
+	public void testIsDifferent() throws IOException {
+		createJarOneEntryA1();
+		createJarOneEntryAContentsChanged();
+		final String copy = testDirPathName + File.separator + "testIsDifferentCopy.jar";
+		Files.copy(new File(testJarOneEntryA1Filename).toPath(), new File(copy).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		assertFalse(new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryA1Filename).isDifferent());
+		assertFalse(new DifferenceCalculator(testJarOneEntryA1Filename, copy).isDifferent());
+		assertTrue(new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryAContentsChangedFilename).isDifferent());
+
+		// the nested jars differ in the time of their entry only, so without CRCs they have to be expanded
+		final String source = testDirPathName + File.separator + "testIsDifferentSource.ear";
+		final String target = testDirPathName + File.separator + "testIsDifferentTarget.ear";
+		createEarWithStoredJar(source, 1000000000000L);
+		createEarWithStoredJar(target, 1100000000000L);
+		DifferenceCalculator calc = new DifferenceCalculator(source, target);
+		assertTrue(calc.isDifferent());
+		assertTrue(calc.getDifferences().hasDifferences());
+		calc = new DifferenceCalculator(source, target);
+		calc.setCompareCRCValues(false);
+		assertFalse(calc.isDifferent());
+		assertFalse(calc.getDifferences().hasDifferences());
+		calc = new DifferenceCalculator(source, target);
+		calc.setCompareCRCValues(false);
+		calc.setCompareTimestamps(true);
+		assertTrue(calc.isDifferent());
+		assertTrue(calc.getDifferences().hasDifferences());
+	}
+
+	/**
+	 * Create a zip whose entries all have the same time, renaming entries after it has been written
+	 * @param filename name of the zip to create
+	 * @param level compression level
+	 * @param from name to replace, or null
+	 * @param to new name of the same length
+	 * @param entries names and contents of the entries
+	 * @throws IOException
+	 */
+	private void createZipWithRenamedEntries(String filename, int level, String from, String to, String... entries) throws IOException {
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		ZipOutputStream zipOS = new ZipOutputStream(zip);
+		zipOS.setLevel(level);
+		for (int i = 0; i < entries.length; i += 2) {
+			ZipEntry entry = new ZipEntry(entries[i]);
+			entry.setTime(1000000000000L);
+			zipOS.putNextEntry(entry);
+			zipOS.write(entries[i + 1].getBytes("UTF-8"));
+		}
+		zipOS.close();
+		// ZipOutputStream rejects duplicate names, so they are created by renaming
+		String content = new String(zip.toByteArray(), "ISO-8859-1");
+		if (from != null) {
+			content = content.replace(from, to);
+		}
+		new File(testDirPathName).mkdirs();
+		Files.write(new File(filename).toPath(), content.getBytes("ISO-8859-1"));
+	}
+
+	/**
+	 * Test that the early exit check compares only the last of several entries with the same name,
+	 * like the full comparison, instead of counting the records of the central directories.
+	 * @throws IOException
+	 */
+	@Test
+	public void testIsDifferentDuplicateNames() throws IOException {
+		final String source = testDirPathName + File.separator + "testDuplicateNamesSource.zip";
+		final String target = testDirPathName + File.separator + "testDuplicateNamesTarget.zip";
+		createZipWithRenamedEntries(source, 9, "dup1.txt", "dup2.txt", "dup1.txt", "old", "dup2.txt", "new");
+		createZipWithRenamedEntries(target, 9, null, null, "dup2.txt", "new");
+
+		for (boolean useEntryTable : new boolean[] {false, true}) {
+			DifferenceCalculator calc = new DifferenceCalculator(source, target);
+			calc.setUseEntryTable(useEntryTable);
+			assertFalse(calc.getDifferences().hasDifferences());
+			calc = new DifferenceCalculator(source, target);
+			calc.setUseEntryTable(useEntryTable);
+			assertFalse(calc.isDifferent());
+		}
+	}
+
+	/**
+	 * Create a jar with the given entries
+	 * @param filename name of the jar to create
+	 * @param entries names and contents of the entries
+	 * @throws IOException
+	 */
+	private void createJar(String filename, String... entries) throws IOException {
+		new File(testDirPathName).mkdirs();
+		JarOutputStream jarOS = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		for (int i = 0; i < entries.length; i += 2) {
+			jarOS.putNextEntry(new JarEntry(entries[i]));
+			jarOS.write(entries[i + 1].getBytes("UTF-8"));
+		}
+		jarOS.close();
+	}
+
+	/**
+	 * Test that removed and added entries with the same content are reported as moves.
+	 * @throws IOException
+	 */
+	@Test
+	public void testDetectMoves() throws IOException {
+		final String source = testDirPathName + File.separator + "testDetectMovesSource.jar";
+		final String target = testDirPathName + File.separator + "testDetectMovesTarget.jar";
+		createJar(source, "a/Foo.class", "foo", "a/Bar.txt", "bar", "x/Dup.txt", "dup", "y/Other.txt", "dup",
+				"b/Same.txt", "same", "a/Gone.txt", "gone");
+		createJar(target, "c/Foo.class", "foo", "d/Renamed.txt", "bar", "z/Other.txt", "dup",
+				"b/Same.txt", "same", "e/New.txt", "new");
+
+		DifferenceCalculator calc = new DifferenceCalculator(source, target);
+		Differences differences = calc.getDifferences();
+		assertEquals(4, differences.getAdded().size());
+		assertEquals(5, differences.getRemoved().size());
+		assertTrue(differences.getMoved().isEmpty());
+
+		for (boolean compareContents : new boolean[] {false, true}) {
+			calc = new DifferenceCalculator(source, target);
+			calc.setDetectMoves(true);
+			calc.setCompareContents(compareContents);
+			differences = calc.getDifferences();
+			assertEquals(new TreeSet<String>(Arrays.asList("c/Foo.class", "d/Renamed.txt", "z/Other.txt")), differences.getMoved().keySet());
+			assertEquals("a/Foo.class", differences.getMovedFrom("c/Foo.class"));
+			assertEquals("a/Bar.txt", differences.getMovedFrom("d/Renamed.txt"));
+			// the entry with the same file name is preferred
+			assertEquals("y/Other.txt", differences.getMovedFrom("z/Other.txt"));
+			assertEquals(new TreeSet<String>(Arrays.asList("e/New.txt")), differences.getAdded().keySet());
+			assertEquals(new TreeSet<String>(Arrays.asList("a/Gone.txt", "x/Dup.txt")), differences.getRemoved().keySet());
+			assertTrue(differences.toString().contains("[moved] a/Foo.class -> c/Foo.class"));
+		}
+
+		// the moves are written by the builders and read back
+		for (String extension : new String[] {".jsonl", ".zdiff", ".xml"}) {
+			final String output = testDirPathName + File.separator + "testDetectMoves" + extension;
+			BuilderFactory.create(output).build(output, 0, differences);
+			if (extension.equals(".xml")) {
+				final String xml = new String(Files.readAllBytes(new File(output).toPath()), "UTF-8");
+				assertTrue(xml, xml.contains("<moved from=\"a/Foo.class\">c/Foo.class</moved>"));
+				continue;
+			}
+			final DiffReader reader = new DiffReader(new File(output));
+			final Differences copy = new Differences();
+			try {
+				reader.report(copy);
+			} finally {
+				reader.close();
+			}
+			assertEquals(differences.toString(), copy.toString());
+		}
+	}
+
+	/**
+	 * Test that files of a directory, which are only hashed if they may have a partner,
+	 * are not paired with files of the same size and different content.
+	 * @throws IOException
+	 */
+	@Test
+	public void testDetectMovesDirectory() throws IOException {
+		final File source = new File(testDirPathName, "testDetectMovesDirectory");
+		final File target = new File(testDirPathName, "testDetectMovesDirectoryTarget");
+		final String archive = testDirPathName + File.separator + "testDetectMovesDirectory.jar";
+		for (File dir : new File[] {new File(source, "old"), new File(target, "new")}) {
+			dir.mkdirs();
+		}
+		Files.write(new File(source, "old/a.txt").toPath(), "aaaaaaaaaa".getBytes("UTF-8"));
+		Files.write(new File(source, "old/c.txt").toPath(), "cccccccc".getBytes("UTF-8"));
+		Files.write(new File(target, "new/b.txt").toPath(), "bbbbbbbbbb".getBytes("UTF-8"));
+		Files.write(new File(target, "new/c.txt").toPath(), "cccccccc".getBytes("UTF-8"));
+		createJar(archive, "new/b.txt", "bbbbbbbbbb", "new/c.txt", "cccccccc");
+
+		for (File other : new File[] {target, new File(archive)}) {
+			DifferenceCalculator calc = new DifferenceCalculator(source, other);
+			calc.setDetectMoves(true);
+			Differences differences = calc.getDifferences();
+			assertEquals("[new/c.txt]", differences.getMoved().keySet().toString());
+			assertEquals("old/c.txt", differences.getMovedFrom("new/c.txt"));
+			assertEquals("[new/b.txt]", differences.getAdded().keySet().toString());
+			assertEquals("[old/a.txt]", differences.getRemoved().keySet().toString());
+		}
+	}
+
+	/**
+	 * Test a comparison through the daemon and the fallback without daemon.
+	 * @throws Exception
+	 */
+	@Test
+	public void testDiffDaemon() throws Exception {
+		createJarOneEntryA1();
+		createJarOneEntryAContentsChanged();
+		final File directory = new File(testDirPathName);
+		final String[] args = {"-source", new File(testJarOneEntryA1Filename).getName(),
+				"-target", new File(testJarOneEntryAContentsChangedFilename).getName(),
+				"-comparecontents", "-errorondifference", "-output", "-"};
+
+		final File secretFile = new File(testDirPathName, "testDiffDaemon" + File.separator + "daemon.secret");
+		secretFile.delete();
+		final MemoryIndexCache cache = new MemoryIndexCache(1024 * 1024);
+		final DiffDaemon daemon = new DiffDaemon(0, cache, secretFile);
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					daemon.run();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		thread.start();
+		final DiffClient client = new DiffClient(daemon.getPort(), secretFile);
+		String report = null;
+		try {
+			final byte[] secret = Files.readAllBytes(secretFile.toPath());
+			assertEquals(32, secret.length);
+			// the secret is moved into place and read by the next daemon
+			assertEquals(1, secretFile.getParentFile().list().length);
+			final DiffDaemon second = new DiffDaemon(0, cache, secretFile, 1);
+			second.close();
+			second.run();
+			assertArrayEquals(secret, Files.readAllBytes(secretFile.toPath()));
+			final byte[] wrong = secret.clone();
+			wrong[0] ^= 1;
+			// requests with a wrong secret or too many arguments are rejected
+			assertEquals(2, sendDaemonRequest(daemon.getPort(), wrong, Integer.MAX_VALUE));
+			assertEquals(2, sendDaemonRequest(daemon.getPort(), secret, Integer.MAX_VALUE));
+			assertEquals(2, sendDaemonRequest(daemon.getPort(), secret, -1));
+			assertEquals(0, cache.size());
+
+			for (int i = 0; i < 2; i++) {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				final ByteArrayOutputStream err = new ByteArrayOutputStream();
+				assertEquals(1, client.run(directory, args, new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8")));
+				assertEquals(0, err.size());
+				if (report != null) {
+					assertEquals(report, out.toString("UTF-8"));
+				}
+				report = out.toString("UTF-8");
+				assertTrue(report, report.contains(ENTRYA));
+				assertEquals(2, cache.size());
+			}
+		} finally {
+			daemon.close();
+			thread.join();
+		}
+
+		// without daemon the comparison runs in this JVM
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(1, client.run(directory, args, new PrintStream(out, true, "UTF-8"), System.err));
+		assertEquals(report, out.toString("UTF-8"));
+
+		// the daemon does not use a secret which other users can read
+		if (secretFile.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.setPosixFilePermissions(secretFile.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+			try {
+				new DiffDaemon(0, cache, secretFile).close();
+				fail("secret file readable by others accepted");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * sends a request without arguments to the daemon
+	 * @param port port of the daemon
+	 * @param secret secret of the request
+	 * @param argc number of arguments in the request
+	 * @return exit code of the response
+	 * @throws IOException
+	 */
+	private static int sendDaemonRequest(int port, byte[] secret, int argc) throws IOException {
+		final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			final DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			request.writeInt(DiffDaemon.MAGIC);
+			request.writeShort(secret.length);
+			request.write(secret);
+			request.writeUTF(testDirPathName);
+			request.writeInt(argc);
+			request.flush();
+			final DataInputStream response = new DataInputStream(socket.getInputStream());
+			assertEquals(DiffDaemon.ERR, response.readUnsignedByte());
+			final byte[] message = new byte[response.readInt()];
+			response.readFully(message);
+			assertTrue(new String(message, "UTF-8").startsWith("Rejected request"));
+			assertEquals(DiffDaemon.EXIT, response.readUnsignedByte());
+			return response.readInt();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Test that archives read from streams, with data descriptors and nested archives,
+	 * have the same differences as the files.
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreamingInput() throws Exception {
+		final String source = testDirPathName + File.separator + "testStreamingSource.ear";
+		final String target = testDirPathName + File.separator + "testStreamingTarget.ear";
+		createEarWithNestedJar(source, "class v1", "<web-app/>");
+		createEarWithNestedJar(target, "class v2", "<web-app></web-app>");
+
+		DifferenceCalculator calc = new DifferenceCalculator(source, target);
+		final Differences expected = calc.getDifferences();
+		assertTrue(expected.getChanged().containsKey("app.war!WEB-INF/lib/foo.jar!" + ENTRYA));
+
+		for (int side = 0; side < 2; side++) {
+			calc = new DifferenceCalculator(source, target);
+			final InputStream in = new FileInputStream((side == 0) ? source : target);
+			try {
+				if (side == 0) {
+					calc.setSourceStream(in);
+				} else {
+					calc.setTargetStream(in);
+				}
+				assertTrue(calc.isUsingEntryTable());
+				assertEquals(expected.toString(), calc.getDifferences().toString());
+				assertNull(calc.getFastPath());
+			} finally {
+				in.close();
+			}
+		}
+
+		// "-" reads standard input on the command line
+		final Main main = new Main(new File(testDirPathName), new PrintStream(new ByteArrayOutputStream(), true, "UTF-8"), System.err);
+		main.setInput(new ByteArrayInputStream(Files.readAllBytes(new File(target).toPath())));
+		assertEquals(1, main.run(new String[] {"-source", new File(source).getName(), "-target", "-", "-errorondifference"}));
+		main.setInput(new ByteArrayInputStream(Files.readAllBytes(new File(source).toPath())));
+		assertEquals(0, main.run(new String[] {"-source", "-", "-target", new File(source).getName(), "-errorondifference"}));
+		assertEquals(2, main.run(new String[] {"-source", "-", "-target", "-"}));
+	}
+
+	/**
+	 * Create a zip whose entries have an Info-ZIP extended timestamp, which is an odd
+	 * number of seconds after their MS-DOS time
+	 * @param namesAndContents names and contents of the entries
+	 * @return the zip
+	 * @throws IOException
+	 */
+	private static byte[] createZipWithExtendedTime(String... namesAndContents) throws IOException {
+		final long time = 1000000000000L;
+		final long seconds = time / 1000 + 3;
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		ZipOutputStream zipOS = new ZipOutputStream(zip);
+		for (int i = 0; i < namesAndContents.length; i += 2) {
+			ZipEntry entry = new ZipEntry(namesAndContents[i]);
+			entry.setTime(time);
+			entry.setExtra(new byte[] {0x55, 0x54, 5, 0, 1,
+					(byte) seconds, (byte) (seconds >> 8), (byte) (seconds >> 16), (byte) (seconds >> 24)});
+			zipOS.putNextEntry(entry);
+			zipOS.write(namesAndContents[i + 1].getBytes("UTF-8"));
+		}
+		zipOS.close();
+		return zip.toByteArray();
+	}
+
+	/**
+	 * Test that entries with an extended timestamp have the same time whether they are read
+	 * from a stream or from the central directory.
+	 * @throws IOException
+	 */
+	@Test
+	public void testStreamingInputExtendedTime() throws IOException {
+		final String filename = testDirPathName + File.separator + "testExtendedTime.zip";
+		new File(testDirPathName).mkdirs();
+		Files.write(new File(filename).toPath(), createZipWithExtendedTime("f.txt", "content"));
+
+		final InputStream in = new FileInputStream(filename);
+		try {
+			DifferenceCalculator calc = new DifferenceCalculator(filename, filename);
+			calc.setSourceStream(in);
+			calc.setCompareTimestamps(true);
+			Differences differences = calc.getDifferences();
+			assertFalse(differences.toString(), differences.hasDifferences());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Test that the ZipEntry maps and the EntryTables compare times with the same precision.
+	 * @throws IOException
+	 */
+	@Test
+	public void testTimestampPrecision() throws IOException {
+		final long time = 1000000000000L;
+		final long seconds = time / 1000 + 1;
+		final String[] filenames = {testDirPathName + File.separator + "testTimestampDos.zip",
+				testDirPathName + File.separator + "testTimestampExtended.zip"};
+		for (int i = 0; i < filenames.length; i++) {
+			ZipOutputStream zipOS = new ZipOutputStream(new FileOutputStream(filenames[i]));
+			try {
+				ZipEntry entry = new ZipEntry("f.txt");
+				entry.setTime(time);
+				if (i == 1) {
+					// one second later, which is the same time in MS-DOS format
+					entry.setExtra(new byte[] {0x55, 0x54, 5, 0, 1,
+							(byte) seconds, (byte) (seconds >> 8), (byte) (seconds >> 16), (byte) (seconds >> 24)});
+				}
+				zipOS.putNextEntry(entry);
+				zipOS.write(new byte[] {'f'});
+			} finally {
+				zipOS.close();
+			}
+		}
+
+		for (boolean entryTable : new boolean[] {false, true}) {
+			DifferenceCalculator calc = new DifferenceCalculator(filenames[0], filenames[1]);
+			calc.setUseEntryTable(entryTable);
+			calc.setCompareTimestamps(true);
+			Differences differences = calc.getDifferences();
+			assertFalse(differences.toString(), differences.hasDifferences());
+		}
+	}
+
+	/**
+	 * Test that the entries of a nested archive have the same time whether the archive is
+	 * stored and read from its central directory or compressed and read from a stream.
+	 * @throws IOException
+	 */
+	@Test
+	public void testNestedArchiveExtendedTime() throws IOException {
+		final byte[] inner = createZipWithExtendedTime("f.txt", "content", "g.txt", "other");
+		final String[] filenames = {testDirPathName + File.separator + "testExtendedTimeStored.jar",
+				testDirPathName + File.separator + "testExtendedTimeDeflated.jar"};
+		for (int i = 0; i < filenames.length; i++) {
+			JarOutputStream jarOS = new JarOutputStream(new FileOutputStream(filenames[i]));
+			try {
+				if (i == 0) {
+					putStoredEntry(jarOS, "lib/inner.zip", inner);
+				} else {
+					jarOS.putNextEntry(new JarEntry("lib/inner.zip"));
+					jarOS.write(inner);
+				}
+			} finally {
+				jarOS.close();
+			}
+		}
+
+		DifferenceCalculator calc = new DifferenceCalculator(filenames[0], filenames[1]);
+		calc.setUseEntryTable(true);
+		calc.setCompareTimestamps(true);
+		Differences differences = calc.getDifferences();
+		assertFalse(differences.toString(), differences.getChanged().containsKey("lib/inner.zip!f.txt"));
+		assertFalse(differences.toString(), differences.getChanged().containsKey("lib/inner.zip!g.txt"));
+	}
+
+	/**
+	 * Add a stored entry to a jar
+	 * @param jarOS JarOutputStream
+	 * @param name name of the entry
+	 * @param bytes content of the entry
+	 * @throws IOException
+	 */
+	private static void putStoredEntry(JarOutputStream jarOS, String name, byte[] bytes) throws IOException {
+		JarEntry entry = new JarEntry(name);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(bytes.length);
+		entry.setCompressedSize(bytes.length);
+		java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+		crc.update(bytes);
+		entry.setCrc(crc.getValue());
+		jarOS.putNextEntry(entry);
+		jarOS.write(bytes);
+	}
+
+	/**
+	 * Create a fat jar with a stored library containing a stored archive, and a large
+	 * compressed library
+	 * @param filename name of the jar to create
+	 * @param classContent content of the changed classes
+	 * @throws IOException
+	 */
+	private void createFatJar(String filename, String classContent) throws IOException {
+		ByteArrayOutputStream deep = new ByteArrayOutputStream();
+		JarOutputStream deepOS = new JarOutputStream(deep);
+		deepOS.putNextEntry(new JarEntry("deep.txt"));
+		deepOS.write(classContent.getBytes("UTF-8"));
+		deepOS.close();
+
+		ByteArrayOutputStream stored = new ByteArrayOutputStream();
+		JarOutputStream storedOS = new JarOutputStream(stored);
+		storedOS.putNextEntry(new JarEntry(ENTRYA));
+		storedOS.write(classContent.getBytes("UTF-8"));
+		putStoredEntry(storedOS, "deep.zip", deep.toByteArray());
+		storedOS.close();
+
+		// larger than the threshold above which compressed archives are read from a temporary file
+		ByteArrayOutputStream big = new ByteArrayOutputStream();
+		JarOutputStream bigOS = new JarOutputStream(big);
+		putStoredEntry(bigOS, "data.bin", new byte[100000]);
+		bigOS.putNextEntry(new JarEntry(ENTRYB));
+		bigOS.write(classContent.getBytes("UTF-8"));
+		bigOS.close();
+
+		new File(testDirPathName).mkdirs();
+		JarOutputStream jarOS = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		putStoredEntry(jarOS, "BOOT-INF/lib/stored.jar", stored.toByteArray());
+		jarOS.putNextEntry(new JarEntry("BOOT-INF/lib/big.jar"));
+		jarOS.write(big.toByteArray());
+		jarOS.close();
+	}
+
+	/**
+	 * Test that nested archives read through their central directories have the same
+	 * entries as with a ZipInputStream.
+	 * @throws IOException
+	 */
+	@Test
+	public void testNestedArchiveCentralDirectory() throws IOException {
+		final String source = testDirPathName + File.separator + "testFatJarSource.jar";
+		final String target = testDirPathName + File.separator + "testFatJarTarget.jar";
+		createFatJar(source, "class v1");
+		createFatJar(target, "class v2");
+
+		final Differences expected = new DifferenceCalculator(source, target).getDifferences();
+		assertEquals(new TreeSet<String>(Arrays.asList("BOOT-INF/lib/big.jar", "BOOT-INF/lib/big.jar!" + ENTRYB,
+				"BOOT-INF/lib/stored.jar", "BOOT-INF/lib/stored.jar!" + ENTRYA, "BOOT-INF/lib/stored.jar!deep.zip",
+				"BOOT-INF/lib/stored.jar!deep.zip!deep.txt")), expected.getChanged().keySet());
+
+		DifferenceCalculator calc = new DifferenceCalculator(source, target);
+		calc.setUseEntryTable(true);
+		assertEquals(expected.toString(), calc.getDifferences().toString());
+
+		final EntryTable table = calc.buildSourceIndex();
+		final InputStream in = new FileInputStream(source);
+		try {
+			calc = new DifferenceCalculator(source, target);
+			calc.setSourceStream(in);
+			final EntryTable streamed = calc.buildSourceIndex();
+			final int[] rows = table.sortedRows();
+			final int[] streamedRows = streamed.sortedRows();
+			assertEquals(streamedRows.length, rows.length);
+			for (int i = 0; i < rows.length; i++) {
+				assertEquals(streamed.getKey(streamedRows[i]), table.getKey(rows[i]));
+				assertEquals(streamed.getSize(streamedRows[i]), table.getSize(rows[i]));
+				assertEquals(streamed.getCrc(streamedRows[i]), table.getCrc(rows[i]));
+				assertEquals(streamed.getDosTime(streamedRows[i]), table.getDosTime(rows[i]));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Test that contents are compared for the last of several entries with the same name,
+	 * which is the one that has been indexed.
+	 * @throws IOException
+	 */
+	@Test
+	public void testCompareContentsDuplicateNames() throws IOException {
+		final String indexed = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+		final String other = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+		final String target = testDirPathName + File.separator + "testContentsDuplicateNamesTarget.zip";
+		createZipWithRenamedEntries(target, 0, null, null, "dup2.txt", indexed);
+
+		for (boolean indexedLast : new boolean[] {true, false}) {
+			final String source = testDirPathName + File.separator + "testContentsDuplicateNamesSource.zip";
+			if (indexedLast) {
+				createZipWithRenamedEntries(source, 9, "dup1.txt", "dup2.txt", "dup1.txt", other, "dup2.txt", indexed);
+			} else {
+				createZipWithRenamedEntries(source, 9, "dup1.txt", "dup2.txt", "dup1.txt", indexed, "dup2.txt", other);
+			}
+			for (int i = 0; i < 4; i++) {
+				final DifferenceCalculator calc = new DifferenceCalculator(source, target);
+				calc.setCompareContents(true);
+				calc.setUseEntryTable((i & 1) != 0);
+				calc.setDetectMoves((i & 2) != 0);
+				assertEquals(!indexedLast, calc.getDifferences().hasDifferences());
+			}
+
+			// each row is read at its own local header offset, not looked up by its name
+			final EntryTable sourcetable = new DifferenceCalculator(source, target).buildSourceIndex();
+			final EntryTable targettable = new DifferenceCalculator(target, source).buildSourceIndex();
+			assertEquals(2, sourcetable.size());
+			final ContentComparator comparator = new ContentComparator(new File(source), new File(target), null);
+			try {
+				assertEquals(!indexedLast, comparator.contentsMatch("dup2.txt", sourcetable, 0, targettable, 0));
+				assertEquals(indexedLast, comparator.contentsMatch("dup2.txt", sourcetable, 1, targettable, 0));
+			} finally {
+				comparator.close();
+			}
+		}
+	}
+
+	/**
+	 * Create an ear containing a war with a nested jar
+	 * @param filename name of the ear to create
+	 * @param classContent content of the changed class in the jar
+	 * @param webXml content of the changed file in the war
+	 * @return content of the jar
+	 * @throws IOException
+	 */
+	private byte[] createEarWithNestedJar(String filename, String classContent, String webXml) throws IOException {
+		ByteArrayOutputStream jar = new ByteArrayOutputStream();
+		JarOutputStream jarOS = new JarOutputStream(jar);
+		jarOS.putNextEntry(new JarEntry(ENTRYA));
+		jarOS.write(classContent.getBytes("UTF-8"));
+		jarOS.putNextEntry(new JarEntry(ENTRYB));
+		jarOS.write(new byte[] {'b'});
+		jarOS.close();
+
+		ByteArrayOutputStream war = new ByteArrayOutputStream();
+		JarOutputStream warOS = new JarOutputStream(war);
+		warOS.putNextEntry(new JarEntry("index.html"));
+		warOS.write(new byte[1000]);
+		warOS.putNextEntry(new JarEntry("WEB-INF/web.xml"));
+		warOS.write(webXml.getBytes("UTF-8"));
+		warOS.putNextEntry(new JarEntry("WEB-INF/lib/foo.jar"));
+		warOS.write(jar.toByteArray());
+		warOS.close();
+
+		JarOutputStream earOS = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		earOS.putNextEntry(new JarEntry("app.war"));
+		earOS.write(war.toByteArray());
+		earOS.putNextEntry(new JarEntry("readme.txt"));
+		earOS.write(new byte[] {'r'});
+		earOS.close();
+		return jar.toByteArray();
+	}
+
+	/**
+	 * Test that a war in an ear is rebuilt with only its changed entries under a name
+	 * which marks it as a patch, and that the changed jar in it is copied complete.
+	 * @throws IOException
+	 */
+	@Test
+	public void testZipBuilderNestedPatches() throws IOException {
+		final String source = testDirPathName + File.separator + "testNestedPatchSource.ear";
+		final String target = testDirPathName + File.separator + "testNestedPatchTarget.ear";
+		final String output = testDirPathName + File.separator + "testNestedPatch.zip";
+		createEarWithNestedJar(source, "a", "<web-app/>");
+		final byte[] jar = createEarWithNestedJar(target, "aa", "<web-app version=\"3.0\"/>");
+		Differences differences = new DifferenceCalculator(source, target).getDifferences();
+		ZipBuilder builder = new ZipBuilder();
+		builder.setNestedPatches(true);
+		builder.build(output, 0, differences);
+
+		ZipFile zf = new ZipFile(output);
+		try {
+			assertEquals(1, zf.size());
+			assertNull(zf.getEntry("app.war"));
+			ZipInputStream war = new ZipInputStream(zf.getInputStream(zf.getEntry("app.war" + ZipBuilder.PATCH_SUFFIX)));
+			ZipEntry entry = war.getNextEntry();
+			assertEquals("WEB-INF/web.xml", entry.getName());
+			assertTrue(ZipUtil.contentEquals(new ByteArrayInputStream("<web-app version=\"3.0\"/>".getBytes("UTF-8")), war));
+			entry = war.getNextEntry();
+			assertEquals("WEB-INF/lib/foo.jar", entry.getName());
+			assertEquals(ZipEntry.STORED, entry.getMethod());
+			assertTrue(ZipUtil.contentEquals(new ByteArrayInputStream(jar), war));
+			assertNull(war.getNextEntry());
+		} finally {
+			zf.close();
+		}
+
+		// without nested patches the war is copied complete
+		new ZipBuilder().build(output, 0, differences);
+		zf = new ZipFile(output);
+		ZipFile ear = new ZipFile(target);
+		try {
+			assertEquals(1, zf.size());
+			assertEquals(ear.getEntry("app.war").getCrc(), zf.getEntry("app.war").getCrc());
+		} finally {
+			ear.close();
+			zf.close();
+		}
+	}
+
 	/**
 	 * Method exerciseHtmlBuilder.
 	 * @param differences Differences